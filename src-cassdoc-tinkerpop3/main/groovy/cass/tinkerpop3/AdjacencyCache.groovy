@@ -0,0 +1,55 @@
+package cass.tinkerpop3
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+
+import cassdoc.Rel
+
+/**
+ * LRU cache of the rels of recently traversed vertices, per doc and rel type (ty1), so repeated edges()/vertices()
+ * calls on a vertex don't re-read its r partition. The rel types of a doc are evicted and invalidated together: the
+ * graph invalidates a doc whenever it adds or deletes one of its rels or the doc itself.
+ */
+@CompileStatic
+class AdjacencyCache {
+
+  // key of the full rel list of a doc
+  static final String ALL_RELS = ''
+
+  private final Cache<String, ConcurrentMap<String, List<Rel>>> cache
+
+  AdjacencyCache(long maxDocs) {
+    cache = CacheBuilder.newBuilder().maximumSize(maxDocs).build()
+  }
+
+  /**
+   * the cached rels of the doc of a type (or ALL_RELS), loaded on a miss
+   */
+  List<Rel> rels(String docId, String relType, Callable<List<Rel>> loader) {
+    ConcurrentMap<String, List<Rel>> byType = cache.get(docId, { new ConcurrentHashMap<String, List<Rel>>() } as Callable<ConcurrentMap<String, List<Rel>>>)
+    String key = relType ?: ALL_RELS
+    List<Rel> rels = byType.get(key)
+    if (rels == null) {
+      // an invalidation during the load drops the whole map, so a stale list never lands in the cache
+      rels = Collections.unmodifiableList(loader.call())
+      byType.put(key, rels)
+    }
+    return rels
+  }
+
+  void invalidate(String docId) {
+    if (docId != null) {
+      cache.invalidate(docId)
+    }
+  }
+
+  void invalidateAll() {
+    cache.invalidateAll()
+  }
+}
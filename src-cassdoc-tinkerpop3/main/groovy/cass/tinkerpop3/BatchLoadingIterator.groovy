@@ -0,0 +1,72 @@
+package cass.tinkerpop3
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.function.Function
+
+/**
+ * Streams the elements of a list of ids, loading them concurrently a batch at a time: while one batch is consumed the
+ * next is already loading, so neither the whole list is built up front nor is each element fetched one at a time.
+ */
+@CompileStatic
+class BatchLoadingIterator<I, O> implements Iterator<O> {
+
+  private final Iterator<I> ids
+  private final int batchSize
+  private final ExecutorService executor
+  private final Function<I, O> loader
+
+  private List<Future<O>> current = []
+  private List<Future<O>> next
+  private int pos = 0
+
+  BatchLoadingIterator(Iterator<I> ids, int batchSize, ExecutorService executor, Function<I, O> loader) {
+    this.ids = ids
+    this.batchSize = Math.max(1, batchSize)
+    this.executor = executor
+    this.loader = loader
+    this.next = submitBatch()
+  }
+
+  private List<Future<O>> submitBatch() {
+    List<Future<O>> batch = []
+    while (ids.hasNext() && batch.size() < batchSize) {
+      final I id = ids.next()
+      batch.add(executor.submit({ loader.apply(id) } as Callable<O>))
+    }
+    return batch
+  }
+
+  @Override
+  boolean hasNext() {
+    if (pos < current.size()) {
+      return true
+    }
+    if (next.isEmpty()) {
+      return false
+    }
+    current = next
+    pos = 0
+    // start the following batch while this one is consumed
+    next = submitBatch()
+    return true
+  }
+
+  @Override
+  O next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException()
+    }
+    Future<O> element = current[pos]
+    current[pos++] = null
+    try {
+      return element.get()
+    } catch (ExecutionException e) {
+      throw e.cause
+    }
+  }
+}
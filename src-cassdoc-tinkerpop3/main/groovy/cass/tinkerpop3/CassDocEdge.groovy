@@ -22,15 +22,14 @@ class CassDocEdge implements Edge {
     String relMetaId = cassDocGraph.cassDocAPI.relMetadataUUID(opctx, detail, rel.relKey)
     StringWriter w = new StringWriter()
     CassDocJsonUtil.specialSerialize(value,w)
-    cassDocGraph.cassDocAPI.newAttr(opctx, detail, relMetaId, key, w.toString())
+    cassDocGraph.cassDocAPI.newAttr(opctx, detail, relMetaId, key, w.toString(), false)
     CassDocEdgeProperty prop = new CassDocEdgeProperty(docId:relMetaId,rel:rel,cassDocGraph:cassDocGraph,key:key,value:value)
     return prop
   }
 
   @Override
   void remove() {
-    // TODO: cassdoc API needs Rel cleanup
-    throw Edge.Exceptions.edgeRemovalNotSupported();
+    cassDocGraph.deleteRel(rel)
   }
 
 
@@ -46,11 +45,8 @@ class CassDocEdge implements Edge {
 
   @Override
   String label() {
-    OperationContext opctx = new OperationContext(space:cassDocGraph.space)
-    Detail detail = new Detail()
-    Map<String,Object> relMeta = cassDocGraph.cassDocAPI.deserializeRelMetadata(opctx, detail, rel.relKey)
-    String label = relMeta["label"]
-    return label
+    // the rel type, as given to addEdge and matched by edge label filters
+    rel.ty1
   }
 
 
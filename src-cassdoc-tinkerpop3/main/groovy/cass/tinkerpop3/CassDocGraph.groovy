@@ -0,0 +1,263 @@
+package cass.tinkerpop3;
+
+import org.apache.commons.configuration.Configuration
+import org.apache.tinkerpop.gremlin.process.traversal.Compare
+import org.apache.tinkerpop.gremlin.process.traversal.TraversalStrategies
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer
+import org.apache.tinkerpop.gremlin.process.computer.GraphComputer
+import org.apache.tinkerpop.gremlin.structure.Edge
+import org.apache.tinkerpop.gremlin.structure.Graph
+import org.apache.tinkerpop.gremlin.structure.Transaction
+import org.apache.tinkerpop.gremlin.structure.Vertex
+import org.apache.tinkerpop.gremlin.structure.Graph.Exceptions
+import org.apache.tinkerpop.gremlin.structure.Graph.Variables
+import org.apache.tinkerpop.gremlin.util.iterator.IteratorUtils
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Function
+
+import cassdoc.CassdocAPI
+import cassdoc.CassDocJsonUtil
+import cassdoc.Detail
+import cassdoc.DocType
+import cassdoc.OperationContext
+import cassdoc.Rel
+import cassdoc.RelKey
+import cwdrg.lg.annotation.Log
+
+
+@Graph.OptIn(Graph.OptIn.SUITE_STRUCTURE_STANDARD)
+//@Graph.OptIn(Graph.OptIn.SUITE_STRUCTURE_INTEGRATE)
+//@Graph.OptIn(Graph.OptIn.SUITE_STRUCTURE_PERFORMANCE)
+//@Graph.OptIn(Graph.OptIn.SUITE_PROCESS_STANDARD)
+//@Graph.OptIn(Graph.OptIn.SUITE_PROCESS_PERFORMANCE)
+//@Graph.OptIn(Graph.OptIn.SUITE_GROOVY_PROCESS_STANDARD)
+//@Graph.OptIn(Graph.OptIn.SUITE_GROOVY_ENVIRONMENT)
+//@Graph.OptIn(Graph.OptIn.SUITE_GROOVY_ENVIRONMENT_INTEGRATE)
+//@Graph.OptIn(Graph.OptIn.SUITE_GROOVY_ENVIRONMENT_PERFORMANCE)
+@Log
+class CassDocGraph implements Graph {
+
+  String space;
+  CassdocAPI cassDocAPI;
+
+  // vertices()/edges() load this many elements concurrently, on loadThreads graph threads
+  int loadBatchSize = 64
+  int loadThreads = 16
+  // docs whose rels are cached for traversals
+  long adjacencyCacheDocs = 10000
+
+  static boolean testMode = false
+
+  static {
+    TraversalStrategies.GlobalCache.registerStrategies(CassDocGraph,
+        TraversalStrategies.GlobalCache.getStrategies(Graph).clone().addStrategies(CassDocGraphStepStrategy.instance()))
+  }
+
+  private ExecutorService loader = null
+  private AdjacencyCache adjacency = null
+
+  /**
+   * graph element loads get their own pool: a doc load fans out on the read executor and must not wait on itself
+   */
+  synchronized ExecutorService getLoader() {
+    if (loader == null) {
+      AtomicInteger threadCount = new AtomicInteger()
+      loader = Executors.newFixedThreadPool(loadThreads, { Runnable r ->
+        Thread t = new Thread(r, "cassdoc-graph-" + threadCount.incrementAndGet())
+        t.daemon = true
+        return t
+      } as ThreadFactory)
+    }
+    return loader
+  }
+
+  synchronized AdjacencyCache getAdjacency() {
+    if (adjacency == null) {
+      adjacency = new AdjacencyCache(adjacencyCacheDocs)
+    }
+    return adjacency
+  }
+
+  // ---- rels, through the adjacency cache
+
+  /**
+   * the rels of a doc of a type (ty1), or all of them for a null type
+   */
+  List<Rel> rels(final String docId, final String relType) {
+    getAdjacency().rels(docId, relType, {
+      OperationContext opctx = new OperationContext(space:space)
+      Detail detail = new Detail()
+      relType == null ? cassDocAPI.deserializeDocRels(opctx, detail, docId) : cassDocAPI.deserializeDocRels(opctx, detail, docId, relType)
+    } as Callable<List<Rel>>)
+  }
+
+  void addRel(Rel rel) {
+    OperationContext opctx = new OperationContext(space:space)
+    Detail detail = new Detail()
+    cassDocAPI.addRel(opctx, detail, rel)
+    getAdjacency().invalidate(rel.p1)
+    getAdjacency().invalidate(rel.c1)
+  }
+
+  void deleteRel(Rel rel) {
+    OperationContext opctx = new OperationContext(space:space)
+    Detail detail = new Detail()
+    cassDocAPI.deleteRel(opctx, detail, rel.relKey)
+    getAdjacency().invalidate(rel.p1)
+    getAdjacency().invalidate(rel.c1)
+  }
+
+  void deleteVertex(String docId) {
+    OperationContext opctx = new OperationContext(space:space)
+    Detail detail = new Detail()
+    cassDocAPI.delDoc(opctx, detail, docId)
+    getAdjacency().invalidate(docId)
+  }
+
+
+  static CassDocGraph open(final Configuration configuration)
+  {
+    CassDocGraph cassDocGraph = new CassDocGraph()
+    if (testMode) {
+      println "CASSDOCGRAPH TEST MODE TRIGGERED"
+      cassDocGraph.space = CassDocGraphTestHelper.space
+      cassDocGraph.cassDocAPI = CassDocGraphTestHelper.api
+    }
+  }
+
+  @Override
+  Vertex addVertex(Object... keyValues) {
+    //log.dbg("CassDocGraph: addVertex invoked: NOT SUPPORTED: use CassDoc API methods to add a new document/vertex")
+    //throw Graph.Exceptions.vertexAdditionsNotSupported()
+
+    // usual rules: first pair MUST be _id and indicate the type
+    if (keyValues == null) throw new RuntimeException("Invalid null/empty keyvalues for new vertex")
+    if (keyValues.length == 0) throw new RuntimeException("Invalid zero-length keyvalues for new vertex")
+    if (keyValues.length %2 != 0) throw new RuntimeException("Unbalanced number of varargs")
+    if (keyValues[0] != "_id") throw new RuntimeException("_id type indicator required as first property pair")
+
+    OperationContext opctx = new OperationContext(space:space)
+    Detail detail = new Detail()
+
+    String docid = cassDocAPI.newDoc(opctx,detail,"""{"_id":"${keyValues[1]}"}""")
+    for (int i=1; i < keyValues.length / 2; i++) {
+      String attrName = keyValues[i*2]
+      Object attrVal = keyValues[i*2+1]
+      StringWriter w = new StringWriter()
+      // todo: newDoc/newAttr/update that don't have serialization overhead
+      CassDocJsonUtil.specialSerialize(attrVal,w)
+      cassDocAPI.newAttr(opctx, detail, docid, attrName, w.toString(), false)
+    }
+
+    CassDocVertex v = new CassDocVertex(docId:docid,cassDocGraph:this)
+    return v
+  }
+
+
+  @Override
+  void close() throws Exception {
+    // the driver belongs to the API
+    synchronized (this) {
+      loader?.shutdownNow()
+      loader = null
+      adjacency?.invalidateAll()
+    }
+  }
+
+
+  /**
+   * Neo4j doesn't implement this...
+   * 
+   * http://tinkerpop.apache.org/docs/3.0.1-incubating/#graphcomputer
+   */  
+  @Override
+  GraphComputer compute() throws IllegalArgumentException {
+    throw Exceptions.graphComputerNotSupported()
+  }
+
+
+  @Override
+  <C extends GraphComputer> C compute(Class<C> graphComputerClass) throws IllegalArgumentException {
+    throw Exceptions.graphComputerNotSupported()
+  }
+
+
+  @Override
+  Configuration configuration() {
+    // ??? get types ??? keyspaces ???
+    return null;
+  }
+
+
+  @Override
+  Iterator<Edge> edges(Object... edgeIds) {
+    return new BatchLoadingIterator<Object, Edge>(Arrays.asList(edgeIds).iterator(), loadBatchSize, getLoader(), { Object id ->
+      OperationContext opctx = new OperationContext(space:space)
+      Detail detail = new Detail()
+      Rel rel = cassDocAPI.deserializeRel(opctx, detail, (RelKey)id)
+      new CassDocEdge(rel:rel,cassDocGraph:this)
+    } as Function<Object, Edge>)
+  }
+
+
+  @Override
+  Transaction tx() {
+    throw Exceptions.transactionsNotSupported();
+  }
+
+
+  @Override
+  Variables variables() {
+    // Graph keyspace???
+    return null;
+  }
+
+
+  @Override
+  Iterator<Vertex> vertices(Object... vertexIds) {
+    // vertexID: space,id tuple
+    log.dbg("CassDoc: get vertices for Ids "+vertexIds,null,null)
+    return vertices(Arrays.asList(vertexIds).iterator())
+  }
+
+  /**
+   * the vertices of a stream of ids, the docs loaded with them as their property maps
+   */
+  Iterator<Vertex> vertices(Iterator<?> vertexIds) {
+    return new BatchLoadingIterator<Object, Vertex>((Iterator<Object>)vertexIds, loadBatchSize, getLoader(), { Object id ->
+      CassDocVertex vertex = new CassDocVertex(docId:(String)id,cassDocGraph:this)
+      vertex.propertyMap()
+      vertex
+    } as Function<Object, Vertex>)
+  }
+
+  /**
+   * Candidate vertices for has() filters (see CassDocGraphStep): the docs of each type with the value of the first
+   * attribute equality filter, through the type's ManualIndex or FixedAttr column for the attribute, and all docs of
+   * the types that have neither. The caller still applies all of the filters.
+   */
+  Iterator<Vertex> lookupVertices(List<HasContainer> hasContainers) {
+    HasContainer lookup = hasContainers.find { HasContainer c -> !c.key.startsWith("~") && c.biPredicate == Compare.eq && c.value != null }
+    OperationContext opctx = new OperationContext(space:space)
+    Detail detail = new Detail()
+    List<Iterator<String>> ids = []
+    for (DocType type : cassDocAPI.docTypes(opctx)) {
+      if (type.suffix == "META") {
+        // metadata docs aren't vertices
+        continue
+      }
+      Iterator<String> typeIds = lookup == null ? null : cassDocAPI.lookupDocIds(opctx, detail, type, lookup.key, lookup.value)
+      if (typeIds == null) {
+        log.dbg("CassDoc: no index for ${lookup?.key} in ${type.uri}, scanning",null,null)
+        typeIds = cassDocAPI.scanDocIds(opctx, detail, type)
+      }
+      ids.add(typeIds)
+    }
+    return vertices(IteratorUtils.concat(ids as Iterator<String>[]))
+  }
+}
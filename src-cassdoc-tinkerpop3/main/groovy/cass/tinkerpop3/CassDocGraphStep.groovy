@@ -0,0 +1,69 @@
+package cass.tinkerpop3
+
+import groovy.transform.CompileStatic
+
+import java.util.function.Predicate
+import java.util.function.Supplier
+
+import org.apache.tinkerpop.gremlin.process.traversal.step.HasContainerHolder
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.GraphStep
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer
+import org.apache.tinkerpop.gremlin.structure.Edge
+import org.apache.tinkerpop.gremlin.structure.Element
+import org.apache.tinkerpop.gremlin.structure.Vertex
+import org.apache.tinkerpop.gremlin.structure.util.StringFactory
+import org.apache.tinkerpop.gremlin.util.iterator.IteratorUtils
+
+/**
+ * GraphStep with the has() filters that followed it folded in (see CassDocGraphStepStrategy): without ids the vertices
+ * come from an index or fixed column lookup of one of the filters (CassDocGraph.lookupVertices) rather than from an
+ * enumeration, and all of the filters are then checked on the loaded vertices.
+ */
+@CompileStatic
+class CassDocGraphStep<S, E extends Element> extends GraphStep<S, E> implements HasContainerHolder {
+
+  private final List<HasContainer> hasContainers = []
+
+  CassDocGraphStep(GraphStep<S, E> originalGraphStep) {
+    super(originalGraphStep.traversal, originalGraphStep.returnClass, originalGraphStep.isStartStep(), originalGraphStep.ids)
+    for (String label : originalGraphStep.labels) {
+      addLabel(label)
+    }
+    setIteratorSupplier({
+      (Iterator<E>) (Vertex.isAssignableFrom(returnClass) ? vertices() : edges())
+    } as Supplier<Iterator<E>>)
+  }
+
+  private CassDocGraph graph() {
+    (CassDocGraph) traversal.graph.get()
+  }
+
+  private Iterator<Vertex> vertices() {
+    Iterator<Vertex> candidates = ids != null && ids.length > 0 ? graph().vertices(ids) : graph().lookupVertices(hasContainers)
+    return IteratorUtils.filter(candidates, { Vertex v -> HasContainer.testAll(v, hasContainers) } as Predicate<Vertex>)
+  }
+
+  private Iterator<Edge> edges() {
+    return IteratorUtils.filter(graph().edges(ids), { Edge e -> HasContainer.testAll(e, hasContainers) } as Predicate<Edge>)
+  }
+
+  @Override
+  List<HasContainer> getHasContainers() {
+    Collections.unmodifiableList(hasContainers)
+  }
+
+  @Override
+  void addHasContainer(HasContainer hasContainer) {
+    hasContainers.add(hasContainer)
+  }
+
+  @Override
+  String toString() {
+    hasContainers.isEmpty() ? super.toString() : StringFactory.stepString(this, Arrays.toString(ids), hasContainers)
+  }
+
+  @Override
+  int hashCode() {
+    super.hashCode() ^ hasContainers.hashCode()
+  }
+}
@@ -0,0 +1,107 @@
+package cass.tinkerpop3
+
+import groovy.transform.CompileStatic
+
+import org.apache.tinkerpop.gremlin.process.traversal.Compare
+import org.apache.tinkerpop.gremlin.process.traversal.Contains
+import org.apache.tinkerpop.gremlin.process.traversal.Step
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal
+import org.apache.tinkerpop.gremlin.process.traversal.TraversalStrategy
+import org.apache.tinkerpop.gremlin.process.traversal.step.HasContainerHolder
+import org.apache.tinkerpop.gremlin.process.traversal.step.filter.HasStep
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.GraphStep
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.NoOpBarrierStep
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.VertexStep
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer
+import org.apache.tinkerpop.gremlin.process.traversal.strategy.AbstractTraversalStrategy
+import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalHelper
+import org.apache.tinkerpop.gremlin.structure.Edge
+import org.apache.tinkerpop.gremlin.structure.T
+
+/**
+ * Pushes traversal filters down to CassDoc:
+ *
+ * - g.V().has(...) : the has() steps after a GraphStep are folded into a CassDocGraphStep, which looks the vertices up
+ *   through a ManualIndex or FixedAttr column of a filtered attribute instead of enumerating them
+ * - outE().hasLabel(...) : label-only has() steps after an edge VertexStep become the step's edge labels, which
+ *   CassDocVertex reads as ty1-restricted slices of the r partition instead of filtering all of the rels
+ */
+@CompileStatic
+class CassDocGraphStepStrategy extends AbstractTraversalStrategy<TraversalStrategy.ProviderOptimizationStrategy> implements TraversalStrategy.ProviderOptimizationStrategy {
+
+  private static final CassDocGraphStepStrategy INSTANCE = new CassDocGraphStepStrategy()
+
+  private CassDocGraphStepStrategy() {
+  }
+
+  static CassDocGraphStepStrategy instance() {
+    INSTANCE
+  }
+
+  @Override
+  void apply(Traversal.Admin<?, ?> traversal) {
+    if (TraversalHelper.onGraphComputer(traversal)) {
+      return
+    }
+    for (GraphStep originalGraphStep : TraversalHelper.getStepsOfClass(GraphStep, traversal)) {
+      CassDocGraphStep graphStep = new CassDocGraphStep(originalGraphStep)
+      TraversalHelper.replaceStep((Step) originalGraphStep, (Step) graphStep, traversal)
+      Step currentStep = graphStep.nextStep
+      while (currentStep instanceof HasStep || currentStep instanceof NoOpBarrierStep) {
+        if (currentStep instanceof HasStep) {
+          for (HasContainer hasContainer : ((HasContainerHolder) currentStep).hasContainers) {
+            graphStep.addHasContainer(hasContainer)
+          }
+          moveLabels(currentStep, currentStep.previousStep)
+          traversal.removeStep(currentStep)
+        }
+        currentStep = currentStep.nextStep
+      }
+    }
+
+    for (VertexStep vertexStep : TraversalHelper.getStepsOfClass(VertexStep, traversal)) {
+      if (!vertexStep.returnsEdge() || vertexStep.edgeLabels.length > 0 || !(vertexStep.nextStep instanceof HasStep)) {
+        continue
+      }
+      HasStep hasStep = (HasStep) vertexStep.nextStep
+      List<String> labels = edgeLabels(hasStep.hasContainers)
+      if (labels != null) {
+        VertexStep labelled = new VertexStep(traversal, Edge, vertexStep.direction, labels as String[])
+        moveLabels(vertexStep, labelled)
+        moveLabels(hasStep, labelled)
+        TraversalHelper.replaceStep((Step) vertexStep, (Step) labelled, traversal)
+        traversal.removeStep(hasStep)
+      }
+    }
+  }
+
+  private static void moveLabels(Step from, Step to) {
+    for (String label : new ArrayList<String>(from.labels)) {
+      to.addLabel(label)
+    }
+  }
+
+  /**
+   * the labels of a lone hasLabel() filter (eq or within), null for anything else
+   */
+  static List<String> edgeLabels(List<HasContainer> hasContainers) {
+    if (hasContainers.size() != 1 || hasContainers[0].key != T.label.accessor) {
+      return null
+    }
+    HasContainer hasContainer = hasContainers[0]
+    if (hasContainer.biPredicate == Compare.eq && hasContainer.value instanceof String) {
+      return [(String) hasContainer.value]
+    }
+    if (hasContainer.biPredicate == Contains.within && hasContainer.value instanceof Collection) {
+      List<String> labels = []
+      for (Object label : (Collection) hasContainer.value) {
+        if (!(label instanceof String)) {
+          return null
+        }
+        labels.add((String) label)
+      }
+      return labels.isEmpty() ? null : labels
+    }
+    return null
+  }
+}
@@ -1,8 +1,8 @@
 package cass.tinkerpop3
 
-import cassdoc.API
+import cassdoc.CassdocAPI
 
 class CassDocGraphTestHelper {
   static String space
-  static API api
+  static CassdocAPI api
 }
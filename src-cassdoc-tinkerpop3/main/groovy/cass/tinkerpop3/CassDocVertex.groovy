@@ -24,6 +24,28 @@ class CassDocVertex implements Vertex {
   String docId
   transient CassDocGraph cassDocGraph
 
+  // the doc's attributes, read once on first use
+  private transient volatile Map<String,Object> propertyMap = null
+
+  Map<String,Object> propertyMap() {
+    Map<String,Object> props = propertyMap
+    if (props == null) {
+      synchronized (this) {
+        if (propertyMap == null) {
+          OperationContext opctx = new OperationContext(space:cassDocGraph.space)
+          Detail detail = new Detail()
+          propertyMap = cassDocGraph.cassDocAPI.deserializeDoc(opctx, detail, docId)
+        }
+        props = propertyMap
+      }
+    }
+    return props
+  }
+
+  void invalidateProperties() {
+    propertyMap = null
+  }
+
   @Override
   Graph graph() {
     cassDocGraph
@@ -31,9 +53,8 @@ class CassDocVertex implements Vertex {
 
   @Override
   void remove() {
-    OperationContext opctx = new OperationContext(space:cassDocGraph.space)
-    Detail detail = new Detail()
-    cassDocGraph.cassDocAPI.delDoc(opctx, detail, docId, false)
+    cassDocGraph.deleteVertex(docId)
+    invalidateProperties()
   }
 
   @Override
@@ -42,9 +63,9 @@ class CassDocVertex implements Vertex {
     rel.p1 = docId
     rel.c1 = ((CassDocVertex)inVertex).docId
     rel.ty1 = label
+    cassDocGraph.addRel(rel)
     OperationContext opctx = new OperationContext(space:cassDocGraph.space)
     Detail detail = new Detail()
-    cassDocGraph.cassDocAPI.addRel(opctx, detail, rel)
     CassDocEdge edge = new CassDocEdge(rel:rel,cassDocGraph:cassDocGraph)
     if (keyValues != null ) {
 
@@ -54,9 +75,10 @@ class CassDocVertex implements Vertex {
         Object val = keyValues[i*2+1]
         StringWriter w = new StringWriter()
         CassDocJsonUtil.specialSerialize(val,w)
-        cassDocGraph.cassDocAPI.newAttr(opctx, detail, relMetaId, key, w.toString(),false, false)
+        cassDocGraph.cassDocAPI.newAttr(opctx, detail, relMetaId, key, w.toString(), false)
       }
     }
+    return edge
   }
 
   @Override
@@ -84,20 +106,21 @@ class CassDocVertex implements Vertex {
 
   @Override
   Iterator<Edge> edges(Direction direction, String... edgeLabels) {
-    Set<String> labels = null
+    List<Edge> edgeList = []
     if (edgeLabels != null && edgeLabels.length > 0) {
-      labels = [] as Set
-      labels.addAll(edgeLabels)
+      // only the labels' slices of the r partition
+      for (String label : edgeLabels as Set<String>) {
+        if (!StringUtils.startsWith(label,"_")) {
+          for (Rel rel : cassDocGraph.rels(docId, label)) {
+            edgeList.add(new CassDocEdge(cassDocGraph:cassDocGraph,rel:rel))
+          }
+        }
+      }
+      return edgeList.iterator()
     }
-    OperationContext opctx = new OperationContext(space:cassDocGraph.space)
-    Detail detail = new Detail()
-    List<Rel> docRels = cassDocGraph.cassDocAPI.deserializeDocRels(opctx, detail, docId)
-    List<Edge> edgeList = []
 
-    for (Rel rel : docRels) {
-      if (labels == null && !StringUtils.startsWith(rel.ty1,"_")) {
-        edgeList.add(new CassDocEdge(cassDocGraph:cassDocGraph,rel:rel))
-      } else if (!StringUtils.startsWith(rel.ty1,"_") && labels.contains(rel.ty1)) {
+    for (Rel rel : cassDocGraph.rels(docId, null)) {
+      if (!StringUtils.startsWith(rel.ty1,"_")) {
         edgeList.add(new CassDocEdge(cassDocGraph:cassDocGraph,rel:rel))
       }
     }
@@ -107,23 +130,18 @@ class CassDocVertex implements Vertex {
 
   @Override
    <V> Iterator<? extends Property<V>> properties(String... propertyKeys) {
-    OperationContext opctx = new OperationContext(space:cassDocGraph.space)
-    Detail detail = new Detail()
-
-    if (propertyKeys != null) {
-      Set<String> propnames = [] as Set
+    Set<String> propnames = null
+    if (propertyKeys != null && propertyKeys.length > 0) {
+      propnames = [] as Set
       propnames.addAll(propertyKeys)
-      if (propnames.size() > 0) {
-        detail.setAttrSubset(propnames)
-      }
     }
 
     List<Property> props = []
-    Map<String,Object> docProps = cassDocGraph.cassDocAPI.deserializeDoc(opctx, detail, docId)
-
-    for (Map.Entry<String,Object> entry : docProps.entrySet()) {
-      CassDocProperty prop = new CassDocVertexProperty(cassDocGraph:cassDocGraph,docId:docId,key:entry.key,value:entry.value,vertex:this)
-      props.add(prop)
+    for (Map.Entry<String,Object> entry : propertyMap().entrySet()) {
+      if (propnames == null || propnames.contains(entry.key)) {
+        CassDocProperty prop = new CassDocVertexProperty(cassDocGraph:cassDocGraph,docId:docId,key:entry.key,value:entry.value,vertex:this)
+        props.add(prop)
+      }
     }
 
     return props.iterator()
@@ -132,40 +150,36 @@ class CassDocVertex implements Vertex {
 
   @Override
   Iterator<Vertex> vertices(Direction direction, String... edgeLabels) {
-    Set<String> labels = null
-    if (edgeLabels != null && edgeLabels.length > 0) {
-      labels = [] as Set
-      labels.addAll(edgeLabels)
-    }
-    OperationContext opctx = new OperationContext(space:cassDocGraph.space)
-    Detail detail = new Detail()
-    List<Rel> docRels = cassDocGraph.cassDocAPI.deserializeDocRels(opctx, detail, docId)
     List<Vertex> vertexList = []
-
-    for (Rel rel : docRels) {
-      if (labels == null) {
-        if (direction.equals(Direction.OUT) && !StringUtils.startsWith(rel.ty1,"_") && !StringUtils.startsWith(rel.ty1,"-")) {
-          vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
-        } else if (direction.equals(Direction.IN) && !StringUtils.startsWith(rel.ty1,"_")&& StringUtils.startsWith(rel.ty1,"-")) {
-          vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
-        } else if (direction.equals(Direction.BOTH) && !StringUtils.startsWith(rel.ty1,"_")) {
-          vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
+    if (edgeLabels != null && edgeLabels.length > 0) {
+      // out edges are the label's rels, in edges the reverse ("-" prefixed) rels
+      for (String label : edgeLabels as Set<String>) {
+        if (StringUtils.startsWith(label,"_")) {
+          continue
         }
-      } else {
-        if (direction.equals(Direction.OUT) && !StringUtils.startsWith(rel.ty1,"_") && !StringUtils.startsWith(rel.ty1,"-") && labels.contains(rel.ty1)) {
-          vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
-        } else if (direction.equals(Direction.IN) && !StringUtils.startsWith(rel.ty1,"_") && StringUtils.startsWith(rel.ty1,"-") && labels.contains("-"+rel.ty1)) {
-          vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
-        } else if (direction.equals(Direction.BOTH)) {
-          if (rel.ty1.startsWith("-") && labels.contains(rel.ty1.substring(1))) {
+        if (direction != Direction.IN) {
+          for (Rel rel : cassDocGraph.rels(docId, label)) {
             vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
-          } else if (labels.contains(rel.ty1)) {
+          }
+        }
+        if (direction != Direction.OUT) {
+          for (Rel rel : cassDocGraph.rels(docId, "-"+label)) {
             vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
           }
         }
       }
+      return vertexList.iterator()
+    }
+
+    for (Rel rel : cassDocGraph.rels(docId, null)) {
+      if (direction.equals(Direction.OUT) && !StringUtils.startsWith(rel.ty1,"_") && !StringUtils.startsWith(rel.ty1,"-")) {
+        vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
+      } else if (direction.equals(Direction.IN) && !StringUtils.startsWith(rel.ty1,"_")&& StringUtils.startsWith(rel.ty1,"-")) {
+        vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
+      } else if (direction.equals(Direction.BOTH) && !StringUtils.startsWith(rel.ty1,"_")) {
+        vertexList.add(new CassDocVertex(cassDocGraph:cassDocGraph,docId:rel.c1))
+      }
     }
     return vertexList.iterator()
   }
 }
-
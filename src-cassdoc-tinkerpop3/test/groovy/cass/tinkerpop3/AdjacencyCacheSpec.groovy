@@ -0,0 +1,100 @@
+package cass.tinkerpop3
+
+import java.util.concurrent.Callable
+
+import cassdoc.Rel
+import spock.lang.Specification
+
+class AdjacencyCacheSpec extends Specification {
+
+  AdjacencyCache cache = new AdjacencyCache(2)
+  List<String> loads = []
+
+  Callable<List<Rel>> loader(String docId, String relType) {
+    return {
+      loads << docId + '/' + relType
+      [new Rel(p1: docId, ty1: relType ?: 'ANY', c1: 'c-' + docId)]
+    } as Callable<List<Rel>>
+  }
+
+  List<Rel> rels(String docId, String relType) {
+    cache.rels(docId, relType, loader(docId, relType))
+  }
+
+  void 'the rels of a doc and type are loaded once'() {
+    when:
+    List<Rel> first = rels('d1', 'LINK')
+    List<Rel> second = rels('d1', 'LINK')
+
+    then:
+    second.is(first)
+    first*.c1 == ['c-d1']
+    loads == ['d1/LINK']
+  }
+
+  void 'each rel type and the full rel list of a doc are cached apart'() {
+    when:
+    rels('d1', 'LINK')
+    rels('d1', 'PART')
+    rels('d1', null)
+    rels('d1', '')
+    rels('d1', 'PART')
+
+    then: 'no type and an empty type are both the full list'
+    loads == ['d1/LINK', 'd1/PART', 'd1/null']
+  }
+
+  void 'invalidating a doc drops all of its rel types and no other doc'() {
+    given:
+    rels('d1', 'LINK')
+    rels('d1', 'PART')
+    rels('d2', 'LINK')
+
+    when:
+    cache.invalidate('d1')
+    cache.invalidate(null)
+    rels('d1', 'LINK')
+    rels('d1', 'PART')
+    rels('d2', 'LINK')
+
+    then:
+    loads == ['d1/LINK', 'd1/PART', 'd2/LINK', 'd1/LINK', 'd1/PART']
+  }
+
+  void 'the least recently used doc is evicted past the max docs'() {
+    given:
+    rels('d1', 'LINK')
+    rels('d2', 'LINK')
+    rels('d1', 'LINK')
+
+    when:
+    rels('d3', 'LINK')
+    rels('d1', 'LINK')
+    rels('d2', 'LINK')
+
+    then:
+    loads == ['d1/LINK', 'd2/LINK', 'd3/LINK', 'd2/LINK']
+  }
+
+  void 'invalidating all drops every doc'() {
+    given:
+    rels('d1', 'LINK')
+    rels('d2', 'LINK')
+
+    when:
+    cache.invalidateAll()
+    rels('d1', 'LINK')
+    rels('d2', 'LINK')
+
+    then:
+    loads.size() == 4
+  }
+
+  void 'cached rel lists cannot be changed by callers'() {
+    when:
+    rels('d1', 'LINK').add(new Rel())
+
+    then:
+    thrown(UnsupportedOperationException)
+  }
+}
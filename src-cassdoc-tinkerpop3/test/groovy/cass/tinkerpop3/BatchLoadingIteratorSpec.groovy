@@ -0,0 +1,128 @@
+package cass.tinkerpop3
+
+import java.util.concurrent.AbstractExecutorService
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.function.Function
+
+import spock.lang.Specification
+
+class BatchLoadingIteratorSpec extends Specification {
+
+  /**
+   * runs each load on submit, so what has been loaded shows which batches were started
+   */
+  static class CallerRunsExecutor extends AbstractExecutorService {
+    void execute(Runnable command) { command.run() }
+    void shutdown() {}
+    List<Runnable> shutdownNow() { [] }
+    boolean isShutdown() { false }
+    boolean isTerminated() { false }
+    boolean awaitTermination(long timeout, TimeUnit unit) { true }
+  }
+
+  List<Integer> loaded = Collections.synchronizedList([])
+
+  Function<Integer, String> loader = { Integer id ->
+    loaded << id
+    'v' + id
+  } as Function<Integer, String>
+
+  void 'elements come back in id order'() {
+    expect:
+    new BatchLoadingIterator<Integer, String>((1..7).iterator(), 3, new CallerRunsExecutor(), loader).collect() == (1..7).collect { 'v' + it }
+  }
+
+  void 'the next batch is started when one is taken up, not before'() {
+    when:
+    BatchLoadingIterator<Integer, String> elements = new BatchLoadingIterator<Integer, String>((1..7).iterator(), 3, new CallerRunsExecutor(), loader)
+
+    then:
+    loaded == [1, 2, 3]
+
+    when:
+    elements.next()
+
+    then: 'the second batch loads while the first is consumed'
+    loaded == [1, 2, 3, 4, 5, 6]
+
+    when:
+    elements.next()
+    elements.next()
+
+    then:
+    loaded.size() == 6
+
+    when:
+    elements.hasNext()
+
+    then:
+    loaded == (1..7).toList()
+  }
+
+  void 'the loads of a batch run concurrently'() {
+    given:
+    ExecutorService executor = Executors.newFixedThreadPool(3)
+    CountDownLatch allStarted = new CountDownLatch(3)
+    Function<Integer, String> waiting = { Integer id ->
+      allStarted.countDown()
+      // only completes if the whole batch is in flight at once
+      if (!allStarted.await(5, TimeUnit.SECONDS)) {
+        throw new IllegalStateException('batch loaded one at a time')
+      }
+      'v' + id
+    } as Function<Integer, String>
+
+    when:
+    List<String> values = new BatchLoadingIterator<Integer, String>((1..3).iterator(), 3, executor, waiting).collect()
+
+    then:
+    values == ['v1', 'v2', 'v3']
+
+    cleanup:
+    executor.shutdownNow()
+  }
+
+  void 'a failed load is thrown when its element is reached'() {
+    given:
+    Function<Integer, String> failing = { Integer id ->
+      if (id == 2) {
+        throw new IllegalStateException('read timeout')
+      }
+      'v' + id
+    } as Function<Integer, String>
+    BatchLoadingIterator<Integer, String> elements = new BatchLoadingIterator<Integer, String>((1..3).iterator(), 2, new CallerRunsExecutor(), failing)
+
+    when:
+    String first = elements.next()
+    elements.next()
+
+    then:
+    first == 'v1'
+    IllegalStateException thrownException = thrown()
+    thrownException.message == 'read timeout'
+  }
+
+  void 'a batch size below one loads one at a time'() {
+    when:
+    BatchLoadingIterator<Integer, String> elements = new BatchLoadingIterator<Integer, String>((1..3).iterator(), 0, new CallerRunsExecutor(), loader)
+
+    then:
+    loaded == [1]
+    elements.collect() == ['v1', 'v2', 'v3']
+  }
+
+  void 'no ids, no elements'() {
+    given:
+    BatchLoadingIterator<Integer, String> elements = new BatchLoadingIterator<Integer, String>(new ArrayList<Integer>().iterator(), 3, new CallerRunsExecutor(), loader)
+
+    when:
+    elements.next()
+
+    then:
+    !elements.hasNext()
+    thrown(NoSuchElementException)
+  }
+}
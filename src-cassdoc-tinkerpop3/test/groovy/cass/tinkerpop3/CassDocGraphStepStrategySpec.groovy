@@ -0,0 +1,131 @@
+package cass.tinkerpop3
+
+import org.apache.tinkerpop.gremlin.process.traversal.P
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal
+import org.apache.tinkerpop.gremlin.process.traversal.step.filter.HasStep
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.VertexStep
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer
+import org.apache.tinkerpop.gremlin.structure.Edge
+import org.apache.tinkerpop.gremlin.structure.T
+import org.apache.tinkerpop.gremlin.structure.Vertex
+
+import cassdoc.CassdocAPI
+import cassdoc.Detail
+import cassdoc.DocType
+import cassdoc.OperationContext
+import cassdoc.Rel
+import spock.lang.Specification
+
+class CassDocGraphStepStrategySpec extends Specification {
+
+  // doc id -> attributes
+  Map<String, Map<String, Object>> docs = [
+      'd1-PROD': [name: 'one', n: 1],
+      'd2-PROD': [name: 'one', n: 2],
+      'd3-PROD': [name: 'two', n: 1],
+      'j1-JOB' : [name: 'one', n: 1]]
+  // the PROD docs per name, as a ManualIndex would have them; JOB has no index
+  Map<String, List<String>> prodNames = [one: ['d1-PROD', 'd2-PROD'], two: ['d3-PROD']]
+  List<String> lookups = []
+  List<String> scans = []
+  List<String> relReads = []
+
+  CassdocAPI api = new CassdocAPI() {
+    @Override
+    List<DocType> docTypes(OperationContext opctx) {
+      [new DocType(uri: 'cassdoc.META', suffix: 'META'), new DocType(uri: 'cassdoc.PROD', suffix: 'PROD'), new DocType(uri: 'cassdoc.JOB', suffix: 'JOB')]
+    }
+
+    @Override
+    Iterator<String> lookupDocIds(OperationContext opctx, Detail detail, DocType type, String attr, Object value) {
+      if (type.suffix != 'PROD' || attr != 'name') {
+        return null
+      }
+      lookups << type.suffix + ':' + value
+      (prodNames[value] ?: []).iterator()
+    }
+
+    @Override
+    Iterator<String> scanDocIds(OperationContext opctx, Detail detail, DocType type) {
+      scans << type.suffix
+      docs.keySet().findAll { it.endsWith('-' + type.suffix) }.iterator()
+    }
+
+    @Override
+    Map<String, Object> deserializeDoc(OperationContext opctx, Detail detail, String docUUID) {
+      new LinkedHashMap<String, Object>(docs[docUUID])
+    }
+
+    @Override
+    List<Rel> deserializeDocRels(OperationContext opctx, Detail detail, String docUUID, String relType) {
+      relReads << docUUID + '/' + relType
+      [new Rel(p1: docUUID, ty1: relType, c1: 'd2-PROD')]
+    }
+  }
+
+  CassDocGraph graph = new CassDocGraph(space: 'shop', cassDocAPI: api, loadBatchSize: 2, loadThreads: 2)
+
+  void cleanup() {
+    graph.close()
+  }
+
+  Traversal.Admin optimized(Traversal traversal) {
+    Traversal.Admin admin = traversal.asAdmin()
+    CassDocGraphStepStrategy.instance().apply(admin)
+    admin
+  }
+
+  void 'the has() steps after V() are folded into a CassDocGraphStep'() {
+    when:
+    Traversal.Admin traversal = optimized(graph.traversal().V().has('name', 'one').has('n', P.gt(0)).as('v').out('LINK'))
+
+    then:
+    traversal.steps.size() == 2
+    traversal.steps[0] instanceof CassDocGraphStep
+    ((CassDocGraphStep) traversal.steps[0]).hasContainers*.key == ['name', 'n']
+    traversal.steps[0].labels == ['v'] as Set
+    traversal.steps[1] instanceof VertexStep
+  }
+
+  void 'a lone hasLabel() after an edge step becomes the step\'s edge labels, other filters stay'() {
+    when:
+    Traversal.Admin labelled = optimized(graph.traversal().V('d1-PROD').outE().hasLabel('LINK', 'PART'))
+    Traversal.Admin filtered = optimized(graph.traversal().V('d1-PROD').outE().has('w', 1))
+
+    then:
+    labelled.steps.size() == 2
+    ((VertexStep) labelled.steps[1]).edgeLabels as List == ['LINK', 'PART']
+    filtered.steps.size() == 3
+    ((VertexStep) filtered.steps[1]).edgeLabels.length == 0
+    filtered.steps[2] instanceof HasStep
+  }
+
+  void 'only label equality or within filters of strings are edge labels'() {
+    expect:
+    CassDocGraphStepStrategy.edgeLabels([new HasContainer(T.label.accessor, P.eq('LINK'))]) == ['LINK']
+    CassDocGraphStepStrategy.edgeLabels([new HasContainer(T.label.accessor, P.within(['LINK', 'PART']))]) == ['LINK', 'PART']
+    CassDocGraphStepStrategy.edgeLabels([new HasContainer(T.label.accessor, P.neq('LINK'))]) == null
+    CassDocGraphStepStrategy.edgeLabels([new HasContainer(T.label.accessor, P.within([1]))]) == null
+    CassDocGraphStepStrategy.edgeLabels([new HasContainer('w', P.eq('LINK'))]) == null
+    CassDocGraphStepStrategy.edgeLabels([new HasContainer(T.label.accessor, P.eq('LINK')), new HasContainer('w', P.eq(1))]) == null
+  }
+
+  void 'has() after V() looks candidates up by the first equality filter, scans types without an index, and checks every filter'() {
+    when:
+    List<Vertex> found = graph.traversal().V().has('name', 'one').has('n', 1).toList()
+
+    then:
+    found*.id() as Set == ['d1-PROD', 'j1-JOB'] as Set
+    lookups == ['PROD:one']
+    scans == ['JOB']
+  }
+
+  void 'hasLabel() after outE() reads only the label\'s rels'() {
+    when:
+    List<Edge> edges = graph.traversal().V('d1-PROD').outE().hasLabel('LINK').toList()
+
+    then:
+    edges*.label() == ['LINK']
+    relReads == ['d1-PROD/LINK']
+  }
+}
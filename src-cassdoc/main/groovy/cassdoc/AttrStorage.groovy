@@ -0,0 +1,207 @@
+package cassdoc
+
+import cassdoc.operations.JsonEmit
+import com.datastax.driver.core.Row
+import com.datastax.driver.core.utils.Bytes
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+import net.jpountz.lz4.LZ4Compressor
+import net.jpountz.lz4.LZ4Factory
+
+import java.nio.ByteBuffer
+
+/**
+ * a binary stored attribute value, as read from the b column
+ */
+@CompileStatic
+class BinaryAttr {
+    String format
+    boolean compressed
+    byte[] bytes
+}
+
+/**
+ * Storage of attribute values in the p_ tables.
+ *
+ * Values are json text in d, with the type code in t. A doc type with a binary attrFormat (smile or cbor) stores its
+ * array and object values in the blob column b instead, LZ4 compressed from attrCompressBytes up, and t has the
+ * storage codes appended to the type code: 'OS' is a smile object, 'ACZ' a compressed cbor array. Scalars stay text.
+ * Text rows written before the format was enabled are read as before, and converted by AttrStorageConverter.
+ *
+ * Readers get the plain type code (typeCode()) and either the json text or a BinaryAttr (value()), and parse either
+ * through parser(), which reads binary values with the smile/cbor parser directly.
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class AttrStorage {
+
+    static final String FORMAT_JSON = 'json'
+    static final String FORMAT_SMILE = 'smile'
+    static final String FORMAT_CBOR = 'cbor'
+
+    private static final LZ4Factory lz4 = LZ4Factory.fastestInstance()
+
+    static DocType docType(CommandExecServices svcs, String space, String suffix) {
+        svcs.schema.docType(space, suffix)
+    }
+
+    /**
+     * types with an attrFormat have the b column in their p_ table
+     */
+    static boolean binaryColumn(DocType type) {
+        type?.attrFormat != null
+    }
+
+    static boolean binaryFormat(String format) {
+        format == FORMAT_SMILE || format == FORMAT_CBOR
+    }
+
+    /**
+     * ",b" for the select list of an attribute query, if the doc's p_ table has the column. It goes last so the
+     * positional columns before it don't move.
+     */
+    static String binaryCol(CommandExecServices svcs, String space, String suffix) {
+        binaryColumn(docType(svcs, space, suffix)) ? ',b' : ''
+    }
+
+    // ---- read
+
+    /**
+     * the type code (DBCodes.TYPE_CODE_*) of a stored t value
+     */
+    static String typeCode(String storedType) {
+        storedType == null || storedType.length() == 1 ? storedType : storedType.substring(0, 1)
+    }
+
+    /**
+     * the value of an attribute row: d, or for binary stored values a BinaryAttr of b
+     */
+    static Object value(Row row, String storedType) {
+        if (storedType == null || storedType.length() == 1) {
+            return row.getString('d')
+        }
+        if (!row.columnDefinitions.contains('b')) {
+            log.wrn("binary attribute value of type $storedType not selected", null)
+            return null
+        }
+        ByteBuffer b = row.getBytes('b')
+        if (b == null) {
+            return null
+        }
+        return new BinaryAttr(
+                format: storedType.substring(1, 2) == DBCodes.STORAGE_CODE_CBOR ? FORMAT_CBOR : FORMAT_SMILE,
+                compressed: storedType.endsWith((String) DBCodes.STORAGE_CODE_LZ4),
+                bytes: Bytes.getArray(b))
+    }
+
+    /**
+     * parser of a stored value, json text or binary
+     */
+    static JsonParser parser(CommandExecServices svcs, Object value) {
+        if (value instanceof BinaryAttr) {
+            BinaryAttr binary = (BinaryAttr) value
+            JsonFactory factory = binary.format == FORMAT_CBOR ? svcs.cborFactory : svcs.smileFactory
+            return factory.createParser(binary.compressed ? decompress(binary.bytes) : binary.bytes)
+        }
+        return svcs.jsonFactory.createParser((String) value)
+    }
+
+    /**
+     * write a stored value as is: json text raw, binary values token by token
+     */
+    static void writeStored(CommandExecServices svcs, JsonGenerator gen, Object value) {
+        if (value instanceof BinaryAttr) {
+            JsonParser parser = parser(svcs, value)
+            if (parser.nextToken() == null) {
+                gen.writeNull()
+            } else {
+                gen.copyCurrentStructure(parser)
+            }
+            parser.close()
+        } else {
+            JsonEmit.writeRaw(gen, value)
+        }
+    }
+
+    /**
+     * json text of a stored value
+     */
+    static String json(CommandExecServices svcs, Object value) {
+        if (!(value instanceof BinaryAttr)) {
+            return (String) value
+        }
+        StringWriter writer = new StringWriter()
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        writeStored(svcs, gen, value)
+        JsonEmit.finish(gen)
+        return writer.toString()
+    }
+
+    // ---- write
+
+    /**
+     * the t, d and b values to store for an attribute value of the doc type: arrays and objects of types with a binary
+     * attrFormat are encoded into b (d is null), everything else is json text in d (b is null)
+     */
+    static Object[] encode(CommandExecServices svcs, DocType type, FieldValue value) {
+        String typeCode = TypeConfigurationService.attrTypeCode(value?.type)
+        String json = value?.value
+        String format = type?.attrFormat
+        if (json == null || !binaryFormat(format) || !(typeCode == DBCodes.TYPE_CODE_OBJECT || typeCode == DBCodes.TYPE_CODE_ARRAY)) {
+            return [typeCode, json, null] as Object[]
+        }
+        byte[] bytes = toBinary(svcs, format, json)
+        StringBuilder storedType = new StringBuilder(3)
+        storedType << typeCode << (format == FORMAT_CBOR ? DBCodes.STORAGE_CODE_CBOR : DBCodes.STORAGE_CODE_SMILE)
+        if (type.attrCompressBytes != null && bytes.length >= type.attrCompressBytes) {
+            byte[] compressed = compress(bytes)
+            if (compressed.length < bytes.length) {
+                bytes = compressed
+                storedType << DBCodes.STORAGE_CODE_LZ4
+            }
+        }
+        return [storedType.toString(), null, ByteBuffer.wrap(bytes)] as Object[]
+    }
+
+    static byte[] toBinary(CommandExecServices svcs, String format, String json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length())
+        JsonGenerator gen = (format == FORMAT_CBOR ? svcs.cborFactory : svcs.smileFactory).createGenerator(out)
+        JsonParser parser = svcs.jsonFactory.createParser(json)
+        JsonToken token
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                // exactly as written, a double could round
+                gen.writeNumber(parser.decimalValue)
+            } else {
+                gen.copyCurrentEvent(parser)
+            }
+        }
+        parser.close()
+        gen.close()
+        return out.toByteArray()
+    }
+
+    /**
+     * an LZ4 block, prefixed with the uncompressed length
+     */
+    static byte[] compress(byte[] raw) {
+        LZ4Compressor compressor = lz4.fastCompressor()
+        byte[] out = new byte[4 + compressor.maxCompressedLength(raw.length)]
+        ByteBuffer.wrap(out).putInt(raw.length)
+        int length = compressor.compress(raw, 0, raw.length, out, 4, out.length - 4)
+        return Arrays.copyOf(out, 4 + length)
+    }
+
+    static byte[] decompress(byte[] stored) {
+        int length = ByteBuffer.wrap(stored).getInt()
+        byte[] raw = new byte[length]
+        lz4.fastDecompressor().decompress(stored, 4, raw, 0, length)
+        return raw
+    }
+}
@@ -7,6 +7,11 @@ class DBCodes {
     public static final TYPE_CODE_OBJECT = 'O'
     public static final TYPE_CODE_ARRAY = 'A'
     public static final TYPE_CODE_BOOLEAN = 'B'
+
+    // appended to the type code of binary stored values (see AttrStorage): 'OS', 'ACZ', ...
+    public static final STORAGE_CODE_SMILE = 'S'
+    public static final STORAGE_CODE_CBOR = 'C'
+    public static final STORAGE_CODE_LZ4 = 'Z'
 }
 
 class RelTypes {
@@ -43,6 +48,14 @@ class IndexTypes {
     public static final String HAS_VALUE = 'HAS_VALUE'
     public static final String HAS_VALUE_CODE = 'HV'
 
+    // value ranges, time window or value prefix buckets (see RangeManualIndex)
+    public static final String RANGE = 'RANGE'
+    public static final String RANGE_CODE = 'RG'
+
+    // cassandra maintained indexes of FixedAttr columns (see ColumnIndex), not ManualIndex types
+    public static final String SECONDARY = 'SECONDARY'
+    public static final String MATERIALIZED_VIEW = 'MATERIALIZED_VIEW'
+
     // not implemented yet...
     public static final String MOST_RECENT = 'MOST_RECENT'
     public static final String MOST_RECENT_CODE = 'MR'
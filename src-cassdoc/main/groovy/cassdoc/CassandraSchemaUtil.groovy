@@ -30,6 +30,19 @@ class CassandraSchemaUtil {
         """.stripMargin()
     }
 
+    /**
+     * single row (k 'schema'), a new v for every schema change, polled by all servers
+     */
+    static String createSchemaVersionTable() {
+        """
+        | CREATE TABLE IF NOT EXISTS cassdoc_system_schema.version (
+        |   k text,
+        |   v text,
+        |   PRIMARY KEY (k)
+        | );
+        """.stripMargin()
+    }
+
     static String dropKeyspace(String keyspace) {
         """
         | DROP KEYSPACE IF EXISTS ${keyspace};
@@ -61,12 +74,13 @@ class CassandraSchemaUtil {
         return sb.toString()
     }
 
-    static String createAttrTable(String keyspace, String entityTypeSuffix) {
+    static String createAttrTable(String keyspace, String entityTypeSuffix, boolean binaryColumn = false) {
         """
         | CREATE TABLE ${keyspace}.p_${entityTypeSuffix} (
         |   e text,
         |   p text,
         |   d text,
+        |   ${binaryColumn ? 'b blob,' : ''}
         |   t text,
         |   z_md text,
         |   zv uuid,
@@ -75,6 +89,15 @@ class CassandraSchemaUtil {
         """.stripMargin()
     }
 
+    /**
+     * blob column of binary stored attribute values, see AttrStorage
+     */
+    static String addAttrBinaryColumn(String keyspace, String entityTypeSuffix) {
+        """
+        | ALTER TABLE ${keyspace}.p_${entityTypeSuffix} ADD b blob;
+        """.stripMargin()
+    }
+
     static String createRelationTable(String keyspace) {
         """
         | CREATE TABLE ${keyspace}.r (
@@ -117,8 +140,70 @@ class CassandraSchemaUtil {
         """.stripMargin()
     }
 
+    /**
+     * queue of docs for the background delete cascade, see CleanupQueue
+     */
+    static String createCleanupQueueTable(String keyspace) {
+        """
+        | CREATE TABLE IF NOT EXISTS ${keyspace}.cq (
+        |   s int,
+        |   id timeuuid,
+        |   e text,
+        |   PRIMARY KEY ((s),id)
+        | );
+        """.stripMargin()
+    }
+
+    /**
+     * docs the CleanupQueue gave up on, with the last error
+     */
+    static String createCleanupDeadLetterTable(String keyspace) {
+        """
+        | CREATE TABLE IF NOT EXISTS ${keyspace}.cqd (
+        |   s int,
+        |   id timeuuid,
+        |   e text,
+        |   error text,
+        |   PRIMARY KEY ((s),id)
+        | );
+        """.stripMargin()
+    }
+
     static String insertSchemaType() {
         "INSERT INTO cassdoc_system_schema.types (ks, nm, json) VALUES (?, ?, ?);"
     }
 
+    static String insertSchemaIndex() {
+        "INSERT INTO cassdoc_system_schema.indexes (ks, nm, json) VALUES (?, ?, ?);"
+    }
+
+    static String updateSchemaVersion() {
+        "INSERT INTO cassdoc_system_schema.version (k, v) VALUES (?, ?);"
+    }
+
+    static String selectSchemaVersion() {
+        "SELECT token(k), v FROM cassdoc_system_schema.version WHERE k = ?"
+    }
+
+    /**
+     * cassandra secondary index of a FixedAttr column, see SecondaryIndex
+     */
+    static String createSecondaryIndex(String keyspace, String indexName, String table, String column) {
+        """
+        | CREATE INDEX IF NOT EXISTS ${indexName} ON ${keyspace}.${table} (${column});
+        """.stripMargin()
+    }
+
+    /**
+     * view of an e_ table partitioned by a FixedAttr column, see MaterializedViewIndex
+     */
+    static String createMaterializedView(String keyspace, String view, String table, String column) {
+        """
+        | CREATE MATERIALIZED VIEW IF NOT EXISTS ${keyspace}.${view} AS
+        |   SELECT ${column}, e FROM ${keyspace}.${table}
+        |   WHERE ${column} IS NOT NULL AND e IS NOT NULL
+        |   PRIMARY KEY ((${column}), e);
+        """.stripMargin()
+    }
+
 }
@@ -3,7 +3,9 @@ package cassdoc
 import cassdoc.config.CassDocConfig
 import groovy.transform.CompileStatic
 
-import org.apache.commons.lang3.StringEscapeUtils
+import java.util.concurrent.CompletableFuture
+import java.util.function.Function
+
 import org.springframework.beans.factory.annotation.Autowired
 
 import cassdoc.commands.mutate.UpdAttrMetadata
@@ -14,13 +16,18 @@ import cassdoc.commands.retrieve.GetAttrRCH
 import cassdoc.commands.retrieve.GetDocAttrs
 import cassdoc.commands.retrieve.GetDocAttrsRCH
 import cassdoc.commands.retrieve.QueryToListOfStrArr
+import cassdoc.operations.AttrStorageConverter
 import cassdoc.operations.CreateOperations
 import cassdoc.operations.DeleteOperations
+import cassdoc.operations.JsonEmit
+import cassdoc.operations.JsonPathOperations
+import cassdoc.operations.MergeOperations
 import cassdoc.operations.RetrievalOperations
+import cassdoc.operations.SearchOperations
+import cassdoc.operations.SortKey
 import cassdoc.operations.UpdateOperations
 
-import com.jayway.jsonpath.JsonPath
-
+import com.fasterxml.jackson.core.JsonGenerator
 import cwdrg.lg.annotation.Log
 import cwdrg.util.json.JSONUtil
 import org.springframework.stereotype.Component
@@ -41,6 +48,10 @@ class CassdocAPI {
     // ---- existence checks
 
     boolean docExists(OperationContext opctx, Detail detail, String uuid) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null) {
+            return docCache.docExists(svcs, opctx, detail, uuid)
+        }
         // token would work too, at least on cass 3.5
         String typeSuffix = IDUtil.idSuffix(uuid)
         List<Object[]> rows = query(opctx, detail, "SELECT token(e),zv from ${opctx.space}.e_${typeSuffix} WHERE e = ?", uuid)
@@ -87,15 +98,21 @@ class CassdocAPI {
      * @param writer
      */
     void getSimpleAttr(OperationContext opctx, Detail detail, String docUUID, String attr, Writer writer) {
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        getSimpleAttr(opctx, detail, docUUID, attr, gen)
+        JsonEmit.finish(gen)
+    }
+
+    void getSimpleAttr(OperationContext opctx, Detail detail, String docUUID, String attr, JsonGenerator gen) {
         log.inf("OPGetAttrSimple_top :: $docUUID $attr", null)
 
         GetAttrCmd cmd = new GetAttrCmd(docUUID: docUUID, attrName: attr)
         GetAttrRCH rch = cmd.queryCassandra(svcs, opctx, detail)
 
-        if (rch.valType == DBCodes.TYPE_CODE_STRING) {
-            writer << '"' << StringEscapeUtils.escapeJson(rch.data) << '"'
+        if (rch.valType == DBCodes.TYPE_CODE_STRING && rch.data != null) {
+            gen.writeString((String) rch.data)
         } else {
-            writer << rch.data
+            AttrStorage.writeStored(svcs, gen, rch.data)
         }
     }
 
@@ -107,22 +124,22 @@ class CassdocAPI {
             return null
         }
         if (rch.valType == DBCodes.TYPE_CODE_OBJECT) {
-            return JSONUtil.deserializeMap(rch.data)
+            return JSONUtil.deserializeMap(AttrStorage.json(svcs, rch.data))
         }
         if (rch.valType == DBCodes.TYPE_CODE_ARRAY) {
-            return JSONUtil.deserializeList(rch.data)
+            return JSONUtil.deserializeList(AttrStorage.json(svcs, rch.data))
         }
         if (rch.valType == DBCodes.TYPE_CODE_STRING) {
-            return rch.data
+            return (String) rch.data
         }
         if (rch.valType == DBCodes.TYPE_CODE_BOOLEAN) {
-            return Boolean.parseBoolean(rch.data)
+            return Boolean.parseBoolean((String) rch.data)
         }
         if (rch.valType == DBCodes.TYPE_CODE_INTEGER) {
-            return new BigInteger(rch.data)
+            return new BigInteger((String) rch.data)
         }
         if (rch.valType == DBCodes.TYPE_CODE_DECIMAL) {
-            return new BigDecimal(rch.data)
+            return new BigDecimal((String) rch.data)
         }
         return null
     }
@@ -156,18 +173,26 @@ class CassdocAPI {
      * @param writer
      */
     void getSimpleDoc(OperationContext opctx, Detail detail, String docUUID, Writer writer) {
-        writer << '{"_id":"' << docUUID << '"'
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        getSimpleDoc(opctx, detail, docUUID, gen)
+        JsonEmit.finish(gen)
+    }
+
+    void getSimpleDoc(OperationContext opctx, Detail detail, String docUUID, JsonGenerator gen) {
+        gen.writeStartObject()
+        gen.writeStringField('_id', docUUID)
         GetDocAttrs cmd = new GetDocAttrs(docUUID: docUUID)
         GetDocAttrsRCH rch = cmd.queryCassandra(svcs, opctx, detail)
         for (Object[] attr : rch.attrs) {
-            writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << '":'
-            if (attr[1] == DBCodes.TYPE_CODE_STRING) {
-                writer << '"' << StringEscapeUtils.escapeJson((String) attr[2]) << '"'
+            gen.writeFieldName((String) attr[0])
+            if (attr[1] == DBCodes.TYPE_CODE_STRING && attr[2] != null) {
+                gen.writeString((String) attr[2])
             } else {
-                writer << attr[2]
+                // stored json of numbers, booleans, arrays and objects, as is
+                AttrStorage.writeStored(svcs, gen, attr[2])
             }
         }
-        writer << '}'
+        gen.writeEndObject()
     }
 
     /**
@@ -181,6 +206,10 @@ class CassdocAPI {
      * @return
      */
     String getDoc(OperationContext opctx, Detail detail, String docUUID) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null && DocCache.cacheable(detail)) {
+            return docCache.getDoc(svcs, opctx, detail, docUUID)
+        }
         StringWriter writer = new StringWriter()
         RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, writer, true)
         return writer.toString()
@@ -197,9 +226,69 @@ class CassdocAPI {
      * @param writer
      */
     void getDoc(OperationContext opctx, Detail detail, String docUUID, Writer writer) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null && DocCache.cacheable(detail)) {
+            writer << docCache.getDoc(svcs, opctx, detail, docUUID)
+            return
+        }
         RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, writer, true)
     }
 
+    /**
+     * Get a document, with parsing of document content for recursive subdocument pulls if inidcated by detail
+     *
+     * Streaming version, into a generator (see JsonEmit)
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param gen
+     */
+    void getDoc(OperationContext opctx, Detail detail, String docUUID, JsonGenerator gen) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null && DocCache.cacheable(detail)) {
+            gen.writeRawValue(docCache.getDoc(svcs, opctx, detail, docUUID))
+            return
+        }
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, gen, true)
+    }
+
+    /**
+     * Get several documents as a JSON array, reading them concurrently (see Detail.fetchWindow). Missing documents are
+     * written as null.
+     *
+     * Streaming version, documents in the order of the ids
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUIDs
+     * @param writer
+     */
+    void getDocs(OperationContext opctx, Detail detail, Iterator<String> docUUIDs, Writer writer) {
+        RetrievalOperations.getDocs(svcs, opctx, detail, docUUIDs, writer, true)
+    }
+
+    /**
+     * Get several documents as a JSON array, reading them concurrently (see Detail.fetchWindow). Missing documents are
+     * written as null.
+     *
+     * Streaming version
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUIDs
+     * @param writer
+     * @param inputOrder true: in the order of the ids, false: in the order they are read, which doesn't hold up the
+     *        output behind slow documents
+     */
+    void getDocs(OperationContext opctx, Detail detail, Iterator<String> docUUIDs, Writer writer, boolean inputOrder) {
+        RetrievalOperations.getDocs(svcs, opctx, detail, docUUIDs, writer, inputOrder)
+    }
+
+    void getDocs(OperationContext opctx, Detail detail, Iterator<String> docUUIDs, JsonGenerator gen, boolean inputOrder) {
+        RetrievalOperations.getDocs(svcs, opctx, detail, docUUIDs, gen, inputOrder)
+    }
+
     /**
      * Get a document deserialized into a Map
      *
@@ -227,6 +316,10 @@ class CassdocAPI {
      * @return
      */
     String getAttr(OperationContext opctx, Detail detail, String docUUID, String attr) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null && DocCache.cacheable(detail)) {
+            return docCache.getAttr(svcs, opctx, detail, docUUID, attr)
+        }
         StringWriter writer = new StringWriter()
         RetrievalOperations.getAttr(svcs, opctx, detail, docUUID, attr, writer)
         return writer.toString()
@@ -244,9 +337,23 @@ class CassdocAPI {
      * @param writer
      */
     void getAttr(OperationContext opctx, Detail detail, String docUUID, String attr, Writer writer) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null && DocCache.cacheable(detail)) {
+            writer << docCache.getAttr(svcs, opctx, detail, docUUID, attr)
+            return
+        }
         RetrievalOperations.getAttr(svcs, opctx, detail, docUUID, attr, writer)
     }
 
+    void getAttr(OperationContext opctx, Detail detail, String docUUID, String attr, JsonGenerator gen) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null && DocCache.cacheable(detail)) {
+            gen.writeRawValue(docCache.getAttr(svcs, opctx, detail, docUUID, attr))
+            return
+        }
+        RetrievalOperations.getAttr(svcs, opctx, detail, docUUID, attr, gen)
+    }
+
     /**
      * Get a document attribute, with parsing of attribute's content for recursive subdocument pulls if inidcated by detail
      *
@@ -264,10 +371,10 @@ class CassdocAPI {
     }
 
     // TODO: jsonpath - there appear to be mutation abilities as well
-    // TODO: jsonpath - avoid full serialization step... would require a custom json
 
     /**
-     * execute the provided jsonpath expression against the json representation of the requested document
+     * execute the provided jsonpath expression against the json representation of the requested document. Leading
+     * attribute segments of the path are resolved against the stored attributes, see JsonPathOperations.
      *
      * @param opctx
      * @param detail
@@ -276,19 +383,11 @@ class CassdocAPI {
      * @return
      */
     String getDocJsonPath(OperationContext opctx, Detail detail, String docUUID, String jsonPath) {
-        StringWriter writer = new StringWriter()
-        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, writer, true)
-        String json = writer
-        JsonPath pathexpr = JsonPath.compile(jsonPath)
-        return JsonPath.parse(json).read(pathexpr).toString()
+        return JsonPathOperations.docPath(svcs, opctx, detail, docUUID, jsonPath)
     }
 
     void getDocJsonPath(OperationContext opctx, Detail detail, String docUUID, String jsonPath, Writer w) {
-        StringWriter writer = new StringWriter()
-        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, writer, true)
-        String json = writer
-        JsonPath pathexpr = JsonPath.compile(jsonPath)
-        w << JsonPath.parse(json).read(pathexpr).toString()
+        w << JsonPathOperations.docPath(svcs, opctx, detail, docUUID, jsonPath)
     }
 
     /**
@@ -302,30 +401,17 @@ class CassdocAPI {
      * @return
      */
     String getAttrJsonPath(OperationContext opctx, Detail detail, String docUUID, String attr, String jsonPath) {
-
-        //http://blog.ostermiller.org/convert-a-java-writer-to-a-reader/
-
-        StringWriter writer = new StringWriter()
-        RetrievalOperations.getAttr(svcs, opctx, detail, docUUID, attr, writer)
-        String json = writer
-        JsonPath pathexpr = JsonPath.compile(jsonPath)
-        return JsonPath.parse(json).read(pathexpr).toString()
+        return JsonPathOperations.attrPath(svcs, opctx, detail, docUUID, attr, jsonPath)
     }
 
-    // TODO: jsonpath for getAttr
     void getAttrJsonPath(OperationContext opctx, Detail detail, String docUUID, String attr, String jsonPath, Writer w) {
-        // TODO fully streaming version
-        StringWriter writer = new StringWriter()
-        RetrievalOperations.getAttr(svcs, opctx, detail, docUUID, attr, writer)
-        String json = writer
-        JsonPath pathexpr = JsonPath.compile(jsonPath)
-        w << JsonPath.parse(json).read(pathexpr).toString()
+        w << JsonPathOperations.attrPath(svcs, opctx, detail, docUUID, attr, jsonPath)
     }
 
     /**
      * Delete document: cascading deletes of subdocuments are controlled by detail. In cassandra this should delete the entire row and it's relations
      *
-     * Synchronous (TODO: asynchronous cascade testapi)
+     * The document is deleted synchronously, its subdocuments are queued and deleted in the background (see CleanupQueue)
      *
      * @param opctx
      * @param detail
@@ -333,7 +419,7 @@ class CassdocAPI {
      */
     void delDoc(OperationContext opctx, Detail detail, String docUUID) {
         DeleteOperations.deleteDoc(svcs, opctx, detail, docUUID)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
         }
     }
@@ -341,7 +427,7 @@ class CassdocAPI {
     /**
      * Delete document attribute: cascading deletes of the attribute's subdocuments are controlled by detail. In cassandra this deletes a column key within a row
      *
-     * Synchronous (TODO: asynchronous cascade testapi call)
+     * The attribute is deleted synchronously, its subdocuments are queued and deleted in the background (see CleanupQueue)
      *
      * @param opctx
      * @param detail
@@ -350,7 +436,7 @@ class CassdocAPI {
      */
     void delAttr(OperationContext opctx, Detail detail, String docUUID, String attr) {
         DeleteOperations.deleteAttr(svcs, opctx, detail, docUUID, attr, false)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
         }
     }
@@ -371,7 +457,7 @@ class CassdocAPI {
      */
     String newDocFromMap(OperationContext opctx, Detail detail, Map<String, Object> mapDoc) {
         String newid = CreateOperations.newMap(svcs, opctx, detail, mapDoc, false)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
         }
         return newid
@@ -389,7 +475,7 @@ class CassdocAPI {
      */
     String newDoc(OperationContext opctx, Detail detail, String json) {
         String newid = CreateOperations.newDoc(svcs, opctx, detail, json, false)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
         }
         return newid
@@ -407,7 +493,7 @@ class CassdocAPI {
      */
     String newDoc(OperationContext opctx, Detail detail, Reader json) {
         String newid = CreateOperations.newDoc(svcs, opctx, detail, json, false)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
         }
         return newid
@@ -428,17 +514,41 @@ class CassdocAPI {
      */
     String newDocAsync(OperationContext opctx, Detail detail, Reader json) {
         String newid = CreateOperations.newDoc(svcs, opctx, detail, json, true)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
         }
         return newid
     }
 
+    /**
+     * Create new document from the provided JSON string using the non-blocking "async" execution mode: the mutations
+     * are collected as the document is parsed and then sprayed concurrently. The returned future completes with the
+     * new _id once cassandra has acknowledged every mutation.
+     *
+     * An opctx in "immediate" mode is switched to "async"; batch and spray modes are left as-is and executed by DO().
+     *
+     * @param opctx
+     * @param detail
+     * @param json
+     * @return
+     */
+    CompletableFuture<String> newDocFuture(OperationContext opctx, Detail detail, String json) {
+        if (opctx.executionMode == 'immediate') {
+            opctx.setExecutionModeToAsync()
+        }
+        String newid = CreateOperations.newDoc(svcs, opctx, detail, json, false)
+        return completion(opctx, detail).thenApply({ Void v -> newid } as Function<Void, String>)
+    }
+
     /**
      * A streaming multiple document call. Input stream is a json array of documents (initiated by a root '[' start array character and ended by the matching ']' end array character.
      *
      * Documents are returned in a streaming JSON array of strings corresponding to the generated IDs.
      *
+     * In "stream" execution mode each document is written as soon as it is parsed, with a bounded number in flight
+     * (Detail.writeWindow), and a document that fails is reported as {"_id":id,"_error":message} in the output
+     * instead of failing the whole list.
+     *
      * @param opctx
      * @param detail
      * @param jsonListReader
@@ -446,9 +556,9 @@ class CassdocAPI {
      */
     void newDocList(OperationContext opctx, Detail detail, Reader jsonListReader, Writer jsonIDList) {
         CreateOperations.newDocStream(svcs, opctx, detail, jsonListReader, jsonIDList)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
 
     }
 
@@ -466,9 +576,9 @@ class CassdocAPI {
      */
     void newAttr(OperationContext opctx, Detail detail, String docUUID, String attr, String json, boolean paxos) {
         CreateOperations.newAttr(svcs, opctx, detail, docUUID, attr, json, paxos)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
     }
 
     /**
@@ -485,9 +595,9 @@ class CassdocAPI {
      */
     void newAttr(OperationContext opctx, Detail detail, String docUUID, String attr, Reader reader, boolean paxos) {
         CreateOperations.newAttr(svcs, opctx, detail, docUUID, attr, reader, paxos)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
     }
 
     // ---- Some Update operations
@@ -511,9 +621,9 @@ class CassdocAPI {
     void updateAttrPAXOS(OperationContext opctx, Detail detail, String docUUID, String attr, String json, UUID checkVal) {
         opctx.paxosGatekeeperUpdateID = ["P", docUUID] as String[]
         UpdateOperations.updateAttrPAXOS(svcs, opctx, detail, docUUID, attr, json, checkVal)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
     }
 
     /**
@@ -527,9 +637,62 @@ class CassdocAPI {
      */
     void updateAttr(OperationContext opctx, Detail detail, String docUUID, String attr, String json) {
         UpdateOperations.updateAttr(svcs, opctx, detail, docUUID, attr, json)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
+            opctx.DO(svcs, detail)
+        }
+    }
+
+    /**
+     * Update the attribute of a document (NOT using PAXOS) with the non-blocking "async" execution mode. The returned
+     * future completes when the attribute write and its attendant rel/index cleanup have been acknowledged.
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param attr
+     * @param json
+     * @return
+     */
+    CompletableFuture<Void> updateAttrFuture(OperationContext opctx, Detail detail, String docUUID, String attr, String json) {
+        if (opctx.executionMode == 'immediate') {
+            opctx.setExecutionModeToAsync()
+        }
+        UpdateOperations.updateAttr(svcs, opctx, detail, docUUID, attr, json)
+        return completion(opctx, detail)
+    }
+
+    /**
+     * PAXOS version of updateAttrFuture: the conditional update is sent first, the rest only if it applied. A
+     * version conflict completes the future exceptionally with PersistenceConflictException.
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param attr
+     * @param json
+     * @param checkVal
+     * @return
+     */
+    CompletableFuture<Void> updateAttrPAXOSFuture(OperationContext opctx, Detail detail, String docUUID, String attr, String json, UUID checkVal) {
+        if (opctx.executionMode == 'immediate') {
+            opctx.setExecutionModeToAsync()
+        }
+        opctx.paxosGatekeeperUpdateID = ["P", docUUID] as String[]
+        UpdateOperations.updateAttrPAXOS(svcs, opctx, detail, docUUID, attr, json, checkVal)
+        return completion(opctx, detail)
+    }
+
+    private CompletableFuture<Void> completion(OperationContext opctx, Detail detail) {
+        if (opctx.executionMode == 'async') {
+            return opctx.DOAsync(svcs, detail)
+        }
+        if (opctx.executionMode == 'group') {
+            return opctx.DOGroup(svcs, detail)
+        }
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
+        return CompletableFuture.completedFuture((Void) null)
     }
 
     /**
@@ -545,9 +708,9 @@ class CassdocAPI {
      */
     void updateAttrEntry(OperationContext opctx, Detail detail, String docUUID, Map.Entry<String, Object> attr) {
         UpdateOperations.updateAttrEntry(svcs, opctx, detail, docUUID, attr)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
     }
 
     /**
@@ -567,17 +730,102 @@ class CassdocAPI {
      */
     Set<String> updateAttrOverlay(OperationContext opctx, Detail detail, String docUUID, String attr, String json) {
         UpdateOperations.updateAttrOverlay(svcs, opctx, detail, docUUID, attr, json)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
         // TODO: Set<String>? is that the new ids created in the process?
         return [] as Set
     }
 
+    /**
+     * RFC 7396 merge patch of an attribute: only what the patch changes is written, see MergeOperations
+     *
+     *  Synchronous
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param attr
+     * @param json
+     */
+    void mergePatchAttr(OperationContext opctx, Detail detail, String docUUID, String attr, String json) {
+        MergeOperations.mergePatchAttr(svcs, opctx, detail, docUUID, attr, json)
+        if (opctx.deferred) {
+            opctx.DO(svcs, detail)
+        }
+    }
+
+    /**
+     * RFC 7396 merge patch of a doc: the patch's fields are merged into the attributes, null ones deleted
+     *
+     *  Synchronous
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param json
+     */
+    void mergePatchDoc(OperationContext opctx, Detail detail, String docUUID, String json) {
+        MergeOperations.mergePatchDoc(svcs, opctx, detail, docUUID, json)
+        if (opctx.deferred) {
+            opctx.DO(svcs, detail)
+        }
+    }
+
+    /**
+     * Add the fields of a json object to a document as attributes, except the ones it already has: unlike a merge patch
+     * no stored attribute is changed or deleted
+     *
+     *  Synchronous
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param json
+     */
+    void unionAttrs(OperationContext opctx, Detail detail, String docUUID, String json) {
+        MergeOperations.unionAttrs(svcs, opctx, detail, docUUID, json)
+        if (opctx.deferred) {
+            opctx.DO(svcs, detail)
+        }
+    }
+
+    /**
+     * Append the members of a json array to an array attribute. The input is parsed as it is read, new subdocuments
+     * in it are created.
+     *
+     *  Synchronous
+     *
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param attr
+     * @param inputJsonArray
+     */
+    void appendToArray(OperationContext opctx, Detail detail, String docUUID, String attr, Reader inputJsonArray) {
+        MergeOperations.appendToArray(svcs, opctx, detail, docUUID, attr, inputJsonArray)
+        if (opctx.deferred) {
+            opctx.DO(svcs, detail)
+        }
+    }
+
     List<Object[]> query(OperationContext opctx, Detail detail, String cql, Object[] args) {
         RetrievalOperations.query(svcs, opctx, detail, cql, args)
     }
 
+    // ---- attribute storage
+
+    /**
+     * Start converting the json text array/object values of a doc type to its binary attrFormat in the background.
+     *
+     * @return the running conversion, for its status
+     */
+    AttrStorageConverter convertAttrStorage(OperationContext opctx, Detail detail, String objectType) {
+        AttrStorageConverter converter = new AttrStorageConverter()
+        converter.start(svcs, opctx, detail, objectType)
+        return converter
+    }
+
     String getDocMetadata(OperationContext opctx, Detail detail, String docUUID) {
         Writer writer = new StringWriter()
         String metaid = RetrievalOperations.getDocMetadataUUID(svcs, opctx, detail, docUUID)
@@ -690,62 +938,162 @@ class CassdocAPI {
      */
     void addRel(OperationContext opctx, Detail detail, Rel rel) {
         CreateOperations.addRel(svcs, opctx, detail, rel)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
     }
 
     void deleteRel(OperationContext opctx, Detail detail, RelKey rel) {
         DeleteOperations.delRel(svcs, opctx, detail, rel)
-        if (opctx.executionMode == 'batch') {
+        if (opctx.deferred) {
             opctx.DO(svcs, detail)
-        } // TODO: figure out this vs streaming data operations
+        }
     }
 
     List<Rel> deserializeDocRels(OperationContext opctx, Detail detail, String docUUID) {
         RetrievalOperations.deserializeDocRels(svcs, opctx, detail, docUUID)
     }
 
+    List<Rel> deserializeDocRels(OperationContext opctx, Detail detail, String docUUID, String relType) {
+        RetrievalOperations.deserializeDocRelsForType(svcs, opctx, detail, docUUID, relType)
+    }
+
+    List<DocType> docTypes(OperationContext opctx) {
+        svcs.types(opctx.space).typeList
+    }
+
+    /**
+     * ids of the docs of a type with an attribute value, through its index or fixed column, null if it has neither
+     */
+    Iterator<String> lookupDocIds(OperationContext opctx, Detail detail, DocType type, String attr, Object value) {
+        SearchOperations.lookupDocIds(svcs, opctx, detail, type, attr, value)
+    }
+
+    Iterator<String> scanDocIds(OperationContext opctx, Detail detail, DocType type) {
+        SearchOperations.scanDocIds(svcs, opctx, detail, type)
+    }
+
     /**
      * Searches for large distributed databases should be done via indexes, that are registered/known to the engine.
      *
      *  Index types: secondary indexes (cassandra maintained), materialized views (cass maintained), manual value indexes, external indexes (B+ in relational store)
      *
-     *  TODO: sorter
+     *  The filters, sort and limit are applied server side, see SearchOperations.search
      *
      * @param indexName
      * @return
      */
     Iterator<Map> searchIndex(OperationContext opctx, Detail detail, String indexName, List searchCriteria, List<SearchFilter> filters) {
-        Index idx = svcs.collections[opctx.space].second.getIndex(indexName)
-        Iterator<Map> iterator = idx.searchIndex(svcs, opctx, detail, searchCriteria)
+        searchIndex(opctx, detail, indexName, searchCriteria, filters, null, null)
+    }
+
+    Iterator<Map> searchIndex(OperationContext opctx, Detail detail, String indexName, List searchCriteria, List<SearchFilter> filters, List<SortKey> sort, Integer limit) {
+        Index idx = svcs.indexes(opctx.space).getIndex(indexName) ?: manualIndex(opctx, indexName)
+        if (idx == null) {
+            throw log.err("", new IllegalArgumentException("Unknown index $indexName in ${opctx.space}"))
+        }
+        Iterator<Map> iterator = SearchOperations.search(svcs, opctx, detail, idx, searchCriteria, filters, sort, limit)
         return iterator
     }
 
+    /**
+     * a doc type's ManualIndex by indexRef, for searching: HAS_VALUE criteria are [value], RANGE criteria [from, to]
+     */
+    private Index manualIndex(OperationContext opctx, String indexRef) {
+        for (DocType type : svcs.types(opctx.space).typeList) {
+            ManualIndex idx = type.indexMap[indexRef]
+            if (idx?.indexType == IndexTypes.RANGE) {
+                return new RangeManualIndex(index: idx)
+            }
+            if (idx?.indexType == IndexTypes.HAS_VALUE) {
+                return new SimpleHasValueManualIndex(name: indexRef, docType: type,
+                        i1: idx.indexCodes.size() > 0 ? idx.indexCodes[0] : "",
+                        i2: idx.indexCodes.size() > 1 ? idx.indexCodes[1] : "",
+                        i3: idx.indexCodes.size() > 2 ? idx.indexCodes[2] : "")
+            }
+        }
+        return null
+    }
+
     /**
      * Searches for large distributed databases should be done via indexes, that are registered/known to the engine.
      *
      *  Index types: secondary indexes (cassandra maintained), materialized views (cass maintained), manual value indexes, external indexes (B+ in relational store)
      *
-     *  TODO: sorter
+     *  The filters, sort and limit are applied server side, see SearchOperations.search
      *
      * @param indexName
      * @return
      */
     void searchIndex(OperationContext opctx, Detail detail, String indexName, List searchCriteria, List<SearchFilter> filters, Writer searchResultsWriter) {
-        Iterator<Map> iterator = searchIndex(opctx, detail, indexName, searchCriteria, filters)
-        searchResultsWriter << "["
-        while (iterator.hasNext()) {
-            Map doc = iterator.next()
-            searchResultsWriter << "{" << '"_id":'
-            searchResultsWriter << doc._id
-            for (Map.Entry e : doc.entrySet()) {
-                if (e.key != "_id") {
-                    searchResultsWriter << ',"' << StringEscapeUtils.escapeJson(e.key.toString()) << '":'
-                    searchResultsWriter << JSONUtil.serialize(e.value)
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, searchResultsWriter)
+        searchIndex(opctx, detail, indexName, searchCriteria, filters, gen)
+        JsonEmit.finish(gen)
+    }
+
+    void searchIndex(OperationContext opctx, Detail detail, String indexName, List searchCriteria, List<SearchFilter> filters, JsonGenerator gen) {
+        searchIndex(opctx, detail, indexName, searchCriteria, filters, null, null, gen)
+    }
+
+    void searchIndex(OperationContext opctx, Detail detail, String indexName, List searchCriteria, List<SearchFilter> filters, List<SortKey> sort, Integer limit, JsonGenerator gen) {
+        emitResults(searchIndex(opctx, detail, indexName, searchCriteria, filters, sort, limit), gen)
+    }
+
+    /**
+     * Docs of a type with all of the attribute values. They are looked up through the column index of one of the
+     * attributes with the lowest estimated cost (see IndexConfigurationService.selectIndex), the other values filter
+     * the results.
+     */
+    Iterator<Map> searchCriteria(OperationContext opctx, Detail detail, String typeCode, Map<String, Object> criteria) {
+        searchCriteria(opctx, detail, typeCode, criteria, null, null)
+    }
+
+    Iterator<Map> searchCriteria(OperationContext opctx, Detail detail, String typeCode, Map<String, Object> criteria, List<SortKey> sort, Integer limit) {
+        Tuple2<TypeConfigurationService, IndexConfigurationService> collection = svcs.collections[opctx.space]
+        DocType type = collection.first.getTypeForSuffix(typeCode)
+        if (type == null) {
+            throw log.err("", new IllegalArgumentException("Unknown cassdoc doc type $typeCode for ${opctx.space}"))
+        }
+        IndexSelection selection = collection.second.selectIndex(svcs, opctx, detail, type, criteria)
+        if (selection == null) {
+            throw log.err("", new IllegalArgumentException("No index of $typeCode in ${opctx.space} for ${criteria.keySet()}"))
+        }
+        List<SearchFilter> filters = []
+        for (Map.Entry<String, Object> criterion : criteria.entrySet()) {
+            if (criterion.key != selection.attr) {
+                filters.add(new AttrValueFilter(attr: criterion.key, value: criterion.value))
+            }
+        }
+        return SearchOperations.search(svcs, opctx, detail, selection.index, [selection.value], filters, sort, limit)
+    }
+
+    void searchCriteria(OperationContext opctx, Detail detail, String typeCode, Map<String, Object> criteria, List<SortKey> sort, Integer limit, JsonGenerator gen) {
+        emitResults(searchCriteria(opctx, detail, typeCode, criteria, sort, limit), gen)
+    }
+
+    private void emitResults(Iterator<Map> iterator, JsonGenerator gen) {
+        try {
+            gen.writeStartArray()
+            while (iterator.hasNext()) {
+                Map doc = iterator.next()
+                gen.writeStartObject()
+                gen.writeFieldName('_id')
+                JsonEmit.writeValue(gen, doc._id)
+                for (Map.Entry e : doc.entrySet()) {
+                    if (e.key != "_id") {
+                        gen.writeFieldName(e.key.toString())
+                        JsonEmit.writeValue(gen, e.value)
+                    }
                 }
+                gen.writeEndObject()
+                JsonEmit.boundary(gen)
+            }
+            gen.writeEndArray()
+        } finally {
+            // stops a background result stream when the writer fails (client gone) or the results are done
+            if (iterator instanceof Closeable) {
+                ((Closeable) iterator).close()
             }
-            searchResultsWriter << "}"
         }
     }
 
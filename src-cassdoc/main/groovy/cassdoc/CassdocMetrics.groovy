@@ -0,0 +1,121 @@
+package cassdoc
+
+import com.codahale.metrics.Counter
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.Histogram
+import com.codahale.metrics.Meter
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.Snapshot
+import com.codahale.metrics.Timer
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Operation level metrics, in the same MetricRegistry as the driver's statement metrics (see DrvMetrics), which is
+ * the application's registry when there is one (the actuator's under spring boot).
+ *
+ * cassdoc.api.{operation}          timer per public CassdocAPI operation (timed by the caller, e.g. an aspect)
+ * cassdoc.api.{operation}.errors   meter
+ * cassdoc.do.{executionMode}       timer of OperationContext.DO()
+ * cassdoc.do.commands              histogram, mutation commands per DO()
+ * cassdoc.docCache.*               gauges of the doc cache, if enabled
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class CassdocMetrics {
+
+    static final String PREFIX = 'cassdoc'
+
+    final MetricRegistry registry
+
+    private final Histogram doCommands
+
+    CassdocMetrics(MetricRegistry registry) {
+        this.registry = registry
+        doCommands = registry.histogram(MetricRegistry.name(PREFIX, 'do', 'commands'))
+    }
+
+    Timer apiTimer(String operation) {
+        registry.timer(MetricRegistry.name(PREFIX, 'api', operation))
+    }
+
+    Meter apiErrors(String operation) {
+        registry.meter(MetricRegistry.name(PREFIX, 'api', operation, 'errors'))
+    }
+
+    Timer.Context startDO(String executionMode, int commands) {
+        doCommands.update(commands)
+        registry.timer(MetricRegistry.name(PREFIX, 'do', executionMode)).time()
+    }
+
+    /**
+     * gauges reading the services' doc cache, which is created lazily (and may not be)
+     */
+    void registerDocCache(final CommandExecServices svcs) {
+        String name = MetricRegistry.name(PREFIX, 'docCache')
+        gauge(name + '.size', { svcs.docCache?.size() ?: 0L } as Gauge<Long>)
+        gauge(name + '.hits', { svcs.docCache?.stats?.hitCount() ?: 0L } as Gauge<Long>)
+        gauge(name + '.misses', { svcs.docCache?.stats?.missCount() ?: 0L } as Gauge<Long>)
+        gauge(name + '.hitRate', { svcs.docCache?.stats?.hitRate() ?: 0d } as Gauge<Double>)
+        gauge(name + '.revalidations', { svcs.docCache?.revalidations ?: 0L } as Gauge<Long>)
+        gauge(name + '.invalidations', { svcs.docCache?.invalidations ?: 0L } as Gauge<Long>)
+    }
+
+    private void gauge(String name, Gauge gauge) {
+        registry.remove(name)
+        registry.register(name, gauge)
+    }
+
+    /**
+     * current values of the cassdoc metrics (durations in milliseconds), by name
+     */
+    Map<String, Object> snapshot() {
+        Map<String, Object> metrics = new TreeMap<>()
+        String prefix = PREFIX + '.'
+        registry.gauges.each { String name, Gauge gauge ->
+            if (name.startsWith(prefix)) {
+                metrics[name] = gauge.value
+            }
+        }
+        registry.counters.each { String name, Counter counter ->
+            if (name.startsWith(prefix)) {
+                metrics[name] = counter.count
+            }
+        }
+        registry.meters.each { String name, Meter meter ->
+            if (name.startsWith(prefix)) {
+                metrics[name] = [count: meter.count, m1Rate: meter.oneMinuteRate]
+            }
+        }
+        registry.histograms.each { String name, Histogram histogram ->
+            if (name.startsWith(prefix)) {
+                metrics[name] = summary(histogram.count, histogram.snapshot, 1d)
+            }
+        }
+        double msPerNano = 1d / TimeUnit.MILLISECONDS.toNanos(1)
+        registry.timers.each { String name, Timer timer ->
+            if (name.startsWith(prefix)) {
+                Map<String, Object> summary = summary(timer.count, timer.snapshot, msPerNano)
+                summary.m1Rate = timer.oneMinuteRate
+                metrics[name] = summary
+            }
+        }
+        return metrics
+    }
+
+    private static Map<String, Object> summary(long count, Snapshot snapshot, double scale) {
+        [
+                count: count,
+                min  : snapshot.min * scale,
+                mean : snapshot.mean * scale,
+                p50  : snapshot.median * scale,
+                p95  : snapshot.get95thPercentile() * scale,
+                p99  : snapshot.get99thPercentile() * scale,
+                max  : snapshot.max * scale
+        ] as Map<String, Object>
+    }
+}
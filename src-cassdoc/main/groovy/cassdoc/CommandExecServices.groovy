@@ -1,6 +1,7 @@
 package cassdoc
 
 import cassdoc.commands.retrieve.QueryToListOfStrArr
+import cassdoc.operations.CleanupQueue
 import cassdoc.config.CassDocConfig
 import cwdrg.lg.annotation.Log
 import cwdrg.util.json.JSONUtil
@@ -8,12 +9,41 @@ import groovy.transform.CompileStatic
 
 import org.springframework.beans.factory.annotation.Autowired
 
+import cassdoc.commands.mutate.DelAttr
+import cassdoc.commands.mutate.DelAttrRels
+import cassdoc.commands.mutate.DelDocRels
+import cassdoc.commands.mutate.DelDoc_E
+import cassdoc.commands.mutate.DelDoc_P
+import cassdoc.commands.mutate.DelFixedCol
+import cassdoc.commands.mutate.DelRel
+import cassdoc.commands.mutate.InsIdxValOnly
+import cassdoc.commands.mutate.ClrIdxVal
+import cassdoc.commands.mutate.MutationCmd
 import cassdoc.commands.mutate.NewAttr
+import cassdoc.commands.mutate.NewDoc
+import cassdoc.commands.mutate.NewRel
+import cassdoc.commands.mutate.UpdAttr
+import cassdoc.commands.mutate.UpdAttrMetadata
+import cassdoc.commands.mutate.UpdAttrPAXOS
+import cassdoc.commands.mutate.UpdDocMetadata
 import cassdoc.commands.mutate.UpdFixedCol
 
+import com.codahale.metrics.MetricRegistry
 import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+import javax.annotation.PreDestroy
 
 import drv.cassdriver.DriverWrapper
+import drv.cassdriver.GroupCommit
 import org.springframework.stereotype.Component
 
 @CompileStatic
@@ -25,7 +55,66 @@ class CommandExecServices {
 
     JsonFactory jsonFactory = new JsonFactory()
 
-    Map<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> collections = [:]
+    // binary attribute storage, see AttrStorage
+    SmileFactory smileFactory = new SmileFactory()
+
+    CBORFactory cborFactory = new CBORFactory()
+
+    private volatile SchemaSnapshot schema = null
+
+    // serializes schema loads and changes, readers don't take it
+    private final Object schemaLock = new Object()
+
+    /**
+     * The current schema snapshot, loaded from cassdoc_system_schema on first use (creating that if
+     * autoCreateBaseSchema), after which cassdoc_system_schema.version is polled for changes made by other servers.
+     */
+    SchemaSnapshot getSchema() {
+        SchemaSnapshot current = schema
+        if (current == null) {
+            synchronized (schemaLock) {
+                if (schema == null) {
+                    if (driver == null) {
+                        schema = new SchemaSnapshot(null, [:])
+                    } else {
+                        if (!driver.keyspaces.contains('cassdoc_system_schema')) {
+                            if (config?.autoCreateBaseSchema) {
+                                createSystemSchema()
+                            } else {
+                                throw log.err('CASSDOC BASE SCHEMA / cassdoc_system_schema not found and autoinitialize disabled', new IllegalStateException('cassdoc_system_schema not found'), null)
+                            }
+                        }
+                        loadSystemSchema()
+                    }
+                }
+                current = schema
+            }
+        }
+        return current
+    }
+
+    Map<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> getCollections() {
+        getSchema().collections
+    }
+
+    /**
+     * publish the collections as the schema without loading it (tests and benchmarks set up their doc types this way)
+     */
+    void setCollections(Map<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> collections) {
+        schema = new SchemaSnapshot(null, collections)
+    }
+
+    TypeConfigurationService types(String space) {
+        getSchema().types(space)
+    }
+
+    IndexConfigurationService indexes(String space) {
+        getSchema().indexes(space)
+    }
+
+    TypeCql typeCql(String space, String suffix) {
+        getSchema().typeCql(space, suffix)
+    }
 
     @Autowired
     CassDocConfig config
@@ -33,41 +122,331 @@ class CommandExecServices {
     @Autowired
     DriverWrapper driver
 
+    private ExecutorService readExecutor = null
+
+    /**
+     * bounded pool for reads issued concurrently on behalf of one request, such as child doc prefetch. Tasks must not
+     * block on other tasks of the pool.
+     */
+    synchronized ExecutorService getReadExecutor() {
+        if (readExecutor == null) {
+            int threads = config?.readThreads ?: 32
+            AtomicInteger threadCount = new AtomicInteger()
+            readExecutor = Executors.newFixedThreadPool(threads, { Runnable r ->
+                Thread t = new Thread(r, "cassdoc-read-" + threadCount.incrementAndGet())
+                t.daemon = true
+                return t
+            } as ThreadFactory)
+        }
+        return readExecutor
+    }
+
+    private ExecutorService streamExecutor = null
+
+    /**
+     * bounded pool running the producers of AsyncResultStreams (index search results, etc). Producers block on their
+     * consumers, so they don't run on the read executor.
+     */
+    synchronized ExecutorService getStreamExecutor() {
+        if (streamExecutor == null) {
+            int threads = config?.streamThreads ?: 16
+            AtomicInteger threadCount = new AtomicInteger()
+            streamExecutor = Executors.newFixedThreadPool(threads, { Runnable r ->
+                Thread t = new Thread(r, "cassdoc-stream-" + threadCount.incrementAndGet())
+                t.daemon = true
+                return t
+            } as ThreadFactory)
+        }
+        return streamExecutor
+    }
+
+    private ExecutorService maintenanceExecutor = null
+
+    /**
+     * single thread for background maintenance (attribute storage conversion), one job at a time
+     */
+    synchronized ExecutorService getMaintenanceExecutor() {
+        if (maintenanceExecutor == null) {
+            maintenanceExecutor = Executors.newSingleThreadExecutor({ Runnable r ->
+                Thread t = new Thread(r, "cassdoc-maintenance")
+                t.daemon = true
+                return t
+            } as ThreadFactory)
+        }
+        return maintenanceExecutor
+    }
+
+    private final Map<String, CleanupQueue> cleanupQueues = [:]
+
+    /**
+     * the delete cascade queue of a collection, its workers started
+     */
+    CleanupQueue cleanupQueue(String space) {
+        synchronized (cleanupQueues) {
+            CleanupQueue queue = cleanupQueues[space]
+            if (queue == null) {
+                queue = new CleanupQueue(this, space,
+                        config?.cleanupThreads ?: 4,
+                        config?.cleanupDocsPerSecond ?: 500d,
+                        config?.cleanupBatchSize ?: 100)
+                queue.maxAttempts = config?.cleanupMaxAttempts ?: 5
+                queue.retryMillis = config?.cleanupRetryMillis ?: 1000L
+                queue.start()
+                cleanupQueues[space] = queue
+            }
+            return queue
+        }
+    }
+
+    private DocCache docCache = null
+
+    /**
+     * the read-through doc cache, null unless cassdoc.docCacheEnabled
+     */
+    synchronized DocCache getDocCache() {
+        if (docCache == null && config?.docCacheEnabled) {
+            docCache = new DocCache(config.docCacheMaxChars, config.docCacheTtlSeconds, config.docCacheRevalidateMillis)
+        }
+        return docCache
+    }
+
+    private GroupCommit groupCommit = null
+
+    /**
+     * the group commit stage of the "group" execution mode, null unless cassdoc.groupCommitWindowMillis is set
+     */
+    synchronized GroupCommit getGroupCommit() {
+        if (groupCommit == null && driver != null && config?.groupCommitWindowMillis > 0) {
+            groupCommit = new GroupCommit(driver, config.groupCommitWindowMillis, config.groupCommitMaxStatements ?: 1000)
+        }
+        return groupCommit
+    }
+
+    /**
+     * the application's registry, if there is one
+     */
+    @Autowired(required = false)
+    MetricRegistry metricRegistry
+
+    private CassdocMetrics metrics = null
+
+    /**
+     * operation metrics, in the application's registry (which the driver's statement metrics are moved to) or else in
+     * the driver's own
+     */
+    synchronized CassdocMetrics getMetrics() {
+        if (metrics == null) {
+            MetricRegistry registry = metricRegistry
+            if (registry == null) {
+                registry = driver != null ? driver.metrics.registry : new MetricRegistry()
+            } else if (driver != null && !driver.metrics.registry.is(registry)) {
+                driver.setMetricRegistry(registry)
+            }
+            metrics = new CassdocMetrics(registry)
+            metrics.registerDocCache(this)
+        }
+        return metrics
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        readExecutor?.shutdownNow()
+        readExecutor = null
+        streamExecutor?.shutdownNow()
+        streamExecutor = null
+        maintenanceExecutor?.shutdownNow()
+        maintenanceExecutor = null
+        groupCommit?.close()
+        groupCommit = null
+        synchronized (schemaLock) {
+            schemaPoll?.shutdownNow()
+            schemaPoll = null
+        }
+        synchronized (cleanupQueues) {
+            for (CleanupQueue queue : cleanupQueues.values()) {
+                queue.stop()
+            }
+            cleanupQueues.clear()
+        }
+    }
+
     // ---- schema admin
 
+    /**
+     * Load the doc types and indexes of all collections and publish them as the new schema snapshot. Statements are
+     * warmed for the doc types new to this server.
+     */
     void loadSystemSchema() {
-        OperationContext opctx = new OperationContext(space: 'cassdoc_system_schema')
-        Detail dtl = new Detail()
-        if (collections == null) {
-            collections = [:]
-        }
-        List<Object[]> schemas = query(opctx, dtl, 'SELECT token(ks), ks, nm, json FROM cassdoc_system_schema.types')
-        String curKS
-        List<DocType> curList
-        for (Object[] collectionSchema : schemas) {
-            // todo: nullchecks
-            String ks = collectionSchema[1]
-            if (!collections.containsKey(ks)) {
-                collections[ks] = new Tuple2<>(new TypeConfigurationService(), new IndexConfigurationService())
-            }
-            if (ks != curKS) {
-                if (curList != null) {
-                    TypeConfigurationService types = collections[curKS].first
-                    types.setTypeList(curList)
+        synchronized (schemaLock) {
+            OperationContext opctx = new OperationContext(space: 'cassdoc_system_schema')
+            Detail dtl = new Detail()
+            if (driver.session.cluster.metadata.getKeyspace('cassdoc_system_schema')?.getTable('version') == null) {
+                driver.executeDirectUpdate('cassdoc_system_schema', CassandraSchemaUtil.createSchemaVersionTable(), null, 'QUORUM', null)
+            }
+            // read first: a change made while the types and indexes are read shows up in the next poll
+            String version = readSchemaVersion(opctx, dtl)
+
+            Map<String, List<DocType>> typeLists = [:]
+            List<Object[]> schemas = query(opctx, dtl, 'SELECT token(ks), ks, nm, json FROM cassdoc_system_schema.types')
+            for (Object[] collectionSchema : schemas) {
+                String ks = collectionSchema[1]
+                String nm = collectionSchema[2]
+                String json = collectionSchema[3]
+                log.inf("$ks : $nm : $json", null)
+                ListMap.put(typeLists, ks, (DocType) JSONUtil.deserialize(json, DocType))
+            }
+            Map<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> collections = [:]
+            for (Map.Entry<String, List<DocType>> typeList : typeLists.entrySet()) {
+                collections[typeList.key] = new Tuple2<>(new TypeConfigurationService(typeList: typeList.value), new IndexConfigurationService())
+            }
+
+            List<Object[]> indexDefs = query(opctx, dtl, 'SELECT token(ks), ks, nm, json FROM cassdoc_system_schema.indexes')
+            for (Object[] indexDef : indexDefs) {
+                String ks = indexDef[1]
+                String nm = indexDef[2]
+                String json = indexDef[3]
+                log.inf("$ks : index $nm : $json", null)
+                Tuple2<TypeConfigurationService, IndexConfigurationService> collection = collections[ks]
+                Map definition = (Map) JSONUtil.deserialize(json, Map)
+                DocType type = collection?.first?.getTypeForSuffix((String) definition.typeSuffix)
+                if (type == null) {
+                    log.wrn("index $nm of unknown doc type ${definition.typeSuffix} in $ks", null)
+                    continue
+                }
+                try {
+                    collection.second.indexes[nm] = IndexConfigurationService.columnIndex(ks, type, definition)
+                } catch (IllegalArgumentException e) {
+                    log.wrn("index $nm in $ks not loaded", e)
                 }
-                curKS = ks
-                curList = []
             }
-            String nm = collectionSchema[2]
-            String json = collectionSchema[3]
-            log.inf("$ks : $nm : $json", null)
-            curList << (DocType) JSONUtil.deserialize(json, DocType)
+
+            SchemaSnapshot previous = schema
+            schema = new SchemaSnapshot(version, collections)
+            log.inf("schema version $version published: ${collections.size()} collections", null)
+
+            for (Map.Entry<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> collection : collections.entrySet()) {
+                List<DocType> newTypes = []
+                for (DocType type : collection.value.first.typeList) {
+                    if (previous?.docType(collection.key, type.suffix) == null) {
+                        newTypes.add(type)
+                    }
+                }
+                if (newTypes) {
+                    warmStatementCache(collection.key, newTypes)
+                }
+                // resume the delete cascades left queued
+                cleanupQueue(collection.key)
+            }
+            startSchemaPoll()
+        }
+    }
+
+    private ScheduledExecutorService schemaPoll = null
+
+    private void startSchemaPoll() {
+        long seconds = config?.schemaPollSeconds ?: 0L
+        if (schemaPoll != null || seconds <= 0) {
+            return
+        }
+        schemaPoll = Executors.newSingleThreadScheduledExecutor({ Runnable r ->
+            Thread t = new Thread(r, "cassdoc-schema-poll")
+            t.daemon = true
+            return t
+        } as ThreadFactory)
+        schemaPoll.scheduleWithFixedDelay({ pollSchemaVersion() } as Runnable, seconds, seconds, TimeUnit.SECONDS)
+    }
+
+    /**
+     * reload the schema if cassdoc_system_schema.version moved on from the snapshot's: a schema change on any server
+     */
+    void pollSchemaVersion() {
+        try {
+            String version = readSchemaVersion(new OperationContext(space: 'cassdoc_system_schema'), new Detail())
+            if (version != null && version != schema?.version) {
+                log.inf("schema version $version, loaded ${schema?.version}: reloading", null)
+                loadSystemSchema()
+            }
+        } catch (Exception e) {
+            // keep polling
+            log.wrn('schema version poll failed', e)
         }
-        TypeConfigurationService types = collections[curKS].first
-        types.setTypeList(curList)
+    }
 
-        // TODO: indexes + index service
+    private String readSchemaVersion(OperationContext opctx, Detail dtl) {
+        List<Object[]> rows = query(opctx, dtl, CassandraSchemaUtil.selectSchemaVersion(), ['schema'] as Object[])
+        return rows ? (String) rows[0][1] : null
+    }
 
+    /**
+     * Publish a schema change made by this server, after it is written to cassdoc_system_schema, and move
+     * cassdoc_system_schema.version on so the other servers reload. The published snapshot keeps the version it was
+     * loaded at: this server reloads too on its next poll, picking up changes other servers made meanwhile.
+     *
+     * @param change given the collection's current types and indexes (null for a new collection), returns its new
+     * ones. It is called under the schema lock, so concurrent changes to a collection don't drop each other.
+     */
+    private void publishSchema(String space, Closure<Tuple2<TypeConfigurationService, IndexConfigurationService>> change) {
+        synchronized (schemaLock) {
+            driver.executeDirectUpdate('cassdoc_system_schema', CassandraSchemaUtil.updateSchemaVersion(),
+                    ['schema', IDUtil.timeuuid().toString()] as Object[], 'QUORUM', null)
+            SchemaSnapshot current = getSchema()
+            Tuple2<TypeConfigurationService, IndexConfigurationService> changed = change.call(current.types(space), current.indexes(space))
+            schema = current.withCollection(space, changed.first, changed.second)
+        }
+    }
+
+    /**
+     * Prepare the mutation statement set of the collection's doctypes ahead of the first request. The commands are run
+     * in a batch mode context, which prepares and binds the statements without executing them, so the cached cql is
+     * exactly what later requests will ask for.
+     *
+     * @param space
+     * @param types
+     */
+    void warmStatementCache(String space, Collection<DocType> types) {
+        OperationContext opctx = new OperationContext(space: space)
+        opctx.executionMode = 'batch'
+        Detail dtl = new Detail(writeConsistency: opctx.writeConsistency)
+        String relId = IDUtil.sampleUUID + '-META'
+        List<MutationCmd> cmds = [
+                new NewRel(p1: relId),
+                new DelRel(relKey: new RelKey(p1: relId)),
+                new DelDocRels(p1: relId),
+                new DelAttrRels(p1: relId),
+                new InsIdxValOnly(),
+                new ClrIdxVal()] as List<MutationCmd>
+        for (DocType type : types) {
+            String docId = IDUtil.sampleUUID + '-' + type.suffix
+            cmds.addAll([
+                    new NewDoc(docUUID: docId),
+                    new DelDoc_E(docUUID: docId),
+                    new DelDoc_P(docUUID: docId),
+                    new UpdDocMetadata(docUUID: docId),
+                    new NewAttr(docUUID: docId, attrName: ''),
+                    new UpdAttr(docUUID: docId, attrName: ''),
+                    new UpdAttrPAXOS(docUUID: docId, attrName: ''),
+                    new UpdAttrMetadata(docUUID: docId, attr: ''),
+                    new DelAttr(docUUID: docId, attrName: '')] as List<MutationCmd>)
+            if (AttrStorage.binaryFormat(type.attrFormat)) {
+                // binary stored values have their own statements
+                cmds.add(new NewAttr(docUUID: docId, attrName: '', attrValue: new FieldValue(type: Map, value: '{}')))
+                cmds.add(new UpdAttr(docUUID: docId, attrName: '', attrValue: new FieldValue(type: Map, value: '{}')))
+                cmds.add(new UpdAttrPAXOS(docUUID: docId, attrName: '', attrValue: new FieldValue(type: Map, value: '{}')))
+            }
+            for (FixedAttr fixedAttr : type.fixedAttrList) {
+                cmds.add(new UpdFixedCol(docUUID: docId, colName: fixedAttr.colname))
+                cmds.add(new DelFixedCol(docUUID: docId, colName: fixedAttr.colname))
+            }
+        }
+        long start = System.currentTimeMillis()
+        for (MutationCmd cmd : cmds) {
+            try {
+                cmd.execMutationCassandra(this, opctx, dtl)
+            } catch (Exception e) {
+                log.wrn("statement warmup failed in $space for ${cmd.class.simpleName}", e)
+            }
+        }
+        log.inf("statement warmup for $space: ${cmds.size()} statements in ${System.currentTimeMillis() - start} ms", null)
     }
 
     void createSystemSchema() {
@@ -76,6 +455,7 @@ class CommandExecServices {
         driver.executeDirectUpdate('cassdoc_system_schema', CassandraSchemaUtil.createSchemaKeyspace(1), null, 'QUORUM', null)
         driver.executeDirectUpdate('cassdoc_system_schema', CassandraSchemaUtil.createSchemaTypesTable(), null, 'QUORUM', null)
         driver.executeDirectUpdate('cassdoc_system_schema', CassandraSchemaUtil.createSchemaIndexesTable(), null, 'QUORUM', null)
+        driver.executeDirectUpdate('cassdoc_system_schema', CassandraSchemaUtil.createSchemaVersionTable(), null, 'QUORUM', null)
         log.inf('... Base schema created', null, null)
     }
 
@@ -84,6 +464,8 @@ class CommandExecServices {
         driver.executeDirectUpdate('cassdoc_system_schema', CassandraSchemaUtil.createKeyspace(collectionName), null, 'QUORUM', null)
         driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createRelationTable(collectionName), null, 'QUORUM', null)
         driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createIndexTable(collectionName), null, 'QUORUM', null)
+        driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createCleanupQueueTable(collectionName), null, 'QUORUM', null)
+        driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createCleanupDeadLetterTable(collectionName), null, 'QUORUM', null)
         driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createAttrTable(collectionName, 'META'), null, 'QUORUM', null)
         driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createEntityTable(collectionName, 'META', []), null, 'QUORUM', null)
         driver.executeDirectUpdate(
@@ -93,14 +475,16 @@ class CommandExecServices {
                 'QUORUM',
                 null)
         TypeConfigurationService typesvc = new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.meta', suffix: 'META')])
-        collections[collectionName] = new Tuple2<>(typesvc, new IndexConfigurationService())
+        publishSchema(collectionName, { TypeConfigurationService types, IndexConfigurationService indexes ->
+            new Tuple2<>(typesvc, new IndexConfigurationService())
+        })
         log.inf("... done with CASSDOC COLLECTION SCHEMA CREATE $collectionName", null)
     }
 
     void createNewDoctypeSchema(String collectionName, DocType type) {
         String typeCode = type?.suffix
         log.inf("CASSDOC DOCTYPE SCHEMA CREATE $typeCode in collection $collectionName", null)
-        driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createAttrTable(collectionName, typeCode), null, 'QUORUM', null)
+        driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createAttrTable(collectionName, typeCode, AttrStorage.binaryColumn(type)), null, 'QUORUM', null)
         driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.createEntityTable(collectionName, typeCode, type.fixedAttrList), null, 'QUORUM', null)
         driver.executeDirectUpdate(
                 collectionName,
@@ -108,36 +492,90 @@ class CommandExecServices {
                 [collectionName, typeCode, JSONUtil.toJSON(type)] as Object[],
                 'QUORUM',
                 null)
-        if (collections != null) {
-            collections[collectionName] = new Tuple2<>(
-                    new TypeConfigurationService(typeList: collections[collectionName].first.typeList + new DocType(uri: 'cassdoc.' + typeCode, suffix: typeCode)),
-                    collections[collectionName].second)
-        }
+        publishSchema(collectionName, { TypeConfigurationService types, IndexConfigurationService indexes ->
+            new Tuple2<>(withType(types, type), indexes ?: new IndexConfigurationService())
+        })
         log.inf("... done with CASSDOC DOCTYPE SCHEMA CREATE $typeCode in collection $collectionName", null)
     }
 
-    // revisit: https://stackoverflow.com/questions/8297705/how-to-implement-thread-safe-lazy-initialization
-    // ... and of course, holy shit, multiple cassdoc servers ... I'll probably need zookeeper or something similar
-    // ... ... or https://www.datastax.com/dev/blog/consensus-on-cassandra
-    // ... ... or batch the execution
-    void checkSchema(String collectionName) {
-        if (collections == null) {
-            synchronized (collections) {
-                if (collections == null) {
-                    // check the base schema
-                    if (!driver.keyspaces.contains('cassdoc_system_schema')) {
-                        if (config?.autoCreateBaseSchema) {
-                            createSystemSchema()
-                        } else {
-                            throw log.err('CASSDOC BASE SCHEMA / cassdoc_system_schema not found and autoinitialize disabled', new IllegalStateException('cassdoc_system_schema not found'), null)
-                        }
-                    }
-                    collections = [:]
-                }
-                loadSystemSchema()
+    /**
+     * Create a column index (SecondaryIndex or MaterializedViewIndex) on the FixedAttr column of a doc type's attribute
+     * and record its definition. Other servers pick it up on their next schema version poll.
+     *
+     * @param kind IndexTypes.SECONDARY or IndexTypes.MATERIALIZED_VIEW
+     */
+    void createColumnIndex(String collectionName, String typeCode, String kind, String name, String attr) {
+        DocType type = getSchema().docType(collectionName, typeCode)
+        if (type == null) {
+            throw log.err('', new IllegalArgumentException("Unknown cassdoc doc type $typeCode for $collectionName"))
+        }
+        ColumnIndex idx = IndexConfigurationService.columnIndex(collectionName, type, [kind: kind, name: name, attr: attr, typeSuffix: typeCode])
+        log.inf("CASSDOC INDEX CREATE $kind $name on $typeCode.$attr in collection $collectionName", null)
+        driver.executeDirectUpdate(collectionName, idx.createCql(), null, 'QUORUM', null)
+        driver.executeDirectUpdate(
+                collectionName,
+                CassandraSchemaUtil.insertSchemaIndex(),
+                [collectionName, name, JSONUtil.toJSON(idx.definition)] as Object[],
+                'QUORUM',
+                null)
+        publishSchema(collectionName, { TypeConfigurationService types, IndexConfigurationService indexes ->
+            new Tuple2<>(types, (indexes ?: new IndexConfigurationService()).withIndex(name, idx))
+        })
+    }
+
+    /**
+     * Set the attribute storage of a doc type (see AttrStorage), adding the b column to its p_ table first if needed.
+     * New writes use the format, existing values are converted by AttrStorageConverter. Other servers pick it up when
+     * on their next schema version poll, and can't read binary values until then.
+     *
+     * @param format json, smile or cbor
+     * @param compressBytes binary values of at least this many bytes are LZ4 compressed, null for never
+     */
+    void setAttrStorage(String collectionName, String typeCode, String format, Integer compressBytes) {
+        if (format != AttrStorage.FORMAT_JSON && !AttrStorage.binaryFormat(format)) {
+            throw log.err('', new IllegalArgumentException("Unknown attribute storage format $format"))
+        }
+        DocType current = getSchema().docType(collectionName, typeCode)
+        if (current == null) {
+            throw log.err('', new IllegalArgumentException("Unknown cassdoc doc type $typeCode for $collectionName"))
+        }
+        // the published DocType isn't changed: a copy replaces it
+        DocType type = (DocType) JSONUtil.deserialize(JSONUtil.toJSON(current), DocType)
+        log.inf("CASSDOC ATTR STORAGE $format (compress from $compressBytes bytes) for $typeCode in collection $collectionName", null)
+        if (driver.session.cluster.metadata.getKeyspace(collectionName).getTable('p_' + typeCode).getColumn('b') == null) {
+            driver.executeDirectUpdate(collectionName, CassandraSchemaUtil.addAttrBinaryColumn(collectionName, typeCode), null, 'QUORUM', null)
+        }
+        type.attrFormat = format
+        type.attrCompressBytes = compressBytes
+        driver.executeDirectUpdate(
+                collectionName,
+                CassandraSchemaUtil.insertSchemaType(),
+                [collectionName, typeCode, JSONUtil.toJSON(type)] as Object[],
+                'QUORUM',
+                null)
+        publishSchema(collectionName, { TypeConfigurationService types, IndexConfigurationService indexes ->
+            new Tuple2<>(withType(types, type), indexes)
+        })
+    }
+
+    /**
+     * a copy of the types with the doc type added, or replacing the one of its suffix
+     */
+    private static TypeConfigurationService withType(TypeConfigurationService types, DocType type) {
+        List<DocType> typeList = []
+        for (DocType existing : types?.typeList ?: []) {
+            if (existing.suffix != type.suffix) {
+                typeList.add(existing)
             }
         }
-        if (!collections.containsKey(collectionName)) {
+        typeList.add(type)
+        return new TypeConfigurationService(typeList: typeList)
+    }
+
+    // multiple cassdoc servers: changes are published through cassdoc_system_schema.version, see pollSchemaVersion.
+    // Two servers creating the same collection or doc type at once both run the (idempotent) DDL.
+    void checkSchema(String collectionName) {
+        if (!getSchema().collections.containsKey(collectionName)) {
             if (config.autoCreateNewKeyspaces) {
                 createNewCollectionSchema(collectionName)
             } else {
@@ -147,7 +585,7 @@ class CommandExecServices {
     }
 
     void checkDocType(String collectionName, String typeCode) {
-        DocType type = collections[collectionName].first.getTypeForSuffix(typeCode)
+        DocType type = getSchema().docType(collectionName, typeCode)
         if (type == null) {
             if (config.autoCreateNewDocTypes) {
                 createNewDoctypeSchema(collectionName, new DocType(uri: 'cassdoc.'+typeCode, suffix: typeCode))
@@ -191,13 +629,17 @@ class CommandExecServices {
     static void execNewAttrCmdPAXOS(CommandExecServices svcs, OperationContext opctx, Detail detail, NewAttr newAttrCmd) {
         String space = opctx.space
         String suffix = IDUtil.idSuffix(newAttrCmd.docUUID)
-        String cql = "INSERT INTO ${space}.p_${suffix} (e,p,zv,d,t) VALUES (?,?,?,?,?) IF NOT EXISTS"
-        Object[] args = [
-                newAttrCmd.docUUID,
-                newAttrCmd.attrName,
-                opctx.updateUUID,
-                newAttrCmd.attrValue?.value,
-                TypeConfigurationService.attrTypeCode(newAttrCmd.attrValue?.type)] as Object[]
+        DocType type = AttrStorage.docType(svcs, space, suffix)
+        Object[] stored = AttrStorage.encode(svcs, type, newAttrCmd.attrValue)
+        String cql
+        Object[] args
+        if (AttrStorage.binaryColumn(type)) {
+            cql = "INSERT INTO ${space}.p_${suffix} (e,p,zv,d,b,t) VALUES (?,?,?,?,?,?) IF NOT EXISTS"
+            args = [newAttrCmd.docUUID, newAttrCmd.attrName, opctx.updateUUID, stored[1], stored[2], stored[0]] as Object[]
+        } else {
+            cql = "INSERT INTO ${space}.p_${suffix} (e,p,zv,d,t) VALUES (?,?,?,?,?) IF NOT EXISTS"
+            args = [newAttrCmd.docUUID, newAttrCmd.attrName, opctx.updateUUID, stored[1], stored[0]] as Object[]
+        }
         svcs.driver.executeDirectUpdate(space, cql, args, detail.writeConsistency, opctx.operationTimestamp)
     }
 
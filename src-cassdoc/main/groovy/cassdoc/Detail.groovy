@@ -57,6 +57,11 @@ class Detail {
     String searchEntityLimit = null
     Integer fetchNextPageThreshold = null
     Integer fetchPageSize = null
+    Integer fetchWindow = null // docs read concurrently by bulk retrievals
+    Integer writeWindow = null // docs written concurrently by stream mode ingest
+    Integer scanSplits = null // full table scans without search tokens run as a parallel TokenRangeScan of this many sub-ranges
+    Integer scanConcurrency = null // sub-ranges of a TokenRangeScan read at a time
+    Boolean deltaUpdate = null // attribute updates write only what changed, see AttrDelta
 
     // batch vs async spray vs as-you-go specifiers...
 
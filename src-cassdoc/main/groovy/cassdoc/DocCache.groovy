@@ -0,0 +1,252 @@
+package cassdoc
+
+import cassdoc.operations.RetrievalOperations
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.CacheStats
+import com.google.common.cache.RemovalCause
+import com.google.common.cache.RemovalListener
+import com.google.common.cache.RemovalNotification
+import com.google.common.cache.Weigher
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Optional in-process read-through cache of rendered documents and attributes, keyed by (space, docUUID[, attr]).
+ *
+ * Bounded by total characters and a hard ttl. An entry is served as-is for revalidateMillis after it was loaded or last
+ * validated; after that the zv versions of the doc (e_ zv and the p, zv of every attribute) or attribute are read and
+ * compared to those it was loaded with, and it is reloaded only if they differ. Mutations through
+ * OperationContext.addCommand/DO drop all entries of the documents they touch.
+ *
+ * Only details that render the document from its own partitions are cached: child doc pulls, per-attr detail,
+ * attribute subsets and meta attributes bypass the cache (child doc changes would not show up in the versions).
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class DocCache {
+
+    private static final char SEP = '\u0001'
+
+    long revalidateMillis
+
+    private final Cache<String, Entry> cache
+    private final Map<String, Set<String>> keysByDoc = new ConcurrentHashMap<>()
+    private final AtomicLong revalidations = new AtomicLong()
+    private final AtomicLong invalidations = new AtomicLong()
+
+    static class Entry {
+        final String docKey
+        final String json
+        final String version
+        volatile long validUntil
+
+        Entry(String docKey, String json, String version, long validUntil) {
+            this.docKey = docKey
+            this.json = json
+            this.version = version
+            this.validUntil = validUntil
+        }
+    }
+
+    /**
+     * @param maxChars total json characters held
+     * @param ttlSeconds entries are dropped this long after loading, validated or not
+     * @param revalidateMillis how long an entry is served without checking its versions
+     */
+    DocCache(long maxChars, long ttlSeconds, long revalidateMillis) {
+        this.revalidateMillis = revalidateMillis
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher({ String key, Entry entry -> key.length() + (entry.json?.length() ?: 0) } as Weigher<String, Entry>)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .removalListener({ RemovalNotification<String, Entry> n ->
+                    // a replaced key is still cached under the new entry
+                    if (n.cause != RemovalCause.REPLACED) {
+                        unindex(n.key, n.value)
+                    }
+                } as RemovalListener<String, Entry>)
+                .recordStats()
+                .build()
+    }
+
+    static boolean cacheable(Detail detail) {
+        if (detail == null) {
+            return true
+        }
+        return !detail.pullChildDocs && detail.childDocDetail == null && detail.childDocSuffixDetail == null &&
+                detail.attrDetail == null && detail.attrSubset == null && detail.attrExclude == null &&
+                !detail.docIDTimestampMeta && !detail.docIDDateMeta && detail.docWritetimeMeta == null && detail.attrWritetimeMeta == null &&
+                !detail.docWritetimeDateMeta && !detail.attrWritetimeDateMeta && !detail.docPaxosMeta && !detail.attrPaxosMeta &&
+                !detail.docPaxosTimestampMeta && !detail.attrPaxosTimestampMeta && !detail.docPaxosDateMeta && !detail.attrPaxosDateMeta &&
+                !detail.docMetaIDMeta && !detail.docMetaDataMeta && !detail.attrMetaIDMeta && !detail.attrMetaDataMeta &&
+                !detail.parentMeta && !detail.docChildrenMeta && !detail.docRelationsMeta && !detail.docTokenMeta && !detail.attrTokenMeta
+    }
+
+    // ---- reads
+
+    String getDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID) {
+        String docKey = docKey(opctx.space, docUUID)
+        Entry entry = cache.getIfPresent('D' + docKey)
+        if (entry != null && valid(entry, docVersion(svcs, opctx, detail, docUUID, entry))) {
+            return entry.json
+        }
+        // version before content: a write in between leaves the entry looking stale, never fresh
+        String version = docVersion(svcs, opctx, detail, docUUID, null)
+        StringWriter writer = new StringWriter()
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, writer, true)
+        return put('D' + docKey, docKey, writer.toString(), version)
+    }
+
+    String getAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr) {
+        String docKey = docKey(opctx.space, docUUID)
+        String key = 'A' + docKey + SEP + attr
+        Entry entry = cache.getIfPresent(key)
+        if (entry != null && valid(entry, attrVersion(svcs, opctx, detail, docUUID, attr, entry))) {
+            return entry.json
+        }
+        String version = attrVersion(svcs, opctx, detail, docUUID, attr, null)
+        StringWriter writer = new StringWriter()
+        RetrievalOperations.getAttr(svcs, opctx, detail, docUUID, attr, writer)
+        return put(key, docKey, writer.toString(), version)
+    }
+
+    /**
+     * existence of a doc, only positive answers are kept
+     */
+    boolean docExists(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID) {
+        String docKey = docKey(opctx.space, docUUID)
+        Entry entry = cache.getIfPresent('X' + docKey)
+        if (entry != null && System.currentTimeMillis() < entry.validUntil) {
+            return true
+        }
+        String version = entityVersion(svcs, opctx, detail, docUUID)
+        if (version == null) {
+            cache.invalidate('X' + docKey)
+            return false
+        }
+        if (entry != null && entry.version == version) {
+            // the version check is the same query as an existence check, so it only counts as a miss
+            entry.validUntil = System.currentTimeMillis() + revalidateMillis
+        } else {
+            put('X' + docKey, docKey, null, version)
+        }
+        return true
+    }
+
+    // ---- invalidation
+
+    void invalidate(String space, String docUUID) {
+        if (docUUID == null) {
+            return
+        }
+        Set<String> keys = keysByDoc.remove(docKey(space, docUUID))
+        if (keys != null) {
+            invalidations.incrementAndGet()
+            cache.invalidateAll(keys)
+        }
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll()
+        keysByDoc.clear()
+    }
+
+    // ---- stats
+
+    CacheStats getStats() {
+        cache.stats()
+    }
+
+    long getRevalidations() {
+        revalidations.get()
+    }
+
+    long getInvalidations() {
+        invalidations.get()
+    }
+
+    long size() {
+        cache.size()
+    }
+
+    // ---- internals
+
+    private static String docKey(String space, String docUUID) {
+        space + SEP + docUUID
+    }
+
+    /**
+     * @param currentVersion null when the entry is still in its revalidate window (not read)
+     */
+    private boolean valid(Entry entry, String currentVersion) {
+        if (System.currentTimeMillis() < entry.validUntil) {
+            return true
+        }
+        if (currentVersion != null && currentVersion == entry.version) {
+            revalidations.incrementAndGet()
+            entry.validUntil = System.currentTimeMillis() + revalidateMillis
+            return true
+        }
+        return false
+    }
+
+    private String put(String key, String docKey, String json, String version) {
+        Set<String> keys = keysByDoc.get(docKey)
+        if (keys == null) {
+            Set<String> newKeys = ConcurrentHashMap.newKeySet()
+            keys = keysByDoc.putIfAbsent(docKey, newKeys) ?: newKeys
+        }
+        keys.add(key)
+        cache.put(key, new Entry(docKey, json, version, System.currentTimeMillis() + revalidateMillis))
+        return json
+    }
+
+    private void unindex(String key, Entry entry) {
+        if (entry == null) {
+            return
+        }
+        Set<String> keys = keysByDoc.get(entry.docKey)
+        if (keys != null) {
+            keys.remove(key)
+            if (keys.isEmpty()) {
+                keysByDoc.remove(entry.docKey, keys)
+            }
+        }
+    }
+
+    private String docVersion(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, Entry entry) {
+        if (entry != null && System.currentTimeMillis() < entry.validUntil) {
+            return null
+        }
+        String entityVersion = entityVersion(svcs, opctx, detail, docUUID)
+        if (entityVersion == null) {
+            return null
+        }
+        StringBuilder version = new StringBuilder(entityVersion)
+        List<Object[]> rows = RetrievalOperations.query(svcs, opctx, detail, "SELECT token(e),p,zv FROM ${opctx.space}.p_${IDUtil.idSuffix(docUUID)} WHERE e = ?".toString(), [docUUID] as Object[])
+        for (Object[] row : rows) {
+            version << SEP << row[1] << SEP << row[2]
+        }
+        return version.toString()
+    }
+
+    private String attrVersion(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, Entry entry) {
+        if (entry != null && System.currentTimeMillis() < entry.validUntil) {
+            return null
+        }
+        List<Object[]> rows = RetrievalOperations.query(svcs, opctx, detail, "SELECT token(e),zv FROM ${opctx.space}.p_${IDUtil.idSuffix(docUUID)} WHERE e = ? AND p = ?".toString(), [docUUID, attr] as Object[])
+        return rows.isEmpty() ? "" : String.valueOf(rows[0][1])
+    }
+
+    private String entityVersion(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID) {
+        List<Object[]> rows = RetrievalOperations.query(svcs, opctx, detail, svcs.typeCql(opctx.space, IDUtil.idSuffix(docUUID)).selectDocExists, [docUUID] as Object[])
+        return rows.isEmpty() ? null : String.valueOf(rows[0][1])
+    }
+}
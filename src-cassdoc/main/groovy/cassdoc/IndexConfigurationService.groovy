@@ -1,61 +1,375 @@
 package cassdoc
 
-import groovy.transform.CompileStatic
+import cassdoc.commands.retrieve.CassandraPagedRowProcessor
+import cassdoc.commands.retrieve.EntityTableSecondaryIndexRP
 import cassdoc.commands.retrieve.IndexTableRP
+import cassdoc.commands.retrieve.MaterializedViewRP
+import cassdoc.commands.retrieve.RowProcessor
+import cassdoc.operations.CreateOperations
 import cassdoc.operations.SearchOperations
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
 
+/**
+ * The named search indexes of a collection, and the choice of the cheapest column index (SecondaryIndex,
+ * MaterializedViewIndex) for attribute value criteria, costed with ColumnStats sampled from the e_ tables.
+ */
+@CompileStatic
+@Log
 class IndexConfigurationService {
     Map<String, Index> indexes = [:]
 
+    private final Map<String, ColumnStats> stats = new ConcurrentHashMap<>()
+
     Index getIndex(String indexIdentifier) {
         indexes[indexIdentifier]
     }
+
+    /**
+     * a copy with the index added, sharing the column stats: a published schema snapshot's indexes aren't changed
+     */
+    IndexConfigurationService withIndex(String name, Index idx) {
+        IndexConfigurationService copy = new IndexConfigurationService(indexes: new LinkedHashMap<>(indexes))
+        copy.indexes[name] = idx
+        copy.stats.putAll(stats)
+        return copy
+    }
+
+    List<ColumnIndex> getColumnIndexes(String typeSuffix) {
+        List<ColumnIndex> columnIndexes = []
+        for (Index idx : indexes.values()) {
+            if (idx instanceof ColumnIndex && ((ColumnIndex) idx).typeSuffix == typeSuffix) {
+                columnIndexes.add((ColumnIndex) idx)
+            }
+        }
+        return columnIndexes
+    }
+
+    /**
+     * the column index of the type with the lowest estimated cost for one of the criteria (attribute: value), null if
+     * none of the criteria attributes are indexed
+     */
+    IndexSelection selectIndex(CommandExecServices svcs, OperationContext opctx, Detail detail, DocType type, Map<String, Object> criteria) {
+        IndexSelection best = null
+        for (ColumnIndex idx : getColumnIndexes(type.suffix)) {
+            if (!criteria.containsKey(idx.attr) || criteria[idx.attr] == null) {
+                continue
+            }
+            Object value = criteria[idx.attr]
+            double matches = columnStats(svcs, opctx, detail, idx).estimatedMatches(value)
+            double cost = idx.cost(svcs, matches)
+            log.dbg("${type.suffix} index ${idx.name} on ${idx.attr} = $value: ~$matches docs, cost $cost", null)
+            if (best == null || cost < best.cost) {
+                best = new IndexSelection(index: idx, attr: idx.attr, value: value, cost: cost)
+            }
+        }
+        return best
+    }
+
+    /**
+     * value stats of an index's column, resampled after CassDocConfig.indexStatsTtlSeconds
+     */
+    ColumnStats columnStats(CommandExecServices svcs, OperationContext opctx, Detail detail, ColumnIndex idx) {
+        String key = idx.table + '.' + idx.column
+        ColumnStats cached = stats[key]
+        long ttlMillis = (svcs.config?.indexStatsTtlSeconds ?: 600L) * 1000L
+        if (cached != null && System.currentTimeMillis() - cached.sampledAt < ttlMillis) {
+            return cached
+        }
+        ColumnStats sampled = ColumnStats.sample(svcs, opctx, detail, idx.table, idx.column, svcs.config?.indexStatsSampleRows ?: 1000)
+        stats[key] = sampled
+        return sampled
+    }
+
+    /**
+     * the column index of a definition (cassdoc_system_schema.indexes json: kind, name, typeSuffix, attr) on the
+     * FixedAttr column of the attribute
+     */
+    static ColumnIndex columnIndex(String space, DocType type, Map definition) {
+        String name = (String) definition.name
+        String attr = (String) definition.attr
+        if (!(name ==~ /[A-Za-z0-9_]+/)) {
+            throw log.err('', new IllegalArgumentException("Invalid index name $name"))
+        }
+        FixedAttr fixed = type.fixedAttrMap[attr]
+        if (fixed == null) {
+            throw log.err('', new IllegalArgumentException("Index $name: $attr is not a FixedAttr of ${type.suffix}"))
+        }
+        ColumnIndex idx
+        switch ((String) definition.kind) {
+            case IndexTypes.SECONDARY:
+                idx = new SecondaryIndex()
+                break
+            case IndexTypes.MATERIALIZED_VIEW:
+                idx = new MaterializedViewIndex()
+                break
+            default:
+                throw log.err('', new IllegalArgumentException("Index $name: unknown kind ${definition.kind}"))
+        }
+        idx.name = name
+        idx.dbname = space
+        idx.table = "e_${type.suffix}".toString()
+        idx.column = fixed.colname
+        idx.columnType = fixed.coltype
+        idx.typeSuffix = type.suffix
+        idx.attr = attr
+        idx.docType = type
+        return idx
+    }
 }
 
 interface Index {
     Iterator<Map> searchIndex(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria)
 }
 
+/**
+ * an Index whose search is a query of the ids of docs of a type, so search stages can work on the ids before the docs
+ * are read (see SearchOperations.search)
+ */
+interface RowIndex extends Index {
+    /**
+     * the initiated query, doc ids at [1] as SearchOperations.pullIDResultSet expects
+     */
+    RowProcessor searchRows(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria)
+
+    DocType getDocType()
+}
+
 interface SearchFilter {
     boolean isFiltered(CommandExecServices svcs, OperationContext opctx, Detail detail, Map currentDocument)
 }
 
+/**
+ * a SearchFilter decided by attributes that are FixedAttr columns of the doc type, which a search applies to the e_ row
+ * of a doc before reading the doc (see FixedColumnPrefilter)
+ */
+interface FixedColumnFilter extends SearchFilter {
+    List<String> getFilterAttrs()
+
+    /**
+     * @param values text values of the filter attributes' columns
+     */
+    boolean isRowFiltered(Map<String, String> values)
+}
+
+/**
+ * filters out the documents without the attribute value (compared as text)
+ */
 @CompileStatic
-class SimpleHasValueManualIndex {
+class AttrValueFilter implements FixedColumnFilter {
+    String attr
+    Object value
+
+    boolean isFiltered(CommandExecServices svcs, OperationContext opctx, Detail detail, Map currentDocument) {
+        Object docValue = currentDocument[attr]
+        return docValue == null || docValue.toString() != value?.toString()
+    }
+
+    List<String> getFilterAttrs() {
+        [attr]
+    }
+
+    boolean isRowFiltered(Map<String, String> values) {
+        String columnValue = values[attr]
+        return columnValue == null || columnValue != value?.toString()
+    }
+}
+
+@CompileStatic
+class SimpleHasValueManualIndex implements RowIndex {
     String name
     String i1, i2, i3
+    DocType docType
 
     Iterator<Map> searchIndex(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria) {
+        Iterator<Map> iterator = SearchOperations.pullIDResultSet(svcs, opctx, detail, searchRows(svcs, opctx, detail, lookupCriteria))
+        return iterator
+    }
+
+    RowProcessor searchRows(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria) {
         IndexTableRP rp = new IndexTableRP(i1: i1, i2: i2, i3: i3, k1: lookupCriteria[0].toString())
         rp.initiateQuery(svcs, opctx, detail)
-        Iterator<Map> iterator = SearchOperations.pullIDResultSet(svcs, opctx, detail, rp)
-        return iterator
+        return rp
     }
 }
 
-// this should typically be on the e_ table and indexing a FixedAttr
+/**
+ * Cassandra maintained index of the FixedAttr column of an attribute, so unlike a ManualIndex it costs no i/r table
+ * writes when the attribute changes. lookupCriteria is [value], the docs are paged in and hydrated concurrently by
+ * SearchOperations.pullIDResultSet.
+ */
 @CompileStatic
-class SecondaryIndex {
+abstract class ColumnIndex implements RowIndex {
     String name
     String dbname
     String table
     String column
     String columnType
+    String typeSuffix
+    String attr
+    DocType docType
+
+    abstract String getKind()
+
+    abstract String createCql()
+
+    /**
+     * estimated cost, in rows read, of a lookup matching this many docs
+     */
+    abstract double cost(CommandExecServices svcs, double matches)
+
+    abstract CassandraPagedRowProcessor lookup(Object columnValue)
 
     Iterator<Map> searchIndex(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria) {
+        return SearchOperations.pullIDResultSet(svcs, opctx, detail, searchRows(svcs, opctx, detail, lookupCriteria))
+    }
+
+    RowProcessor searchRows(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria) {
+        CassandraPagedRowProcessor rp = lookup(bindValue(lookupCriteria[0]))
+        rp.initiateQuery(svcs, opctx, detail)
+        return rp
+    }
+
+    /**
+     * a criteria value as the column's type, converted like attribute values written to the column
+     */
+    Object bindValue(Object value) {
+        value instanceof String || value == null ? CreateOperations.fixedColValue(columnType, (String) value) : value
+    }
+
+    /**
+     * the stored definition, see IndexConfigurationService.columnIndex
+     */
+    Map getDefinition() {
+        [kind: kind, name: name, typeSuffix: typeSuffix, attr: attr]
     }
 }
 
+/**
+ * Cassandra secondary index (named si_<name>) on the column of the e_ table. A lookup queries every node, but writes
+ * only update the node local index.
+ */
 @CompileStatic
-class MaterializedViewIndex {
-    String name
-    String dbname
-    String table
-    String column
-    String columnType
+class SecondaryIndex extends ColumnIndex {
+    // rows-read equivalent of the work each node does for a secondary index query
+    static final double NODE_COST = 100
 
-    Iterator<Map> searchIndex(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria) {
+    String getKind() {
+        IndexTypes.SECONDARY
+    }
+
+    String createCql() {
+        CassandraSchemaUtil.createSecondaryIndex(dbname, "si_${name}", table, column)
+    }
+
+    double cost(CommandExecServices svcs, double matches) {
+        matches + NODE_COST * svcs.driver.session.cluster.metadata.allHosts.size()
+    }
+
+    CassandraPagedRowProcessor lookup(Object columnValue) {
+        new EntityTableSecondaryIndexRP(table: table, column: column, columnType: columnType, columnValue: columnValue)
+    }
+}
+
+/**
+ * Materialized view (named mv_<name>) of the e_ table partitioned by the column. A lookup reads one partition, writes
+ * of the column are also applied to the view.
+ */
+@CompileStatic
+class MaterializedViewIndex extends ColumnIndex {
+    // rows-read equivalent of the partition read
+    static final double READ_COST = 1
+
+    String getKind() {
+        IndexTypes.MATERIALIZED_VIEW
+    }
+
+    String createCql() {
+        CassandraSchemaUtil.createMaterializedView(dbname, "mv_${name}", table, column)
+    }
+
+    double cost(CommandExecServices svcs, double matches) {
+        matches + READ_COST
+    }
+
+    CassandraPagedRowProcessor lookup(Object columnValue) {
+        new MaterializedViewRP(view: "mv_${name}", column: column, columnValue: columnValue)
+    }
+}
+
+@CompileStatic
+class IndexSelection {
+    ColumnIndex index
+    String attr
+    Object value
+    double cost
+}
+
+/**
+ * Value frequencies of a column in a sample of rows of its table, read from a random token onwards, and an estimate of
+ * the table's rows.
+ */
+@CompileStatic
+@Log
+class ColumnStats {
+    long sampledAt
+    int sampled
+    long tableRows
+    Map<String, Integer> counts = [:]
+
+    /**
+     * estimated docs with the value: its sampled frequency, values not in the sample are taken to be rarer than one in
+     * the sample
+     */
+    double estimatedMatches(Object value) {
+        if (sampled == 0) {
+            return 0
+        }
+        Integer seen = counts[value.toString()]
+        double fraction = seen != null ? seen / (double) sampled : 1.0d / (sampled + 1)
+        return fraction * tableRows
+    }
+
+    static ColumnStats sample(CommandExecServices svcs, OperationContext opctx, Detail detail, String table, String column, int sampleRows) {
+        String space = opctx.space
+        Long start = ThreadLocalRandom.current().nextLong()
+        List<Object[]> rows = svcs.query(opctx, detail, "SELECT ${column} FROM ${space}.${table} WHERE token(e) > ? LIMIT ${sampleRows}".toString(), [start] as Object[])
+        if (rows.size() < sampleRows) {
+            rows.addAll(svcs.query(opctx, detail, "SELECT ${column} FROM ${space}.${table} WHERE token(e) <= ? LIMIT ${sampleRows - rows.size()}".toString(), [start] as Object[]))
+        }
+        ColumnStats stats = new ColumnStats(sampledAt: System.currentTimeMillis(), sampled: rows.size())
+        for (Object[] row : rows) {
+            if (row[0] != null) {
+                String value = row[0].toString()
+                Integer count = stats.counts[value]
+                stats.counts[value] = count == null ? 1 : count + 1
+            }
+        }
+        // a short sample is the whole table
+        stats.tableRows = rows.size() < sampleRows ? rows.size() : Math.max(rows.size(), estimateRows(svcs, opctx, detail, table))
+        log.dbg("$space.$table.$column stats: ${stats.sampled} sampled, ${stats.counts.size()} values, ~${stats.tableRows} rows", null)
+        return stats
+    }
+
+    /**
+     * partitions of the table from the size estimates of the connected node, times the nodes in the cluster (which
+     * overcounts by the replication factor: the costs are only compared with each other)
+     */
+    static long estimateRows(CommandExecServices svcs, OperationContext opctx, Detail detail, String table) {
+        try {
+            List<Object[]> ranges = svcs.query(opctx, detail, 'SELECT partitions_count FROM system.size_estimates WHERE keyspace_name = ? AND table_name = ?', [opctx.space, table] as Object[])
+            long partitions = 0
+            for (Object[] range : ranges) {
+                partitions += range[0] == null ? 0L : Long.parseLong(range[0].toString())
+            }
+            return partitions * svcs.driver.session.cluster.metadata.allHosts.size()
+        } catch (Exception e) {
+            log.dbg("no size estimates for ${opctx.space}.$table", e)
+            return 0
+        }
     }
 }
 
@@ -1,15 +1,25 @@
 package cassdoc
 
 import groovy.transform.CompileStatic
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.function.BiConsumer
+import java.util.function.Function
+import java.util.function.Supplier
+
 import cassdoc.commands.mutate.MutationCmd
 import cassdoc.exceptions.PersistenceConflictException
+import cassdoc.operations.ChildDocPrefetcher
 import cassdoc.exceptions.UnexpectedPersistenceStateException
 
+import com.codahale.metrics.Timer
 import com.datastax.driver.core.ResultSet
 import com.datastax.driver.core.Row
 
 import cwdrg.lg.annotation.Log
 import cwdrg.util.json.JSONUtil
+import drv.cassdriver.GroupCommit
 import drv.cassdriver.St
 
 
@@ -17,6 +27,11 @@ import drv.cassdriver.St
 @CompileStatic
 class OperationContext {
 
+    /**
+     * prefix for batch keys of clear commands: those use operationClearTimestamp, and a batch has a single timestamp
+     */
+    static final String CLEAR_BATCH_PREFIX = "C"
+
     String database
     String space
 
@@ -30,7 +45,8 @@ class OperationContext {
 
     boolean cqlTraceEnabled = false
 
-    void setCqlTraceEnabled(boolean val) { if (val) cqlTrace = []; cqlTraceEnabled = val }
+    // synchronized: prefetch threads trace their reads too
+    void setCqlTraceEnabled(boolean val) { if (val) cqlTrace = Collections.synchronizedList([]); cqlTraceEnabled = val }
     List<Object[]> cqlTrace = null
 
     String readConsistency = "LOCAL_QUORUM"
@@ -41,6 +57,43 @@ class OperationContext {
 
     String[] paxosGatekeeperUpdateID = null // P|R|E + docUUID
 
+    /**
+     * child doc fetches in flight for the root document being retrieved, null when not retrieving
+     */
+    ChildDocPrefetcher childDocPrefetcher = null
+
+    /**
+     * new doc ids are taken from blocks of this many time UUIDs: bulk ingest sets it above 1 so the shared id
+     * generator is touched once per block rather than once per doc
+     */
+    int idBlockSize = 1
+    private TimeUUIDBlock idBlock = null
+
+    /**
+     * a new doc id with the type suffix
+     */
+    String newDocUUID(String suffix) {
+        if (idBlockSize <= 1) {
+            return IDUtil.timeUUID(suffix)
+        }
+        if (idBlock == null || !idBlock.hasNext()) {
+            idBlock = IDUtil.timeUUIDBlock(idBlockSize)
+        }
+        return idBlock.next(suffix)
+    }
+
+    /**
+     * context for reads done on another thread on behalf of this one (a background result stream): same space,
+     * consistency and identity, its own retrieval state. cqlTrace is shared.
+     */
+    OperationContext forkForRead() {
+        OperationContext fork = new OperationContext(database: database, space: space, readConsistency: readConsistency,
+                writeConsistency: writeConsistency, name: name, security: security, traceLevel: traceLevel)
+        fork.cqlTraceEnabled = cqlTraceEnabled
+        fork.cqlTrace = cqlTrace
+        return fork
+    }
+
     List<MutationCmd> commands = []
     Set deletedIds = [] as Set
     Set deletedIdAttrs = [] as Set
@@ -48,6 +101,9 @@ class OperationContext {
     Map<String, List<MutationCmd>> batches
     List<MutationCmd> batchLeftovers
 
+    // actions waiting for the pending commands to be written, see afterWrite
+    List<Supplier<CompletableFuture<Void>>> writtenActions = []
+
     Long operationTimestamp = new Date().time * 1000 // Microseconds ??
     Long operationClearTimestamp = operationTimestamp - 1000
     // -- remember the timestamp -1 clear trick
@@ -57,7 +113,7 @@ class OperationContext {
     //UUID clearUUID // ?different UUID for clears?
 
 
-    String executionMode = "immediate"  // immediate async, immediate sync, batch/spray async/sync
+    String executionMode = "immediate"  // immediate, batch, async (non-blocking spray), stream (batch flushed per unit), group (group commit), anything else is sync spray
     boolean updateAsyncMode  // sync vs async version of executionMode... ?may be influenced by detail?
 
     void setExecutionMode(String mode) {
@@ -76,7 +132,10 @@ class OperationContext {
         if (executionMode == "immediate") {
             log.dbg("EXEC IMMEDIATE: " + JSONUtil.serialize(cmd), null)
             cmd.execMutationCassandra(svcs, this, detail)
+            svcs.docCache?.invalidate(space, cmd.docUUID)
         } else {
+            // dropped now so nothing stale is served while the command is pending, and again once DO has written
+            svcs.docCache?.invalidate(space, cmd.docUUID)
             if (cmd.optimize(svcs, this, detail)) {
                 commands.add(cmd)
             } else {
@@ -85,15 +144,80 @@ class OperationContext {
         }
     }
 
+    /**
+     * Run an action once the commands added so far are written: right away in immediate mode, where they already are,
+     * otherwise when the DO (or stream flush) sending them succeeds. It isn't run if they fail. DO and the futures of
+     * DOAsync, DOGroup and flush complete when the action's future does.
+     *
+     * The action is run on whatever thread completes the writes, so it should only send statements already prepared.
+     */
+    void afterWrite(Supplier<CompletableFuture<Void>> action) {
+        if (executionMode == "immediate") {
+            await(action.get())
+        } else {
+            writtenActions.add(action)
+        }
+    }
+
+    private List<Supplier<CompletableFuture<Void>>> takeWrittenActions() {
+        List<Supplier<CompletableFuture<Void>>> actions = writtenActions
+        writtenActions = []
+        return actions
+    }
+
+    private static CompletableFuture<Void> runWrittenActions(List<Supplier<CompletableFuture<Void>>> actions) {
+        if (actions.isEmpty()) {
+            return CompletableFuture.completedFuture((Void) null)
+        }
+        List<CompletableFuture<Void>> running = []
+        for (Supplier<CompletableFuture<Void>> action : actions) {
+            running.add(action.get())
+        }
+        return CompletableFuture.allOf(running.toArray(new CompletableFuture[running.size()]))
+    }
+
     void setExecutionModeToImmediate() { executionMode = "immediate" }
 
     void setExecutionModeToBatch() { executionMode = "batch" }
 
+    void setExecutionModeToAsync() { executionMode = "async" }
+
+    void setExecutionModeToStream() { executionMode = "stream" }
+
+    void setExecutionModeToGroup() { executionMode = "group" }
+
+    /**
+     * commands are collected and need a DO() (or flush() in stream mode) to be executed
+     */
+    boolean getDeferred() {
+        executionMode == "batch" || executionMode == "async" || executionMode == "stream" || executionMode == "group"
+    }
+
     void DO(CommandExecServices svcs, Detail detail) {
+        List<MutationCmd> sent = new ArrayList<>(commands)
+        List<Supplier<CompletableFuture<Void>>> actions = takeWrittenActions()
+        Timer.Context timer = svcs.metrics.startDO(executionMode, sent.size())
+        try {
+            execCommands(svcs, detail)
+            await(runWrittenActions(actions))
+        } finally {
+            timer.stop()
+            invalidateCached(svcs, sent)
+        }
+    }
+
+    private void execCommands(CommandExecServices svcs, Detail detail) {
         // TODO: optimize: batches, elimination of unneeded smaller ops if there is an overarching DELETE
         // TODO: PAXOS ops are gateway-checked, then other attendant updates to rel and idx tables can be done, subents, etc
         if (executionMode != "immediate") {
-            if (executionMode == "batch") {
+            if (executionMode == "async") {
+                await(DOAsync(svcs, detail))
+            } else if (executionMode == "group") {
+                await(DOGroup(svcs, detail))
+            } else if (executionMode == "batch" || executionMode == "stream") {
+                if (batches == null) {
+                    batchInit()
+                }
                 commands.each { it.batch(this) }
                 if (paxosGatekeeperUpdateID != null) {
                     String paxosBatchID = paxosGatekeeperUpdateID[0] + paxosGatekeeperUpdateID[1]
@@ -120,7 +244,7 @@ class OperationContext {
                             null,
                             detail.writeConsistency,
                             operationTimestamp] as Object[])
-                    ResultSet paxosResultSet = svcs.driver.executeSyncStatementBatch(paxosBatch, detail.writeConsistency, operationTimestamp)
+                    ResultSet paxosResultSet = svcs.driver.executeSyncStatementBatch(paxosBatch, detail.resolveWriteConsistency(detail, this), operationTimestamp)
                     if (paxosResultSet == null) {
                         // that's a problem
                         throw log.err("", new UnexpectedPersistenceStateException("Paxos BATCH update return result is null " + JSONUtil.serialize(paxosBatch)))
@@ -135,41 +259,9 @@ class OperationContext {
                     }
                     // if that is successful (how would we know)? execute the other batches
                 }
-                batches.values().each { List<MutationCmd> batchCmds ->
-                    List stmtBatch = new ArrayList<>(batchCmds.size())
-                    // prepare the stmts
-                    if (cqlTraceEnabled) cqlTrace.add([
-                            "BEGIN BATCH",
-                            null,
-                            detail.writeConsistency,
-                            operationTimestamp] as Object[])
-                    batchCmds.eachWithIndex { MutationCmd cmd, int i ->
-                        St bst = (St) batchCmds[i].execMutationCassandra(svcs, this, detail)
-                        if (cqlTraceEnabled) cqlTrace.add([
-                                bst.cql,
-                                bst.cqlargs,
-                                detail.writeConsistency,
-                                operationTimestamp] as Object[])
-                        stmtBatch[i] = bst
-                    }
-                    if (cqlTraceEnabled) cqlTrace.add([
-                            "END BATCH",
-                            null,
-                            detail.writeConsistency,
-                            operationTimestamp] as Object[])
-                    svcs.driver.executeSyncStatementBatch(stmtBatch, detail.writeConsistency, operationTimestamp)
-                }
-                batchLeftovers.each { MutationCmd cmd ->
-                    if (cmd != null) {
-                        St stmt = (St) cmd.execMutationCassandra(svcs, this, detail)
-                        if (cqlTraceEnabled) cqlTrace.add([
-                                stmt.cql,
-                                stmt.cqlargs,
-                                detail.writeConsistency,
-                                cmd.clearCmd ? operationClearTimestamp : operationTimestamp] as Object[])
-                        svcs.driver.executeSyncStatement(stmt)
-                    }
-                }
+                // send the partition batches and the leftovers concurrently
+                List<St> sends = prepareBatchSends(svcs, detail)
+                await(svcs.driver.executeStatementsFuture(sends))
             } else {
                 // we assume "spray" TODO: async
                 if (paxosGatekeeperUpdateID != null) {
@@ -221,4 +313,222 @@ class OperationContext {
             }
         }
     }
+
+    /**
+     * every batch (other than a paxos gatekeeper batch already removed) holds a single partition: prepare them as
+     * size-capped unlogged batches, together with the unbatchable leftovers, to be sent concurrently
+     *
+     * @param svcs
+     * @param detail
+     * @return
+     */
+    private List<St> prepareBatchSends(CommandExecServices svcs, Detail detail) {
+        List<St> sends = []
+        batches.each { String batchKey, List<MutationCmd> batchCmds ->
+            Long batchTimestamp = batchKey.startsWith(CLEAR_BATCH_PREFIX) ? operationClearTimestamp : operationTimestamp
+            List<St> partitionStmts = new ArrayList<>(batchCmds.size())
+            if (cqlTraceEnabled) cqlTrace.add([
+                    "BEGIN UNLOGGED BATCH",
+                    null,
+                    detail.writeConsistency,
+                    batchTimestamp] as Object[])
+            for (MutationCmd cmd : batchCmds) {
+                St bst = (St) cmd.execMutationCassandra(svcs, this, detail)
+                if (cqlTraceEnabled) cqlTrace.add([
+                        bst.cql,
+                        bst.cqlargs,
+                        detail.writeConsistency,
+                        batchTimestamp] as Object[])
+                partitionStmts.add(bst)
+            }
+            if (cqlTraceEnabled) cqlTrace.add([
+                    "END BATCH",
+                    null,
+                    detail.writeConsistency,
+                    batchTimestamp] as Object[])
+            sends.addAll(svcs.driver.prepareUnloggedBatches(partitionStmts, detail.resolveWriteConsistency(detail, this), batchTimestamp))
+        }
+        batchLeftovers.each { MutationCmd cmd ->
+            if (cmd != null) {
+                St stmt = (St) cmd.execMutationCassandra(svcs, this, detail)
+                if (cqlTraceEnabled) cqlTrace.add([
+                        stmt.cql,
+                        stmt.cqlargs,
+                        detail.writeConsistency,
+                        cmd.clearCmd ? operationClearTimestamp : operationTimestamp] as Object[])
+                sends.add(stmt)
+            }
+        }
+        return sends
+    }
+
+    /**
+     * Stream mode: send the commands collected so far (e.g. those of one parsed document) as one unit, batched per
+     * partition like batch mode, without waiting for them. The commands are cleared so the caller can go on collecting
+     * the next unit. No paxos gatekeeper is supported.
+     *
+     * @param svcs
+     * @param detail
+     * @return completes when the unit's mutations are acknowledged
+     */
+    CompletableFuture<Void> flush(CommandExecServices svcs, Detail detail) {
+        final List<MutationCmd> sent = commands
+        commands = []
+        batchInit()
+        for (MutationCmd cmd : sent) {
+            cmd.batch(this)
+        }
+        List<St> sends = prepareBatchSends(svcs, detail)
+        batchInit()
+        final List<Supplier<CompletableFuture<Void>>> actions = takeWrittenActions()
+        return svcs.driver.executeStatementsFuture(sends)
+                .whenComplete({ Void v, Throwable t -> invalidateCached(svcs, sent) } as BiConsumer<Void, Throwable>)
+                .thenCompose({ Void v -> runWrittenActions(actions) } as Function<Void, CompletableFuture<Void>>)
+    }
+
+    /**
+     * Non-blocking spray: the PAXOS gatekeeper statement (if any) is sent first, and only if it applied are the
+     * remaining statements sent, all concurrently within the driver's in-flight window. The request thread is not
+     * blocked on any cassandra round trip.
+     *
+     * Statement ordering among the remaining commands is not needed: clear commands carry operationClearTimestamp
+     * and everything else operationTimestamp, so cassandra resolves them the same regardless of arrival order.
+     *
+     * @param svcs
+     * @param detail
+     * @return completes when all mutations are acknowledged, exceptionally with PersistenceConflictException if the gatekeeper did not apply
+     */
+    CompletableFuture<Void> DOAsync(CommandExecServices svcs, Detail detail) {
+        St paxosStmt = null
+        List<St> stmts = new ArrayList<>(commands.size())
+        for (MutationCmd cmd : commands) {
+            if (cmd == null) {
+                continue
+            }
+            St stmt = (St) cmd.execMutationCassandra(svcs, this, detail)
+            if (cqlTraceEnabled) cqlTrace.add([
+                    stmt.cql,
+                    stmt.cqlargs,
+                    detail.writeConsistency,
+                    cmd.clearCmd ? operationClearTimestamp : operationTimestamp] as Object[])
+            if (paxosStmt == null && paxosGatekeeperUpdateID != null && cmd.paxosId != null && cmd.paxosId == paxosGatekeeperUpdateID) {
+                log.dbg("MODE: async PAXOS id found", null)
+                paxosStmt = stmt
+            } else {
+                stmts.add(stmt)
+            }
+        }
+        final List<MutationCmd> sent = commands
+        commands = []
+        final List<Supplier<CompletableFuture<Void>>> actions = takeWrittenActions()
+
+        CompletableFuture<Void> completion
+        if (paxosStmt == null) {
+            completion = svcs.driver.executeStatementsFuture(stmts)
+        } else {
+            final St gatekeeper = paxosStmt
+            completion = svcs.driver.executeStatementFuture(gatekeeper).thenCompose({ ResultSet paxosResultSet ->
+                checkPaxosResult(paxosResultSet, gatekeeper)
+                return svcs.driver.executeStatementsFuture(stmts)
+            } as Function<ResultSet, CompletableFuture<Void>>)
+        }
+        return completion.whenComplete({ Void v, Throwable t -> invalidateCached(svcs, sent) } as BiConsumer<Void, Throwable>)
+                .thenCompose({ Void v -> runWrittenActions(actions) } as Function<Void, CompletableFuture<Void>>)
+    }
+
+    /**
+     * Group commit: the commands are batched per partition as in batch mode, but the partition batches are handed to
+     * the services' GroupCommit, which merges them with those of other requests to the same partitions for a short
+     * window and sends one unlogged batch per partition. The statements keep this context's timestamps.
+     *
+     * Without a GroupCommit (cassdoc.groupCommitWindowMillis not set), or with a PAXOS gatekeeper, this is DOAsync.
+     * Unbatchable leftovers are sent right away.
+     *
+     * @param svcs
+     * @param detail
+     * @return completes when all mutations are acknowledged
+     */
+    CompletableFuture<Void> DOGroup(CommandExecServices svcs, Detail detail) {
+        GroupCommit groupCommit = svcs.groupCommit
+        if (groupCommit == null || paxosGatekeeperUpdateID != null) {
+            return DOAsync(svcs, detail)
+        }
+        final List<MutationCmd> sent = commands
+        commands = []
+        final List<Supplier<CompletableFuture<Void>>> actions = takeWrittenActions()
+        batchInit()
+        for (MutationCmd cmd : sent) {
+            if (cmd != null) {
+                cmd.batch(this)
+            }
+        }
+        String consistency = detail.resolveWriteConsistency(detail, this)
+        List<CompletableFuture<Void>> landed = []
+        batches.each { String batchKey, List<MutationCmd> batchCmds ->
+            // clear batches are the same partition, their statements just carry the clear timestamp
+            boolean clear = batchKey.startsWith(CLEAR_BATCH_PREFIX)
+            String partition = clear ? batchKey.substring(CLEAR_BATCH_PREFIX.length()) : batchKey
+            Long batchTimestamp = clear ? operationClearTimestamp : operationTimestamp
+            List<St> partitionStmts = new ArrayList<>(batchCmds.size())
+            for (MutationCmd cmd : batchCmds) {
+                St bst = (St) cmd.execMutationCassandra(svcs, this, detail)
+                if (cqlTraceEnabled) cqlTrace.add([
+                        bst.cql,
+                        bst.cqlargs,
+                        detail.writeConsistency,
+                        batchTimestamp] as Object[])
+                partitionStmts.add(bst)
+            }
+            landed.add(groupCommit.submit(space, partition, consistency, partitionStmts, batchTimestamp))
+        }
+        List<St> leftovers = []
+        for (MutationCmd cmd : batchLeftovers) {
+            St stmt = (St) cmd.execMutationCassandra(svcs, this, detail)
+            if (cqlTraceEnabled) cqlTrace.add([
+                    stmt.cql,
+                    stmt.cqlargs,
+                    detail.writeConsistency,
+                    cmd.clearCmd ? operationClearTimestamp : operationTimestamp] as Object[])
+            leftovers.add(stmt)
+        }
+        batchInit()
+        landed.add(svcs.driver.executeStatementsFuture(leftovers))
+        return CompletableFuture.allOf(landed.toArray(new CompletableFuture[landed.size()]))
+                .whenComplete({ Void v, Throwable t -> invalidateCached(svcs, sent) } as BiConsumer<Void, Throwable>)
+                .thenCompose({ Void v -> runWrittenActions(actions) } as Function<Void, CompletableFuture<Void>>)
+    }
+
+    /**
+     * drop the cached reads of the documents the commands touched (also after failures, they may be partly applied)
+     */
+    private void invalidateCached(CommandExecServices svcs, List<MutationCmd> cmds) {
+        DocCache docCache = svcs.docCache
+        if (docCache != null) {
+            for (MutationCmd cmd : cmds) {
+                if (cmd != null) {
+                    docCache.invalidate(space, cmd.docUUID)
+                }
+            }
+        }
+    }
+
+    private static void await(CompletableFuture<Void> completion) {
+        try {
+            completion.join()
+        } catch (CompletionException ce) {
+            throw (ce.cause instanceof RuntimeException) ? (RuntimeException) ce.cause : ce
+        }
+    }
+
+    private void checkPaxosResult(ResultSet paxosResultSet, St stmt) {
+        if (paxosResultSet == null) {
+            throw log.err("", new UnexpectedPersistenceStateException("Paxos update return result is null " + JSONUtil.serialize(stmt)))
+        }
+        Row row = paxosResultSet.one()
+        Boolean paxosResult = row.getBool(0)
+        log.dbg("pax result: ${row.getColumnDefinitions().getName(0)} :: $paxosResult", null)
+        if (!paxosResult) {
+            throw log.err("", new PersistenceConflictException("Paxos update did not occure, indicated version conflict " + JSONUtil.serialize(stmt)))
+        }
+    }
 }
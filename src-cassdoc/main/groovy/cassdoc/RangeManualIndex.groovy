@@ -0,0 +1,178 @@
+package cassdoc
+
+import cassdoc.commands.mutate.ClrIdxVal
+import cassdoc.commands.mutate.InsIdxValOnly
+import cassdoc.commands.retrieve.BucketSliceRP
+import cassdoc.commands.retrieve.IndexSliceRP
+import cassdoc.commands.retrieve.RowProcessor
+import cassdoc.operations.SearchOperations
+import groovy.transform.CompileStatic
+
+import java.time.Instant
+import java.time.LocalDate
+import java.time.ZoneOffset
+
+/**
+ * Order preserving text encoding of index values, so that the text clustering columns of the i table sort them in
+ * value order.
+ */
+@CompileStatic
+class SortableValue {
+    static final String TYPE_STRING = 'string'
+    static final String TYPE_NUMBER = 'number'
+    static final String TYPE_TIME = 'time'
+
+    private static final int EXPONENT_BIAS = 5000
+
+    static String encode(Object value, String valueType) {
+        if (value == null) {
+            return null
+        }
+        switch (valueType ?: TYPE_STRING) {
+            case TYPE_NUMBER:
+                return encodeNumber(value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString()))
+            case TYPE_TIME:
+                return encodeNumber(BigDecimal.valueOf(millis(value)))
+            default:
+                return value.toString()
+        }
+    }
+
+    /**
+     * epoch millis of a number, Date, ISO-8601 instant or ISO date (midnight UTC)
+     */
+    static long millis(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue()
+        }
+        if (value instanceof Date) {
+            return ((Date) value).time
+        }
+        String text = value.toString()
+        if (text ==~ /-?\d+/) {
+            return Long.parseLong(text)
+        }
+        if (text.length() == 10) {
+            return LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli()
+        }
+        return Instant.parse(text).toEpochMilli()
+    }
+
+    /**
+     * '1' for zero; positives are '2', the biased exponent and the significant digits; negatives are '0', the
+     * complemented exponent and digits and a '~' terminator (which sorts after any digit, so -1 comes after -1.5)
+     */
+    static String encodeNumber(BigDecimal number) {
+        int sign = number.signum()
+        if (sign == 0) {
+            return '1'
+        }
+        BigDecimal abs = number.abs().stripTrailingZeros()
+        int exponent = abs.precision() - abs.scale() - 1
+        if (exponent <= -EXPONENT_BIAS || exponent >= EXPONENT_BIAS) {
+            throw new IllegalArgumentException("Number out of the indexable range: $number")
+        }
+        String digits = abs.unscaledValue().toString()
+        StringBuilder sb = new StringBuilder(digits.length() + 6)
+        if (sign > 0) {
+            sb.append('2').append(String.format('%04d', exponent + EXPONENT_BIAS)).append(digits)
+        } else {
+            sb.append('0').append(String.format('%04d', EXPONENT_BIAS - 1 - exponent))
+            for (int i = 0; i < digits.length(); i++) {
+                sb.append(Character.forDigit(9 - Character.digit(digits.charAt(i), 10), 10))
+            }
+            sb.append('~')
+        }
+        return sb.toString()
+    }
+}
+
+/**
+ * Range capable ManualIndex (IndexTypes.RANGE). Entries are i table rows partitioned by the index codes and a bucket
+ * (k1), with the SortableValue encoded value in v1 and the doc id in v2, so a range of values in a bucket is a slice.
+ *
+ * indexConfig:
+ * - valueType: string (default), number or time (epoch millis, ISO-8601 instant or date)
+ * - bucketMillis: time window buckets of that width, or else
+ * - prefixLength: buckets of the leading chars of the encoded value, 0 (default) for a single partition
+ * - parallelBuckets: bucket slices a search reads concurrently, default 8
+ *
+ * Each bucket written to is also recorded in a directory partition of the index (k3 = BUCKETS), which a search reads
+ * for the buckets overlapping its range. Buckets are contiguous ranges of the sorted values, so the sorted slices are
+ * merged by reading them in bucket order.
+ */
+@CompileStatic
+class RangeManualIndex implements RowIndex {
+    static final String BUCKETS = '@[BUCKETS]'
+
+    ManualIndex index
+
+    String getValueType() {
+        (String) index.indexConfig?.get('valueType') ?: SortableValue.TYPE_STRING
+    }
+
+    String encode(Object value) {
+        SortableValue.encode(value, valueType)
+    }
+
+    /**
+     * the bucket of a value, itself sortable
+     */
+    String bucket(String encoded, Object value) {
+        Object bucketMillis = index.indexConfig?.get('bucketMillis')
+        if (bucketMillis != null) {
+            long window = Math.floorDiv(SortableValue.millis(value), (bucketMillis as Long).longValue())
+            return SortableValue.encodeNumber(BigDecimal.valueOf(window))
+        }
+        int prefixLength = (index.indexConfig?.get('prefixLength') ?: 0) as Integer
+        return encoded.length() > prefixLength ? encoded.substring(0, prefixLength) : encoded
+    }
+
+    String code(int i) {
+        index.indexCodes.size() > i ? index.indexCodes[i] : ""
+    }
+
+    InsIdxValOnly entry(String bucket, String encoded, String docUUID) {
+        new InsIdxValOnly(i1: code(0), i2: code(1), i3: code(2), k1: bucket, v1: encoded, v2: docUUID)
+    }
+
+    InsIdxValOnly directoryEntry(String bucket) {
+        new InsIdxValOnly(i1: code(0), i2: code(1), i3: code(2), k3: BUCKETS, v1: bucket)
+    }
+
+    ClrIdxVal clearEntry(String bucket, String encoded, String docUUID) {
+        new ClrIdxVal(i1: code(0), i2: code(1), i3: code(2), k1: bucket ?: "", v1: encoded ?: "", v2: docUUID)
+    }
+
+    DocType getDocType() {
+        index.docType
+    }
+
+    /**
+     * docs with values from lookupCriteria[0] (inclusive) to lookupCriteria[1] (exclusive), either may be null for an
+     * open range, in value order
+     */
+    Iterator<Map> searchIndex(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria) {
+        return SearchOperations.pullIDResultSet(svcs, opctx, detail, searchRows(svcs, opctx, detail, lookupCriteria))
+    }
+
+    RowProcessor searchRows(CommandExecServices svcs, OperationContext opctx, Detail detail, List lookupCriteria) {
+        Object from = lookupCriteria?.size() > 0 ? lookupCriteria[0] : null
+        Object to = lookupCriteria?.size() > 1 ? lookupCriteria[1] : null
+        String lo = encode(from)
+        String hi = encode(to)
+
+        IndexSliceRP directory = new IndexSliceRP(i1: code(0), i2: code(1), i3: code(2), k3: BUCKETS,
+                from: lo == null ? null : bucket(lo, from), to: hi == null ? null : bucket(hi, to), toInclusive: true)
+        directory.initiateQuery(svcs, opctx, detail)
+        List<IndexSliceRP> slices = []
+        Object[] row
+        while ((row = directory.nextRow()) != null) {
+            slices.add(new IndexSliceRP(i1: code(0), i2: code(1), i3: code(2), k1: (String) row[0], from: lo, to: hi))
+        }
+
+        BucketSliceRP rp = new BucketSliceRP(slices: slices, parallel: (index.indexConfig?.get('parallelBuckets') ?: 8) as Integer)
+        rp.initiateQuery(svcs, opctx, detail)
+        return rp
+    }
+}
@@ -0,0 +1,96 @@
+package cassdoc
+
+import groovy.transform.CompileStatic
+
+/**
+ * The doc types and indexes of all collections as loaded from cassdoc_system_schema, with the per-type CQL. Published
+ * by CommandExecServices as a whole and never modified afterwards: a schema change publishes a new snapshot, so
+ * readers take the current one without locking and see a consistent schema for as long as they hold it.
+ */
+@CompileStatic
+final class SchemaSnapshot {
+
+    /**
+     * cassdoc_system_schema.version when the snapshot was loaded, null if the table was empty
+     */
+    final String version
+
+    final Map<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> collections
+
+    private final Map<String, Map<String, TypeCql>> cql
+
+    SchemaSnapshot(String version, Map<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> collections) {
+        this.version = version
+        this.collections = Collections.unmodifiableMap(new LinkedHashMap<>(collections))
+        Map<String, Map<String, TypeCql>> cql = [:]
+        for (Map.Entry<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> collection : collections.entrySet()) {
+            Map<String, TypeCql> typeCql = [:]
+            for (DocType type : collection.value.first.typeList) {
+                typeCql[type.suffix] = new TypeCql(collection.key, type.suffix, AttrStorage.binaryColumn(type))
+            }
+            cql[collection.key] = typeCql
+        }
+        this.cql = cql
+    }
+
+    TypeConfigurationService types(String space) {
+        collections.get(space)?.first
+    }
+
+    IndexConfigurationService indexes(String space) {
+        collections.get(space)?.second
+    }
+
+    DocType docType(String space, String suffix) {
+        collections.get(space)?.first?.getTypeForSuffix(suffix)
+    }
+
+    /**
+     * the statements of a doc type, made up on the spot for a type the snapshot doesn't know
+     */
+    TypeCql typeCql(String space, String suffix) {
+        TypeCql typeCql = cql.get(space)?.get(suffix)
+        return typeCql != null ? typeCql : new TypeCql(space, suffix, false)
+    }
+
+    /**
+     * a copy with the collection's types and indexes replaced (or added), of the same version
+     */
+    SchemaSnapshot withCollection(String space, TypeConfigurationService types, IndexConfigurationService indexes) {
+        Map<String, Tuple2<TypeConfigurationService, IndexConfigurationService>> changed = new LinkedHashMap<>(collections)
+        changed[space] = new Tuple2<>(types, indexes)
+        return new SchemaSnapshot(version, changed)
+    }
+}
+
+/**
+ * The fixed CQL of a doc type's e_ and p_ tables, built once per schema snapshot rather than per command. The
+ * attribute statements include the b column if the p_ table has it (see AttrStorage).
+ */
+@CompileStatic
+final class TypeCql {
+    final String entityTable
+    final String attrTable
+
+    final String selectDocExists
+    final String selectAttrs
+    final String insertDoc
+    final String insertAttr
+    final String deleteDoc_E
+    final String deleteDoc_P
+    final String deleteAttr
+
+    TypeCql(String space, String suffix, boolean binaryColumn) {
+        entityTable = space + '.e_' + suffix
+        attrTable = space + '.p_' + suffix
+        selectDocExists = 'SELECT token(e), zv from ' + entityTable + ' WHERE e = ?'
+        selectAttrs = 'SELECT e,p,d,t,zv' + (binaryColumn ? ',b' : '') + ' FROM ' + attrTable + ' WHERE e = ?'
+        insertDoc = 'INSERT INTO ' + entityTable + ' (e,zv,a0) VALUES (?,?,?)'
+        insertAttr = binaryColumn ?
+                'INSERT INTO ' + attrTable + ' (e,p,zv,d,b,t) VALUES (?,?,?,?,?,?)' :
+                'INSERT INTO ' + attrTable + ' (e,p,zv,d,t) VALUES (?,?,?,?,?)'
+        deleteDoc_E = 'DELETE FROM ' + entityTable + ' WHERE e = ?'
+        deleteDoc_P = 'DELETE FROM ' + attrTable + ' WHERE e = ?'
+        deleteAttr = 'DELETE FROM ' + attrTable + ' WHERE e = ? and p = ?'
+    }
+}
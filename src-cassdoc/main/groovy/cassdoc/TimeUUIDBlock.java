@@ -0,0 +1,56 @@
+package cassdoc;
+
+import java.util.UUID;
+
+/**
+ * Type 1 UUIDs of consecutive timestamps reserved together by UUIDGen.getTimeUUIDBlock, handed out in order. For a
+ * single thread (an ingest stream): it isn't thread safe.
+ */
+public class TimeUUIDBlock {
+
+    private final long firstNanos;
+    private final int count;
+    private final long clockSeqAndNode;
+    private int next = 0;
+
+    TimeUUIDBlock(long firstNanos, int count, long clockSeqAndNode) {
+        this.firstNanos = firstNanos;
+        this.count = count;
+        this.clockSeqAndNode = clockSeqAndNode;
+    }
+
+    public boolean hasNext() {
+        return next < count;
+    }
+
+    public int remaining() {
+        return count - next;
+    }
+
+    private long nextTime() {
+        if (next >= count)
+            throw new IllegalStateException("UUID block of " + count + " used up");
+        return UUIDGen.timeBits(firstNanos + next++);
+    }
+
+    public UUID nextUUID() {
+        return new UUID(nextTime(), clockSeqAndNode);
+    }
+
+    public String next() {
+        char[] chars = new char[36];
+        UUIDGen.format(nextTime(), clockSeqAndNode, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * the next UUID with a -suffix, as a doc id
+     */
+    public String next(String suffix) {
+        char[] chars = new char[37 + suffix.length()];
+        UUIDGen.format(nextTime(), clockSeqAndNode, chars, 0);
+        chars[36] = '-';
+        suffix.getChars(0, suffix.length(), chars, 37);
+        return new String(chars);
+    }
+}
@@ -31,6 +31,11 @@ class DocType {
     Map<String, Set<ManualIndex>> attrIndexMap = [:]
     Object aliasPolicy
     Object generalAttributePolicy
+    // storage of array/object attribute values (see AttrStorage): null is json text in a p_ table without the b
+    // column, json is text with the b column, smile or cbor store new values binary in b
+    String attrFormat
+    // binary values of at least this many bytes are LZ4 compressed, null for never
+    Integer attrCompressBytes
 
     // virtual init attr for fixed Attrs
     List<FixedAttr> getFixedAttrList() {
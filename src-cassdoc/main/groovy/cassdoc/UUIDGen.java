@@ -13,6 +13,7 @@ import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 // swiped the implementations of TimeUUID from cassandra source
 
@@ -38,7 +39,10 @@ public class UUIDGen {
     // placement of this singleton is important. It needs to be instantiated *AFTER* the other statics.
     private static final UUIDGen instance = new UUIDGen();
 
-    private long lastNanos;
+    // the last 100ns tick handed out, ahead of the clock when more than 10k UUIDs a ms are created
+    private final AtomicLong lastNanos = new AtomicLong();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     private UUIDGen() {
         // make sure someone didn't whack the clockSeqAndNode by changing the order of instantiation.
@@ -55,6 +59,54 @@ public class UUIDGen {
         return new UUID(instance.createTimeSafe(), clockSeqAndNode);
     }
 
+    /**
+     * The string of a new type 1 UUID, formatted without the intermediate allocations of UUID.toString().
+     */
+    public static String getTimeUUIDString() {
+        char[] chars = new char[36];
+        format(instance.createTimeSafe(), clockSeqAndNode, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Reserves count consecutive timestamps in one atomic step, for creating that many type 1 UUIDs without going back
+     * to the shared counter. The UUIDs sort after all those created before the call.
+     */
+    public static TimeUUIDBlock getTimeUUIDBlock(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("UUID block of " + count);
+        return new TimeUUIDBlock(instance.reserveTimes(count), count, clockSeqAndNode);
+    }
+
+    /**
+     * the version 1 msb of a 100ns tick count since the gregorian epoch
+     */
+    static long timeBits(long nanosSince) {
+        return createTime(nanosSince);
+    }
+
+    /**
+     * writes the 36 char canonical form of a UUID into chars at offset
+     */
+    static void format(long msb, long lsb, char[] chars, int offset) {
+        hex(msb >>> 32, 8, chars, offset);
+        chars[offset + 8] = '-';
+        hex(msb >>> 16, 4, chars, offset + 9);
+        chars[offset + 13] = '-';
+        hex(msb, 4, chars, offset + 14);
+        chars[offset + 18] = '-';
+        hex(lsb >>> 48, 4, chars, offset + 19);
+        chars[offset + 23] = '-';
+        hex(lsb, 12, chars, offset + 24);
+    }
+
+    private static void hex(long value, int digits, char[] chars, int offset) {
+        for (int i = digits - 1; i >= 0; i--) {
+            chars[offset + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
     /**
      * Creates a type 1 UUID (time-based UUID) with the timestamp of @param when, in milliseconds.
      *
@@ -235,15 +287,24 @@ public class UUIDGen {
     }
 
     // needs to return two different values for the same when.
-    // we can generate at most 10k UUIDs per ms.
-    private synchronized long createTimeSafe() {
-        long nanosSince = (System.currentTimeMillis() - START_EPOCH) * 10000;
-        if (nanosSince > lastNanos)
-            lastNanos = nanosSince;
-        else
-            nanosSince = ++lastNanos;
+    // we can generate at most 10k UUIDs per ms before running ahead of the clock.
+    private long createTimeSafe() {
+        return createTime(reserveTimes(1));
+    }
 
-        return createTime(nanosSince);
+    /**
+     * Lock free: the counter is moved up to the clock with a single compare-and-set, which may lose to another thread
+     * moving it as far or further, and the ticks are then taken with an atomic add, which never retries. Every tick is
+     * handed out once, in increasing order.
+     *
+     * @return the first of count ticks
+     */
+    private long reserveTimes(int count) {
+        long floor = (System.currentTimeMillis() - START_EPOCH) * 10000 - 1;
+        long last = lastNanos.get();
+        if (floor > last)
+            lastNanos.compareAndSet(last, floor);
+        return lastNanos.getAndAdd(count) + 1;
     }
 
     /**
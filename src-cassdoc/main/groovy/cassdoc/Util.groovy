@@ -18,7 +18,22 @@ class IDUtil {
 
     // compress UUID with base64 or other base?
     // use timeuuid/uuid + type code compound key rather than a space-inefficient string?
-    static String timeUUID() { return new com.eaio.uuid.UUID().toString() }
+    static String timeUUID() { return UUIDGen.getTimeUUIDString() }
+
+    /**
+     * a new doc id: time UUID-suffix
+     */
+    static String timeUUID(String suffix) {
+        String uuid = UUIDGen.getTimeUUIDString()
+        return new StringBuilder(37 + suffix.length()).append(uuid).append('-').append(suffix).toString()
+    }
+
+    /**
+     * count time UUIDs reserved in one step, for bulk creation on one thread
+     */
+    static TimeUUIDBlock timeUUIDBlock(int count) { UUIDGen.getTimeUUIDBlock(count) }
+
+    static String timeUUIDEAIO() { return new com.eaio.uuid.UUID().toString() }
 
     static String randomUUID() { return UUID.randomUUID().toString() }
 
@@ -38,26 +53,75 @@ class IDUtil {
         return UUID.randomUUID()
     }
 
-    static String idSuffix(String docUUID) { StringUtils.substring(docUUID, sampleUUID.length() + 1) }
+    // the type suffixes seen by idSuffix, shared rather than cut out of every id. Copy on write, read without locking.
+    private static volatile String[] knownSuffixes = new String[0]
+    private static final int MAX_KNOWN_SUFFIXES = 64
+
+    static String idSuffix(String docUUID) {
+        if (docUUID == null) {
+            return null
+        }
+        int start = sampleUUID.length() + 1
+        int length = docUUID.length() - start
+        if (length <= 0) {
+            return ''
+        }
+        String[] known = knownSuffixes
+        for (String suffix : known) {
+            if (suffix.length() == length && docUUID.regionMatches(start, suffix, 0, length)) {
+                return suffix
+            }
+        }
+        return addSuffix(docUUID.substring(start))
+    }
+
+    private static synchronized String addSuffix(String suffix) {
+        String[] known = knownSuffixes
+        if (known.length < MAX_KNOWN_SUFFIXES && !known.contains(suffix)) {
+            String[] more = Arrays.copyOf(known, known.length + 1)
+            more[known.length] = suffix
+            knownSuffixes = more
+        }
+        return suffix
+    }
 
     static String uuidPrefix(String docUUID) { StringUtils.substring(docUUID, 0, sampleUUID.length()) }
 
-    static long extractUnixTimeFromEaioTimeUUID(String cupcakeIDIN) {
-        // magic sauce: http://stackoverflow.com/questions/13070674/get-the-unix-timestamp-from-type-1-uuid
-        String cupcakeID = cupcakeIDIN
+    /**
+     * batch grouping key for the i table partition (i1,i2,i3,k1,k2,k3)
+     */
+    static String idxPartitionKey(String i1, String i2, String i3, String k1, String k2, String k3) {
+        new StringBuilder().append(i1).append('\u0001').append(i2).append('\u0001').append(i3).append('\u0001')
+                .append(k1).append('\u0001').append(k2).append('\u0001').append(k3).toString()
+    }
 
-        // in case -PROD or other enttype suffixes are dangling
-        if (cupcakeID.length() > sampleUUID.length()) {
-            cupcakeID = cupcakeID.substring(0, sampleUUID.length())
+    static long extractUnixTimeFromEaioTimeUUID(String cupcakeID) {
+        // magic sauce: http://stackoverflow.com/questions/13070674/get-the-unix-timestamp-from-type-1-uuid
+        // read in place from the canonical form, so -PROD or other enttype suffixes can dangle:
+        // time_low-time_mid-version+time_hi-...
+        if (cupcakeID.length() < sampleUUID.length() || cupcakeID.charAt(8) != '-' as char || cupcakeID.charAt(13) != '-' as char) {
+            throw new IllegalArgumentException("not a UUID: " + cupcakeID)
         }
+        if (hexValue(cupcakeID, 14, 15) != 1L) {
+            throw new UnsupportedOperationException("Not a time-based UUID: " + cupcakeID)
+        }
+        long juuTime = (hexValue(cupcakeID, 15, 18) << 48) | (hexValue(cupcakeID, 9, 13) << 32) | hexValue(cupcakeID, 0, 8)
 
         // time uuid components are 100ths of seconds since adoption of the Gregorian Calendar...
         // so we need to convert to 1000ths of seconds since UNIX Epoch
-        UUID uuid = UUID.fromString(cupcakeID)
-        long juuTime = uuid.timestamp()
-        long time = (juuTime.intdiv(10000L)) + gregorianEpoch
+        return juuTime.intdiv(10000L) + gregorianEpoch
+    }
 
-        return time
+    private static long hexValue(String s, int from, int to) {
+        long value = 0
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(s.charAt(i), 16)
+            if (digit < 0) {
+                throw new IllegalArgumentException("not a UUID: " + s)
+            }
+            value = (value << 4) | digit
+        }
+        return value
     }
 
     // ---- private
@@ -5,15 +5,17 @@ import groovy.transform.CompileStatic
 
 import org.apache.commons.lang3.StringUtils
 
+import cassdoc.AttrStorage
 import cassdoc.Cmd
 import cassdoc.CommandExecServices
 import cassdoc.Detail
+import cassdoc.DocType
 import cassdoc.FieldValue
 import cassdoc.IDUtil
 import cassdoc.ListMap
 import cassdoc.OperationContext
 import cassdoc.RelKey
-import cassdoc.TypeConfigurationService
+import cassdoc.SchemaSnapshot
 import cwdrg.lg.annotation.Log
 import cwdrg.util.json.JSONUtil
 import drv.cassdriver.St
@@ -45,6 +47,12 @@ abstract class MutationCmd extends Cmd {
      * @return
      */
     abstract boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail)
+
+    /**
+     * the document whose content this command changes, for cache invalidation. Commands with a docUUID property
+     * override this, relation and index commands don't change document content.
+     */
+    String getDocUUID() { null }
     //abstract Object execMutationRdbms(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args)
 
     Object execOrPrep(CommandExecServices svcs, OperationContext opctx, Detail detail) {
@@ -61,7 +69,8 @@ abstract class MutationCmd extends Cmd {
             return null
         } else {
             try {
-                St st = new St(keyspace: space, cql: cql, cqlargs: cqlargs, stmt: svcs.driver.prepare(space, cql, cqlargs, detail.writeConsistency, clearCmd ? opctx.operationClearTimestamp : opctx.operationTimestamp))
+                String consistency = StringUtils.isNotEmpty(detail.writeConsistency) ? detail.writeConsistency : StringUtils.isNotEmpty(opctx.writeConsistency) ? opctx.writeConsistency : "ONE"
+                St st = new St(keyspace: space, cql: cql, cqlargs: cqlargs, stmt: svcs.driver.prepare(space, cql, cqlargs, consistency, clearCmd ? opctx.operationClearTimestamp : opctx.operationTimestamp))
                 return st
             } catch (Exception e) {
                 throw log.err("", new RuntimeException("ERROR in statement prepareCtx $cql " + JSONUtil.serialize(cqlargs)))
@@ -98,7 +107,7 @@ class NewDoc extends MutationCmd {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "INSERT INTO ${space}.e_${suffix} (e,zv,a0) VALUES (?,?,?)"
+        cql = svcs.typeCql(space, suffix).insertDoc
         cqlargs = [
                 docUUID,
                 opctx.updateUUID,
@@ -125,7 +134,7 @@ class ClrIdxVal extends MutationCmd {
     String v3 = ""
 
     void batch(OperationContext opctx) {
-        opctx.batchLeftovers.add(this)
+        ListMap.put(opctx.batches, OperationContext.CLEAR_BATCH_PREFIX + "I" + IDUtil.idxPartitionKey(i1, i2, i3, k1, k2, k3), this)
     }
 
     boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail) {
@@ -165,7 +174,7 @@ class InsIdxValOnly extends MutationCmd {
     String v3 = ""
 
     void batch(OperationContext opctx) {
-        opctx.batchLeftovers.add(this)
+        ListMap.put(opctx.batches, "I" + IDUtil.idxPartitionKey(i1, i2, i3, k1, k2, k3), this)
     }
 
     boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail) {
@@ -259,8 +268,8 @@ class ClrFixedCol extends DelFixedCol {
     boolean getClearCmd() { true }
 
     void batch(OperationContext opctx) {
-        // clears are always in leftovers
-        opctx.batchLeftovers.add(this)
+        // clears carry the clear timestamp, so they get their own partition batch
+        ListMap.put(opctx.batches, OperationContext.CLEAR_BATCH_PREFIX + "E" + docUUID, this)
     }
 
     boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail) {
@@ -342,16 +351,39 @@ class NewAttr extends MutationCmd {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "INSERT INTO ${space}.p_${suffix} (e,p,zv,d,t) VALUES (?,?,?,?,?)" + (paxos ? " IF NOT EXIST" : "")
-        cqlargs = [
-                docUUID,
-                attrName,
-                opctx.updateUUID,
-                attrValue?.value,
-                TypeConfigurationService.attrTypeCode(attrValue?.type)] as Object[]
+        insertAttr(svcs, opctx, suffix, paxos ? " IF NOT EXIST" : "")
         return execOrPrep(svcs, opctx, detail)
     }
 
+    /**
+     * the insert of the attribute value as stored for the doc type (see AttrStorage): d,t or, if the p_ table has the
+     * binary column, d,b,t with the unused one null
+     */
+    protected void insertAttr(CommandExecServices svcs, OperationContext opctx, String suffix, String condition) {
+        // type and statement of the same schema snapshot
+        SchemaSnapshot schema = svcs.schema
+        DocType type = schema.docType(space, suffix)
+        Object[] stored = AttrStorage.encode(svcs, type, attrValue)
+        String insert = schema.typeCql(space, suffix).insertAttr
+        cql = condition ? insert + condition : insert
+        if (AttrStorage.binaryColumn(type)) {
+            cqlargs = [
+                    docUUID,
+                    attrName,
+                    opctx.updateUUID,
+                    stored[1],
+                    stored[2],
+                    stored[0]] as Object[]
+        } else {
+            cqlargs = [
+                    docUUID,
+                    attrName,
+                    opctx.updateUUID,
+                    stored[1],
+                    stored[0]] as Object[]
+        }
+    }
+
 }
 
 
@@ -379,13 +411,7 @@ class UpdAttr extends NewAttr {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "INSERT INTO ${space}.p_${suffix} (e,p,zv,d,t) VALUES (?,?,?,?,?)"
-        cqlargs = [
-                docUUID,
-                attrName,
-                opctx.updateUUID,
-                attrValue?.value,
-                TypeConfigurationService.attrTypeCode(attrValue?.type)] as Object[]
+        insertAttr(svcs, opctx, suffix, "")
         return execOrPrep(svcs, opctx, detail)
     }
 
@@ -410,14 +436,28 @@ class UpdAttrPAXOS extends UpdAttr {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "UPDATE ${space}.p_${suffix} SET zv = ?, d = ?, t = ? WHERE e = ? and p = ? IF zv = ?"
-        cqlargs = [
-                opctx.updateUUID,
-                attrValue?.value,
-                TypeConfigurationService.attrTypeCode(attrValue?.type),
-                docUUID,
-                attrName,
-                previousVersion] as Object[]
+        DocType type = AttrStorage.docType(svcs, space, suffix)
+        Object[] stored = AttrStorage.encode(svcs, type, attrValue)
+        if (AttrStorage.binaryColumn(type)) {
+            cql = "UPDATE ${space}.p_${suffix} SET zv = ?, d = ?, b = ?, t = ? WHERE e = ? and p = ? IF zv = ?"
+            cqlargs = [
+                    opctx.updateUUID,
+                    stored[1],
+                    stored[2],
+                    stored[0],
+                    docUUID,
+                    attrName,
+                    previousVersion] as Object[]
+        } else {
+            cql = "UPDATE ${space}.p_${suffix} SET zv = ?, d = ?, t = ? WHERE e = ? and p = ? IF zv = ?"
+            cqlargs = [
+                    opctx.updateUUID,
+                    stored[1],
+                    stored[0],
+                    docUUID,
+                    attrName,
+                    previousVersion] as Object[]
+        }
         return execOrPrep(svcs, opctx, detail)
     }
 
@@ -529,7 +569,7 @@ class DelDoc_E extends MutationCmd {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "DELETE FROM ${space}.e_${suffix} WHERE e = ?"
+        cql = svcs.typeCql(space, suffix).deleteDoc_E
         cqlargs = [docUUID] as Object[]
         return execOrPrep(svcs, opctx, detail)
     }
@@ -553,7 +593,7 @@ class DelDoc_P extends MutationCmd {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "DELETE FROM ${space}.p_${suffix} WHERE e = ?"
+        cql = svcs.typeCql(space, suffix).deleteDoc_P
         cqlargs = [docUUID] as Object[]
         return execOrPrep(svcs, opctx, detail)
     }
@@ -584,7 +624,7 @@ class DelAttr extends MutationCmd {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "DELETE FROM ${space}.p_${suffix} WHERE e = ? and p = ?"
+        cql = svcs.typeCql(space, suffix).deleteAttr
         cqlargs = [docUUID, attrName] as Object[]
         return execOrPrep(svcs, opctx, detail)
     }
@@ -597,8 +637,8 @@ class ClrAttr extends DelAttr {
     boolean getClearCmd() { true }
 
     void batch(OperationContext opctx) {
-        // clears are always in leftovers
-        opctx.batchLeftovers.add(this)
+        // clears carry the clear timestamp, so they get their own partition batch
+        ListMap.put(opctx.batches, OperationContext.CLEAR_BATCH_PREFIX + "P" + docUUID, this)
     }
 
     boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail) {
@@ -615,7 +655,7 @@ class ClrAttr extends DelAttr {
     Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
         space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        cql = "DELETE FROM ${space}.p_${suffix} WHERE e = ? and p = ?"
+        cql = svcs.typeCql(space, suffix).deleteAttr
         cqlargs = [docUUID, attrName] as Object[]
         return execOrPrep(svcs, opctx, detail)
     }
@@ -650,9 +690,8 @@ class ClrDocRels extends DelDocRels {
     boolean getClearCmd() { true }
 
     void batch(OperationContext opctx) {
-        // clears are always in leftovers
-        opctx.batchLeftovers.add(this)
-
+        // clears carry the clear timestamp, so they get their own partition batch
+        ListMap.put(opctx.batches, OperationContext.CLEAR_BATCH_PREFIX + "R" + p1, this)
     }
 
     boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail) {
@@ -741,8 +780,8 @@ class ClrAttrRels extends DelAttrRels {
     boolean getClearCmd() { true }
 
     void batch(OperationContext opctx) {
-        // clears are always in leftovers
-        opctx.batchLeftovers.add(this)
+        // clears carry the clear timestamp, so they get their own partition batch
+        ListMap.put(opctx.batches, OperationContext.CLEAR_BATCH_PREFIX + "R" + p1, this)
     }
 
     boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail) {
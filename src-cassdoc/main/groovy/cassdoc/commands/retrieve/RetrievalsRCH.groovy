@@ -4,6 +4,7 @@ import groovy.transform.CompileStatic
 
 import org.apache.commons.lang3.StringUtils
 
+import cassdoc.AttrStorage
 import cassdoc.Cmd
 import cassdoc.CommandExecServices
 import cassdoc.Detail
@@ -48,21 +49,28 @@ class GetDocAttrs extends QueryCmd {
         GetDocAttrsRCH rch = new GetDocAttrsRCH()
         String space = opctx.space
         String suffix = IDUtil.idSuffix(docUUID)
-        StringBuilder cql = new StringBuilder(64)
-        cql << "SELECT e,p,d,t,zv"
-        if (detail.attrWritetimeMeta != null) {
-            cql << ",writetime(" << detail.attrWritetimeMeta << ")"
-            rch.writetimeCol = true
-        }
-        if (detail.attrTokenMeta) {
-            rch.tokenCol = true
-            cql << ",token(e)"
-        }
-        if (detail.attrMetaIDMeta || detail.attrMetaDataMeta) {
-            rch.attrMetaCol = true
-            cql << ",z_md"
+        CharSequence cql
+        if (detail.attrWritetimeMeta == null && !detail.attrTokenMeta && !detail.attrMetaIDMeta && !detail.attrMetaDataMeta) {
+            cql = svcs.typeCql(space, suffix).selectAttrs
+        } else {
+            StringBuilder select = new StringBuilder(64)
+            select << "SELECT e,p,d,t,zv"
+            if (detail.attrWritetimeMeta != null) {
+                select << ",writetime(" << detail.attrWritetimeMeta << ")"
+                rch.writetimeCol = true
+            }
+            if (detail.attrTokenMeta) {
+                rch.tokenCol = true
+                select << ",token(e)"
+            }
+            if (detail.attrMetaIDMeta || detail.attrMetaDataMeta) {
+                rch.attrMetaCol = true
+                select << ",z_md"
+            }
+            select << AttrStorage.binaryCol(svcs, space, suffix)
+            select << " FROM " << space << ".p_" << suffix << " WHERE e = ?"
+            cql = select
         }
-        cql << " FROM " << space << ".p_" << suffix << " WHERE e = ?"
         Object[] cqlargs = [docUUID] as Object[]
         if (opctx.cqlTraceEnabled) opctx.cqlTrace.add([
                 cql,
@@ -83,10 +91,11 @@ class GetDocAttrsRCH implements RowCallbackHandler {
     List<Object[]> attrs = []
 
     void processRow(Row row) throws CQLException {
+        String storedType = row.getString("t")
         Object[] attr = [
                 row.getString("p"),
-                row.getString("t"),
-                row.getString("d"),
+                AttrStorage.typeCode(storedType),
+                AttrStorage.value(row, storedType),
                 row.getUUID("zv"),
                 writetimeCol ? row.getLong(5) : null,
                 tokenCol ? row.partitionKeyToken.value.toString() : null,
@@ -120,6 +129,7 @@ class GetAttrCmd extends QueryCmd {
             rch.attrMetaCol = true
             cql << ",z_md"
         }
+        cql << AttrStorage.binaryCol(svcs, space, suffix)
         cql << " FROM " << space << ".p_" << suffix << " WHERE e = ? and p = ?"
         Object[] cqlargs = [docUUID, attrName] as Object[]
         if (opctx.cqlTraceEnabled) opctx.cqlTrace.add([
@@ -138,15 +148,17 @@ class GetAttrRCH implements RowCallbackHandler {
     boolean tokenCol = false
     boolean attrMetaCol = false
     String valType
-    String data
+    // json text, or a BinaryAttr (see AttrStorage)
+    Object data
     UUID version
     Long writetime
     String token
     String attrMetaID
 
     void processRow(Row row) throws CQLException {
-        valType = row.getString("t")
-        data = row.getString("d")
+        String storedType = row.getString("t")
+        valType = AttrStorage.typeCode(storedType)
+        data = AttrStorage.value(row, storedType)
         version = row.getUUID("zv")
         writetime = writetimeCol ? row.getLong(6) : null
         token = tokenCol ? row.partitionKeyToken.value.toString() : null
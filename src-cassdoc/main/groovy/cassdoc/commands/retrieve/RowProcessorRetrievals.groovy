@@ -3,7 +3,11 @@ package cassdoc.commands.retrieve
 import groovy.transform.CompileStatic
 
 import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
 
+import cassdoc.AttrStorage
 import cassdoc.CommandExecServices
 import cassdoc.Detail
 import cassdoc.IDUtil
@@ -109,6 +113,22 @@ abstract class CassandraPagedRowProcessor extends RowProcessor {
 }
 
 
+/**
+ * replays rows that were already read, e.g. by the child doc prefetch
+ */
+@CompileStatic
+class PrefetchedRowsRP extends RowProcessor {
+    Iterator<Object[]> rows
+
+    Object[] nextRow() {
+        if (rows.hasNext()) {
+            rowCount++
+            return rows.next()
+        }
+        return null
+    }
+}
+
 @CompileStatic
 class GetDocAttrsRP extends CassandraPagedRowProcessor {
     String docUUID = null
@@ -131,6 +151,7 @@ class GetDocAttrsRP extends CassandraPagedRowProcessor {
             cql << ",z_md"
             attrMetaCol = true
         }
+        cql << AttrStorage.binaryCol(svcs, space, suffix)
         cql << " FROM " << space << ".p_" << suffix << " WHERE e = ?"
         Object[] cqlargs = [docUUID] as Object[]
         if (opctx.cqlTraceEnabled) opctx.cqlTrace.add([
@@ -143,10 +164,11 @@ class GetDocAttrsRP extends CassandraPagedRowProcessor {
     }
 
     Object[] processRow(Row row) {
+        String storedType = row.getString("t")
         Object[] attr = [
                 row.getString("p"),
-                row.getString("t"),
-                row.getString("d"),
+                AttrStorage.typeCode(storedType),
+                AttrStorage.value(row, storedType),
                 row.getUUID("zv"),
                 writetimeCol ? row.getLong(6) : null,
                 tokenCol ? row.partitionKeyToken.value.toString() : null,
@@ -321,8 +343,10 @@ class IndexTableRP extends CassandraPagedRowProcessor {
         rs = svcs.driver.initiateQuery(space, cql.toString(), [i1, i2, i3, k1, k2, k3] as Object[], consistency, detail?.fetchPageSize ?: 30000, detail?.fetchNextPageThreshold ?: 3000)
     }
 
+    // token first so v1 (the indexed doc id) is at [1], as SearchOperations.pullIDResultSet expects
     Object[] processRow(Row row) {
         Object[] data = [
+                row.getObject(0),
                 row.getString(1),
                 row.getString(2),
                 row.getString(3)] as Object[]
@@ -330,6 +354,103 @@ class IndexTableRP extends CassandraPagedRowProcessor {
     }
 }
 
+/**
+ * v1 slice of an index partition (see RangeManualIndex): from inclusive, to exclusive unless toInclusive, null for open
+ */
+@CompileStatic
+class IndexSliceRP extends CassandraPagedRowProcessor {
+    String i1 = ""
+    String i2 = ""
+    String i3 = ""
+    String k1 = ""
+    String k2 = ""
+    String k3 = ""
+    String from
+    String to
+    boolean toInclusive
+
+    void initiateQuery(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
+        String consistency = QueryCmd.resolveConsistency(detail, opctx)
+        String space = opctx.space
+        StringBuilder cql = new StringBuilder(160)
+        cql << "SELECT v1,v2 FROM ${space}.i WHERE i1 = ? AND i2 = ? AND i3 = ? AND k1 = ? AND k2 = ? AND k3 = ?"
+        List<Object> cqlargs = [i1, i2, i3, k1, k2, k3] as List<Object>
+        if (from != null) {
+            cql << " AND v1 >= ?"
+            cqlargs.add(from)
+        }
+        if (to != null) {
+            cql << (toInclusive ? " AND v1 <= ?" : " AND v1 < ?")
+            cqlargs.add(to)
+        }
+        rs = svcs.driver.initiateQuery(space, cql.toString(), cqlargs as Object[], consistency, detail?.fetchPageSize ?: 30000, detail?.fetchNextPageThreshold ?: 3000)
+    }
+
+    // the value, then the doc id at [1] as SearchOperations.pullIDResultSet expects
+    Object[] processRow(Row row) {
+        Object[] data = [row.getString(0), row.getString(1)] as Object[]
+        return data
+    }
+}
+
+/**
+ * Scatter-gather of the bucket slices of a range index search: up to parallel slices are queried concurrently on the
+ * read executor, and their rows are returned slice after slice, in the given (bucket) order.
+ */
+@CompileStatic
+class BucketSliceRP extends RowProcessor {
+    List<IndexSliceRP> slices
+    int parallel = 8
+
+    private CommandExecServices svcs
+    private OperationContext opctx
+    private Detail detail
+    private final ArrayDeque<Future<IndexSliceRP>> inflight = new ArrayDeque<>()
+    private int nextSlice = 0
+    private IndexSliceRP current = null
+
+    void initiateQuery(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
+        this.svcs = svcs
+        this.opctx = opctx
+        this.detail = detail
+        submitSlices()
+    }
+
+    private void submitSlices() {
+        while (inflight.size() < Math.max(1, parallel) && nextSlice < slices.size()) {
+            final IndexSliceRP slice = slices[nextSlice++]
+            inflight.add(svcs.readExecutor.submit({
+                slice.initiateQuery(svcs, opctx, detail)
+                return slice
+            } as Callable<IndexSliceRP>))
+        }
+    }
+
+    Object[] nextRow() {
+        while (true) {
+            if (current != null) {
+                Object[] row = current.nextRow()
+                if (row != null) {
+                    rowCount++
+                    return row
+                }
+                current = null
+            }
+            if (inflight.isEmpty()) {
+                return null
+            }
+            Future<IndexSliceRP> slice = inflight.poll()
+            submitSlices()
+            try {
+                current = slice.get()
+            } catch (ExecutionException e) {
+                throw e.cause
+            }
+            pageCount++
+        }
+    }
+}
+
 @CompileStatic
 class EntityTableSecondaryIndexRP extends CassandraPagedRowProcessor {
     String table
@@ -345,8 +466,35 @@ class EntityTableSecondaryIndexRP extends CassandraPagedRowProcessor {
         rs = svcs.driver.initiateQuery(space, cql.toString(), [columnValue] as Object[], consistency, detail?.fetchPageSize ?: 30000, detail?.fetchNextPageThreshold ?: 3000)
     }
 
+    // token first so e is at [1], as for IndexTableRP
     Object[] processRow(Row row) {
-        Object[] data = [row.getString(1)] as Object[]
+        Object[] data = [row.getObject(0), row.getString(1)] as Object[]
         return data
     }
-}
\ No newline at end of file
+}
+
+/**
+ * docs with a column value, from the partition of the value in a materialized view of an e_ table keyed on the column
+ * (see MaterializedViewIndex)
+ */
+@CompileStatic
+class MaterializedViewRP extends CassandraPagedRowProcessor {
+    String view
+    String column
+    Object columnValue
+
+    void initiateQuery(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
+        String consistency = QueryCmd.resolveConsistency(detail, opctx)
+        String space = opctx.space
+        StringBuilder cql = new StringBuilder(32)
+        cql << "SELECT ${column},e FROM ${space}.${view} WHERE ${column} = ?"
+        rs = svcs.driver.initiateQuery(space, cql.toString(), [columnValue] as Object[], consistency, detail?.fetchPageSize ?: 30000, detail?.fetchNextPageThreshold ?: 3000)
+    }
+
+    // the value first so e is at [1], as for EntityTableSecondaryIndexRP (token(e) isn't available, e is not the
+    // partition key of the view)
+    Object[] processRow(Row row) {
+        Object[] data = [row.getObject(0), row.getString(1)] as Object[]
+        return data
+    }
+}
@@ -17,4 +17,35 @@ class CassDocConfig {
     boolean autoCreateBaseSchema = true
     boolean autoCreateNewKeyspaces = true
     boolean autoCreateNewDocTypes = true
+    /** threads shared by concurrent reads (child doc prefetch, etc) */
+    int readThreads = 32
+    /** threads running background result streams (index search) */
+    int streamThreads = 16
+    /** in-process read-through doc/attr cache, see DocCache */
+    boolean docCacheEnabled = false
+    long docCacheMaxChars = 64L * 1024 * 1024
+    long docCacheTtlSeconds = 300
+    long docCacheRevalidateMillis = 1000
+    /** background delete of subdocuments, see CleanupQueue: worker threads per collection, throttle, docs per level */
+    int cleanupThreads = 4
+    double cleanupDocsPerSecond = 500
+    int cleanupBatchSize = 100
+    /** attempts at a subdocument delete before it is moved to the dead letter table, first retry delay (doubled per attempt) */
+    int cleanupMaxAttempts = 5
+    long cleanupRetryMillis = 1000
+    /** column index selection, see IndexConfigurationService: rows sampled per column, stats lifetime */
+    int indexStatsSampleRows = 1000
+    long indexStatsTtlSeconds = 600
+    /** search sort without a limit, see SortedResults: docs sorted in memory per spilled run, run file dir (null: tmp) */
+    int searchSortBufferDocs = 10000
+    String searchSortTempDir
+    /** seconds between checks of cassdoc_system_schema.version for schema changes made on other servers, 0 for never */
+    long schemaPollSeconds = 10
+    /**
+     * group commit of concurrent writes, see GroupCommit: window in ms (0 disables it), pending statements that flush
+     * early. Set, it moves every HTTP request context (PrepareCtx) into group execution mode, so each request's writes
+     * wait up to the window before they are sent.
+     */
+    long groupCommitWindowMillis = 0
+    int groupCommitMaxStatements = 1000
 }
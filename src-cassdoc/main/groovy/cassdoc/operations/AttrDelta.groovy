@@ -0,0 +1,230 @@
+package cassdoc.operations
+
+import cassdoc.AttrStorage
+import cassdoc.CommandExecServices
+import cassdoc.DBCodes
+import cassdoc.Detail
+import cassdoc.DocType
+import cassdoc.FieldValue
+import cassdoc.OperationContext
+import cassdoc.Rel
+import cassdoc.RelTypes
+import cassdoc.TypeConfigurationService
+import cassdoc.commands.mutate.DelRel
+import cassdoc.commands.mutate.UpdAttr
+import cassdoc.commands.retrieve.GetAttrCmd
+import cassdoc.commands.retrieve.GetAttrRCH
+import cassdoc.commands.retrieve.GetAttrRelsCmd
+import cassdoc.commands.retrieve.GetRelsRCH
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.node.ArrayNode
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+import com.fasterxml.jackson.databind.node.ObjectNode
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+
+/**
+ * Delta attribute update (Detail.deltaUpdate): the stored value is read and compared with the new one, and only the
+ * differences are written, where UpdateOperations.updateAttr clears the attribute's rels and index entries and writes
+ * everything again.
+ *
+ *  - an unchanged value writes nothing, changed ones are overwritten in place: no attribute or rel range tombstones
+ *  - index entries and fixed columns are only replaced if the value changed
+ *  - child docs ({"_id": ...} objects) still referenced are kept, and the other fields given for them are delta
+ *    updated as attributes of the child doc. New ones are created, ones no longer referenced are deleted through the
+ *    CleanupQueue with their CH rel. They are only queued once the new value is written (see
+ *    OperationContext.afterWrite): a failed update leaves them referenced and in place.
+ *
+ * Object values are compared as json trees: a change of field order alone is no change.
+ */
+@Log
+@CompileStatic
+class AttrDelta {
+
+    // exact decimals, so 1.50 stays 1.50 when written back
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+            .setNodeFactory(JsonNodeFactory.withExactBigDecimals(true))
+
+    static void updateAttrDelta(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, String json) {
+        updateAttrDelta(svcs, opctx, detail, docUUID, attr, MAPPER.readTree(json))
+    }
+
+    static void updateAttrDelta(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, JsonNode value) {
+        GetAttrRCH current = new GetAttrCmd(docUUID: docUUID, attrName: attr).queryCassandra(svcs, opctx, detail)
+        updateAttrDelta(svcs, opctx, detail, docUUID, attr, value, current)
+    }
+
+    /**
+     * delta update against the already read stored attribute
+     */
+    static void updateAttrDelta(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, JsonNode value,
+                                GetAttrRCH current) {
+        JsonNode stored = storedNode(svcs, current.valType, current.data)
+        Set<String> oldChildren = childRefs(svcs.idField, stored)
+
+        Set<String> keptChildren = [] as Set
+        FieldValue newValue = null
+        boolean changed
+        if (value == null || value.isNull()) {
+            changed = current.data != null
+        } else if (value.isContainerNode()) {
+            JsonNode newStored = storeChildDocs(svcs, opctx, detail, docUUID, attr, value, oldChildren, keptChildren)
+            String newType = value.isArray() ? DBCodes.TYPE_CODE_ARRAY : DBCodes.TYPE_CODE_OBJECT
+            changed = newType != current.valType || newStored != stored
+            newValue = new FieldValue(type: TypeConfigurationService.attrClass(newType), value: MAPPER.writeValueAsString(newStored))
+        } else {
+            // scalars as the full update parses them
+            newValue = CreateOperations.parseField(svcs, opctx, detail, docUUID, attr, MAPPER.treeAsTokens(value))
+            changed = current.valType != TypeConfigurationService.attrTypeCode(newValue.type) || String.valueOf(current.data) != newValue.value
+        }
+
+        Set<String> removedChildren = new LinkedHashSet<>(oldChildren)
+        removedChildren.removeAll(keptChildren)
+        if (!changed && !removedChildren) {
+            log.dbg("delta update of $docUUID.$attr: unchanged", null)
+            return
+        }
+        writeDelta(svcs, opctx, detail, docUUID, attr, newValue, changed, removedChildren)
+    }
+
+    /**
+     * write a changed value (if changed) and remove the child docs no longer referenced. The attribute's rels are only
+     * read if there are removed children or index entries to replace.
+     */
+    static void writeDelta(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, FieldValue newValue,
+                           boolean changed, Set<String> removedChildren) {
+        DocType docType = svcs.types(opctx.space).getTypeForID(docUUID)
+        Set indexes = docType.attrIndexMap[attr]
+        boolean indexed = indexes != null && !indexes.isEmpty()
+
+        List<Rel> rels = []
+        if (removedChildren || (changed && indexed)) {
+            GetRelsRCH attrRels = new GetAttrRelsCmd(p1: docUUID, ty1s: [RelTypes.SYS_INDEX, RelTypes.TO_CHILD] as HashSet, p2: attr)
+                    .queryCassandraAttrRels(svcs, opctx, detail, null)
+            rels = attrRels.rels
+        }
+        if (removedChildren) {
+            log.dbg("delta update of $docUUID.$attr: ${removedChildren.size()} child docs removed", null)
+            for (Rel rel : rels) {
+                if (rel.ty1 == RelTypes.TO_CHILD && rel.c1 in removedChildren) {
+                    opctx.addCommand(svcs, detail, new DelRel(relKey: rel.relKey))
+                }
+            }
+        }
+        if (changed) {
+            if (indexed) {
+                List<Rel> indexRels = rels.findAll { Rel rel -> rel.ty1 == RelTypes.SYS_INDEX }
+                IndexOperations.cleanupDocAttrIndexes(svcs, opctx, detail, docUUID, attr, indexRels)
+                for (Rel rel : indexRels) {
+                    opctx.addCommand(svcs, detail, new DelRel(relKey: rel.relKey))
+                }
+            }
+            UpdAttr cmd = new UpdAttr(docUUID: docUUID, attrName: attr, attrValue: newValue)
+            cmd.isComplete = true
+            CreateOperations.analyzeNewAttrEvent(svcs, opctx, detail, cmd)
+        }
+        if (removedChildren) {
+            // after every command of the update, immediate mode runs it right away
+            DeleteOperations.cleanupAfterWrite(svcs, opctx, removedChildren)
+        }
+    }
+
+    /**
+     * the stored attribute as a json tree, null if there is none. Scalars are text nodes of their stored text.
+     */
+    static JsonNode storedNode(CommandExecServices svcs, String valType, Object data) {
+        if (data == null) {
+            return null
+        }
+        if (valType == DBCodes.TYPE_CODE_ARRAY || valType == DBCodes.TYPE_CODE_OBJECT) {
+            return MAPPER.readTree(AttrStorage.parser(svcs, data))
+        }
+        return MAPPER.nodeFactory.textNode(String.valueOf(data))
+    }
+
+    /**
+     * an object whose first field is the id field: a child doc (see CreateOperations.parseIngestChildObject)
+     */
+    static boolean isChildDoc(String idField, JsonNode node) {
+        if (!node.isObject() || node.size() == 0) {
+            return false
+        }
+        Iterator<String> fields = node.fieldNames()
+        return fields.next() == idField && node.get(idField).isTextual()
+    }
+
+    /**
+     * the ids of the child doc refs in a stored value
+     */
+    static Set<String> childRefs(String idField, JsonNode stored) {
+        Set<String> refs = new LinkedHashSet<>()
+        if (stored != null) {
+            collectChildRefs(idField, stored, refs)
+        }
+        return refs
+    }
+
+    private static void collectChildRefs(String idField, JsonNode node, Set<String> refs) {
+        if (isChildDoc(idField, node)) {
+            refs.add(node.get(idField).asText())
+            return
+        }
+        for (JsonNode member : node) {
+            if (member.isContainerNode()) {
+                collectChildRefs(idField, member, refs)
+            }
+        }
+    }
+
+    /**
+     * the value as stored, child docs replaced by their refs: child docs of the attribute that are still referenced
+     * are delta updated with the other fields given for them, others are created as in a full update
+     */
+    private static JsonNode storeChildDocs(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, JsonNode node,
+                                           Set<String> oldChildren, Set<String> keptChildren) {
+        if (isChildDoc(svcs.idField, node)) {
+            String id = node.get(svcs.idField).asText()
+            if (id in oldChildren && !(id in keptChildren)) {
+                keptChildren.add(id)
+                Iterator<Map.Entry<String, JsonNode>> fields = node.fields()
+                fields.next()
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next()
+                    updateAttrDelta(svcs, opctx, detail, id, field.key, field.value)
+                }
+            } else {
+                JsonParser parser = MAPPER.treeAsTokens(node)
+                parser.nextToken()
+                if (parser.nextToken() != JsonToken.FIELD_NAME) {
+                    throw log.err("", new IllegalStateException("child doc of $docUUID.$attr"))
+                }
+                id = CreateOperations.newChildDoc(svcs, opctx, detail, parser, docUUID, attr, false)
+            }
+            ObjectNode ref = MAPPER.createObjectNode()
+            ref.put(svcs.idField, id)
+            return ref
+        }
+        if (node.isObject()) {
+            ObjectNode copy = MAPPER.createObjectNode()
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields()
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next()
+                copy.set(field.key, storeChildDocs(svcs, opctx, detail, docUUID, attr, field.value, oldChildren, keptChildren))
+            }
+            return copy
+        }
+        if (node.isArray()) {
+            ArrayNode copy = MAPPER.createArrayNode()
+            for (JsonNode member : node) {
+                copy.add(storeChildDocs(svcs, opctx, detail, docUUID, attr, member, oldChildren, keptChildren))
+            }
+            return copy
+        }
+        return node
+    }
+}
@@ -0,0 +1,106 @@
+package cassdoc.operations
+
+import cassdoc.AttrStorage
+import cassdoc.CommandExecServices
+import cassdoc.DBCodes
+import cassdoc.Detail
+import cassdoc.DocType
+import cassdoc.FieldValue
+import cassdoc.OperationContext
+import cassdoc.TypeConfigurationService
+import com.datastax.driver.core.Row
+import com.datastax.driver.core.TokenRange
+import cwdrg.lg.annotation.Log
+import drv.cassdriver.St
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Function
+
+/**
+ * Rewrites the json text array and object values of a doc type in its binary attrFormat (see AttrStorage), after the
+ * format was enabled: new writes are binary already, this converts the rows written before. The p_ table is read with
+ * a parallel TokenRangeScan, which can be checkpointed to resume an interrupted conversion.
+ *
+ * Each value is rewritten with the write time of the value it was read from, so a value updated in the meantime (with a
+ * later timestamp, and stored in the current format) wins over the conversion. At the same timestamp the conversion
+ * wins: the null d is a tombstone, and the binary stored types sort after the text ones (OS > O).
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class AttrStorageConverter {
+
+    TokenRangeScan scan = new TokenRangeScan()
+
+    final AtomicLong converted = new AtomicLong()
+    // scalars, nulls and binary values
+    final AtomicLong skipped = new AtomicLong()
+
+    volatile boolean finished = false
+    volatile Throwable failure = null
+
+    /**
+     * run the conversion on the services' maintenance thread
+     */
+    Future<AttrStorageConverter> start(final CommandExecServices svcs, final OperationContext opctx, final Detail detail, final String objectType) {
+        svcs.maintenanceExecutor.submit({
+            convert(svcs, opctx, detail, objectType)
+            return this
+        } as Callable<AttrStorageConverter>)
+    }
+
+    void convert(final CommandExecServices svcs, final OperationContext opctx, final Detail detail, String objectType) {
+        try {
+            TypeConfigurationService types = svcs.types(opctx.space)
+            final String suffix = types.getSuffixForType(objectType)
+            final DocType type = types.getTypeForSuffix(suffix)
+            if (!AttrStorage.binaryFormat(type?.attrFormat)) {
+                throw log.err('', new IllegalArgumentException("Doc type $objectType in ${opctx.space} has no binary attribute format"))
+            }
+            final String cql = "UPDATE ${opctx.space}.p_${suffix} USING TIMESTAMP ? SET d = ?, b = ?, t = ? WHERE e = ? AND p = ?"
+            final String consistency = detail.writeConsistency ?: opctx.writeConsistency ?: 'QUORUM'
+            scan.scan(svcs, opctx, detail, "${opctx.space}.p_${suffix}", 'token(e),e,p,t,d,writetime(d)', { TokenRange range ->
+                new TokenRangeScan.RangeSink() {
+                    void row(Row row) {
+                        convertRow(svcs, opctx, type, cql, consistency, row)
+                    }
+                }
+            } as Function<TokenRange, TokenRangeScan.RangeSink>)
+            log.inf("attr storage conversion of ${opctx.space}.p_$suffix: $converted converted, $skipped skipped", null)
+        } catch (Throwable t) {
+            failure = t
+            throw t
+        } finally {
+            finished = true
+        }
+    }
+
+    private void convertRow(CommandExecServices svcs, OperationContext opctx, DocType type, String cql, String consistency, Row row) {
+        String storedType = row.getString(3)
+        String json = row.getString(4)
+        if (json == null || (storedType != DBCodes.TYPE_CODE_OBJECT && storedType != DBCodes.TYPE_CODE_ARRAY)) {
+            skipped.incrementAndGet()
+            return
+        }
+        Object[] stored = AttrStorage.encode(svcs, type, new FieldValue(type: TypeConfigurationService.attrClass(storedType), value: json))
+        Object[] args = [row.getLong(5), null, stored[2], stored[0], row.getString(1), row.getString(2)] as Object[]
+        St st = svcs.driver.prepareSt(opctx.space, cql, args, consistency, null)
+        svcs.driver.executeStatementSync(svcs.driver.session, st)
+        converted.incrementAndGet()
+    }
+
+    Map<String, Object> getStatus() {
+        [
+                finished       : finished,
+                failure        : failure?.toString(),
+                converted      : converted.get(),
+                skipped        : skipped.get(),
+                rangesScanned  : scan.rangesScanned.get(),
+                rangesSkipped  : scan.rangesSkipped.get()
+        ] as Map<String, Object>
+    }
+}
@@ -0,0 +1,216 @@
+package cassdoc.operations
+
+import cassdoc.AttrStorage
+import cassdoc.CommandExecServices
+import cassdoc.DBCodes
+import cassdoc.Detail
+import cassdoc.IDUtil
+import cassdoc.OperationContext
+import cassdoc.commands.retrieve.GetDocAttrsRP
+import cassdoc.commands.retrieve.PrefetchedRowsRP
+import cassdoc.commands.retrieve.RowProcessor
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+
+/**
+ * Breadth-first prefetch of child documents for a single root document retrieval.
+ *
+ * As the attribute rows of a document are read, the child doc references ({"_id":"..."} objects) in its array and
+ * object attributes that the detail says to pull are collected, and the p_ partitions of all of them are fetched
+ * concurrently on the shared read executor. When a child's rows arrive its own children are submitted in turn, so the
+ * whole tree is fetched a level at a time instead of one child at a time.
+ *
+ * The retrieval code still walks and writes the document in its original order: it just gets each child's rows from
+ * here (waiting on the fetch if needed) instead of querying. The reads are bound statements with the partition key as
+ * routing key, so the driver's token-aware policy sends each to a replica. Parallelism is bounded by the executor.
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class ChildDocPrefetcher {
+
+    final CommandExecServices svcs
+    final OperationContext opctx
+    private final String idFieldToken
+    private final Map<String, Prefetch> prefetches = new ConcurrentHashMap<>()
+    private volatile boolean cancelled = false
+
+    static class Prefetch {
+        Detail detail
+        boolean existsChecked
+        FixedColumnPrefilter prefilter
+        Future<List<Object[]>> rows
+    }
+
+    ChildDocPrefetcher(CommandExecServices svcs, OperationContext opctx) {
+        this.svcs = svcs
+        this.opctx = opctx
+        this.idFieldToken = '"' + svcs.idField + '"'
+    }
+
+    /**
+     * Called for each attribute row of a document being retrieved, before it is parsed: submits the child docs
+     * referenced in the attribute value (json text or binary, see AttrStorage).
+     */
+    void scanAttr(Detail attrDetail, String attrName, Object typeCode, Object value) {
+        if (cancelled || value == null || (typeCode != DBCodes.TYPE_CODE_ARRAY && typeCode != DBCodes.TYPE_CODE_OBJECT)) {
+            return
+        }
+        if (value instanceof String && ((String) value).indexOf(idFieldToken) < 0) {
+            return
+        }
+        JsonParser parser = AttrStorage.parser(svcs, value)
+        JsonToken token
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.START_OBJECT) {
+                if (parser.nextToken() == JsonToken.FIELD_NAME && svcs.idField == parser.currentName) {
+                    if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        String childUUID = parser.text
+                        Detail childDetail = attrDetail.resolveChildDocDetail(childUUID, attrName)
+                        if (childDetail != null) {
+                            submit(childUUID, childDetail)
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean submit(final String docUUID, final Detail detail, final boolean checkExists, final Queue<String> done, final FixedColumnPrefilter prefilter) {
+        // the task is in the prefetch before it is published: a reader never sees a prefetch without its rows
+        FutureTask<List<Object[]>> task = new FutureTask<List<Object[]>>({
+            try {
+                return fetch(docUUID, detail, checkExists, prefilter)
+            } finally {
+                done?.add(docUUID)
+            }
+        } as Callable<List<Object[]>>)
+        Prefetch prefetch = new Prefetch(detail: detail, existsChecked: checkExists, prefilter: prefilter, rows: task)
+        if (prefetches.putIfAbsent(docUUID, prefetch) != null) {
+            return false
+        }
+        svcs.readExecutor.execute(task)
+        return true
+    }
+
+    private void submit(String docUUID, Detail detail) {
+        submit(docUUID, detail, false, null, null)
+    }
+
+    /**
+     * Start fetching a top level document: its existence check, attribute rows and (as they arrive) its child docs.
+     *
+     * @param docUUID
+     * @param detail
+     * @param done if not null, the docUUID is added to it when the fetch completes (or fails)
+     * @param prefilter if not null, a document it filters out is treated as not existing, and its attributes aren't read
+     * @return false if a fetch for the docUUID is already pending, in which case done will not be notified again
+     */
+    boolean prefetchDoc(String docUUID, Detail detail, Queue<String> done, FixedColumnPrefilter prefilter = null) {
+        submit(docUUID, detail, true, done, prefilter)
+    }
+
+    /**
+     * Wait for a document prefetched with {@link #prefetchDoc}. If it doesn't exist (or was filtered out) its prefetch
+     * is discarded, and false is returned. A document without such a prefetch is checked directly.
+     */
+    boolean awaitDoc(Detail detail, String docUUID, FixedColumnPrefilter prefilter = null) {
+        Prefetch prefetch = prefetches.get(docUUID)
+        if (prefetch == null || !prefetch.existsChecked || !prefetch.prefilter.is(prefilter)) {
+            return exists(docUUID, detail, prefilter)
+        }
+        if (rowsOf(prefetch) == null) {
+            prefetches.remove(docUUID, prefetch)
+            return false
+        }
+        return true
+    }
+
+    private String existsCql(String docUUID) {
+        svcs.typeCql(opctx.space, IDUtil.idSuffix(docUUID)).selectDocExists
+    }
+
+    /**
+     * the doc exists and isn't filtered out by the prefilter, which reads its columns in the same e_ row read. Docs of
+     * other types than the prefilter's are filtered out.
+     */
+    private boolean exists(String docUUID, Detail detail, FixedColumnPrefilter prefilter) {
+        if (prefilter == null) {
+            return !RetrievalOperations.query(svcs, opctx, detail, existsCql(docUUID), [docUUID] as Object[]).isEmpty()
+        }
+        if (prefilter.type.suffix != IDUtil.idSuffix(docUUID)) {
+            return false
+        }
+        List<Object[]> rows = RetrievalOperations.query(svcs, opctx, detail, prefilter.existsCql(opctx.space), [docUUID] as Object[])
+        return !rows.isEmpty() && !prefilter.isFiltered(rows[0])
+    }
+
+    private List<Object[]> fetch(String docUUID, Detail detail, boolean checkExists, FixedColumnPrefilter prefilter) {
+        List<Object[]> rows = []
+        if (cancelled) {
+            return rows
+        }
+        if (checkExists && !exists(docUUID, detail, prefilter)) {
+            return null
+        }
+        GetDocAttrsRP cmd = new GetDocAttrsRP(docUUID: docUUID)
+        cmd.initiateQuery(svcs, opctx, detail)
+        Object[] attr
+        while (attr = cmd.nextRow()) {
+            rows.add(attr)
+            Detail attrDetail = detail.resolveAttrDetail((String) attr[0])
+            if (attrDetail != null) {
+                // next level down
+                scanAttr(attrDetail, (String) attr[0], attr[1], attr[2])
+            }
+        }
+        return rows
+    }
+
+    private static List<Object[]> rowsOf(Prefetch prefetch) {
+        try {
+            return prefetch.rows.get()
+        } catch (ExecutionException ee) {
+            throw (ee.cause instanceof RuntimeException) ? (RuntimeException) ee.cause : new RuntimeException(ee.cause)
+        }
+    }
+
+    /**
+     * The attribute rows of the document: the prefetched rows if this document was prefetched with the same detail,
+     * otherwise a live query.
+     */
+    RowProcessor docAttrs(Detail detail, String docUUID) {
+        Prefetch prefetch = prefetches.get(docUUID)
+        if (prefetch != null && prefetch.detail.is(detail)) {
+            List<Object[]> rows = rowsOf(prefetch)
+            // consumed: a doc referenced again is read live, and a long bulk retrieval doesn't pile up rows
+            prefetches.remove(docUUID, prefetch)
+            if (rows != null) {
+                return new PrefetchedRowsRP(rows: rows.iterator())
+            }
+        }
+        return liveDocAttrs(svcs, opctx, detail, docUUID)
+    }
+
+    static RowProcessor liveDocAttrs(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID) {
+        GetDocAttrsRP cmd = new GetDocAttrsRP(docUUID: docUUID)
+        cmd.initiateQuery(svcs, opctx, detail)
+        return cmd
+    }
+
+    void cancel() {
+        cancelled = true
+        for (Prefetch prefetch : prefetches.values()) {
+            prefetch.rows.cancel(false)
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package cassdoc.operations
+
+import cassdoc.CassandraSchemaUtil
+import cassdoc.CommandExecServices
+import cassdoc.Detail
+import cassdoc.OperationContext
+import cassdoc.Rel
+import cassdoc.UUIDGen
+import cassdoc.commands.retrieve.GetRelsCmd
+import com.datastax.driver.core.ResultSet
+import com.datastax.driver.core.Row
+import com.google.common.util.concurrent.RateLimiter
+import cwdrg.lg.annotation.Log
+import drv.cassdriver.St
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Deferred cascade of document deletes for a collection.
+ *
+ * A deleted doc's subdocuments are written to the collection's cq table (CassandraSchemaUtil.createCleanupQueueTable)
+ * once the operation deleting the doc is written (DeleteOperations.cleanupAfterWrite), so a delete that fails never takes
+ * the children of a live doc, and are deleted here in the background: the docs queued in a shard are
+ * taken a batch at a time, their rels are read concurrently on the read executor, their children are queued, and then
+ * the docs are deleted (e_ and p_ rows, manual index entries, rels) and dequeued. The subtree is so deleted a level at a
+ * time, throttled to cassdoc.cleanupDocsPerSecond across the worker threads.
+ *
+ * The queue is durable: the workers start on a collection's first cascading delete or when the schema is loaded, and
+ * pick up whatever a stopped or crashed server left behind. Every step is idempotent, so a doc that is processed twice
+ * (a crash between its children being queued and it being dequeued, or two servers draining the same collection) is
+ * only deleted twice.
+ *
+ * A batch that fails is retried after a backoff (retryMillis, doubled per attempt), one doc at a time until the
+ * failing doc is found. A doc that has failed maxAttempts times is moved to the collection's cqd table
+ * (CassandraSchemaUtil.createCleanupDeadLetterTable) with the error, and logged, so it no longer holds up its shard.
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class CleanupQueue {
+
+    // fixed, entries are placed by doc id and every shard has to be drained
+    static final int SHARDS = 16
+    static final long MAX_RETRY_MILLIS = 60000
+
+    final CommandExecServices svcs
+    final String space
+    final int threads
+    final int batchSize
+    private final RateLimiter limiter
+
+    int maxAttempts = 5
+    long retryMillis = 1000
+
+    private ExecutorService workers = null
+    private volatile boolean stopped = false
+    private final Object signal = new Object()
+    // enqueue() calls, so a worker doesn't wait after missing one while it was reading
+    private long enqueues = 0
+    // position of the last processed entry per shard, so the tombstones of dequeued entries aren't read again
+    private final UUID[] positions = new UUID[SHARDS]
+    // failed attempts per queued entry, and when a shard that failed is read again
+    private final Map<UUID, Integer> attempts = new ConcurrentHashMap<>()
+    private final long[] retryAt = new long[SHARDS]
+
+    final AtomicLong queued = new AtomicLong()
+    final AtomicLong deleted = new AtomicLong()
+    final AtomicLong failures = new AtomicLong()
+    final AtomicLong deadLettered = new AtomicLong()
+
+    CleanupQueue(CommandExecServices svcs, String space, int threads, double docsPerSecond, int batchSize) {
+        this.svcs = svcs
+        this.space = space
+        this.threads = Math.max(1, Math.min(threads, SHARDS))
+        this.batchSize = batchSize
+        this.limiter = RateLimiter.create(docsPerSecond)
+    }
+
+    static int shard(String docUUID) {
+        Math.abs(docUUID.hashCode() % SHARDS)
+    }
+
+    /**
+     * start the worker threads, creating the queue table of collections created before it existed
+     */
+    synchronized void start() {
+        if (workers != null || stopped) {
+            return
+        }
+        svcs.driver.executeDirectUpdate(space, CassandraSchemaUtil.createCleanupQueueTable(space), null, 'QUORUM', null)
+        svcs.driver.executeDirectUpdate(space, CassandraSchemaUtil.createCleanupDeadLetterTable(space), null, 'QUORUM', null)
+        AtomicInteger threadCount = new AtomicInteger()
+        workers = Executors.newFixedThreadPool(threads, { Runnable r ->
+            Thread t = new Thread(r, "cassdoc-cleanup-$space-" + threadCount.incrementAndGet())
+            t.daemon = true
+            return t
+        } as ThreadFactory)
+        for (int i = 0; i < threads; i++) {
+            final int worker = i
+            workers.submit({ drain(worker) } as Runnable)
+        }
+        log.inf("cleanup queue of $space started with $threads workers", null)
+    }
+
+    synchronized void stop() {
+        stopped = true
+        workers?.shutdownNow()
+        workers = null
+    }
+
+    /**
+     * Queue docs for deletion. Synchronous: once this returns the docs will be deleted, even if the server stops.
+     */
+    void enqueue(Collection<String> docUUIDs) {
+        enqueueAsync(enqueueStatements(docUUIDs)).join()
+    }
+
+    /**
+     * the prepared inserts queueing the docs, to be sent by enqueueAsync, e.g. once the writes that unreference the
+     * docs have landed
+     */
+    List<St> enqueueStatements(Collection<String> docUUIDs) {
+        String cql = "INSERT INTO ${space}.cq (s, id, e) VALUES (?, ?, ?)"
+        List<St> inserts = []
+        for (String docUUID : docUUIDs) {
+            inserts.add(svcs.driver.prepareSt(space, cql, [shard(docUUID), UUIDGen.getTimeUUID(), docUUID] as Object[], 'QUORUM', null))
+        }
+        return inserts
+    }
+
+    /**
+     * send inserts of enqueueStatements, the docs are queued once this completes
+     */
+    CompletableFuture<Void> enqueueAsync(final List<St> inserts) {
+        if (inserts.isEmpty()) {
+            return CompletableFuture.completedFuture((Void) null)
+        }
+        return svcs.driver.executeStatementsFuture(inserts).thenRun({
+            queued.addAndGet(inserts.size())
+            synchronized (signal) {
+                enqueues++
+                signal.notifyAll()
+            }
+        } as Runnable)
+    }
+
+    // ---- workers
+
+    static class Entry {
+        int shard
+        UUID id
+        String docUUID
+        Future<List<Rel>> rels
+    }
+
+    private void drain(int worker) {
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+            boolean found = false
+            long seen
+            synchronized (signal) {
+                seen = enqueues
+            }
+            long idle = TimeUnit.SECONDS.toMillis(5)
+            for (int shard = worker; shard < SHARDS; shard += threads) {
+                long backoff = retryAt[shard] - System.currentTimeMillis()
+                if (backoff > 0) {
+                    idle = Math.min(idle, backoff)
+                    continue
+                }
+                List<Entry> level = null
+                try {
+                    level = read(shard)
+                    if (!level.isEmpty()) {
+                        found = true
+                        if (level.size() > 1 && retrying(level)) {
+                            level = [level[0]]
+                        }
+                        limiter.acquire(level.size())
+                        process(level)
+                        for (Entry entry : level) {
+                            attempts.remove(entry.id)
+                        }
+                        positions[shard] = level[-1].id
+                    } else {
+                        // rescan from the start next time, in case an entry was queued with a lagging clock
+                        positions[shard] = null
+                    }
+                } catch (InterruptedException e) {
+                    return
+                } catch (Exception e) {
+                    failed(shard, level, e)
+                }
+            }
+            if (!found) {
+                try {
+                    synchronized (signal) {
+                        if (enqueues == seen) {
+                            signal.wait(Math.max(1L, idle))
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return
+                }
+            }
+        }
+    }
+
+    private boolean retrying(List<Entry> level) {
+        for (Entry entry : level) {
+            if (attempts.containsKey(entry.id)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * back off the shard, or move a doc that keeps failing on its own to the dead letter table
+     */
+    private void failed(int shard, List<Entry> level, Exception e) {
+        failures.incrementAndGet()
+        positions[shard] = null
+        int attempt = 1
+        for (Entry entry : level ?: Collections.<Entry> emptyList()) {
+            // a shard is drained by one worker only
+            int entryAttempt = (attempts[entry.id] ?: 0) + 1
+            attempts[entry.id] = entryAttempt
+            attempt = Math.max(attempt, entryAttempt)
+        }
+        if (level?.size() == 1 && attempt >= maxAttempts) {
+            try {
+                deadLetter(level[0], e)
+                return
+            } catch (Exception dle) {
+                log.wrn("cleanup of $space could not move ${level[0].docUUID} to the dead letter table", dle)
+            }
+        }
+        long wait = Math.min(retryMillis << Math.min(attempt - 1, 16), MAX_RETRY_MILLIS)
+        retryAt[shard] = System.currentTimeMillis() + wait
+        log.wrn("cleanup of $space shard $shard failed (attempt $attempt), retrying in $wait ms", e)
+    }
+
+    private void deadLetter(Entry entry, Exception error) {
+        String insert = "INSERT INTO ${space}.cqd (s, id, e, error) VALUES (?, ?, ?, ?)"
+        svcs.driver.executeStatementFuture(svcs.driver.prepareSt(space, insert, [entry.shard, entry.id, entry.docUUID, String.valueOf(error)] as Object[], 'QUORUM', null)).join()
+        String dequeue = "DELETE FROM ${space}.cq WHERE s = ? AND id = ?"
+        svcs.driver.executeStatementFuture(svcs.driver.prepareSt(space, dequeue, [entry.shard, entry.id] as Object[], 'QUORUM', null)).join()
+        attempts.remove(entry.id)
+        deadLettered.incrementAndGet()
+        log.err("cleanup of $space gave up on ${entry.docUUID} after $maxAttempts attempts, moved to ${space}.cqd", error)
+    }
+
+    private List<Entry> read(int shard) {
+        UUID position = positions[shard]
+        String cql = position == null
+                ? "SELECT id, e FROM ${space}.cq WHERE s = ? LIMIT $batchSize"
+                : "SELECT id, e FROM ${space}.cq WHERE s = ? AND id > ? LIMIT $batchSize"
+        Object[] args = position == null ? [shard] as Object[] : [shard, position] as Object[]
+        ResultSet rs = svcs.driver.initiateQuery(space, cql, args, 'QUORUM', batchSize, null)
+        List<Entry> level = []
+        for (Row row : rs) {
+            level.add(new Entry(shard: shard, id: row.getUUID(0), docUUID: row.getString(1)))
+        }
+        return level
+    }
+
+    /**
+     * delete a batch of queued docs: rels read concurrently, children queued, then the docs deleted and dequeued
+     */
+    private void process(List<Entry> level) {
+        final OperationContext opctx = new OperationContext(space: space)
+        final Detail detail = new Detail()
+        for (Entry next : level) {
+            // the loop variable is shared by the closures
+            final Entry entry = next
+            entry.rels = svcs.readExecutor.submit({
+                new GetRelsCmd(p1: entry.docUUID).queryCassandraDocRels(svcs, opctx, detail).rels
+            } as Callable<List<Rel>>)
+        }
+        List<String> children = []
+        for (Entry entry : level) {
+            try {
+                children.addAll(DeleteOperations.childDocs(entry.rels.get()))
+            } catch (ExecutionException e) {
+                throw e.cause
+            }
+        }
+        // the children go first: once a doc's rels are deleted nothing else leads to them
+        enqueue(children)
+
+        opctx.executionMode = 'batch'
+        for (Entry entry : level) {
+            DeleteOperations.analyzeDeleteDocEvent(svcs, opctx, detail, entry.docUUID, entry.rels.get())
+        }
+        opctx.DO(svcs, detail)
+
+        String cql = "DELETE FROM ${space}.cq WHERE s = ? AND id = ?"
+        List<St> dequeues = []
+        for (Entry entry : level) {
+            dequeues.add(svcs.driver.prepareSt(space, cql, [entry.shard, entry.id] as Object[], 'QUORUM', null))
+        }
+        svcs.driver.executeStatementsFuture(dequeues).join()
+        deleted.addAndGet(level.size())
+        log.dbg("cleanup of $space deleted ${level.size()} docs, queued ${children.size()} children", null)
+    }
+
+    Map<String, Object> getStatus() {
+        [
+                running     : workers != null,
+                queued      : queued.get(),
+                deleted     : deleted.get(),
+                failures    : failures.get(),
+                deadLettered: deadLettered.get()
+        ] as Map<String, Object>
+    }
+}
@@ -7,25 +7,40 @@ import cassdoc.commands.mutate.NewRel
 import cassdoc.commands.mutate.UpdFixedCol
 import com.datastax.driver.core.DataType
 import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonStreamContext
 import com.fasterxml.jackson.core.JsonToken
 import cwdrg.lg.annotation.Log
 import groovy.transform.CompileStatic
 import org.apache.commons.lang3.StringEscapeUtils
 import org.apache.commons.lang3.StringUtils
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
 @Log
 @CompileStatic
 class CreateOperations {
 
+    /**
+     * time UUIDs reserved at a time for the ids of a doc stream
+     */
+    static final int ID_BLOCK_SIZE = 256
+
     // array "stream" of docs
-    // TODO: special streaming execution mode: not immediate, nor do we wait until the end.
+    // in "stream" execution mode each doc is written as soon as it is parsed, see streamNewDocs
     static String newDocStream(CommandExecServices svcs, OperationContext opctx, Detail detail, Reader inputListOfJsonDocs, Writer outputListOfIDs) {
         outputListOfIDs << '['
+        // many docs, ids from one thread
+        opctx.idBlockSize = Math.max(opctx.idBlockSize, ID_BLOCK_SIZE)
         JsonParser parser = svcs.jsonFactory.createParser(inputListOfJsonDocs)
         JsonToken firsttoken = parser.nextToken()
         boolean firstid = true
         if (firsttoken != JsonToken.START_ARRAY) {
             throw log.err("", new IllegalArgumentException("newDocStream operation must begin with JSON START_ARRAY token"))
+        } else if (opctx.executionMode == "stream") {
+            streamNewDocs(svcs, opctx, detail, parser, outputListOfIDs)
+            outputListOfIDs << ']'
         } else {
             while (true) {
                 JsonToken startObjToken = parser.nextToken()
@@ -61,6 +76,83 @@ class CreateOperations {
         }
     }
 
+    /**
+     * Stream mode ingest: the commands of each document (and its child docs) are flushed as a unit as soon as it is
+     * parsed, while the next documents are parsed. At most detail.writeWindow (default 32) documents are in flight;
+     * when the window is full the oldest one is waited on before any more input is read, so memory stays flat no
+     * matter how long the input array is.
+     *
+     * The output array has the id of each document in input order, or {"_id":id,"_error":message} for a document
+     * that failed to parse or write (the id is null if it wasn't parsed). A document that failed to write may be
+     * partially written. Malformed JSON still fails the whole stream, since the next document can't be found.
+     *
+     * @param svcs
+     * @param opctx
+     * @param detail
+     * @param parser positioned at the START_ARRAY of the document list
+     * @param outputListOfIDs
+     */
+    static void streamNewDocs(CommandExecServices svcs, OperationContext opctx, Detail detail, JsonParser parser, Writer outputListOfIDs) {
+        int window = detail.writeWindow ?: 32
+        JsonStreamContext docListContext = parser.parsingContext
+        ArrayDeque<Tuple2<String, CompletableFuture<Void>>> inflight = new ArrayDeque<>()
+        boolean first = true
+        while (true) {
+            while (inflight.size() >= window) {
+                writeStreamedDocResult(inflight.poll(), outputListOfIDs, first)
+                first = false
+            }
+            JsonToken startObjToken = parser.nextToken()
+            if (startObjToken == JsonToken.END_ARRAY || startObjToken == null) {
+                break
+            }
+            String docId = null
+            CompletableFuture<Void> written
+            try {
+                if (startObjToken != JsonToken.START_OBJECT) {
+                    throw new IllegalArgumentException("newDocStream operation, one of the array elements is not a doc")
+                }
+                if (parser.nextToken() != JsonToken.FIELD_NAME || !svcs.idField.equals(parser.getCurrentName())) {
+                    throw new IllegalArgumentException("newDocStream: ID FIELD IS NOT FIRST FIELD")
+                }
+                docId = newChildDoc(svcs, opctx, detail, parser, null, null, false)
+                written = opctx.flush(svcs, detail)
+            } catch (JsonProcessingException jpe) {
+                throw log.err("", jpe)
+            } catch (Exception e) {
+                log.dbg("newDocStream: skipping failed doc $docId", e)
+                // drop what was collected of the failed doc, and move to the next element of the list
+                opctx.commands = []
+                while (parser.parsingContext != docListContext) {
+                    if (parser.nextToken() == null) {
+                        break
+                    }
+                }
+                written = new CompletableFuture<Void>()
+                written.completeExceptionally(e)
+            }
+            inflight.add(new Tuple2<String, CompletableFuture<Void>>(docId, written))
+        }
+        while (!inflight.isEmpty()) {
+            writeStreamedDocResult(inflight.poll(), outputListOfIDs, first)
+            first = false
+        }
+    }
+
+    private static void writeStreamedDocResult(Tuple2<String, CompletableFuture<Void>> doc, Writer outputListOfIDs, boolean first) {
+        if (!first) {
+            outputListOfIDs << ','
+        }
+        try {
+            doc.second.join()
+            outputListOfIDs << '"' << doc.first << '"'
+        } catch (CompletionException ce) {
+            Throwable error = ce.cause ?: ce
+            outputListOfIDs << '{"' << AttrNames.SYS_DOCID << '":' << (doc.first == null ? 'null' : '"' + doc.first + '"')
+            outputListOfIDs << ',"_error":"' << StringEscapeUtils.escapeJson(error.message ?: error.class.simpleName) << '"}'
+        }
+    }
+
     static String newMap(
             final CommandExecServices svcs,
             final OperationContext opctx,
@@ -176,10 +268,10 @@ class CreateOperations {
         JsonToken token = parser.nextToken()
         if (token == JsonToken.VALUE_STRING) {
             String idString = parser.getText()
-            if (svcs.collections[opctx.space].first.isKnownSuffix(idString)) {
-                return IDUtil.timeUUID() + "-" + idString
+            if (svcs.types(opctx.space).isKnownSuffix(idString)) {
+                return opctx.newDocUUID(idString)
             } else {
-                if (svcs.collections[opctx.space].first.isKnownSuffix(IDUtil.idSuffix(idString))) {
+                if (svcs.types(opctx.space).isKnownSuffix(IDUtil.idSuffix(idString))) {
                     return idString
                 } else {
                     throw new IllegalArgumentException("Unknown type suffix for provided UUID: " + idString)
@@ -192,10 +284,10 @@ class CreateOperations {
 
     // for newDoc with maps rather than JSON tokens
     static String checkIDAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String idString) {
-        if (svcs.collections[opctx.space].first.isKnownSuffix(idString)) {
-            return IDUtil.timeUUID() + "-" + idString
+        if (svcs.types(opctx.space).isKnownSuffix(idString)) {
+            return opctx.newDocUUID(idString)
         } else {
-            if (svcs.collections[opctx.space].first.isKnownSuffix(IDUtil.idSuffix(idString))) {
+            if (svcs.types(opctx.space).isKnownSuffix(IDUtil.idSuffix(idString))) {
                 return idString
             } else {
                 throw new IllegalArgumentException("Unknown type suffix for provided UUID: " + idString)
@@ -380,54 +472,10 @@ class CreateOperations {
 
         // fixed attr: should this be in event???
         String suffix = IDUtil.idSuffix(cmd.docUUID)
-        FixedAttr attrdef = svcs.collections[opctx.space].first.getTypeForSuffix(suffix).fixedAttrMap[cmd.attrName]
+        FixedAttr attrdef = svcs.types(opctx.space).getTypeForSuffix(suffix).fixedAttrMap[cmd.attrName]
         String col = attrdef?.colname
         if (col != null) {
-            Object val = null
-            switch (StringUtils.lowerCase(attrdef.coltype)) {
-                case null:  // assume string/varchar/text if not specified
-                case DataType.Name.ASCII.toString():
-                case DataType.Name.TEXT.toString():
-                case DataType.Name.VARCHAR.toString():
-                case "string":
-                    val = cmd.attrValue?.value
-                    break
-                case DataType.Name.TIMESTAMP.toString():
-                case "date":
-                case "datetime":
-                    val = cmd.attrValue == null ? null : new Date(Long.parseLong(cmd.attrValue.value))
-                    break
-                case DataType.Name.BIGINT.toString():
-                case "long":
-                case "counter":
-                    val = cmd.attrValue == null ? null : Long.parseLong(cmd.attrValue.value)
-                    break
-                case DataType.Name.INT.toString():
-                case "integer":
-                case "int":
-                    val = cmd.attrValue == null ? null : Integer.parseInt(cmd.attrValue.value)
-                    break
-                case DataType.Name.BOOLEAN.toString():
-                case "boolean":
-                    val = cmd.attrValue == null ? null : Boolean.parseBoolean(cmd.attrValue.value)
-                    break
-                case DataType.Name.FLOAT.toString():
-                case "float":
-                    val = cmd.attrValue == null ? null : Float.parseFloat(cmd.attrValue.value)
-                    break
-                case DataType.Name.DOUBLE.toString():
-                case "double":
-                    val = cmd.attrValue == null ? null : Double.parseDouble(cmd.attrValue.value)
-                    break
-                case DataType.Name.DECIMAL.toString():
-                case "bigdecimal":
-                    val = cmd.attrValue == null ? null : new BigDecimal(cmd.attrValue.value)
-                    break
-                case DataType.Name.VARINT.toString():
-                case "bigint":
-                    val = cmd.attrValue == null ? null : new BigInteger(cmd.attrValue.value)
-                    break
-            }
+            Object val = fixedColValue(attrdef.coltype, cmd.attrValue?.value)
             UpdFixedCol fixedcol = new UpdFixedCol(docUUID: cmd.docUUID, colName: col, value: val)
             opctx.addCommand(svcs, detail, fixedcol)
         }
@@ -436,6 +484,51 @@ class CreateOperations {
         IndexOperations.processNewAttrIndexes(svcs, opctx, detail, cmd)
     }
 
+    /**
+     * the value bound to a FixedAttr column of the coltype, from the attribute's text value. Null for unknown coltypes.
+     */
+    static Object fixedColValue(String coltype, String value) {
+        if (value == null) {
+            return null
+        }
+        switch (StringUtils.lowerCase(coltype)) {
+            case null:  // assume string/varchar/text if not specified
+            case DataType.Name.ASCII.toString():
+            case DataType.Name.TEXT.toString():
+            case DataType.Name.VARCHAR.toString():
+            case "string":
+                return value
+            case DataType.Name.TIMESTAMP.toString():
+            case "date":
+            case "datetime":
+                return new Date(Long.parseLong(value))
+            case DataType.Name.BIGINT.toString():
+            case "long":
+            case "counter":
+                return Long.parseLong(value)
+            case DataType.Name.INT.toString():
+            case "integer":
+            case "int":
+                return Integer.parseInt(value)
+            case DataType.Name.BOOLEAN.toString():
+            case "boolean":
+                return Boolean.parseBoolean(value)
+            case DataType.Name.FLOAT.toString():
+            case "float":
+                return Float.parseFloat(value)
+            case DataType.Name.DOUBLE.toString():
+            case "double":
+                return Double.parseDouble(value)
+            case DataType.Name.DECIMAL.toString():
+            case "bigdecimal":
+                return new BigDecimal(value)
+            case DataType.Name.VARINT.toString():
+            case "bigint":
+                return new BigInteger(value)
+        }
+        return null
+    }
+
     static void addRel(
             final CommandExecServices svcs, final OperationContext opctx, final Detail detail, final Rel rel) {
         NewRel newRelCmd = new NewRel()
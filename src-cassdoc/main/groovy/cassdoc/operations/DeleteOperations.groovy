@@ -1,5 +1,8 @@
 package cassdoc.operations
 
+import java.util.concurrent.CompletableFuture
+import java.util.function.Supplier
+
 import groovy.transform.CompileStatic
 import cassdoc.CommandExecServices
 import cassdoc.Detail
@@ -22,6 +25,7 @@ import cassdoc.commands.retrieve.GetAttrRelsCmd
 import cassdoc.commands.retrieve.GetRelsCmd
 import cassdoc.commands.retrieve.GetRelsRCH
 import cwdrg.lg.annotation.Log
+import drv.cassdriver.St
 
 @Log
 @CompileStatic
@@ -35,12 +39,17 @@ class DeleteOperations {
     // ---- rels themselves
 
 
+    /**
+     * Delete a document. The document itself is deleted with the operation, its subdocuments are queued (durably,
+     * once the operation's deletes are written) and deleted in the background by the collection's CleanupQueue.
+     */
     static void deleteDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID) {
         log.inf("DELDOC_top:: $docUUID", null)
         GetRelsCmd getRels = new GetRelsCmd(p1: docUUID)
         GetRelsRCH docRels = getRels.queryCassandraDocRels(svcs, opctx, detail)
 
         analyzeDeleteDocEvent(svcs, opctx, detail, docUUID, docRels.rels)
+        cleanupAfterWrite(svcs, opctx, childDocs(docRels.rels))
 
     }
 
@@ -53,17 +62,36 @@ class DeleteOperations {
         DelAttr delAttr = new DelAttr(docUUID: docUUID, attrName: attr)
         analyzeDeleteAttrEvent(svcs, opctx, detail, delAttr, attrChildDocs.rels, clear)
 
-        // cascade the delete for child rels
-        for (Rel childRel : attrChildDocs.rels) {
-            if (childRel.ty1 == RelTypes.TO_CHILD) {
-                String childDocUUID = childRel.c1
-                // TODO: recurse/deletion cascade detail
-                // TODO: recursive cleanup in a cleanup threadx
+        // cascade the delete to the attribute's subdocuments, see deleteDoc
+        cleanupAfterWrite(svcs, opctx, childDocs(attrChildDocs.rels))
 
-                deleteDoc(svcs, opctx, detail, childDocUUID)
-            }
+    }
+
+    /**
+     * queue subdocuments for the CleanupQueue once the operation's commands are written, so an operation that fails or
+     * is never executed leaves them with their (still live) parent. Immediate mode queues them right away, after the
+     * commands already sent.
+     */
+    static void cleanupAfterWrite(CommandExecServices svcs, OperationContext opctx, Collection<String> children) {
+        if (children.isEmpty()) {
+            return
         }
+        final CleanupQueue queue = svcs.cleanupQueue(opctx.space)
+        final List<St> inserts = queue.enqueueStatements(children)
+        opctx.afterWrite({ queue.enqueueAsync(inserts) } as Supplier<CompletableFuture<Void>>)
+    }
 
+    /**
+     * the subdocuments (TO_CHILD rels) of a doc's or attribute's rels
+     */
+    static List<String> childDocs(List<Rel> rels) {
+        List<String> children = []
+        for (Rel childRel : rels) {
+            if (childRel.ty1 == RelTypes.TO_CHILD) {
+                children.add(childRel.c1)
+            }
+        }
+        return children
     }
 
     static void analyzeDeleteDocEvent(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, List<Rel> docRels) {
@@ -79,13 +107,7 @@ class DeleteOperations {
         DelDoc_P delDocP = new DelDoc_P(docUUID: docUUID)
         opctx.addCommand(svcs, detail, delDocP)
 
-        for (Rel childRel : docRels) {
-            if (childRel.ty1 == RelTypes.TO_CHILD) {
-                String childDocUUID = childRel.c1
-                //TODO: recurse detail
-                deleteDoc(svcs, opctx, detail, childDocUUID)
-            }
-        }
+        // subdocuments are deleted by the CleanupQueue
 
         // TODO: clear parent rels to this UUID... or update? ... need to think about this.
         // TODO: clear bidirectional rels
@@ -95,7 +117,7 @@ class DeleteOperations {
     static void analyzeDeleteAttrEvent(CommandExecServices svcs, OperationContext opctx, Detail detail, DelAttr cmd, List<Rel> attrRels, boolean clear) {
         IndexOperations.cleanupDocAttrIndexes(svcs, opctx, detail, cmd.docUUID, cmd.attrName, attrRels)
 
-        DocType docType = svcs.collections[opctx.space].first.getTypeForID(cmd.docUUID)
+        DocType docType = svcs.types(opctx.space).getTypeForID(cmd.docUUID)
         FixedAttr fixed = docType.fixedAttrMap[cmd.attrName]
 
         if (fixed != null) {
@@ -8,6 +8,7 @@ import cassdoc.IDUtil
 import cassdoc.IndexTypes
 import cassdoc.ManualIndex
 import cassdoc.OperationContext
+import cassdoc.RangeManualIndex
 import cassdoc.Rel
 import cassdoc.RelTypes
 import cassdoc.commands.mutate.ClrIdxVal
@@ -24,7 +25,7 @@ class IndexOperations {
 
 
     static void cleanupDocIndexes(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, List<Rel> docRels) {
-        DocType docType = svcs.collections[opctx.space].first.getTypeForID(docUUID)
+        DocType docType = svcs.types(opctx.space).getTypeForID(docUUID)
 
         Set<ManualIndex> processedIndexes = [] as Set
         for (Rel rel : docRels) {
@@ -45,6 +46,11 @@ class IndexOperations {
                         cmd.v1 = docUUID
                         log.dbg("clean idx: " + JSONUtil.serialize(cmd), null)
                         opctx.addCommand(svcs, detail, cmd)
+                    } else if (idx.indexType == IndexTypes.RANGE) {
+                        // the has-idx rel has the entry's bucket and encoded value
+                        ClrIdxVal cmd = new RangeManualIndex(index: idx).clearEntry(rel.c2, rel.c3, docUUID)
+                        log.dbg("clean range idx: " + JSONUtil.serialize(cmd), null)
+                        opctx.addCommand(svcs, detail, cmd)
                     }
                 }
             }
@@ -52,7 +58,7 @@ class IndexOperations {
     }
 
     static void cleanupDocAttrIndexes(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, List<Rel> attrRels) {
-        DocType docType = svcs.collections[opctx.space].first.getTypeForID(docUUID)
+        DocType docType = svcs.types(opctx.space).getTypeForID(docUUID)
 
         log.dbg("docUUID: " + docUUID + " docType: " + docType?.suffix + " attrName: " + attrName, null)
         Set<ManualIndex> attrIndexes = docType.attrIndexMap[attrName]
@@ -77,6 +83,11 @@ class IndexOperations {
                         cmd.v1 = docUUID
                         log.dbg("clean idx: " + JSONUtil.serialize(cmd), null)
                         opctx.addCommand(svcs, detail, cmd)
+                    } else if (idx.indexType == IndexTypes.RANGE) {
+                        // the has-idx rel has the entry's bucket and encoded value
+                        ClrIdxVal cmd = new RangeManualIndex(index: idx).clearEntry(rel.c2, rel.c3, docUUID)
+                        log.dbg("clean range idx: " + JSONUtil.serialize(cmd), null)
+                        opctx.addCommand(svcs, detail, cmd)
                     }
                 }
             }
@@ -87,7 +98,7 @@ class IndexOperations {
 
         // fixed attr cols (basically these are indexes)
         String suffix = IDUtil.idSuffix(cmd.docUUID)
-        DocType docType = svcs.collections[opctx.space].first.getTypeForSuffix(suffix)
+        DocType docType = svcs.types(opctx.space).getTypeForSuffix(suffix)
         String col = docType.fixedAttrMap[cmd.attrName]?.colname
         if (col != null) {
             UpdFixedCol fixedcol = new UpdFixedCol(docUUID: cmd.docUUID, colName: col, value: cmd.attrValue?.value)
@@ -121,6 +132,34 @@ class IndexOperations {
                     log.dbg("add has-idx rel: " + JSONUtil.serialize(rel), null)
                     opctx.addCommand(svcs, detail, rel)
 
+                } else if (idx.indexType == IndexTypes.RANGE) {
+                    String value = cmd.attrValue?.value
+                    if (value == null) {
+                        continue
+                    }
+                    RangeManualIndex range = new RangeManualIndex(index: idx)
+                    String encoded
+                    String bucket
+                    try {
+                        encoded = range.encode(value)
+                        bucket = range.bucket(encoded, value)
+                    } catch (Exception e) {
+                        log.wrn("value of ${cmd.attrName} in ${cmd.docUUID} not indexable by ${idx.indexRef}", e)
+                        continue
+                    }
+                    InsIdxValOnly entry = range.entry(bucket, encoded, cmd.docUUID)
+                    log.dbg("add range idx: " + JSONUtil.serialize(entry), null)
+                    opctx.addCommand(svcs, detail, entry)
+                    opctx.addCommand(svcs, detail, range.directoryEntry(bucket))
+
+                    NewRel rel = new NewRel()
+                    rel.p1 = cmd.docUUID
+                    rel.ty1 = RelTypes.SYS_INDEX
+                    rel.p2 = cmd.attrName
+                    rel.c1 = idx.indexRef
+                    rel.c2 = bucket
+                    rel.c3 = encoded
+                    opctx.addCommand(svcs, detail, rel)
                 }
             }
         }
@@ -0,0 +1,149 @@
+package cassdoc.operations
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonParser
+import cwdrg.util.json.JSONUtil
+import groovy.transform.CompileStatic
+
+/**
+ * JsonGenerators for the retrieval emit paths.
+ *
+ * Generators come from the services' shared JsonFactory, which hands each thread its recycled output buffer: a
+ * generator is cheap, and finish() returns its buffer for the next one. Generators never close their target.
+ *
+ * Over an OutputStream (a servlet response) the generator writes UTF-8 bytes directly; the target is flushed at
+ * document boundaries once flushBytes have been written since the last flush, rather than on every write.
+ *
+ * @author cowardlydragon
+ */
+@CompileStatic
+class JsonEmit {
+
+    static final int DEFAULT_FLUSH_BYTES = 64 * 1024
+
+    /**
+     * counts the bytes the generator hands over, for the flush threshold
+     */
+    static class CountingStream extends FilterOutputStream {
+        final int flushBytes
+        long written = 0
+        long flushedAt = 0
+
+        CountingStream(OutputStream out, int flushBytes) {
+            super(out)
+            this.flushBytes = flushBytes
+        }
+
+        @Override
+        void write(int b) throws IOException {
+            out.write(b)
+            written++
+        }
+
+        @Override
+        void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len)
+            written += len
+        }
+    }
+
+    static JsonGenerator generator(JsonFactory factory, Writer writer) {
+        JsonGenerator gen = factory.createGenerator(writer)
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        return gen
+    }
+
+    static JsonGenerator generator(JsonFactory factory, OutputStream out) {
+        generator(factory, out, DEFAULT_FLUSH_BYTES)
+    }
+
+    /**
+     * @param flushBytes bytes written between flushes of the stream at document boundaries
+     */
+    static JsonGenerator generator(JsonFactory factory, OutputStream out, int flushBytes) {
+        JsonGenerator gen = factory.createGenerator(new CountingStream(out, flushBytes))
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        return gen
+    }
+
+    /**
+     * a document boundary of a multi document response: flush the target if the threshold has been passed
+     */
+    static void boundary(JsonGenerator gen) {
+        Object target = gen.outputTarget
+        if (target instanceof CountingStream) {
+            CountingStream counting = (CountingStream) target
+            if (counting.written + gen.outputBuffered - counting.flushedAt >= counting.flushBytes) {
+                gen.flush()
+                counting.flushedAt = counting.written
+            }
+        }
+    }
+
+    /**
+     * flush and release the generator's buffer, the target stays open
+     */
+    static void finish(JsonGenerator gen) {
+        gen.close()
+    }
+
+    /**
+     * stored json text of a scalar (number, boolean), or something that prints as one, as is
+     */
+    static void writeRaw(JsonGenerator gen, Object value) {
+        if (value == null) {
+            gen.writeNull()
+        } else {
+            gen.writeRawValue(value.toString())
+        }
+    }
+
+    /**
+     * a deserialized value (maps, lists, strings, numbers, booleans), other objects as JSONUtil serializes them
+     */
+    static void writeValue(JsonGenerator gen, Object value) {
+        if (value == null) {
+            gen.writeNull()
+        } else if (value instanceof String) {
+            gen.writeString((String) value)
+        } else if (value instanceof Boolean) {
+            gen.writeBoolean((Boolean) value)
+        } else if (value instanceof BigDecimal) {
+            gen.writeNumber((BigDecimal) value)
+        } else if (value instanceof BigInteger) {
+            gen.writeNumber((BigInteger) value)
+        } else if (value instanceof Long || value instanceof Integer) {
+            gen.writeNumber(((Number) value).longValue())
+        } else if (value instanceof Double || value instanceof Float) {
+            gen.writeNumber(((Number) value).doubleValue())
+        } else if (value instanceof Map) {
+            gen.writeStartObject()
+            for (Map.Entry entry : ((Map) value).entrySet()) {
+                gen.writeFieldName(String.valueOf(entry.key))
+                writeValue(gen, entry.value)
+            }
+            gen.writeEndObject()
+        } else if (value instanceof Collection) {
+            gen.writeStartArray()
+            for (Object member : (Collection) value) {
+                writeValue(gen, member)
+            }
+            gen.writeEndArray()
+        } else {
+            gen.writeRawValue(JSONUtil.serialize(value))
+        }
+    }
+
+    /**
+     * copy the parser's current scalar token. Numbers are copied as their text, so their representation (1.50, 1e3) is
+     * kept, the rest through copyCurrentEvent, which copies strings from the parser's buffer.
+     */
+    static void copyScalar(JsonGenerator gen, JsonParser parser) {
+        if (parser.currentToken.isNumeric()) {
+            gen.writeRawValue(parser.textCharacters, parser.textOffset, parser.textLength)
+        } else {
+            gen.copyCurrentEvent(parser)
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package cassdoc.operations
+
+import cassdoc.AttrStorage
+import cassdoc.CommandExecServices
+import cassdoc.DBCodes
+import cassdoc.Detail
+import cassdoc.IDUtil
+import cassdoc.OperationContext
+import cassdoc.commands.retrieve.GetAttrCmd
+import cassdoc.commands.retrieve.GetAttrRCH
+import cassdoc.exceptions.ResourceNotFoundException
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.jayway.jsonpath.JsonPath
+import com.jayway.jsonpath.PathNotFoundException
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+
+/**
+ * JsonPath evaluation against stored documents without rendering the whole document.
+ *
+ * Compiled paths are cached. The leading plain segments of a path ($.foo.bar[2], $['foo']...) are resolved against
+ * the stored data directly: the first one selects the single p_ row of the attribute, the rest are found by streaming
+ * the attribute's stored json with a Jackson parser, skipping everything off the path. Child doc references on the
+ * way are followed the same way (one attribute row per child doc), so only the child docs the path goes through or
+ * ends in are read. Whatever remains of the path (wildcards, filters, deep scans...) is evaluated by JsonPath on the
+ * rendered value the leading segments reach.
+ *
+ * Paths that can't be resolved that way (no leading attribute, meta attributes, $ inside filters) are evaluated on the
+ * fully rendered document as before. Results are the same either way: JsonPath's result, toString()ed.
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class JsonPathOperations {
+
+    static final int PATH_CACHE_SIZE = 2000
+
+    private static final Cache<String, CompiledPath> PATHS = CacheBuilder.newBuilder().maximumSize(PATH_CACHE_SIZE).build()
+    private static final JsonPath ROOT = JsonPath.compile('$')
+
+    static class CompiledPath {
+        String expression
+        JsonPath path
+        /** leading plain segments: String property names and Integer array indexes */
+        List<Object> leading = []
+        /** what follows the leading segments, applied to the value they reach, null if nothing does */
+        JsonPath rest
+    }
+
+    /**
+     * a value reached by the leading segments
+     */
+    private static class Found {
+        String json
+        Object scalar
+        boolean isScalar
+    }
+
+    // the path goes somewhere the leading segments can't follow: evaluate against the whole doc
+    private static final Found FALLBACK = new Found()
+
+    static CompiledPath compile(String expression) {
+        CompiledPath compiled = PATHS.getIfPresent(expression)
+        if (compiled == null) {
+            compiled = parse(expression)
+            PATHS.put(expression, compiled)
+        }
+        return compiled
+    }
+
+    /**
+     * @param svcs
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param expression JsonPath against the document
+     * @return the toString of the JsonPath result
+     */
+    static String docPath(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String expression) {
+        CompiledPath compiled = compile(expression)
+        if (!compiled.leading.isEmpty()) {
+            // as the rendered doc would: a missing doc is not found, whatever the path
+            if (!docExists(svcs, opctx, detail, docUUID)) {
+                throw new ResourceNotFoundException(docUUID)
+            }
+            String result = finish(compiled, resolveInDoc(svcs, opctx, detail, docUUID, compiled.leading, 0))
+            if (result != null) {
+                return result
+            }
+        }
+        StringWriter writer = new StringWriter()
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, writer, true)
+        return read(writer.toString(), compiled.path)
+    }
+
+    /**
+     * @param svcs
+     * @param opctx
+     * @param detail
+     * @param docUUID
+     * @param attr
+     * @param expression JsonPath against the attribute value
+     * @return the toString of the JsonPath result
+     */
+    static String attrPath(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, String expression) {
+        CompiledPath compiled = compile(expression)
+        if (!compiled.leading.isEmpty()) {
+            GetAttrRCH rch = new GetAttrCmd(docUUID: docUUID, attrName: attr).queryCassandra(svcs, opctx, detail)
+            String result = finish(compiled, resolveInAttr(svcs, opctx, detail, docUUID, attr, rch, compiled.leading, 0))
+            if (result != null) {
+                return result
+            }
+        }
+        StringWriter writer = new StringWriter()
+        RetrievalOperations.getAttr(svcs, opctx, detail, docUUID, attr, writer)
+        return read(writer.toString(), compiled.path)
+    }
+
+    // ---- path compilation
+
+    private static CompiledPath parse(String expression) {
+        CompiledPath compiled = new CompiledPath(expression: expression, path: JsonPath.compile(expression))
+        String expr = expression.trim()
+        if (!expr.startsWith('$')) {
+            return compiled
+        }
+        List<Object> leading = []
+        int i = 1
+        int n = expr.length()
+        while (i < n) {
+            char c = expr.charAt(i)
+            if (c == '.' as char && i + 1 < n && isNameChar(expr.charAt(i + 1))) {
+                int j = i + 1
+                while (j < n && isNameChar(expr.charAt(j))) {
+                    j++
+                }
+                if (j < n && expr.charAt(j) == '(' as char) {
+                    // function call, e.g. .length()
+                    break
+                }
+                leading.add(expr.substring(i + 1, j))
+                i = j
+            } else if (c == '[' as char) {
+                int close = expr.indexOf(']', i)
+                if (close < 0) {
+                    break
+                }
+                String inner = expr.substring(i + 1, close).trim()
+                if (inner ==~ /\d+/) {
+                    leading.add(Integer.valueOf(inner))
+                } else if (inner.length() >= 2 && (inner.charAt(0) == '\'' as char || inner.charAt(0) == '"' as char)
+                        && inner.charAt(inner.length() - 1) == inner.charAt(0)
+                        && inner.substring(1, inner.length() - 1).indexOf((int) inner.charAt(0)) < 0
+                        && inner.indexOf('\\') < 0) {
+                    leading.add(inner.substring(1, inner.length() - 1))
+                } else {
+                    break
+                }
+                i = close + 1
+            } else {
+                break
+            }
+        }
+        String remainder = expr.substring(i)
+        if (remainder.indexOf('$') >= 0) {
+            // filters referring to the document root need the whole document
+            return compiled
+        }
+        compiled.leading = leading
+        compiled.rest = remainder.isEmpty() ? null : JsonPath.compile('$' + remainder)
+        return compiled
+    }
+
+    private static boolean isNameChar(char c) {
+        Character.isLetterOrDigit(c) || c == '_' as char || c == '-' as char
+    }
+
+    // ---- evaluation
+
+    /**
+     * @return the result, null if the whole document has to be evaluated
+     */
+    private static String finish(CompiledPath compiled, Found found) {
+        if (found == null) {
+            if (!compiled.path.isDefinite()) {
+                return '[]'
+            }
+            throw new PathNotFoundException("No results for path: " + compiled.expression)
+        }
+        if (found.is(FALLBACK)) {
+            return null
+        }
+        if (compiled.rest == null) {
+            return found.isScalar ? String.valueOf(found.scalar) : read(found.json, ROOT)
+        }
+        return found.isScalar ? null : read(found.json, compiled.rest)
+    }
+
+    private static boolean docExists(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID) {
+        if (svcs.docCache != null) {
+            return svcs.docCache.docExists(svcs, opctx, detail, docUUID)
+        }
+        return !RetrievalOperations.query(svcs, opctx, detail, svcs.typeCql(opctx.space, IDUtil.idSuffix(docUUID)).selectDocExists, [docUUID] as Object[]).isEmpty()
+    }
+
+    private static String read(String json, JsonPath path) {
+        String.valueOf(JsonPath.parse(json).read(path))
+    }
+
+    private static Found resolveInDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, List<Object> segs, int idx) {
+        if (!(segs[idx] instanceof String)) {
+            return null
+        }
+        String attrName = (String) segs[idx]
+        if (attrName.indexOf('@') >= 0) {
+            // meta attributes are only in the rendered doc
+            return FALLBACK
+        }
+        if (attrName == svcs.idField) {
+            return idx + 1 == segs.size() ? scalar(docUUID) : null
+        }
+        Detail attrDetail = detail.resolveAttrDetail(attrName)
+        if (attrDetail == null) {
+            return null
+        }
+        GetAttrRCH rch = new GetAttrCmd(docUUID: docUUID, attrName: attrName).queryCassandra(svcs, opctx, attrDetail)
+        return resolveInAttr(svcs, opctx, attrDetail, docUUID, attrName, rch, segs, idx + 1)
+    }
+
+    private static Found resolveInAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, GetAttrRCH rch, List<Object> segs, int idx) {
+        if (rch.version == null && rch.data == null) {
+            // no such attribute
+            return null
+        }
+        if (rch.valType == DBCodes.TYPE_CODE_ARRAY || rch.valType == DBCodes.TYPE_CODE_OBJECT) {
+            JsonParser parser = AttrStorage.parser(svcs, rch.data)
+            parser.nextToken()
+            return navigate(svcs, opctx, detail, docUUID, attrName, parser, segs, idx)
+        }
+        if (idx != segs.size()) {
+            return null
+        }
+        if (rch.valType == DBCodes.TYPE_CODE_STRING || rch.data == null) {
+            return scalar(rch.data)
+        }
+        // number, boolean: stored as their json text
+        JsonParser parser = svcs.jsonFactory.createParser((String) rch.data)
+        parser.nextToken()
+        return scalar(scalarValue(parser))
+    }
+
+    /**
+     * @param parser positioned on the first token of the current value
+     */
+    private static Found navigate(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, JsonParser parser, List<Object> segs, int idx) {
+        JsonToken token = parser.getCurrentToken()
+        if (idx == segs.size()) {
+            return render(svcs, opctx, detail, docUUID, attrName, parser)
+        }
+        Object seg = segs[idx]
+        if (token == JsonToken.START_OBJECT && seg instanceof String) {
+            boolean first = true
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName()
+                parser.nextToken()
+                if (first && svcs.idField == field) {
+                    // child doc reference: continue in the child doc, or in the stub if it isn't pulled
+                    if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+                        throw new IllegalArgumentException("ID information not retrievable")
+                    }
+                    String childUUID = parser.getText()
+                    Detail childDetail = detail.resolveChildDocDetail(childUUID, attrName)
+                    if (childDetail == null) {
+                        return seg == svcs.idField && idx + 1 == segs.size() ? scalar(childUUID) : null
+                    }
+                    return resolveInDoc(svcs, opctx, childDetail, childUUID, segs, idx)
+                }
+                first = false
+                if (field == seg) {
+                    return navigate(svcs, opctx, detail, docUUID, attrName, parser, segs, idx + 1)
+                }
+                parser.skipChildren()
+            }
+            return null
+        }
+        if (token == JsonToken.START_ARRAY && seg instanceof Integer) {
+            int target = (Integer) seg
+            int i = 0
+            JsonToken member
+            while ((member = parser.nextToken()) != JsonToken.END_ARRAY && member != null) {
+                if (i == target) {
+                    return navigate(svcs, opctx, detail, docUUID, attrName, parser, segs, idx + 1)
+                }
+                parser.skipChildren()
+                i++
+            }
+        }
+        return null
+    }
+
+    /**
+     * the value the parser is on, with child docs in it expanded as the detail says
+     */
+    private static Found render(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, JsonParser parser) {
+        JsonToken token = parser.getCurrentToken()
+        if (token == JsonToken.START_OBJECT) {
+            StringWriter writer = new StringWriter()
+            RetrievalOperations.parseRetrievedChildObject(svcs, opctx, detail, docUUID, attrName, parser, writer)
+            return new Found(json: writer.toString())
+        }
+        if (token == JsonToken.START_ARRAY) {
+            StringWriter writer = new StringWriter()
+            RetrievalOperations.parseRetrievedChildArray(svcs, opctx, detail, docUUID, attrName, parser, writer)
+            return new Found(json: writer.toString())
+        }
+        return scalar(scalarValue(parser))
+    }
+
+    private static Found scalar(Object value) {
+        new Found(scalar: value, isScalar: true)
+    }
+
+    /**
+     * the scalar as JsonPath's default provider would return it
+     */
+    private static Object scalarValue(JsonParser parser) {
+        switch (parser.getCurrentToken()) {
+            case JsonToken.VALUE_STRING:
+                return parser.getText()
+            case JsonToken.VALUE_NUMBER_INT:
+                return parser.getNumberValue()
+            case JsonToken.VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue()
+            case JsonToken.VALUE_TRUE:
+                return true
+            case JsonToken.VALUE_FALSE:
+                return false
+            default:
+                return null
+        }
+    }
+}
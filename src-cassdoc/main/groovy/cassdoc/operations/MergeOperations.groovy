@@ -1,29 +1,206 @@
 package cassdoc.operations
 
+import cassdoc.AttrStorage
+import cassdoc.CommandExecServices
+import cassdoc.DBCodes
+import cassdoc.Detail
+import cassdoc.FieldValue
+import cassdoc.OperationContext
+import cassdoc.commands.mutate.NewAttr
+import cassdoc.commands.retrieve.GetAttrCmd
+import cassdoc.commands.retrieve.GetAttrRCH
+import cassdoc.commands.retrieve.GetDocAttrs
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+import cwdrg.lg.annotation.Log
 import groovy.transform.CompileStatic
 
+/**
+ * Server side merges of docs and attributes, written as deltas (see AttrDelta): only the attributes, child docs, rels and
+ * index entries the merge actually changes are touched.
+ *
+ *  - merge patch (RFC 7396) of an attribute or a doc: objects are merged recursively, null removes a field, anything
+ *    else replaces. A patch object merged into a child doc ref patches the child doc's attributes.
+ *  - array append: the input array is parsed as it is read, new child docs in it are created as they are encountered,
+ *    and the stored array is extended without being parsed.
+ *  - attribute union: the fields of an object the doc doesn't have yet are added as attributes, nothing stored changes.
+ *
+ * Both read the stored attribute and write it back without a paxos check: concurrent merges of the same attribute can
+ * lose one of the changes.
+ */
+@Log
 @CompileStatic
 class MergeOperations {
 
-    void updatePreserveChildren(String newJSON) {
-        // get child relations
-        // keep proper ids if curently in child relation set
-        // add new ones as encountered
-        // delete child relations that are no longer in attribute's content
+    /**
+     * update keeping the child docs whose ids are still referenced, see AttrDelta
+     */
+    static void updatePreserveChildren(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, String newJSON) {
+        AttrDelta.updateAttrDelta(svcs, opctx, detail, docUUID, attr, newJSON)
     }
 
-    void unionAttrs() {
+    static void mergePatchAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, String json) {
+        mergePatchAttr(svcs, opctx, detail, docUUID, attr, AttrDelta.MAPPER.readTree(json))
     }
 
-    void appendToArray(String arrayLocationPath, Reader inputJsonArray) {
-        // inputJsonArray may be subdocuments, so we'll need to parse and stream it.
+    static void mergePatchAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, JsonNode patch) {
+        if (patch == null || !patch.isObject() || AttrDelta.isChildDoc(svcs.idField, patch)) {
+            // not a patch object: replaces the value
+            AttrDelta.updateAttrDelta(svcs, opctx, detail, docUUID, attr, patch)
+            return
+        }
+        GetAttrRCH current = new GetAttrCmd(docUUID: docUUID, attrName: attr).queryCassandra(svcs, opctx, detail)
+        JsonNode stored = AttrDelta.storedNode(svcs, current.valType, current.data)
+        if (stored != null && AttrDelta.isChildDoc(svcs.idField, stored)) {
+            mergePatchDoc(svcs, opctx, detail, stored.get(svcs.idField).asText(), (ObjectNode) patch)
+            return
+        }
+        JsonNode merged = mergePatch(svcs, opctx, detail, stored, patch)
+        AttrDelta.updateAttrDelta(svcs, opctx, detail, docUUID, attr, merged, current)
+    }
+
+    static void mergePatchDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String json) {
+        JsonNode patch = AttrDelta.MAPPER.readTree(json)
+        if (patch == null || !patch.isObject()) {
+            throw log.err("", new IllegalArgumentException("merge patch of doc $docUUID is not a json object"))
+        }
+        mergePatchDoc(svcs, opctx, detail, docUUID, (ObjectNode) patch)
+    }
+
+    /**
+     * the patch's fields are the attributes to merge into, null ones are deleted. The id field is ignored.
+     */
+    static void mergePatchDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, ObjectNode patch) {
+        Iterator<Map.Entry<String, JsonNode>> fields = patch.fields()
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next()
+            if (field.key == svcs.idField) {
+                continue
+            }
+            if (field.value.isNull()) {
+                DeleteOperations.deleteAttr(svcs, opctx, detail, docUUID, field.key, false)
+            } else {
+                mergePatchAttr(svcs, opctx, detail, docUUID, field.key, field.value)
+            }
+        }
+    }
+
+    /**
+     * RFC 7396 MergePatch(target, patch), without modifying target. Patches of child doc refs are applied to the child
+     * doc right away, the ref stays as it is.
+     */
+    static JsonNode mergePatch(CommandExecServices svcs, OperationContext opctx, Detail detail, JsonNode target, JsonNode patch) {
+        if (!patch.isObject() || AttrDelta.isChildDoc(svcs.idField, patch)) {
+            return patch
+        }
+        if (target != null && AttrDelta.isChildDoc(svcs.idField, target)) {
+            mergePatchDoc(svcs, opctx, detail, target.get(svcs.idField).asText(), (ObjectNode) patch)
+            return target
+        }
+        ObjectNode result = target != null && target.isObject() ? ((ObjectNode) target).deepCopy() : AttrDelta.MAPPER.createObjectNode()
+        Iterator<Map.Entry<String, JsonNode>> fields = patch.fields()
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next()
+            if (field.value.isNull()) {
+                result.remove(field.key)
+            } else {
+                result.set(field.key, mergePatch(svcs, opctx, detail, result.get(field.key), field.value))
+            }
+        }
+        return result
+    }
+
+    static void unionAttrs(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String json) {
+        unionAttrs(svcs, opctx, detail, docUUID, new StringReader(json))
+    }
+
+    /**
+     * add the fields of a json object as attributes of the doc, skipping the attributes it already has (the doc's
+     * attribute names are read once) and null fields. The input is parsed as it is read: skipped fields aren't
+     * parsed, child docs in added ones are created as in a new attribute. The id field is ignored.
+     */
+    static void unionAttrs(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, Reader inputJsonObject) {
+        Set<String> present = new HashSet<>()
+        for (Object[] attr : new GetDocAttrs(docUUID: docUUID).queryCassandra(svcs, opctx, detail).attrs) {
+            present.add((String) attr[0])
+        }
+        present.add(svcs.idField)
+
+        JsonParser parser = svcs.jsonFactory.createParser(inputJsonObject)
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw log.err("", new IllegalArgumentException("attribute union of $docUUID: input is not a json object"))
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String attr = parser.currentName
+                if (!present.add(attr)) {
+                    parser.nextToken()
+                    parser.skipChildren()
+                    continue
+                }
+                FieldValue value = CreateOperations.parseField(svcs, opctx, detail, docUUID, attr, parser)
+                if (value == null) {
+                    present.remove(attr)
+                    continue
+                }
+                NewAttr cmd = new NewAttr(docUUID: docUUID, attrName: attr, attrValue: value)
+                cmd.isComplete = true
+                CreateOperations.analyzeNewAttrEvent(svcs, opctx, detail, cmd)
+            }
+        } finally {
+            parser.close()
+        }
+    }
+
+    /**
+     * append the members of a json array to an array attribute (created if missing). Objects starting with an _id
+     * field are child docs, as in a new attribute. Existing members, child docs and rels are kept: only the attribute
+     * value is rewritten.
+     *
+     * Index entries of an indexed attribute are keyed on its whole value, so an append replaces them (a delete and an
+     * insert per index on the attribute), however few members it adds.
+     *
+     * The stored attribute is read before the input, so nothing (no child doc in particular) is created for an input
+     * that can't be appended.
+     */
+    static void appendToArray(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, Reader inputJsonArray) {
+        GetAttrRCH current = new GetAttrCmd(docUUID: docUUID, attrName: attr).queryCassandra(svcs, opctx, detail)
+        if (current.data != null && current.valType != DBCodes.TYPE_CODE_ARRAY) {
+            throw log.err("", new IllegalArgumentException("append to $docUUID.$attr: not an array attribute"))
+        }
+
+        StringBuilder appended = new StringBuilder()
+        JsonParser parser = svcs.jsonFactory.createParser(inputJsonArray)
+        try {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw log.err("", new IllegalArgumentException("append to $docUUID.$attr: input is not a json array"))
+            }
+            CreateOperations.parseIngestChildArray(svcs, opctx, detail, appended, parser, docUUID, attr)
+        } finally {
+            parser.close()
+        }
+        if (appended.length() == 2) {
+            log.dbg("append to $docUUID.$attr: nothing to append", null)
+            return
+        }
 
+        String value
+        if (current.data == null) {
+            value = appended.toString()
+        } else {
+            String stored = AttrStorage.json(svcs, current.data)
+            String head = stored.substring(0, stored.lastIndexOf(']')).trim()
+            value = head + (head.endsWith('[') ? '' : ',') + appended.substring(1)
+        }
+        AttrDelta.writeDelta(svcs, opctx, detail, docUUID, attr, new FieldValue(type: List, value: value), true, Collections.<String> emptySet())
     }
 }
 
-// TODO: These do complicated merge operations on single properties, subdocs, docs, etc. Think set operations with nuances...
+// TODO: more merge operations on single properties, subdocs, docs, etc. Think set operations with nuances...
 
 /* recursive update structure?
- array operations: replace all, empty, append, update entries(), expand, apply groovy closure, find, findAll, etc
+ array operations: replace all, empty, update entries(), expand, apply groovy closure, find, findAll, etc
  map operations: find, findAll, remove, removeAll, addAll
- */
\ No newline at end of file
+ */
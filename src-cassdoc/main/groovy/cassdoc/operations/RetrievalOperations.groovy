@@ -11,6 +11,7 @@ import java.util.concurrent.LinkedBlockingQueue
 import org.apache.commons.lang3.StringEscapeUtils
 
 import cassdoc.AttrNames
+import cassdoc.AttrStorage
 import cassdoc.CommandExecServices
 import cassdoc.DBCodes
 import cassdoc.Detail
@@ -28,11 +29,14 @@ import cassdoc.commands.retrieve.GetAttrMetaRCH
 import cassdoc.commands.retrieve.GetAttrRCH
 import cassdoc.commands.retrieve.GetDoc
 import cassdoc.commands.retrieve.GetDocAttrsRP
+import cassdoc.commands.retrieve.PrefetchedRowsRP
+import cassdoc.commands.retrieve.RowProcessor
 import cassdoc.commands.retrieve.GetDocRCH
 import cassdoc.commands.retrieve.GetRelKeyCmd
 import cassdoc.commands.retrieve.GetRelsCmd
 import cassdoc.commands.retrieve.GetRelsRCH
 
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonToken
 
@@ -66,6 +70,15 @@ class RetrievalOperations {
      * @return
      */
     static Map<String, Object> deserializeSingleDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, boolean root) {
+        if (root && opctx.childDocPrefetcher == null) {
+            opctx.childDocPrefetcher = new ChildDocPrefetcher(svcs, opctx)
+            try {
+                return deserializeSingleDoc(svcs, opctx, detail, docUUID, root)
+            } finally {
+                opctx.childDocPrefetcher.cancel()
+                opctx.childDocPrefetcher = null
+            }
+        }
         Map<String, Object> map = [:]
         map[AttrNames.SYS_DOCID] = docUUID
         if (detail.docIDTimestampMeta) {
@@ -122,13 +135,17 @@ class RetrievalOperations {
         //GetDocAttrs cmd = new GetDocAttrs(docUUID:docUUID)
         //GetDocAttrsRCH rch = cmd.queryCassandra(svcs,opctx,detail)
         //for (Object[] attr : rch.attrs) {
-        GetDocAttrsRP cmd = new GetDocAttrsRP(docUUID: docUUID)
-        cmd.initiateQuery(svcs, opctx, detail)
+        RowProcessor cmd = opctx.childDocPrefetcher != null ? opctx.childDocPrefetcher.docAttrs(detail, docUUID) : ChildDocPrefetcher.liveDocAttrs(svcs, opctx, detail, docUUID)
+        boolean prefetched = cmd instanceof PrefetchedRowsRP
         Object[] attr = null
         while (attr = cmd.nextRow()) {
 
             Detail attrDetail = detail.resolveAttrDetail((String) attr[0])
             if (attrDetail != null) {
+                if (!prefetched) {
+                    // start fetching the child docs of this attr before we walk it (prefetched rows were already scanned)
+                    opctx.childDocPrefetcher?.scanAttr(attrDetail, (String) attr[0], attr[1], attr[2])
+                }
                 // if attr-specific detail meta differs from the base detail we used to query doc attrs, we need to do a followup query
                 if (attrDetail.attrWritetimeMeta != detail.attrWritetimeMeta || attrDetail.attrTokenMeta != detail.attrTokenMeta
                         || attrDetail.attrMetaIDMeta != detail.attrMetaIDMeta || attrDetail.attrMetaDataMeta != detail.attrMetaDataMeta) {
@@ -153,7 +170,7 @@ class RetrievalOperations {
                 } else if (attr[1] == DBCodes.TYPE_CODE_DECIMAL) {
                     value = new BigDecimal((String) attr[2])
                 } else if (attr[1] == DBCodes.TYPE_CODE_ARRAY) {
-                    JsonParser arrayParser = svcs.jsonFactory.createParser((String) attr[2])
+                    JsonParser arrayParser = AttrStorage.parser(svcs, attr[2])
                     JsonToken arrayStartToken = arrayParser.nextToken()
                     if (arrayStartToken == JsonToken.START_ARRAY) {
                         value = deserializeRetrievedChildArray(svcs, opctx, attrDetail, docUUID, (String) attr[0], arrayParser)
@@ -161,7 +178,7 @@ class RetrievalOperations {
                         // array type but not array? check for empty string or null
                     }
                 } else if (attr[1] == DBCodes.TYPE_CODE_OBJECT) {
-                    JsonParser objParser = svcs.jsonFactory.createParser((String) attr[2])
+                    JsonParser objParser = AttrStorage.parser(svcs, attr[2])
                     JsonToken objStartToken = objParser.nextToken()
                     if (objStartToken == JsonToken.START_OBJECT) {
                         value = deserializeRetrievedChildObject(svcs, opctx, attrDetail, docUUID, (String) attr[0], objParser)
@@ -213,136 +230,220 @@ class RetrievalOperations {
         return map
     }
 
+    /**
+     * Stream several documents as a JSON array. Up to detail.fetchWindow (default 64) documents are read concurrently,
+     * each with its own partition queries (which the driver routes to replicas), rather than one after the other.
+     * Documents that don't exist are written as null.
+     *
+     * @param svcs
+     * @param opctx
+     * @param detail
+     * @param ids
+     * @param writer
+     * @param inputOrder true: documents are written in the order of ids, false: in the order their reads complete
+     */
+    static void getDocs(CommandExecServices svcs, OperationContext opctx, Detail detail, Iterator<String> ids, Writer writer, boolean inputOrder) {
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        getDocs(svcs, opctx, detail, ids, gen, inputOrder)
+        JsonEmit.finish(gen)
+    }
+
+    static void getDocs(CommandExecServices svcs, OperationContext opctx, Detail detail, Iterator<String> ids, JsonGenerator gen, boolean inputOrder) {
+        int window = detail.fetchWindow ?: 64
+        ChildDocPrefetcher prefetcher = new ChildDocPrefetcher(svcs, opctx)
+        opctx.childDocPrefetcher = prefetcher
+        try {
+            gen.writeStartArray()
+            if (inputOrder) {
+                ArrayDeque<String> inflight = new ArrayDeque<>()
+                while (true) {
+                    while (inflight.size() < window && ids.hasNext()) {
+                        String id = ids.next()
+                        prefetcher.prefetchDoc(id, detail, null)
+                        inflight.add(id)
+                    }
+                    if (inflight.isEmpty()) {
+                        break
+                    }
+                    writePrefetchedDoc(svcs, opctx, detail, prefetcher, inflight.poll(), gen)
+                }
+            } else {
+                BlockingQueue<String> done = new LinkedBlockingQueue<>()
+                // docs requested more than once while a read for them was pending are written that many times
+                Map<String, Integer> pending = [:]
+                while (true) {
+                    while (pending.size() < window && ids.hasNext()) {
+                        String id = ids.next()
+                        if (!prefetcher.prefetchDoc(id, detail, done) && !pending.containsKey(id)) {
+                            // already being read as a child of an earlier doc, that read won't signal done
+                            done.add(id)
+                        }
+                        pending[id] = (pending[id] ?: 0) + 1
+                    }
+                    if (pending.isEmpty()) {
+                        break
+                    }
+                    String id = done.take()
+                    Integer count = pending.remove(id)
+                    for (int i = 0; i < (count ?: 0); i++) {
+                        writePrefetchedDoc(svcs, opctx, detail, prefetcher, id, gen)
+                    }
+                }
+            }
+            gen.writeEndArray()
+        } finally {
+            prefetcher.cancel()
+            opctx.childDocPrefetcher = null
+        }
+    }
+
+    private static void writePrefetchedDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, ChildDocPrefetcher prefetcher, String docUUID, JsonGenerator gen) {
+        if (prefetcher.awaitDoc(detail, docUUID)) {
+            getSingleDoc(svcs, opctx, detail, docUUID, gen, false)
+        } else {
+            gen.writeNull()
+        }
+        JsonEmit.boundary(gen)
+    }
+
     static void getSingleDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, Writer writer, boolean root) {
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        getSingleDoc(svcs, opctx, detail, docUUID, gen, root)
+        JsonEmit.finish(gen)
+    }
+
+    static void getSingleDoc(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, JsonGenerator gen, boolean root) {
+        if (root && opctx.childDocPrefetcher == null) {
+            opctx.childDocPrefetcher = new ChildDocPrefetcher(svcs, opctx)
+            try {
+                getSingleDoc(svcs, opctx, detail, docUUID, gen, root)
+            } finally {
+                opctx.childDocPrefetcher.cancel()
+                opctx.childDocPrefetcher = null
+            }
+            return
+        }
         if (root) {
-            if (!query(svcs, opctx, detail, "SELECT token(e), zv from ${opctx.space}.e_${IDUtil.idSuffix(docUUID)} WHERE e = ?", docUUID)) {
+            if (!query(svcs, opctx, detail, svcs.typeCql(opctx.space, IDUtil.idSuffix(docUUID)).selectDocExists, docUUID)) {
                 throw new ResourceNotFoundException(docUUID)
             }
         }
-        writer << '{"' << AttrNames.SYS_DOCID << '":"' << docUUID << '"'
+        gen.writeStartObject()
+        gen.writeStringField(AttrNames.SYS_DOCID, docUUID)
         if (detail.docIDTimestampMeta) {
-            writer << ',"' << AttrNames.META_IDTIME << '":' << IDUtil.extractUnixTimeFromEaioTimeUUID(docUUID)
+            gen.writeNumberField(AttrNames.META_IDTIME, IDUtil.extractUnixTimeFromEaioTimeUUID(docUUID))
         }
         if (detail.docIDDateMeta) {
-            writer << ',"' << AttrNames.META_IDDATE << '":"' << new Date(IDUtil.extractUnixTimeFromEaioTimeUUID(docUUID)).toGMTString() << '"'
+            gen.writeStringField(AttrNames.META_IDDATE, new Date(IDUtil.extractUnixTimeFromEaioTimeUUID(docUUID)).toGMTString())
         }
         if (detail.docTokenMeta || detail.docPaxosMeta || detail.docPaxosTimestampMeta || detail.docPaxosDateMeta || detail.docMetaIDMeta || detail.parentMeta || detail.docWritetimeMeta != null || detail.docWritetimeDateMeta != null) {
             GetDoc eCmd = new GetDoc(docUUID: docUUID)
             GetDocRCH eRCH = eCmd.queryCassandra(svcs, opctx, detail)
             if (detail.docTokenMeta) {
-                writer << ',"' << AttrNames.META_TOKEN << '":' << eRCH.token
+                gen.writeFieldName(AttrNames.META_TOKEN)
+                JsonEmit.writeRaw(gen, eRCH.token)
             }
             if (detail.docPaxosMeta) {
-                writer << ',"' << AttrNames.META_PAXOS << '":"' << eRCH.paxosVer.toString() << '"'
+                gen.writeStringField(AttrNames.META_PAXOS, eRCH.paxosVer.toString())
             }
             if (detail.docPaxosTimestampMeta) {
-                writer << ',"' << AttrNames.META_PAXOSTIME << '":' << IDUtil.extractUnixTimeFromEaioTimeUUID(eRCH.paxosVer.toString())
+                gen.writeNumberField(AttrNames.META_PAXOSTIME, IDUtil.extractUnixTimeFromEaioTimeUUID(eRCH.paxosVer.toString()))
             }
             if (detail.docPaxosDateMeta) {
-                writer << ',"' << AttrNames.META_PAXOSDATE << '":"' << new Date(IDUtil.extractUnixTimeFromEaioTimeUUID(eRCH.paxosVer.toString())).toGMTString() << '"'
+                gen.writeStringField(AttrNames.META_PAXOSDATE, new Date(IDUtil.extractUnixTimeFromEaioTimeUUID(eRCH.paxosVer.toString())).toGMTString())
             }
             if (detail.docMetaIDMeta) {
-                writer << ',"' << AttrNames.META_DOCMETAID << '":"' << JSONUtil.serialize(eRCH.metadata_id) << '"'
+                gen.writeStringField(AttrNames.META_DOCMETAID, eRCH.metadata_id)
             }
             if (detail.docMetaDataMeta) {
                 if (eRCH.metadata_id != null) {
                     Detail metaDetail = detail.resolveAttrDetail(eRCH.metadata_id)
-                    writer << ',"' << AttrNames.META_DOCMETADATA << '":'
-                    getSingleDoc(svcs, opctx, metaDetail, eRCH.metadata_id, writer, false)
+                    gen.writeFieldName(AttrNames.META_DOCMETADATA)
+                    getSingleDoc(svcs, opctx, metaDetail, eRCH.metadata_id, gen, false)
                 }
             }
             if (detail.parentMeta) {
-                writer << ',"' << AttrNames.META_PARENT << '":"' << eRCH.a0 << '"'
+                gen.writeStringField(AttrNames.META_PARENT, eRCH.a0)
             }
             if (detail.docWritetimeMeta) {
-                writer << ',"' << AttrNames.META_WT_PRE << StringEscapeUtils.escapeJson(detail.docWritetimeMeta) + ']":' << eRCH.writetime
+                gen.writeFieldName(AttrNames.META_WT_PRE + detail.docWritetimeMeta + ']')
+                JsonEmit.writeRaw(gen, eRCH.writetime)
             }
             if (detail.docWritetimeDateMeta) {
-                writer << ',"' << AttrNames.META_WTDT_PRE << StringEscapeUtils.escapeJson(detail.docWritetimeMeta) + ']":"' << new Date((Long)eRCH.writetime.intdiv(1000)).toGMTString() << '"'
+                gen.writeStringField(AttrNames.META_WTDT_PRE + detail.docWritetimeMeta + ']', new Date((Long) eRCH.writetime.intdiv(1000)).toGMTString())
             }
         }
         if (detail.docRelationsMeta) {
             GetRelsCmd rels = new GetRelsCmd(p1: docUUID)
             GetRelsRCH relRCH = rels.queryCassandraDocRels(svcs, opctx, detail)
-            writer << ',"' << AttrNames.META_RELS << '":' << JSONUtil.serialize(relRCH.rels)
+            gen.writeFieldName(AttrNames.META_RELS)
+            gen.writeRawValue(JSONUtil.serialize(relRCH.rels))
         }
         if (detail.docChildrenMeta) {
             GetRelsCmd rels = new GetRelsCmd(p1: docUUID, ty1: RelTypes.TO_CHILD)
             GetRelsRCH relRCH = rels.queryCassandraDocRelsForType(svcs, opctx, detail)
-            writer << ',"' << AttrNames.META_CHILDREN << '":' << JSONUtil.serialize(relRCH.rels)
+            gen.writeFieldName(AttrNames.META_CHILDREN)
+            gen.writeRawValue(JSONUtil.serialize(relRCH.rels))
         }
         // nonstreaming
         //GetDocAttrs cmd = new GetDocAttrs(docUUID:docUUID)
         //GetDocAttrsRCH rch = cmd.queryCassandra(svcs,opctx,detail)
         //for (Object[] attr : rch.attrs) {
 
-        GetDocAttrsRP cmd = new GetDocAttrsRP(docUUID: docUUID)
-        cmd.initiateQuery(svcs, opctx, detail)
+        RowProcessor cmd = opctx.childDocPrefetcher != null ? opctx.childDocPrefetcher.docAttrs(detail, docUUID) : ChildDocPrefetcher.liveDocAttrs(svcs, opctx, detail, docUUID)
+        boolean prefetched = cmd instanceof PrefetchedRowsRP
         Object[] attr = null
         while (attr = cmd.nextRow()) {
 
-            Detail attrDetail = detail.resolveAttrDetail((String) attr[0])
+            String attrName = (String) attr[0]
+            Detail attrDetail = detail.resolveAttrDetail(attrName)
             if (attrDetail != null) {
+                if (!prefetched) {
+                    // start fetching the child docs of this attr before we walk it (prefetched rows were already scanned)
+                    opctx.childDocPrefetcher?.scanAttr(attrDetail, attrName, attr[1], attr[2])
+                }
                 // if attr-specific detail meta differs from the base detail we used to query doc attrs, we need to do a followup query
                 if (attrDetail.attrWritetimeMeta != detail.attrWritetimeMeta || attrDetail.attrTokenMeta != detail.attrTokenMeta
                         || attrDetail.attrMetaIDMeta != detail.attrMetaIDMeta || attrDetail.attrMetaDataMeta != detail.attrMetaDataMeta) {
-                    GetAttrMetaCmd metaCmd = new GetAttrMetaCmd(docUUID: docUUID, attrName: (String) attr[0])
+                    GetAttrMetaCmd metaCmd = new GetAttrMetaCmd(docUUID: docUUID, attrName: attrName)
                     GetAttrMetaRCH metaRCH = metaCmd.queryCassandra(svcs, opctx, attrDetail)
                     // overwrite/fill in with correct detail values
                     attr[4] = metaRCH.writetime
                     attr[5] = metaRCH.token
                     attr[6] = metaRCH.attrMetaID
                 }
-                writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << '":'
-                if (attr[1] == DBCodes.TYPE_CODE_STRING) {
-                    writer << '"' << StringEscapeUtils.escapeJson((String) attr[2]) << '"'
-                } else if (attr[1] == null || attr[1] == DBCodes.TYPE_CODE_INTEGER || attr[1] == DBCodes.TYPE_CODE_DECIMAL || attr[1] == DBCodes.TYPE_CODE_BOOLEAN) {
-                    writer << attr[2]
-                } else if (attr[1] == DBCodes.TYPE_CODE_ARRAY) {
-                    JsonParser arrayParser = svcs.jsonFactory.createParser((String) attr[2])
-                    JsonToken arrayStartToken = arrayParser.nextToken()
-                    if (arrayStartToken == JsonToken.START_ARRAY) {
-                        parseRetrievedChildArray(svcs, opctx, attrDetail, docUUID, (String) attr[0], arrayParser, writer)
-                    } else {
-                        // array type but not array? check for empty string or null
-                    }
-                } else if (attr[1] == DBCodes.TYPE_CODE_OBJECT) {
-                    JsonParser objParser = svcs.jsonFactory.createParser((String) attr[2])
-                    JsonToken objStartToken = objParser.nextToken()
-                    if (objStartToken == JsonToken.START_OBJECT) {
-                        parseRetrievedChildObject(svcs, opctx, attrDetail, docUUID, (String) attr[0], objParser, writer)
-                    } else {
-                        // obj type but no start object? check for empty string or null
-                    }
-                } else {
+                gen.writeFieldName(attrName)
+                if (!writeAttrValue(svcs, opctx, attrDetail, docUUID, attrName, attr[1], attr[2], gen)) {
                     throw log.err(opctx, null, new InvalidTypeException("GETDOC_BADTYPE: DocUUID $docUUID has unknown attr type code ${attr[1]} for attr ${attr[0]}"))
                 }
                 if (attrDetail.attrWritetimeMeta != null) {
-                    writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_WT_PRE << detail.attrWritetimeMeta << ']":' << attr[4]
+                    gen.writeFieldName(attrName + AttrNames.META_WT_PRE + detail.attrWritetimeMeta + ']')
+                    JsonEmit.writeRaw(gen, attr[4])
                 }
                 if (attrDetail.attrWritetimeDateMeta) {
-                    writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_WTDT_PRE + StringEscapeUtils.escapeJson(attrDetail.attrWritetimeMeta) + ']":"' << new Date((Long)((Long) attr[4]).intdiv(1000)).toGMTString() << '"'
+                    gen.writeStringField(attrName + AttrNames.META_WTDT_PRE + attrDetail.attrWritetimeMeta + ']', new Date((Long) ((Long) attr[4]).intdiv(1000)).toGMTString())
                 }
                 if (attrDetail.attrTokenMeta) {
-                    writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_TOKEN << '":' << attr[5]
+                    gen.writeFieldName(attrName + AttrNames.META_TOKEN)
+                    JsonEmit.writeRaw(gen, attr[5])
                 }
                 if (attrDetail.attrPaxosMeta) {
-                    writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_PAXOS << '":"' << attr[3] << '"'
+                    gen.writeStringField(attrName + AttrNames.META_PAXOS, String.valueOf(attr[3]))
                 }
                 if (attrDetail.attrPaxosTimestampMeta) {
-                    writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_PAXOSTIME << '":' << IDUtil.extractUnixTimeFromEaioTimeUUID(attr[3].toString())
+                    gen.writeNumberField(attrName + AttrNames.META_PAXOSTIME, IDUtil.extractUnixTimeFromEaioTimeUUID(attr[3].toString()))
                 }
                 if (attrDetail.attrPaxosDateMeta) {
-                    writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_PAXOSDATE << '":"' << new Date(IDUtil.extractUnixTimeFromEaioTimeUUID(attr[3].toString())).toGMTString() << '"'
+                    gen.writeStringField(attrName + AttrNames.META_PAXOSDATE, new Date(IDUtil.extractUnixTimeFromEaioTimeUUID(attr[3].toString())).toGMTString())
                 }
                 if (attrDetail.attrMetaIDMeta) {
-                    writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_ATTRMETAID << '":"' << attr[6] << '"'
+                    gen.writeStringField(attrName + AttrNames.META_ATTRMETAID, String.valueOf(attr[6]))
                 }
                 if (attrDetail.attrMetaDataMeta) {
                     if (attr[6] != null) {
                         Detail metaDetail = detail.resolveAttrDetail((String) attr[6])
-                        writer << ',"' << StringEscapeUtils.escapeJson((String) attr[0]) << AttrNames.META_ATTRMETADATA << '":'
-                        getSingleDoc(svcs, opctx, metaDetail, (String) attr[0], writer, false)
+                        gen.writeFieldName(attrName + AttrNames.META_ATTRMETADATA)
+                        getSingleDoc(svcs, opctx, metaDetail, attrName, gen, false)
                     }
                 }
             } else {
@@ -350,39 +451,63 @@ class RetrievalOperations {
             }
         }
         if (root && opctx.cqlTraceEnabled) {
-            writer << ',"' << AttrNames.META_CQLTRACE << '":' << JSONUtil.serialize(opctx.cqlTrace)
+            gen.writeFieldName(AttrNames.META_CQLTRACE)
+            gen.writeRawValue(JSONUtil.serialize(opctx.cqlTrace))
         }
-        writer << "}"
+        gen.writeEndObject()
     }
 
-
-    static void getAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, Writer writer) {
-        // writer << '"' << StringEscapeUtils.escapeJson(attr) << '":' // retiring...
-        GetAttrCmd cmd = new GetAttrCmd(docUUID: docUUID, attrName: attr)
-        GetAttrRCH rch = cmd.queryCassandra(svcs, opctx, detail)
-        if (rch.valType == DBCodes.TYPE_CODE_STRING) {
-            writer << '"' << StringEscapeUtils.escapeJson(rch.data) << '"'
-        } else if (rch.valType == null || rch.valType == DBCodes.TYPE_CODE_DECIMAL || rch.valType == DBCodes.TYPE_CODE_BOOLEAN || rch.valType == DBCodes.TYPE_CODE_INTEGER) {
-            writer << rch.data
-        } else if (rch.valType == DBCodes.TYPE_CODE_ARRAY) {
-            JsonParser arrayParser = svcs.jsonFactory.createParser(rch.data)
-            JsonToken arrayStartToken = arrayParser.nextToken()
-            if (arrayStartToken == JsonToken.START_ARRAY) {
-                parseRetrievedChildArray(svcs, opctx, detail, docUUID, attr, arrayParser, writer)
+    /**
+     * write a stored attribute value: strings as strings, numbers and booleans as their stored json, arrays and
+     * objects copied from the stored json with child docs expanded per the detail
+     *
+     * @return false if the type code is unknown (nothing written)
+     */
+    static boolean writeAttrValue(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, Object valType, Object data, JsonGenerator gen) {
+        if (valType == DBCodes.TYPE_CODE_STRING) {
+            if (data == null) {
+                gen.writeNull()
             } else {
-                // array type but not array? check for empty string or null
-            }
-        } else if (rch.valType == DBCodes.TYPE_CODE_OBJECT) {
-            JsonParser objParser = svcs.jsonFactory.createParser(rch.data)
-            JsonToken objStartToken = objParser.nextToken()
-            if (objStartToken == JsonToken.START_OBJECT) {
-                parseRetrievedChildObject(svcs, opctx, detail, docUUID, attr, objParser, writer)
+                gen.writeString((String) data)
+            }
+        } else if (valType == null || valType == DBCodes.TYPE_CODE_INTEGER || valType == DBCodes.TYPE_CODE_DECIMAL || valType == DBCodes.TYPE_CODE_BOOLEAN) {
+            JsonEmit.writeRaw(gen, data)
+        } else if (valType == DBCodes.TYPE_CODE_ARRAY) {
+            JsonParser arrayParser = AttrStorage.parser(svcs, data)
+            if (arrayParser.nextToken() == JsonToken.START_ARRAY) {
+                parseRetrievedChildArray(svcs, opctx, detail, docUUID, attrName, arrayParser, gen)
+            } else {
+                // array type but not array? empty string or null
+                gen.writeNull()
+            }
+            arrayParser.close()
+        } else if (valType == DBCodes.TYPE_CODE_OBJECT) {
+            JsonParser objParser = AttrStorage.parser(svcs, data)
+            if (objParser.nextToken() == JsonToken.START_OBJECT) {
+                parseRetrievedChildObject(svcs, opctx, detail, docUUID, attrName, objParser, gen)
             } else {
-                // obj type but no start object? check for empty string or null
+                // obj type but no start object? empty string or null
+                gen.writeNull()
             }
+            objParser.close()
         } else {
-            // error
+            return false
         }
+        return true
+    }
+
+
+    static void getAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, Writer writer) {
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        getAttr(svcs, opctx, detail, docUUID, attr, gen)
+        JsonEmit.finish(gen)
+    }
+
+    static void getAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, JsonGenerator gen) {
+        GetAttrCmd cmd = new GetAttrCmd(docUUID: docUUID, attrName: attr)
+        GetAttrRCH rch = cmd.queryCassandra(svcs, opctx, detail)
+        // an unknown type writes nothing
+        writeAttrValue(svcs, opctx, detail, docUUID, attr, rch.valType, rch.data, gen)
     }
 
     static Object deserializeAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr) {
@@ -392,26 +517,26 @@ class RetrievalOperations {
             return null
         }
         if (rch.valType == DBCodes.TYPE_CODE_STRING) {
-            return rch.data
+            return (String) rch.data
         }
         if (rch.valType == DBCodes.TYPE_CODE_DECIMAL) {
-            return new BigDecimal(rch.data)
+            return new BigDecimal((String) rch.data)
         }
         if (rch.valType == DBCodes.TYPE_CODE_BOOLEAN) {
-            return Boolean.parseBoolean(rch.data)
+            return Boolean.parseBoolean((String) rch.data)
         }
         if (rch.valType == DBCodes.TYPE_CODE_INTEGER) {
-            return new BigInteger(rch.data)
+            return new BigInteger((String) rch.data)
         }
         if (rch.valType == DBCodes.TYPE_CODE_ARRAY) {
-            JsonParser arrayParser = svcs.jsonFactory.createParser(rch.data)
+            JsonParser arrayParser = AttrStorage.parser(svcs, rch.data)
             JsonToken arrayStartToken = arrayParser.nextToken()
             if (arrayStartToken == JsonToken.START_ARRAY) {
                 return deserializeRetrievedChildArray(svcs, opctx, detail, docUUID, attr, arrayParser)
             }
         }
         if (rch.valType == DBCodes.TYPE_CODE_OBJECT) {
-            JsonParser objParser = svcs.jsonFactory.createParser(rch.data)
+            JsonParser objParser = AttrStorage.parser(svcs, rch.data)
             JsonToken objStartToken = objParser.nextToken()
             if (objStartToken == JsonToken.START_OBJECT) {
                 return deserializeRetrievedChildObject(svcs, opctx, detail, docUUID, attr, objParser)
@@ -426,82 +551,41 @@ class RetrievalOperations {
         StringWriter writer = new StringWriter()
         GetAttrCmd cmd = new GetAttrCmd(docUUID: docUUID, attrName: attr)
         GetAttrRCH rch = cmd.queryCassandra(svcs, opctx, detail)
-        if (rch.valType == DBCodes.TYPE_CODE_STRING) {
-            writer << '"' << StringEscapeUtils.escapeJson(rch.data) << '"'
-        } else if (rch.valType == null || rch.valType == DBCodes.TYPE_CODE_DECIMAL || rch.valType == DBCodes.TYPE_CODE_BOOLEAN || rch.valType == DBCodes.TYPE_CODE_INTEGER) {
-            writer << rch.data
-        } else if (rch.valType == DBCodes.TYPE_CODE_ARRAY) {
-            JsonParser arrayParser = svcs.jsonFactory.createParser(rch.data)
-            JsonToken arrayStartToken = arrayParser.nextToken()
-            if (arrayStartToken == JsonToken.START_ARRAY) {
-                parseRetrievedChildArray(svcs, opctx, detail, docUUID, attr, arrayParser, writer)
-            } else {
-                // array type but not array? check for empty string or null
-            }
-        } else if (rch.valType == DBCodes.TYPE_CODE_OBJECT) {
-            JsonParser objParser = svcs.jsonFactory.createParser(rch.data)
-            JsonToken objStartToken = objParser.nextToken()
-            if (objStartToken == JsonToken.START_OBJECT) {
-                parseRetrievedChildObject(svcs, opctx, detail, docUUID, attr, objParser, writer)
-            } else {
-                // obj type but no start object? check for empty string or null
-            }
-        } else {
-            // error
-        }
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        writeAttrValue(svcs, opctx, detail, docUUID, attr, rch.valType, rch.data, gen)
+        JsonEmit.finish(gen)
         docfield.value = new FieldValue(value: writer.toString(), type: TypeConfigurationService.attrClass(rch.valType))
         return docfield
     }
 
     static void parseRetrievedChildArray(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, JsonParser arrayParser, Writer writer) {
-        writer << '['
-        boolean firstMember = true
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        parseRetrievedChildArray(svcs, opctx, detail, docUUID, attrName, arrayParser, gen)
+        JsonEmit.finish(gen)
+    }
+
+    static void parseRetrievedChildArray(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, JsonParser arrayParser, JsonGenerator gen) {
+        gen.writeStartArray()
         while (true) {
             JsonToken token = arrayParser.nextToken()
             if (token == JsonToken.END_ARRAY) {
-                writer << ']'
+                gen.writeEndArray()
                 // unrecurse
                 return
             }
 
-            if (firstMember) {
-                firstMember = false
-            } else {
-                writer << ','
-            }
-
-            if (token == JsonToken.VALUE_NULL) {
-                writer << "null"
-            }
-            if (token == JsonToken.VALUE_TRUE) {
-                writer << "true"
-            }
-            if (token == JsonToken.VALUE_FALSE) {
-                writer << "false"
-            }
-            if (token == JsonToken.VALUE_NUMBER_FLOAT) {
-                writer << arrayParser.getText()
-            }
-            if (token == JsonToken.VALUE_NUMBER_INT) {
-                writer << arrayParser.getText()
-            }
-            if (token == JsonToken.VALUE_STRING) {
-                writer << '"' << StringEscapeUtils.escapeJson(arrayParser.getText()) << '"'
-            }
-
             if (token == JsonToken.START_ARRAY) {
                 // recurse
-                parseRetrievedChildArray(svcs, opctx, detail, docUUID, attrName, arrayParser, writer)
-            }
-
-            if (token == JsonToken.START_OBJECT) {
+                parseRetrievedChildArray(svcs, opctx, detail, docUUID, attrName, arrayParser, gen)
+            } else if (token == JsonToken.START_OBJECT) {
                 // recurse
-                parseRetrievedChildObject(svcs, opctx, detail, docUUID, attrName, arrayParser, writer)
+                parseRetrievedChildObject(svcs, opctx, detail, docUUID, attrName, arrayParser, gen)
+            } else if (token != null && token.isScalarValue()) {
+                JsonEmit.copyScalar(gen, arrayParser)
             }
         }
     }
 
-
     static List deserializeRetrievedChildArray(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, JsonParser arrayParser) {
         List<Object> list = []
         while (true) {
@@ -542,6 +626,12 @@ class RetrievalOperations {
     }
 
     static void parseRetrievedChildObject(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, JsonParser objParser, Writer writer) {
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, writer)
+        parseRetrievedChildObject(svcs, opctx, detail, docUUID, attrName, objParser, gen)
+        JsonEmit.finish(gen)
+    }
+
+    static void parseRetrievedChildObject(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attrName, JsonParser objParser, JsonGenerator gen) {
 
         boolean firstField = true
         String currentField = null
@@ -555,7 +645,7 @@ class RetrievalOperations {
                         String childUUID = parseRetrievedIDField(opctx, detail, objParser)
                         objectDetail = detail.resolveChildDocDetail(childUUID, attrName)
                         if (objectDetail != null) {
-                            getSingleDoc(svcs, opctx, objectDetail, childUUID, writer, false)
+                            getSingleDoc(svcs, opctx, objectDetail, childUUID, gen, false)
                             // wiuth a DBREF like this, we should have a END_OBJECT event to consume
                             JsonToken excessEndObjectToken = objParser.nextToken()
                             if (excessEndObjectToken != JsonToken.END_OBJECT) {
@@ -563,7 +653,9 @@ class RetrievalOperations {
                             }
                             return
                         } else {
-                            writer << '{"' << AttrNames.SYS_DOCID << '":"' << StringEscapeUtils.escapeJson(childUUID) << '"}'
+                            gen.writeStartObject()
+                            gen.writeStringField(AttrNames.SYS_DOCID, childUUID)
+                            gen.writeEndObject()
                             JsonToken excessEndObjectToken = objParser.nextToken()
                             if (excessEndObjectToken != JsonToken.END_OBJECT) {
                                 throw new IllegalArgumentException("ERROR in parse: wrong excess token after stub: " + excessEndObjectToken)
@@ -572,34 +664,26 @@ class RetrievalOperations {
                         }
                     } else {
                         firstField = false
-                        writer << '{'
+                        gen.writeStartObject()
                     }
-                } else {
-                    writer << ","
                 }
-                writer << '"' << StringEscapeUtils.escapeJson(currentField) << '":'
-            } else if (token == JsonToken.VALUE_NULL) {
-                writer << "null"
-            } else if (token == JsonToken.VALUE_TRUE) {
-                writer << "true"
-            } else if (token == JsonToken.VALUE_FALSE) {
-                writer << "false"
-            } else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
-                writer << objParser.getText()
-            } else if (token == JsonToken.VALUE_NUMBER_INT) {
-                writer << objParser.getText()
-            } else if (token == JsonToken.VALUE_STRING) {
-                writer << '"' << StringEscapeUtils.escapeJson(objParser.getText()) << '"'
+                gen.copyCurrentEvent(objParser)
             } else if (token == JsonToken.START_ARRAY) {
                 // recurse
-                parseRetrievedChildArray(svcs, opctx, objectDetail, docUUID, attrName, objParser, writer)
+                parseRetrievedChildArray(svcs, opctx, objectDetail, docUUID, attrName, objParser, gen)
             } else if (token == JsonToken.START_OBJECT) {
                 // recurse (should be a non-child-doc)
-                parseRetrievedChildObject(svcs, opctx, objectDetail, docUUID, attrName, objParser, writer)
+                parseRetrievedChildObject(svcs, opctx, objectDetail, docUUID, attrName, objParser, gen)
             } else if (token == JsonToken.END_OBJECT) {
                 // unrecurse...
-                writer << '}'
+                if (firstField) {
+                    // empty object
+                    gen.writeStartObject()
+                }
+                gen.writeEndObject()
                 return
+            } else if (token != null && token.isScalarValue()) {
+                JsonEmit.copyScalar(gen, objParser)
             }
         }
     }
@@ -788,7 +872,7 @@ class RetrievalOperations {
                             } else if (attr[1] == DBCodes.TYPE_CODE_BOOLEAN) {
                                 value = Boolean.parseBoolean((String) attr[2])
                             } else if (attr[1] == DBCodes.TYPE_CODE_ARRAY) {
-                                JsonParser arrayParser = svcs.jsonFactory.createParser((String) attr[2])
+                                JsonParser arrayParser = AttrStorage.parser(svcs, attr[2])
                                 JsonToken arrayStartToken = arrayParser.nextToken()
                                 if (arrayStartToken == JsonToken.START_ARRAY) {
                                     List list = RetrievalOperations.deserializeRetrievedChildArray(svcs, opctx, attrDetail, docUUID, (String) attr[0], arrayParser)
@@ -797,7 +881,7 @@ class RetrievalOperations {
                                     // array type but not array? check for empty string or null
                                 }
                             } else if (attr[1] == DBCodes.TYPE_CODE_OBJECT) {
-                                JsonParser objParser = svcs.jsonFactory.createParser((String) attr[2])
+                                JsonParser objParser = AttrStorage.parser(svcs, attr[2])
                                 JsonToken objStartToken = objParser.nextToken()
                                 if (objStartToken == JsonToken.START_OBJECT) {
                                     Map map = RetrievalOperations.deserializeRetrievedChildObject(svcs, opctx, attrDetail, docUUID, (String) attr[0], objParser)
@@ -897,6 +981,16 @@ class RetrievalOperations {
         return relRCH.rels
     }
 
+    /**
+     * the doc's rels of one type (ty1), from its slice of the r partition
+     */
+    static List<Rel> deserializeDocRelsForType(
+            final CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String relType) {
+        GetRelsCmd rels = new GetRelsCmd(p1: docUUID, ty1: relType)
+        GetRelsRCH relRCH = rels.queryCassandraDocRelsForType(svcs, opctx, detail)
+        return relRCH.rels
+    }
+
     static List<Object[]> query(CommandExecServices svcs, OperationContext opctx, Detail detail, String cql, Object[] args) {
         QueryToListOfStrArr cmd = new QueryToListOfStrArr(query: cql)
         if (args != null)
@@ -0,0 +1,64 @@
+package cassdoc.operations
+
+import com.datastax.driver.core.TokenRange
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Completed sub-ranges of a TokenRangeScan, so an interrupted scan can be resumed: ranges recorded here are skipped.
+ *
+ * If a file is given, completed ranges are appended to it as they finish (one "start:end" per line) and read back on
+ * construction. Resuming needs the same split count and ring, otherwise the ranges won't match and are scanned again.
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class ScanCheckpoint {
+
+    final File file
+    private final Set<String> completed = ConcurrentHashMap.newKeySet()
+
+    /**
+     * in-memory only
+     */
+    ScanCheckpoint() {
+        this.file = null
+    }
+
+    /**
+     * @param file checkpoint file, loaded if it exists
+     */
+    ScanCheckpoint(File file) {
+        this.file = file
+        if (file.exists()) {
+            file.eachLine { String line ->
+                if (line.trim()) {
+                    completed.add(line.trim())
+                }
+            }
+            log.inf("scan checkpoint ${file}: ${completed.size()} ranges already complete", null)
+        }
+    }
+
+    static String rangeKey(TokenRange range) {
+        range.start.value.toString() + ':' + range.end.value.toString()
+    }
+
+    boolean isComplete(TokenRange range) {
+        completed.contains(rangeKey(range))
+    }
+
+    synchronized void complete(TokenRange range) {
+        String key = rangeKey(range)
+        if (completed.add(key) && file != null) {
+            file.append(key + '\n')
+        }
+    }
+
+    int getCompletedCount() {
+        completed.size()
+    }
+}
@@ -2,17 +2,27 @@ package cassdoc.operations
 
 import groovy.transform.CompileStatic
 
-import java.util.concurrent.BlockingQueue
-import java.util.concurrent.LinkedBlockingQueue
-
+import cassdoc.AttrStorage
 import cassdoc.CommandExecServices
 import cassdoc.Detail
+import cassdoc.DocType
+import cassdoc.FixedAttr
+import cassdoc.FixedColumnFilter
+import cassdoc.Index
+import cassdoc.IndexTypes
+import cassdoc.ManualIndex
 import cassdoc.OperationContext
+import cassdoc.RowIndex
+import cassdoc.SearchFilter
 import cassdoc.commands.retrieve.CassandraPagedRowProcessor
+import cassdoc.commands.retrieve.EntityTableSecondaryIndexRP
+import cassdoc.commands.retrieve.IndexTableRP
+import cassdoc.commands.retrieve.QueryToListOfStrArr
+import cassdoc.commands.retrieve.RowProcessor
 
 import com.datastax.driver.core.*
 
-import cwdrg.util.async.iterator.BlockingIterator
+import cwdrg.util.async.iterator.AsyncResultStream
 import drv.cassdriver.CQLException
 import drv.cassdriver.RowCallbackHandler
 import drv.cassdriver.St
@@ -23,31 +33,94 @@ import drv.cassdriver.St
 @CompileStatic
 class SearchOperations {
 
+    /**
+     * ids of all docs of a type as a JSON array. With detail.scanSplits (and no search tokens) the e_ table is read as
+     * a parallel TokenRangeScan, otherwise as a single query.
+     */
     static void searchTableIdListJSONArray(CommandExecServices svcs, OperationContext opctx, Detail detail, String objectType, Writer w) {
         w << "["
-        scanETable(svcs, opctx, detail, objectType, null, null, null, new IDListJSONArrayFromETableRCH(w: w))
+        IDListJSONArrayFromETableRCH rch = new IDListJSONArrayFromETableRCH(w: w)
+        if (detail.scanSplits && detail.searchStartToken == null && detail.searchStopToken == null) {
+            // id order is not token order
+            TokenRangeScan scan = new TokenRangeScan(splits: detail.scanSplits)
+            if (detail.scanConcurrency) {
+                scan.concurrency = detail.scanConcurrency
+            }
+            scan.scanETable(svcs, opctx, detail, objectType, null, rch)
+        } else {
+            scanETable(svcs, opctx, detail, objectType, null, null, null, rch)
+        }
         w << "]"
     }
 
     // source: set or list iterator of ids...
-    // async iterator: http://stackoverflow.com/questions/21143996/asynchronous-iterator
     // IN clauses are not token-aware from the java-driver :-( , the id set is sent to a coordinator node, parallel is better
     static void searchIdsIterator(CommandExecServices svcs, OperationContext opctx, Detail detail, Iterator<String> ids, Writer w) {
-        w << '['
-        boolean first = true
-        for (String id : ids) {
-            // TODO: type filters, etc
-            if (first) first = false; else w << ","
-            RetrievalOperations.getSingleDoc(svcs, opctx, detail, id, w, true)
-            // TODO: parallelism
+        // TODO: type filters, etc
+        RetrievalOperations.getDocs(svcs, opctx, detail, ids, w, true)
+    }
+
+    /**
+     * Ids of the docs of a type with an attribute value, from a HAS_VALUE ManualIndex on just that attribute or else
+     * the attribute's FixedAttr column (which needs a secondary index). Null if the type has neither, the caller has to
+     * scan (scanDocIds). Rows are paged in as the ids are consumed.
+     */
+    static Iterator<String> lookupDocIds(CommandExecServices svcs, OperationContext opctx, Detail detail, DocType type, String attr, Object value) {
+        for (ManualIndex idx : type.attrIndexMap[attr] ?: Collections.<ManualIndex> emptySet()) {
+            if (idx.indexType == IndexTypes.HAS_VALUE && idx.keyAttrs == [attr]) {
+                IndexTableRP rp = new IndexTableRP(k1: value?.toString())
+                rp.i1 = idx.indexCodes.size() > 0 ? idx.indexCodes[0] : ""
+                rp.i2 = idx.indexCodes.size() > 1 ? idx.indexCodes[1] : ""
+                rp.i3 = idx.indexCodes.size() > 2 ? idx.indexCodes[2] : ""
+                rp.initiateQuery(svcs, opctx, detail)
+                return rowIds(rp)
+            }
+        }
+        FixedAttr fixed = type.fixedAttrMap[attr]
+        if (fixed != null) {
+            EntityTableSecondaryIndexRP rp = new EntityTableSecondaryIndexRP(table: "e_${type.suffix}", column: fixed.colname, columnType: fixed.coltype, columnValue: value)
+            rp.initiateQuery(svcs, opctx, detail)
+            return rowIds(rp)
+        }
+        return null
+    }
+
+    /**
+     * ids of all docs of a type, paged in from its e_ table as they are consumed
+     */
+    static Iterator<String> scanDocIds(CommandExecServices svcs, OperationContext opctx, Detail detail, DocType type) {
+        QueryToListOfStrArr rp = new QueryToListOfStrArr(query: "SELECT token(e),e FROM ${opctx.space}.e_${type.suffix}")
+        rp.initiateQuery(svcs, opctx, detail)
+        return rowIds(rp)
+    }
+
+    /**
+     * the ids at [1] of the rows of an initiated query
+     */
+    static Iterator<String> rowIds(final CassandraPagedRowProcessor rp) {
+        new Iterator<String>() {
+            private Object[] row = rp.nextRow()
+
+            boolean hasNext() {
+                row != null
+            }
+
+            String next() {
+                if (row == null) {
+                    throw new NoSuchElementException()
+                }
+                String id = (String) row[1]
+                row = rp.nextRow()
+                return id
+            }
         }
-        w << ']'
     }
 
     // one row == one entity/doc id, should be pretty simple
+    // single query on one connection: use TokenRangeScan for full scans of big tables
     static void scanETable(CommandExecServices svcs, OperationContext opctx, Detail detail, String objectType, List<String> fixedCols, String startToken, String stopToken, RowCallbackHandler rch) {
         String space = opctx.space
-        String suffix = svcs.collections[opctx.space].first.getSuffixForType(objectType)
+        String suffix = svcs.types(opctx.space).getSuffixForType(objectType)
         startToken = startToken ?: detail.searchStartToken
         stopToken = stopToken ?: detail.searchStopToken
 
@@ -57,7 +130,7 @@ class SearchOperations {
                 tableQuery << "," << col
             }
         }
-        tableQuery << "FROM ${space}.e_${suffix}"
+        tableQuery << " FROM ${space}.e_${suffix}"
         boolean hasWhere = false
         Object[] tokenRangePrepArgs = null
         if (startToken != null || stopToken != null) {
@@ -108,11 +181,11 @@ class SearchOperations {
     // PTabelBaseRCH has both per-row and processDoc event methods
     static void scanPTable(CommandExecServices svcs, OperationContext opctx, Detail detail, String objectType, String startToken, String stopToken, PTableBaseRCH rch) {
         String space = opctx.space
-        String suffix = svcs.collections[opctx.space].first.getSuffixForType(objectType)
+        String suffix = svcs.types(opctx.space).getSuffixForType(objectType)
         startToken = startToken ?: detail.searchStartToken
         stopToken = stopToken ?: detail.searchStopToken
 
-        StringBuilder tableQuery = new StringBuilder("SELECT token(e),e,p,t,d FROM ${space}.p_${suffix}")
+        StringBuilder tableQuery = new StringBuilder("SELECT token(e),e,p,t,d${AttrStorage.binaryCol(svcs, space, suffix)} FROM ${space}.p_${suffix}")
         Object[] tokenRangePrepArgs = null
         if (startToken != null || stopToken != null) {
             tableQuery << " WHERE "
@@ -162,30 +235,228 @@ class SearchOperations {
     }
 
     // rp.processRow() should return token in 0th and id in 1st cell
-    @SuppressWarnings('UnusedObject')
+    /**
+     * Documents for the ids of a paged index/table query, as an AsyncResultStream: ids are read and the documents
+     * prefetched (up to detail.fetchWindow ahead, child docs included) on the shared executors while the consumer
+     * works through earlier ones. Documents come in id order, ids whose doc no longer exists are skipped.
+     *
+     * The consumer must close() the returned iterator if it stops early (failed write to a client, etc).
+     *
+     * @param svcs
+     * @param opctx
+     * @param detail
+     * @param rp initiated query
+     * @param prefilter if not null, the docs it filters out are skipped without being read
+     * @return an AsyncResultStream
+     */
     static Iterator<Map> pullIDResultSet(
             final CommandExecServices svcs,
-            final OperationContext opctx, final Detail detail, final CassandraPagedRowProcessor rp) {
-        final BlockingQueue docQ = new LinkedBlockingQueue(1000)
-        final BlockingIterator<Map> iterator = new BlockingIterator<Map>(queue: docQ)
-
-        new Thread() {
-            void run() {
-                Object rowdata = null
-                while (rowdata = rp.nextRow()) {
-                    String id = (String) rowdata[1]
-                    Map doc = RetrievalOperations.deserializeSingleDoc(svcs, opctx, detail, id, true)
-                    docQ.put(doc)
+            final OperationContext opctx, final Detail detail, final RowProcessor rp, final FixedColumnPrefilter prefilter = null) {
+        final int window = detail.fetchWindow ?: 64
+        final OperationContext readCtx = opctx.forkForRead()
+        AsyncResultStream<Map> stream = new AsyncResultStream<Map>(window)
+        return stream.start(svcs.streamExecutor, { AsyncResultStream<Map> out ->
+            ChildDocPrefetcher prefetcher = new ChildDocPrefetcher(svcs, readCtx)
+            readCtx.childDocPrefetcher = prefetcher
+            try {
+                ArrayDeque<String> inflight = new ArrayDeque<>()
+                boolean more = true
+                while (!out.closed) {
+                    while (more && inflight.size() < window) {
+                        Object[] rowdata = rp.nextRow()
+                        if (rowdata == null) {
+                            more = false
+                        } else {
+                            String id = (String) rowdata[1]
+                            prefetcher.prefetchDoc(id, detail, null, prefilter)
+                            inflight.add(id)
+                        }
+                    }
+                    if (inflight.isEmpty()) {
+                        return
+                    }
+                    String id = inflight.poll()
+                    if (prefetcher.awaitDoc(detail, id, prefilter)) {
+                        Map doc = RetrievalOperations.deserializeSingleDoc(svcs, readCtx, detail, id, false)
+                        if (!out.put(doc)) {
+                            return
+                        }
+                    }
                 }
+            } finally {
+                prefetcher.cancel()
+                readCtx.childDocPrefetcher = null
+            }
+        } as AsyncResultStream.Producer<Map>)
+    }
 
+    /**
+     * The search stages on the docs of an index lookup: the filters, then the sort, or just the limit. Filters on
+     * FixedAttr columns are decided on the e_ row of each doc before it is read (see FixedColumnPrefilter) when the
+     * index is a RowIndex, the others on the read docs. Closing the returned iterator stops the search.
+     *
+     * @param sort null or empty for index order
+     * @param limit null for all of the docs
+     */
+    static Iterator<Map> search(CommandExecServices svcs, OperationContext opctx, Detail detail, Index index, List lookupCriteria,
+                                List<SearchFilter> filters, List<SortKey> sort, Integer limit) {
+        Iterator<Map> results
+        List<SearchFilter> docFilters = filters
+        if (index instanceof RowIndex) {
+            RowIndex rowIndex = (RowIndex) index
+            FixedColumnPrefilter prefilter = FixedColumnPrefilter.of(rowIndex.docType, filters)
+            if (prefilter != null) {
+                docFilters = prefilter.remaining(filters)
             }
+            results = pullIDResultSet(svcs, opctx, detail, rowIndex.searchRows(svcs, opctx, detail, lookupCriteria), prefilter)
+        } else {
+            results = index.searchIndex(svcs, opctx, detail, lookupCriteria)
+        }
+        results = filterResults(svcs, opctx, detail, results, docFilters)
+        if (sort) {
+            String tempDir = svcs.config?.searchSortTempDir
+            return new SortedResults(source: results, comparator: SortKey.comparator(sort), limit: limit,
+                    bufferDocs: svcs.config?.searchSortBufferDocs ?: 10000, tempDir: tempDir ? new File(tempDir) : null)
+        }
+        if (limit != null) {
+            return new LimitedResults(source: results, limit: limit)
         }
-        return iterator
+        return results
+    }
+
+    /**
+     * the results without the documents any of the filters filter out. Closing the returned iterator closes the
+     * results.
+     */
+    static Iterator<Map> filterResults(CommandExecServices svcs, OperationContext opctx, Detail detail, Iterator<Map> results, List<SearchFilter> filters) {
+        if (!filters) {
+            return results
+        }
+        return new FilteredResults(svcs: svcs, opctx: opctx, detail: detail, results: results, filters: filters)
     }
 
 }
 
+/**
+ * The search filters decided by FixedAttr columns of a doc type. They are applied to the e_ row that the existence
+ * check of each doc reads anyway (ChildDocPrefetcher), with the filter columns added, so filtered out docs cost no p_
+ * partition or child doc reads.
+ */
+@CompileStatic
+class FixedColumnPrefilter {
+    DocType type
+    List<FixedColumnFilter> filters = []
+    List<String> attrs = []
+
+    /**
+     * the prefilter of the filters on the type's fixed columns, null if there are none
+     */
+    static FixedColumnPrefilter of(DocType type, List<SearchFilter> filters) {
+        if (type == null || !filters) {
+            return null
+        }
+        FixedColumnPrefilter prefilter = new FixedColumnPrefilter(type: type)
+        for (SearchFilter filter : filters) {
+            if (filter instanceof FixedColumnFilter && type.fixedAttrMap.keySet().containsAll(((FixedColumnFilter) filter).filterAttrs)) {
+                prefilter.filters.add((FixedColumnFilter) filter)
+                for (String attr : ((FixedColumnFilter) filter).filterAttrs) {
+                    if (!prefilter.attrs.contains(attr)) {
+                        prefilter.attrs.add(attr)
+                    }
+                }
+            }
+        }
+        return prefilter.filters.isEmpty() ? null : prefilter
+    }
+
+    /**
+     * the filters this doesn't apply
+     */
+    List<SearchFilter> remaining(List<SearchFilter> all) {
+        List<SearchFilter> remaining = []
+        for (SearchFilter filter : all) {
+            if (!filters.contains(filter)) {
+                remaining.add(filter)
+            }
+        }
+        return remaining
+    }
+
+    /**
+     * the existence check of a doc of the type, with the filter columns from [2]
+     */
+    String existsCql(String space) {
+        StringBuilder cql = new StringBuilder('SELECT token(e), zv')
+        for (String attr : attrs) {
+            cql << ',' << type.fixedAttrMap[attr].colname
+        }
+        cql << " FROM ${space}.e_${type.suffix} WHERE e = ?"
+        return cql.toString()
+    }
+
+    boolean isFiltered(Object[] row) {
+        Map<String, String> values = [:]
+        for (int i = 0; i < attrs.size(); i++) {
+            values[attrs[i]] = (String) row[i + 2]
+        }
+        for (FixedColumnFilter filter : filters) {
+            if (filter.isRowFiltered(values)) {
+                return true
+            }
+        }
+        return false
+    }
+}
 
+@CompileStatic
+class FilteredResults implements Iterator<Map>, Closeable {
+    CommandExecServices svcs
+    OperationContext opctx
+    Detail detail
+    Iterator<Map> results
+    List<SearchFilter> filters
+
+    private Map nextDoc = null
+
+    boolean hasNext() {
+        while (nextDoc == null && results.hasNext()) {
+            Map doc = results.next()
+            if (!filtered(doc)) {
+                nextDoc = doc
+            }
+        }
+        return nextDoc != null
+    }
+
+    Map next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException()
+        }
+        Map doc = nextDoc
+        nextDoc = null
+        return doc
+    }
+
+    private boolean filtered(Map doc) {
+        for (SearchFilter filter : filters) {
+            if (filter.isFiltered(svcs, opctx, detail, doc)) {
+                return true
+            }
+        }
+        return false
+    }
+
+    void close() {
+        if (results instanceof Closeable) {
+            ((Closeable) results).close()
+        }
+    }
+}
+
+
+/**
+ * rows are token(e),e,p,t,d and, for types with binary stored values, b: read the value with AttrStorage.value(row, t)
+ */
 @CompileStatic
 abstract class PTableBaseRCH {
     // called when the current doc is done being scanned
@@ -223,5 +494,39 @@ class IDListJSONArrayFromETableRCH implements RowCallbackHandler {
 
 }
 
+/**
+ * the first limit results, the source is closed once they're read
+ */
+@CompileStatic
+class LimitedResults implements Iterator<Map>, Closeable {
+    Iterator<Map> source
+    int limit
 
+    private int count = 0
+    private boolean closed = false
 
+    boolean hasNext() {
+        if (count >= limit) {
+            close()
+            return false
+        }
+        return source.hasNext()
+    }
+
+    Map next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException()
+        }
+        count++
+        return source.next()
+    }
+
+    void close() {
+        if (!closed) {
+            closed = true
+            if (source instanceof Closeable) {
+                ((Closeable) source).close()
+            }
+        }
+    }
+}
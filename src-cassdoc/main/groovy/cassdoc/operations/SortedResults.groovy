@@ -0,0 +1,354 @@
+package cassdoc.operations
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.MappingIterator
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializationFeature
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import cwdrg.lg.annotation.Log
+import groovy.transform.CompileStatic
+
+/**
+ * A sort on a top level attribute of the search result docs. Nulls (and missing attributes) sort last either way.
+ */
+@CompileStatic
+class SortKey {
+    String attr
+    boolean descending
+
+    /**
+     * comma separated attributes, - prefixed for descending: "-price,name"
+     */
+    static List<SortKey> parse(String spec) {
+        List<SortKey> keys = []
+        for (String part : (spec ?: '').split(',')) {
+            String attr = part.trim()
+            if (attr) {
+                keys.add(attr.startsWith('-') ? new SortKey(attr: attr.substring(1), descending: true) : new SortKey(attr: attr))
+            }
+        }
+        return keys
+    }
+
+    static Comparator<Map> comparator(final List<SortKey> keys) {
+        return { Map a, Map b ->
+            for (SortKey key : keys) {
+                Object va = a[key.attr]
+                Object vb = b[key.attr]
+                if (va == null || vb == null) {
+                    if (va != vb) {
+                        return va == null ? 1 : -1
+                    }
+                    continue
+                }
+                int c = compareValues(va, vb)
+                if (c != 0) {
+                    return key.descending ? -c : c
+                }
+            }
+            return 0
+        } as Comparator<Map>
+    }
+
+    /**
+     * numbers by value, strings and booleans naturally, anything else (or mixed) by its text
+     */
+    static int compareValues(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue())
+            }
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()))
+        }
+        if (a instanceof String && b instanceof String) {
+            return ((String) a).compareTo((String) b)
+        }
+        if (a instanceof Boolean && b instanceof Boolean) {
+            return ((Boolean) a).compareTo((Boolean) b)
+        }
+        return a.toString().compareTo(b.toString())
+    }
+}
+
+/**
+ * Sort stage of search results (see SearchOperations.search), reading the whole source on the first hasNext().
+ *
+ * With a limit, the first limit docs are kept in a bounded heap. Without one, docs are sorted in runs of bufferDocs,
+ * which are spilled to temp files and merged, so at most bufferDocs docs (and a head doc per run) are held. A run file
+ * is a stream of Smile encoded docs: binary json, with back references for repeated attribute names. More than
+ * MERGE_FAN_IN runs are merged in several passes.
+ *
+ * Docs come back from a run file as they went in: decimals are read as BigDecimal, so 1.10 keeps its scale, and the
+ * values json has no type for (dates, which Smile writes as their millis, doubles, floats, big integers) are written
+ * with the path and type of each, and restored on reading. Other objects come back as the maps and strings they
+ * serialize to.
+ *
+ * close() closes the source and deletes the run files.
+ */
+@CompileStatic
+@Log
+class SortedResults implements Iterator<Map>, Closeable {
+    static final int MERGE_FAN_IN = 64
+
+    private static final ObjectMapper SMILE = new ObjectMapper(new SmileFactory())
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+            .enable(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+
+    // the types (and dates) restored on reading a run, by the tag written with their path
+    private static final Map<Class, String> RESTORED_TYPES = [(Double): 'double', (Float): 'float', (BigInteger): 'bigint'] as Map<Class, String>
+
+    Iterator<Map> source
+    Comparator<Map> comparator
+    Integer limit
+    int bufferDocs = 10000
+    File tempDir
+
+    private Iterator<Map> sorted = null
+    private final List<File> runs = []
+    private final List<MappingIterator<Map>> readers = []
+
+    boolean hasNext() {
+        if (sorted == null) {
+            sorted = limit != null ? topK() : mergeSort()
+        }
+        return sorted.hasNext()
+    }
+
+    Map next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException()
+        }
+        return sorted.next()
+    }
+
+    private Iterator<Map> topK() {
+        if (limit <= 0) {
+            return Collections.<Map> emptyIterator()
+        }
+        // the worst of the kept docs at the head
+        PriorityQueue<Map> heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, comparator.reversed())
+        while (source.hasNext()) {
+            Map doc = source.next()
+            if (heap.size() < limit) {
+                heap.add(doc)
+            } else if (comparator.compare(doc, heap.peek()) < 0) {
+                heap.poll()
+                heap.add(doc)
+            }
+        }
+        List<Map> docs = new ArrayList<>(heap)
+        Collections.sort(docs, comparator)
+        return docs.iterator()
+    }
+
+    private Iterator<Map> mergeSort() {
+        List<Map> buffer = []
+        while (source.hasNext()) {
+            buffer.add(source.next())
+            if (buffer.size() >= bufferDocs) {
+                Collections.sort(buffer, comparator)
+                writeRun(buffer.iterator())
+                buffer = []
+            }
+        }
+        Collections.sort(buffer, comparator)
+        if (runs.isEmpty()) {
+            return buffer.iterator()
+        }
+        log.dbg("search sort: ${runs.size()} runs of $bufferDocs docs spilled", null)
+        // the buffer is the last input of the final merge. A pass merges adjacent runs and keeps the merged runs in
+        // the order of their inputs, so equal docs stay in source order
+        while (runs.size() >= MERGE_FAN_IN) {
+            List<File> pass = new ArrayList<>(runs)
+            List<File> merged = []
+            for (int i = 0; i < pass.size(); i += MERGE_FAN_IN) {
+                List<File> group = pass.subList(i, Math.min(i + MERGE_FAN_IN, pass.size()))
+                if (group.size() == 1) {
+                    merged.add(group[0])
+                    continue
+                }
+                List<Iterator<Map>> inputs = []
+                for (File run : group) {
+                    inputs.add(readRun(run))
+                }
+                merged.add(writeRun(merge(inputs)))
+                closeReaders()
+                for (File run : group) {
+                    run.delete()
+                }
+                runs.removeAll(group)
+            }
+            runs.clear()
+            runs.addAll(merged)
+        }
+        List<Iterator<Map>> inputs = []
+        for (File run : runs) {
+            inputs.add(readRun(run))
+        }
+        inputs.add(buffer.iterator())
+        return merge(inputs)
+    }
+
+    /**
+     * a new run file of the docs, added to the runs (and returned). Each doc is written as {d: doc, r: restored} with restored the
+     * [path, type tag] of its values of RESTORED_TYPES, left out if it has none. (Not as a pair: the reader would
+     * take a leading array for one wrapping the whole run.)
+     */
+    private File writeRun(Iterator<Map> docs) {
+        File run = File.createTempFile('cassdoc-sort-', '.run', tempDir)
+        runs.add(run)
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(run), 64 * 1024)
+        try {
+            JsonGenerator gen = SMILE.factory.createGenerator(out)
+            List<Object> path = []
+            while (docs.hasNext()) {
+                Map doc = docs.next()
+                List<List> restored = []
+                restoredPaths(doc, path, restored)
+                SMILE.writeValue(gen, restored ? [d: doc, r: restored] : [d: doc])
+            }
+            gen.close()
+        } finally {
+            out.close()
+        }
+        return run
+    }
+
+    /**
+     * adds the [path, type tag] of the values of RESTORED_TYPES in value, path being the keys and indexes to it
+     */
+    static void restoredPaths(Object value, List<Object> path, List<List> restored) {
+        if (value instanceof Map) {
+            for (Map.Entry entry : ((Map) value).entrySet()) {
+                path.add(entry.key)
+                restoredPaths(entry.value, path, restored)
+                path.remove(path.size() - 1)
+            }
+        } else if (value instanceof List) {
+            List list = (List) value
+            for (int i = 0; i < list.size(); i++) {
+                path.add(i)
+                restoredPaths(list[i], path, restored)
+                path.remove(path.size() - 1)
+            }
+        } else if (value != null) {
+            String tag = value instanceof Date ? 'date' : RESTORED_TYPES[value.class]
+            if (tag != null) {
+                restored.add([new ArrayList<Object>(path), tag])
+            }
+        }
+    }
+
+    /**
+     * the doc of a run record, its values of RESTORED_TYPES converted back from what Smile read them as
+     */
+    static Map restore(Map record) {
+        Map doc = (Map) record['d']
+        List<List> restored = (List<List>) record['r']
+        if (restored != null) {
+            for (List entry : restored) {
+                List path = (List) entry[0]
+                Object parent = doc
+                for (int i = 0; i < path.size() - 1; i++) {
+                    parent = parent instanceof Map ? ((Map) parent)[path[i]] : ((List) parent)[(int) path[i]]
+                }
+                Object last = path[path.size() - 1]
+                if (parent instanceof Map) {
+                    ((Map) parent)[last] = restoredValue((Number) ((Map) parent)[last], (String) entry[1])
+                } else {
+                    ((List) parent)[(int) last] = restoredValue((Number) ((List) parent)[(int) last], (String) entry[1])
+                }
+            }
+        }
+        return doc
+    }
+
+    private static Object restoredValue(Number value, String tag) {
+        switch (tag) {
+            case 'date': return new Date(value.longValue())
+            case 'double': return value.doubleValue()
+            case 'float': return value.floatValue()
+            case 'bigint': return value instanceof BigInteger ? value : BigInteger.valueOf(value.longValue())
+            default: return value
+        }
+    }
+
+    private Iterator<Map> readRun(File run) {
+        final MappingIterator<Map> reader = SMILE.readerFor(Map).readValues(new BufferedInputStream(new FileInputStream(run), 64 * 1024))
+        readers.add(reader)
+        return new Iterator<Map>() {
+            boolean hasNext() {
+                reader.hasNext()
+            }
+
+            Map next() {
+                restore(reader.next())
+            }
+        }
+    }
+
+    static class Head {
+        Map doc
+        int input
+        Iterator<Map> docs
+    }
+
+    /**
+     * k-way merge of sorted inputs, equal docs in input order
+     */
+    private Iterator<Map> merge(final List<Iterator<Map>> inputs) {
+        final PriorityQueue<Head> heads = new PriorityQueue<>(inputs.size() + 1, { Head a, Head b ->
+            int c = comparator.compare(a.doc, b.doc)
+            return c != 0 ? c : Integer.compare(a.input, b.input)
+        } as Comparator<Head>)
+        for (int i = 0; i < inputs.size(); i++) {
+            if (inputs[i].hasNext()) {
+                heads.add(new Head(doc: inputs[i].next(), input: i, docs: inputs[i]))
+            }
+        }
+        return new Iterator<Map>() {
+            boolean hasNext() {
+                !heads.isEmpty()
+            }
+
+            Map next() {
+                Head head = heads.poll()
+                if (head == null) {
+                    throw new NoSuchElementException()
+                }
+                Map doc = head.doc
+                if (head.docs.hasNext()) {
+                    head.doc = head.docs.next()
+                    heads.add(head)
+                }
+                return doc
+            }
+        }
+    }
+
+    private void closeReaders() {
+        for (MappingIterator<Map> reader : readers) {
+            try {
+                reader.close()
+            } catch (IOException e) {
+                log.dbg('search sort run close', e)
+            }
+        }
+        readers.clear()
+    }
+
+    void close() {
+        try {
+            if (source instanceof Closeable) {
+                ((Closeable) source).close()
+            }
+        } finally {
+            closeReaders()
+            for (File run : runs) {
+                run.delete()
+            }
+            runs.clear()
+        }
+    }
+}
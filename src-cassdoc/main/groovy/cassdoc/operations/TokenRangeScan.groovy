@@ -0,0 +1,250 @@
+package cassdoc.operations
+
+import cassdoc.AttrStorage
+import cassdoc.CommandExecServices
+import cassdoc.Detail
+import cassdoc.OperationContext
+import cassdoc.commands.retrieve.QueryCmd
+import com.datastax.driver.core.ResultSet
+import com.datastax.driver.core.Row
+import com.datastax.driver.core.Statement
+import com.datastax.driver.core.TokenRange
+import cwdrg.lg.annotation.Log
+import drv.cassdriver.RowCallbackHandler
+import drv.cassdriver.St
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Function
+
+/**
+ * Parallel full table scan of the e_ or p_ table of a type.
+ *
+ * The ring is split into about {@link #splits} sub-ranges along the cluster's token ranges (see
+ * DriverWrapper.splitTokenRanges), and {@link #concurrency} of them are scanned at a time, each as its own paged
+ * token range query. Sub-ranges in a ScanCheckpoint are skipped and finished ones are recorded in it.
+ *
+ * Rows go to the existing callbacks, either merged into one handler (calls are serialized, and for p_ tables a doc's
+ * rows are handed over together so PTableBaseRCH sees each doc contiguously) or to a handler per sub-range, which
+ * runs concurrently with the others. Row order across sub-ranges is not token order in either case.
+ *
+ * A failing sub-range stops the scan: sub-ranges not started are abandoned and the error is rethrown. Finished
+ * sub-ranges stay checkpointed so the scan can be resumed.
+ *
+ * @author cowardlydragon
+ */
+@Log
+@CompileStatic
+class TokenRangeScan {
+
+    int splits = 256
+    int concurrency = 8
+    ScanCheckpoint checkpoint = null
+
+    final AtomicLong rowCount = new AtomicLong()
+    final AtomicLong rangesScanned = new AtomicLong()
+    final AtomicLong rangesSkipped = new AtomicLong()
+
+    /**
+     * receives the rows of one sub-range, in order
+     */
+    static abstract class RangeSink {
+        abstract void row(Row row)
+
+        void end() {}
+    }
+
+    // ---- e_ tables: one row per doc
+
+    void scanETable(CommandExecServices svcs, OperationContext opctx, Detail detail, String objectType, List<String> fixedCols, final RowCallbackHandler rch) {
+        scan(svcs, opctx, detail, eTable(svcs, opctx, objectType), eCols(fixedCols), { TokenRange range ->
+            new RangeSink() {
+                void row(Row row) {
+                    synchronized (rch) {
+                        rch.processRow(row)
+                    }
+                }
+            }
+        } as Function<TokenRange, RangeSink>)
+    }
+
+    void scanETablePerRange(CommandExecServices svcs, OperationContext opctx, Detail detail, String objectType, List<String> fixedCols, final Function<TokenRange, RowCallbackHandler> handlers) {
+        scan(svcs, opctx, detail, eTable(svcs, opctx, objectType), eCols(fixedCols), { TokenRange range ->
+            final RowCallbackHandler rch = handlers.apply(range)
+            new RangeSink() {
+                void row(Row row) {
+                    rch.processRow(row)
+                }
+            }
+        } as Function<TokenRange, RangeSink>)
+    }
+
+    // ---- p_ tables: one row per attr, a doc's rows are contiguous within its sub-range
+
+    void scanPTable(CommandExecServices svcs, OperationContext opctx, Detail detail, String objectType, final PTableBaseRCH rch) {
+        scan(svcs, opctx, detail, pTable(svcs, opctx, objectType), pCols(svcs, opctx, objectType), { TokenRange range ->
+            new RangeSink() {
+                List<Row> docRows = []
+                String docUUID = null
+
+                void row(Row row) {
+                    String uuid = row.getString(1)
+                    if (uuid != docUUID) {
+                        handOver()
+                        docUUID = uuid
+                    }
+                    docRows.add(row)
+                }
+
+                void end() {
+                    handOver()
+                }
+
+                private void handOver() {
+                    if (!docRows.isEmpty()) {
+                        synchronized (rch) {
+                            for (Row docRow : docRows) {
+                                rch.processRow(docRow)
+                            }
+                        }
+                        docRows = []
+                    }
+                }
+            }
+        } as Function<TokenRange, RangeSink>)
+        // process the very last doc
+        if (rch.currentDocUUID != null) {
+            rch.processDoc()
+        }
+    }
+
+    void scanPTablePerRange(CommandExecServices svcs, OperationContext opctx, Detail detail, String objectType, final Function<TokenRange, PTableBaseRCH> handlers) {
+        scan(svcs, opctx, detail, pTable(svcs, opctx, objectType), pCols(svcs, opctx, objectType), { TokenRange range ->
+            final PTableBaseRCH rch = handlers.apply(range)
+            new RangeSink() {
+                void row(Row row) {
+                    rch.processRow(row)
+                }
+
+                void end() {
+                    if (rch.currentDocUUID != null) {
+                        rch.processDoc()
+                    }
+                }
+            }
+        } as Function<TokenRange, RangeSink>)
+    }
+
+    // ---- engine
+
+    /**
+     * @param table keyspace qualified table
+     * @param cols select list, token(e) and e first
+     * @param sinks a sink per sub-range
+     */
+    void scan(final CommandExecServices svcs, final OperationContext opctx, final Detail detail, final String table, final String cols, final Function<TokenRange, RangeSink> sinks) {
+        List<TokenRange> ranges = svcs.driver.splitTokenRanges(opctx.space, splits)
+        log.inf("scan $table: ${ranges.size()} sub-ranges, $concurrency concurrent", null)
+        final AtomicBoolean failed = new AtomicBoolean(false)
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency)
+        List<Future<Void>> scans = []
+        try {
+            for (TokenRange next : ranges) {
+                if (checkpoint?.isComplete(next)) {
+                    rangesSkipped.incrementAndGet()
+                    continue
+                }
+                // the loop variable is shared by the closures, each needs its own
+                final TokenRange range = next
+                scans.add(pool.submit({
+                    try {
+                        if (!failed.get()) {
+                            scanRange(svcs, opctx, detail, table, cols, range, sinks.apply(range), failed)
+                            if (!failed.get()) {
+                                checkpoint?.complete(range)
+                                rangesScanned.incrementAndGet()
+                            }
+                        }
+                        return null
+                    } catch (Throwable t) {
+                        // stop the other sub-ranges
+                        failed.set(true)
+                        throw t
+                    }
+                } as Callable<Void>))
+            }
+            for (Future<Void> scan : scans) {
+                try {
+                    scan.get()
+                } catch (ExecutionException ee) {
+                    throw log.err("scan $table failed", ee.cause)
+                }
+            }
+        } finally {
+            pool.shutdownNow()
+        }
+        log.inf("scan $table: ${rangesScanned.get()} sub-ranges scanned, ${rangesSkipped.get()} skipped, ${rowCount.get()} rows", null)
+    }
+
+    private void scanRange(CommandExecServices svcs, OperationContext opctx, Detail detail, String table, String cols, TokenRange range, RangeSink sink, AtomicBoolean failed) {
+        int fetchNextPageThreshold = detail?.fetchNextPageThreshold ?: 3000
+        int fetchPageSize = detail?.fetchPageSize ?: 30000
+
+        StringBuilder cql = new StringBuilder("SELECT ")
+        cql << cols << " FROM " << table << " WHERE token(e) > ?"
+        Object[] args
+        Long start = (Long) range.start.value
+        Long end = (Long) range.end.value
+        if (end == Long.MIN_VALUE) {
+            // unwrapped range running to the end of the ring
+            args = [start] as Object[]
+        } else {
+            cql << " AND token(e) <= ?"
+            args = [start, end] as Object[]
+        }
+        String space = opctx.space
+        Statement stmt = svcs.driver.prepare(space, cql.toString(), args, QueryCmd.resolveConsistency(detail, opctx), null)
+        stmt.setFetchSize(fetchPageSize)
+        St st = new St(stmt: stmt, cql: cql.toString(), cqlargs: args, keyspace: space)
+        ResultSet cassRS = svcs.driver.executeStatementSync(svcs.driver.getSession(), st)
+
+        for (Row curDBRow : cassRS) {
+            if (failed.get()) {
+                return
+            }
+            sink.row(curDBRow)
+            rowCount.incrementAndGet()
+            if (cassRS.getAvailableWithoutFetching() == fetchNextPageThreshold && !cassRS.isFullyFetched()) {
+                cassRS.fetchMoreResults()
+            }
+        }
+        sink.end()
+    }
+
+    private static String eTable(CommandExecServices svcs, OperationContext opctx, String objectType) {
+        "${opctx.space}.e_${svcs.types(opctx.space).getSuffixForType(objectType)}"
+    }
+
+    private static String pTable(CommandExecServices svcs, OperationContext opctx, String objectType) {
+        "${opctx.space}.p_${svcs.types(opctx.space).getSuffixForType(objectType)}"
+    }
+
+    // b last, when the type has binary stored values (see AttrStorage)
+    private static String pCols(CommandExecServices svcs, OperationContext opctx, String objectType) {
+        "token(e),e,p,t,d" + AttrStorage.binaryCol(svcs, opctx.space, svcs.types(opctx.space).getSuffixForType(objectType))
+    }
+
+    private static String eCols(List<String> fixedCols) {
+        StringBuilder cols = new StringBuilder("token(e),e")
+        for (String col : fixedCols ?: []) {
+            cols << "," << col
+        }
+        return cols.toString()
+    }
+}
@@ -37,6 +37,10 @@ class UpdateOperations {
     }
 
     static void updateAttr(CommandExecServices svcs, OperationContext opctx, Detail detail, String docUUID, String attr, String json) {
+        if (detail.deltaUpdate) {
+            AttrDelta.updateAttrDelta(svcs, opctx, detail, docUUID, attr, json)
+            return
+        }
         JsonParser parser = svcs.jsonFactory.createParser(json)
         UpdAttr cmd = new UpdAttr(docUUID: docUUID, attrName: attr)
         cmd.attrValue = CreateOperations.parseField(svcs, opctx, detail, docUUID, attr, parser)
@@ -141,12 +145,12 @@ class UpdateOperations {
         JsonToken token = parser.nextToken()
         if (token == JsonToken.VALUE_STRING) {
             String idString = parser.getText()
-            if (svcs.collections[opctx.space].first.isKnownSuffix(idString)) {
+            if (svcs.types(opctx.space).isKnownSuffix(idString)) {
                 return [
                         "NEW",
-                        IDUtil.timeUUID() + "-" + idString] as String[]
+                        opctx.newDocUUID(idString)] as String[]
             } else {
-                if (svcs.collections[opctx.space].first.isKnownSuffix(IDUtil.idSuffix(idString))) {
+                if (svcs.types(opctx.space).isKnownSuffix(IDUtil.idSuffix(idString))) {
                     return ["EXTANT", idString] as String[]
                 } else {
                     throw new IllegalArgumentException("Unknown type suffix for provided UUID " + idString)
@@ -0,0 +1,113 @@
+package cassdoc
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+import cassdoc.commands.mutate.MutationCmd
+import cassdoc.exceptions.PersistenceConflictException
+import com.datastax.driver.core.ResultSet
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class AsyncModeSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    Detail detail = new Detail()
+    OperationContext opctx = new OperationContext(space: 'ks', executionMode: 'async')
+
+    void 'all commands are sent and the completion waits for them'() {
+        given:
+        CompletableFuture<ResultSet> last = new CompletableFuture<>()
+        drv.respond = { St st -> st.cqlargs[0] == 'c' ? last : CompletableFuture.completedFuture((ResultSet) null) }
+        ['a', 'b', 'c'].each { opctx.commands.add(new CqlCmd(value: it)) }
+
+        when:
+        CompletableFuture<Void> done = opctx.DOAsync(svcs, detail)
+
+        then:
+        drv.sent*.cqlargs*.getAt(0) as Set == ['a', 'b', 'c'] as Set
+        !done.done
+        opctx.commands.isEmpty()
+
+        when:
+        last.complete(null)
+
+        then:
+        done.done
+        !done.completedExceptionally
+    }
+
+    void 'a failed write fails the completion'() {
+        given:
+        drv.maxAsyncInFlight = 1
+        drv.respond = { St st ->
+            CompletableFuture<ResultSet> f = new CompletableFuture<>()
+            if (st.cqlargs[0] == 'b') f.completeExceptionally(new IllegalStateException('write timeout')) else f.complete(null)
+            f
+        }
+        ['a', 'b', 'c'].each { opctx.commands.add(new CqlCmd(value: it)) }
+
+        when:
+        opctx.DOAsync(svcs, detail).join()
+
+        then:
+        CompletionException e = thrown()
+        e.cause instanceof IllegalStateException
+        drv.sent*.cqlargs*.getAt(0) == ['a', 'b']
+    }
+
+    void 'the paxos gatekeeper goes first and the rest are sent only if it applied'() {
+        given:
+        String[] gatekeeper = ['P', 'doc1'] as String[]
+        opctx.paxosGatekeeperUpdateID = gatekeeper
+        drv.rows = { String cql, Object[] args -> cql.contains(' IF ') ? [['[applied]': applied]] : [] }
+        opctx.commands.add(new CqlCmd(value: 'a'))
+        opctx.commands.add(new CqlCmd(value: 'gate', paxosId: gatekeeper))
+        opctx.commands.add(new CqlCmd(value: 'b'))
+
+        when:
+        Throwable failure = null
+        try {
+            opctx.DOAsync(svcs, detail).join()
+        } catch (CompletionException ce) {
+            failure = ce.cause
+        }
+
+        then:
+        drv.sent*.cqlargs*.getAt(0) == sent
+        (failure instanceof PersistenceConflictException) == !applied
+
+        where:
+        applied | sent
+        true    | ['gate', 'a', 'b']
+        false   | ['gate']
+    }
+}
+
+/**
+ * an attribute update of doc1, conditional if it is the paxos gatekeeper
+ */
+class CqlCmd extends MutationCmd {
+    String value
+
+    Object execMutationCassandra(CommandExecServices svcs, OperationContext opctx, Detail detail, Object... args) {
+        space = opctx.space
+        cql = paxosId != null ? 'UPDATE ks.p_X SET d = ? WHERE e = ? and p = ? IF zv = ?' : 'UPDATE ks.p_X SET d = ? WHERE e = ? and p = ?'
+        cqlargs = paxosId != null ? [value, 'doc1', 'a', null] as Object[] : [value, 'doc1', 'a'] as Object[]
+        execOrPrep(svcs, opctx, detail)
+    }
+
+    void batch(OperationContext opctx) {
+        ListMap.put(opctx.batches, 'Pdoc1', this)
+    }
+
+    boolean optimize(CommandExecServices svcs, OperationContext opctx, Detail detail) {
+        true
+    }
+
+    String getDocUUID() {
+        'doc1'
+    }
+}
@@ -0,0 +1,166 @@
+package cassdoc
+
+import java.util.concurrent.CompletableFuture
+
+import cassdoc.commands.mutate.DelRel
+import cassdoc.commands.mutate.UpdAttr
+import cassdoc.operations.AttrDelta
+import com.datastax.driver.core.ResultSet
+import com.fasterxml.jackson.databind.JsonNode
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class AttrDeltaSpec extends Specification {
+
+    static final String ROOT = IDUtil.timeuuid().toString() + '-PROD'
+    static final String KEPT = IDUtil.timeuuid().toString() + '-PROD'
+    static final String REMOVED = IDUtil.timeuuid().toString() + '-PROD'
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop', executionMode: 'batch')
+    Detail detail = new Detail()
+    StoredDocs stored = new StoredDocs(drv) << [
+            (ROOT)   : [name: '"one"', parts: '[{"_id":"' + KEPT + '"},{"_id":"' + REMOVED + '"}]'],
+            (KEPT)   : [n: '1'],
+            (REMOVED): [n: '2']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+        // the CH rels of the root's parts
+        Closure docRows = drv.rows
+        drv.rows = { String cql, Object[] args ->
+            if (cql.contains('.r ') && args && args[0] == ROOT) {
+                return [KEPT, REMOVED].collect { String child -> [p1: ROOT, ty1: RelTypes.TO_CHILD, ty2: '', ty3: '', ty4: '', p2: 'parts', p3: '', p4: '', c1: child, c2: '', c3: '', c4: ''] }
+            }
+            docRows(cql, args)
+        }
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    JsonNode tree(String json) {
+        AttrDelta.MAPPER.readTree(json)
+    }
+
+    void update(String docUUID, String attr, String json) {
+        AttrDelta.updateAttrDelta(svcs, opctx, detail, docUUID, attr, json)
+    }
+
+    List<St> written() {
+        drv.sentStatements().findAll { St st -> !st.cql.startsWith('SELECT') }
+    }
+
+    List<St> queued() {
+        written().findAll { St st -> st.cql.startsWith('INSERT INTO shop.cq ') }
+    }
+
+    void 'child doc refs are objects with the id field first, at any depth'() {
+        expect:
+        AttrDelta.childRefs('_id', tree('{"a":[{"_id":"c1-PROD"},{"x":1,"_id":"no"}],"b":{"c":{"_id":"c2-JOB","n":2}}}')) == ['c1-PROD', 'c2-JOB'] as Set
+        AttrDelta.childRefs('_id', tree('"text"')).isEmpty()
+        AttrDelta.childRefs('_id', null).isEmpty()
+    }
+
+    void 'stored values compare as trees'() {
+        expect:
+        tree('{"a":1,"b":[true,"x"],"c":2.50}') == tree('{"c":2.5,"b":[true,"x"],"a":1}')
+        tree('{"a":1,"b":[true,"x"]}') != tree('{"a":1,"b":["x",true]}')
+        AttrDelta.MAPPER.writeValueAsString(tree('{"c":2.50}')) == '{"c":2.50}'
+    }
+
+    void 'an unchanged value adds no commands'() {
+        when:
+        update(ROOT, 'name', '"one"')
+        update(ROOT, 'parts', '[{"_id":"' + KEPT + '"},{"_id":"' + REMOVED + '"}]')
+        opctx.DO(svcs, detail)
+
+        then:
+        opctx.commands.isEmpty()
+        written().isEmpty()
+    }
+
+    void 'a changed scalar is overwritten in place'() {
+        when:
+        update(ROOT, 'name', '"uno"')
+
+        then:
+        opctx.commands*.class == [UpdAttr]
+        opctx.commands[0].docUUID == ROOT
+        opctx.commands[0].attrValue.value == 'uno'
+
+        when:
+        opctx.DO(svcs, detail)
+
+        then:
+        written().size() == 1
+        written()[0].cql.contains('shop.p_PROD')
+        !written()[0].cql.startsWith('DELETE')
+        queued().isEmpty()
+    }
+
+    void 'a kept child doc is delta updated with the fields given for it, its ref is unchanged'() {
+        when:
+        update(ROOT, 'parts', '[{"_id":"' + KEPT + '","n":5},{"_id":"' + REMOVED + '","n":2}]')
+
+        then:
+        opctx.commands*.class == [UpdAttr]
+        opctx.commands[0].docUUID == KEPT
+        opctx.commands[0].attrName == 'n'
+
+        when:
+        opctx.DO(svcs, detail)
+
+        then:
+        queued().isEmpty()
+    }
+
+    void 'a removed child doc loses its rel and is queued for cleanup once the update is written'() {
+        when:
+        update(ROOT, 'parts', '[{"_id":"' + KEPT + '"}]')
+
+        then:
+        opctx.commands*.class as Set == [DelRel, UpdAttr] as Set
+        opctx.commands.find { it instanceof DelRel }.relKey.c1 == REMOVED
+        queued().isEmpty()
+
+        when:
+        opctx.DO(svcs, detail)
+
+        then:
+        queued()*.cqlargs*.getAt(2) == [REMOVED]
+        written().indexOf(queued()[0]) == written().size() - 1
+    }
+
+    void 'a removed child doc stays unqueued if the update fails'() {
+        given:
+        drv.respond = { St st ->
+            CompletableFuture<ResultSet> f = new CompletableFuture<>()
+            if (drv.statementsOf(st).any { !it.cql.startsWith('SELECT') && it.cql.contains('shop.p_') }) f.completeExceptionally(new IllegalStateException('write timeout')) else f.complete(RecordingDriver.resultSet(drv.rows(st.cql, st.cqlargs)))
+            f
+        }
+        update(ROOT, 'parts', '[{"_id":"' + KEPT + '"}]')
+
+        when:
+        opctx.DO(svcs, detail)
+
+        then:
+        thrown(IllegalStateException)
+        queued().isEmpty()
+    }
+
+    void 'in immediate mode a removed child doc is queued after the update is written'() {
+        given:
+        opctx.executionMode = 'immediate'
+
+        when:
+        update(ROOT, 'parts', '[{"_id":"' + KEPT + '"}]')
+
+        then:
+        queued()*.cqlargs*.getAt(2) == [REMOVED]
+        written().indexOf(queued()[0]) == written().size() - 1
+    }
+}
@@ -0,0 +1,97 @@
+package cassdoc
+
+import cassdoc.operations.AttrStorageConverter
+import com.datastax.driver.core.TokenRange
+import com.fasterxml.jackson.core.JsonParser
+import cwdrg.util.json.JSONUtil
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+
+class AttrStorageSpec extends Specification {
+
+    CommandExecServices svcs = new CommandExecServices()
+
+    @Unroll
+    void '#format values read back as the json they were written from'() {
+        given:
+        String json = '{"a":[1,2.50,"x",null,true],"b":{"_id":"abc"},"c":12345678901234567890,"d":"' + ('abcd' * 100) + '"}'
+        DocType type = new DocType(uri: 'cassdoc.T', suffix: 'T', attrFormat: format, attrCompressBytes: compressBytes)
+
+        when:
+        Object[] stored = AttrStorage.encode(svcs, type, new FieldValue(type: Map, value: json))
+        BinaryAttr binary = new BinaryAttr(format: format, compressed: ((String) stored[0]).endsWith('Z'), bytes: ((ByteBuffer) stored[2]).array())
+
+        then:
+        stored[0] == storedType
+        stored[1] == null
+        AttrStorage.typeCode((String) stored[0]) == DBCodes.TYPE_CODE_OBJECT
+        JSONUtil.deserialize(AttrStorage.json(svcs, binary), Object) == JSONUtil.deserialize(json, Object)
+
+        where:
+        format  | compressBytes | storedType
+        'smile' | null          | 'OS'
+        'cbor'  | null          | 'OC'
+        'smile' | 0             | 'OSZ'
+    }
+
+    void 'scalars and json types stay text'() {
+        expect:
+        AttrStorage.encode(svcs, new DocType(attrFormat: 'smile'), new FieldValue(type: String, value: 'abc')) as List == ['S', 'abc', null]
+        AttrStorage.encode(svcs, new DocType(attrFormat: 'json'), new FieldValue(type: List, value: '[1]')) as List == ['A', '[1]', null]
+        AttrStorage.encode(svcs, null, new FieldValue(type: Map, value: '{}')) as List == ['O', '{}', null]
+    }
+
+    void 'lz4 round trip'() {
+        given:
+        byte[] raw = ('{"abc":"' + ('xyz' * 1000) + '"}').bytes
+
+        expect:
+        AttrStorage.compress(raw).length < raw.length
+        AttrStorage.decompress(AttrStorage.compress(raw)) == raw
+    }
+
+    void 'text values parse as json'() {
+        when:
+        JsonParser parser = AttrStorage.parser(svcs, '[1,2]')
+
+        then:
+        parser.nextToken().isStructStart()
+    }
+
+    void 'conversion rewrites text arrays and objects at the time they were written'() {
+        given:
+        RecordingDriver drv = new RecordingDriver() {
+            List<TokenRange> splitTokenRanges(String keyspace, int splits) {
+                [TokenRangeScanSpec.range(Long.MIN_VALUE, Long.MIN_VALUE)]
+            }
+        }
+        drv.rows = { String cql, Object[] args ->
+            [[tk: 1L, e: 'd1-T', p: 'tags', t: 'A', d: '[1,2]', wt: 1500000000000000L],
+             [tk: 1L, e: 'd1-T', p: 'name', t: 'S', d: 'abc', wt: 1500000000000001L],
+             [tk: 1L, e: 'd1-T', p: 'dims', t: 'OS', d: null, wt: null]]
+        }
+        CommandExecServices svcs = new CommandExecServices(driver: drv)
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.T', suffix: 'T', attrFormat: 'smile')]), new IndexConfigurationService())])
+        AttrStorageConverter converter = new AttrStorageConverter()
+
+        when:
+        converter.convert(svcs, new OperationContext(space: 'shop'), new Detail(), 'cassdoc.T')
+        List<St> updates = drv.sent.findAll { St st -> st.cql.startsWith('UPDATE') }
+
+        then:
+        drv.sent[0].cql.startsWith('SELECT token(e),e,p,t,d,writetime(d) FROM shop.p_T')
+        updates.size() == 1
+        updates[0].cql == 'UPDATE shop.p_T USING TIMESTAMP ? SET d = ?, b = ?, t = ? WHERE e = ? AND p = ?'
+        updates[0].cqlargs[0] == 1500000000000000L
+        updates[0].cqlargs[1] == null
+        updates[0].cqlargs[2] instanceof ByteBuffer
+        updates[0].cqlargs[3..5] == ['AS', 'd1-T', 'tags']
+        converter.status.converted == 1
+        converter.status.skipped == 2
+        converter.status.finished
+    }
+}
@@ -0,0 +1,99 @@
+package cassdoc
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import cassdoc.operations.RetrievalOperations
+import com.fasterxml.jackson.databind.ObjectMapper
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class BulkGetSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop')
+    StoredDocs stored = new StoredDocs(drv) << [
+            'd1-PROD': [name: '"one"'],
+            'd2-PROD': [name: '"two"', qty: '2'],
+            'd3-PROD': [name: '"three"']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    List getDocs(Detail detail, List<String> ids, boolean inputOrder) {
+        StringWriter out = new StringWriter()
+        RetrievalOperations.getDocs(svcs, opctx, detail, ids.iterator(), out, inputOrder)
+        new ObjectMapper().readValue(out.toString(), List)
+    }
+
+    int existsReads() {
+        drv.sent.count { St st -> st.cql.contains('.e_') }
+    }
+
+    void 'docs are written in the order asked for, missing ones as null'() {
+        expect:
+        getDocs(new Detail(fetchWindow: 2), ['d2-PROD', 'x1-PROD', 'd1-PROD', 'd2-PROD'], true) == [
+                [_id: 'd2-PROD', name: 'two', qty: 2],
+                null,
+                [_id: 'd1-PROD', name: 'one'],
+                [_id: 'd2-PROD', name: 'two', qty: 2]]
+    }
+
+    void 'no more than the window of docs is read ahead of the one being written'() {
+        given:
+        CountDownLatch release = new CountDownLatch(1)
+        drv.respond = { St st ->
+            if (st.cql.contains('.e_')) {
+                release.await(5, TimeUnit.SECONDS)
+            }
+            CompletableFuture.completedFuture(RecordingDriver.resultSet(stored.rows(st.cql, st.cqlargs)))
+        }
+        List result = null
+        Thread reader = Thread.start { result = getDocs(new Detail(fetchWindow: 2), ['d1-PROD', 'd2-PROD', 'd3-PROD'], true) }
+
+        when:
+        long deadline = System.currentTimeMillis() + 2000
+        while (existsReads() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Thread.sleep(100)
+
+        then:
+        existsReads() == 2
+
+        when:
+        release.countDown()
+        reader.join()
+
+        then:
+        result*._id == ['d1-PROD', 'd2-PROD', 'd3-PROD']
+        existsReads() == 3
+    }
+
+    void 'without input order docs are written as their reads complete'() {
+        given:
+        CountDownLatch d2Read = new CountDownLatch(1)
+        drv.respond = { St st ->
+            if (st.cqlargs[0] == 'd1-PROD' && st.cql.contains('.e_')) {
+                // d1 waits until d2 has been read
+                d2Read.await(5, TimeUnit.SECONDS)
+                Thread.sleep(100)
+            }
+            if (st.cqlargs[0] == 'd2-PROD' && st.cql.contains('.p_')) {
+                d2Read.countDown()
+            }
+            CompletableFuture.completedFuture(RecordingDriver.resultSet(stored.rows(st.cql, st.cqlargs)))
+        }
+
+        expect:
+        getDocs(new Detail(fetchWindow: 4), ['d1-PROD', 'd2-PROD'], false)*._id == ['d2-PROD', 'd1-PROD']
+    }
+}
@@ -0,0 +1,113 @@
+package cassdoc
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+
+import cassdoc.commands.retrieve.PrefetchedRowsRP
+import cassdoc.commands.retrieve.RowProcessor
+import cassdoc.operations.ChildDocPrefetcher
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class ChildDocPrefetcherSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop')
+    Detail detail = new Detail(pullChildDocs: true)
+
+    // doc id -> attr -> json
+    Map<String, Map<String, String>> docs = [
+            'r1-PROD': [name: '"root"', parts: '[{"_id":"c1-PROD"},{"_id":"c2-PROD"}]'],
+            'c1-PROD': [name: '"first"'],
+            'c2-PROD': [name: '"second"']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+        drv.rows = { String cql, Object[] args ->
+            String id = (String) args[0]
+            if (!docs.containsKey(id)) {
+                return []
+            }
+            if (cql.contains('.e_')) {
+                return [[tk: 1L, zv: UUID.randomUUID()]]
+            }
+            docs[id].collect { String attr, String json ->
+                [tk: 1L, e: id, p: attr, d: json, t: json.startsWith('[') ? 'A' : 'S', zv: UUID.randomUUID()]
+            }
+        }
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    int reads(String table, String docUUID) {
+        drv.sent.count { St st -> st.cql.contains(table) && st.cqlargs[0] == docUUID }
+    }
+
+    void 'child docs are fetched ahead and replayed from the prefetch'() {
+        given:
+        ChildDocPrefetcher prefetcher = new ChildDocPrefetcher(svcs, opctx)
+
+        when:
+        prefetcher.prefetchDoc('r1-PROD', detail, null)
+
+        then:
+        prefetcher.awaitDoc(detail, 'r1-PROD')
+
+        when:
+        RowProcessor child = prefetcher.docAttrs(detail, 'c1-PROD')
+
+        then:
+        child instanceof PrefetchedRowsRP
+        child.nextRow()[2] == '"first"'
+        prefetcher.docAttrs(detail, 'c2-PROD') instanceof PrefetchedRowsRP
+        reads('.p_', 'c1-PROD') == 1
+
+        when: 'a prefetch is consumed once, a second read of the doc is live'
+        prefetcher.docAttrs(detail, 'c1-PROD')
+
+        then:
+        reads('.p_', 'c1-PROD') == 2
+    }
+
+    void 'a missing doc is not read'() {
+        given:
+        ChildDocPrefetcher prefetcher = new ChildDocPrefetcher(svcs, opctx)
+        Queue<String> done = new ConcurrentLinkedQueue<>()
+
+        when:
+        prefetcher.prefetchDoc('x9-PROD', detail, done)
+
+        then:
+        !prefetcher.awaitDoc(detail, 'x9-PROD')
+        done as List == ['x9-PROD']
+        reads('.p_', 'x9-PROD') == 0
+    }
+
+    void 'concurrent requests for one doc share its prefetch'() {
+        given:
+        ChildDocPrefetcher prefetcher = new ChildDocPrefetcher(svcs, opctx)
+        CountDownLatch go = new CountDownLatch(1)
+        List<Boolean> found = Collections.synchronizedList([])
+        List<Boolean> submitted = Collections.synchronizedList([])
+        List<Thread> threads = (1..16).collect {
+            Thread.start {
+                go.await()
+                submitted << prefetcher.prefetchDoc('r1-PROD', detail, null)
+                found << prefetcher.awaitDoc(detail, 'r1-PROD')
+            }
+        }
+
+        when:
+        go.countDown()
+        threads*.join()
+
+        then:
+        submitted.count { it } == 1
+        found == [true] * 16
+        reads('.e_', 'r1-PROD') == 1
+    }
+}
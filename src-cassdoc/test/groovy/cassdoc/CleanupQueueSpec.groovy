@@ -0,0 +1,134 @@
+package cassdoc
+
+import cassdoc.operations.CleanupQueue
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class CleanupQueueSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    CleanupQueue queue = new CleanupQueue(svcs, 'shop', 1, 1000d, 100)
+
+    // the cq table: shard -> entry id (in time order) -> doc id
+    Map<Integer, TreeMap<UUID, String>> cq = [:].withDefault { new TreeMap<UUID, String>({ UUID a, UUID b -> a.timestamp() <=> b.timestamp() ?: a <=> b } as Comparator) }
+    List<Map> cqd = []
+    // doc id -> subdocument ids
+    Map<String, List<String>> children = [:]
+    // doc id -> rels reads that fail before one succeeds
+    Map<String, Integer> failuresLeft = [:]
+    // doc id -> times its rels were read
+    Map<String, List<Long>> relsReads = [:].withDefault { [] }
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+        queue.retryMillis = 20
+        queue.maxAttempts = 3
+        drv.rows = { String cql, Object[] args -> synchronized (this) { table(cql, args) } }
+    }
+
+    void cleanup() {
+        queue.stop()
+        svcs.shutdown()
+    }
+
+    List<Map> table(String cql, Object[] args) {
+        if (cql.startsWith('INSERT INTO shop.cq ')) {
+            cq[(Integer) args[0]][(UUID) args[1]] = (String) args[2]
+        } else if (cql.startsWith('DELETE FROM shop.cq ')) {
+            cq[(Integer) args[0]].remove((UUID) args[1])
+        } else if (cql.startsWith('INSERT INTO shop.cqd ')) {
+            cqd << [s: args[0], id: args[1], e: args[2], error: args[3]]
+        } else if (cql.startsWith('SELECT id, e FROM shop.cq ')) {
+            SortedMap<UUID, String> entries = args.length > 1 ? cq[(Integer) args[0]].tailMap((UUID) args[1], false) : cq[(Integer) args[0]]
+            return entries.collect { UUID id, String e -> [id: id, e: e] }
+        } else if (cql.startsWith('SELECT') && cql.contains('FROM shop.r WHERE p1 = ?')) {
+            String doc = (String) args[0]
+            relsReads[doc] << System.currentTimeMillis()
+            if (failuresLeft[doc]) {
+                failuresLeft[doc]--
+                throw new IllegalStateException("read timeout $doc")
+            }
+            return (children[doc] ?: []).collect { String child -> [p1: doc, ty1: RelTypes.TO_CHILD, c1: child] }
+        }
+        []
+    }
+
+    List<String> docsDeleted() {
+        drv.sentStatements().findAll { St st -> st.cql.startsWith('DELETE FROM shop.e_') }.collect { St st -> (String) st.cqlargs[0] }
+    }
+
+    boolean queueEmpty() {
+        synchronized (this) {
+            cq.values().every { it.isEmpty() }
+        }
+    }
+
+    void waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    void 'queued docs are deleted a level at a time, their subdocuments queued first'() {
+        given:
+        children['r1-PROD'] = ['c1-PROD', 'c2-PROD']
+        children['c1-PROD'] = ['g1-PROD']
+        queue.start()
+
+        when:
+        queue.enqueue(['r1-PROD'])
+        waitFor { queue.deleted.get() == 4 && queueEmpty() }
+        List<St> sent = drv.sentStatements()
+
+        then:
+        docsDeleted() as Set == ['r1-PROD', 'c1-PROD', 'c2-PROD', 'g1-PROD'] as Set
+        queueEmpty()
+        queue.status.queued == 4
+        queue.status.failures == 0
+        sent.findIndexOf { St st -> st.cql.startsWith('INSERT INTO shop.cq ') && st.cqlargs[2] == 'g1-PROD' } < sent.findIndexOf { St st -> st.cql.startsWith('DELETE FROM shop.e_') && st.cqlargs[0] == 'c1-PROD' }
+    }
+
+    void 'a failing batch is retried with a growing backoff'() {
+        given:
+        failuresLeft['d1-PROD'] = 2
+        queue.start()
+
+        when:
+        queue.enqueue(['d1-PROD'])
+        waitFor { queue.deleted.get() == 1 }
+        List<Long> reads = relsReads['d1-PROD']
+
+        then:
+        docsDeleted() == ['d1-PROD']
+        reads.size() == 3
+        reads[1] - reads[0] >= 20
+        reads[2] - reads[1] >= 40
+        queue.status.failures == 2
+        queue.status.deadLettered == 0
+        cqd.isEmpty()
+    }
+
+    void 'a doc that keeps failing is moved to the dead letter table, the rest of its batch is deleted'() {
+        given:
+        failuresLeft['bad-PROD'] = 100
+        queue.start()
+
+        when:
+        queue.enqueue(['a-PROD', 'bad-PROD', 'b-PROD'])
+        waitFor { queue.deleted.get() == 2 && queue.deadLettered.get() == 1 }
+        waitFor { queueEmpty() }
+
+        then:
+        docsDeleted() as Set == ['a-PROD', 'b-PROD'] as Set
+        cqd.size() == 1
+        cqd[0].e == 'bad-PROD'
+        cqd[0].s == CleanupQueue.shard('bad-PROD')
+        cqd[0].error.contains('read timeout bad-PROD')
+        relsReads['bad-PROD'].size() == 3
+        queueEmpty()
+        queue.status.deadLettered == 1
+    }
+}
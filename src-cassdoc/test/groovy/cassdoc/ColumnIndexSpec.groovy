@@ -0,0 +1,46 @@
+package cassdoc
+
+import spock.lang.Specification
+
+class ColumnIndexSpec extends Specification {
+
+    DocType type = new DocType(uri: 'cassdoc.PROD', suffix: 'PROD', fixedAttrList: [
+            new FixedAttr(sourceAttr: 'sku', colname: 'sku', coltype: 'text'),
+            new FixedAttr(sourceAttr: 'qty', colname: 'qty', coltype: 'int')])
+
+    void 'definitions resolve to the FixedAttr column of the e_ table'() {
+        when:
+        ColumnIndex idx = IndexConfigurationService.columnIndex('shop', type, [kind: IndexTypes.MATERIALIZED_VIEW, name: 'prod_qty', typeSuffix: 'PROD', attr: 'qty'])
+
+        then:
+        idx instanceof MaterializedViewIndex
+        idx.table == 'e_PROD'
+        idx.column == 'qty'
+        idx.bindValue('12') == 12
+        idx.definition == [kind: IndexTypes.MATERIALIZED_VIEW, name: 'prod_qty', typeSuffix: 'PROD', attr: 'qty']
+    }
+
+    void 'definitions need a FixedAttr and a known kind'() {
+        when:
+        IndexConfigurationService.columnIndex('shop', type, [kind: kind, name: 'idx', attr: attr])
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        kind                   | attr
+        IndexTypes.SECONDARY   | 'color'
+        'BTREE'                | 'sku'
+    }
+
+    void 'estimated matches scale the sampled frequency to the table'() {
+        given:
+        ColumnStats stats = new ColumnStats(sampled: 100, tableRows: 10000, counts: [red: 50, blue: 1])
+
+        expect:
+        stats.estimatedMatches('red') == 5000
+        stats.estimatedMatches('blue') == 100
+        stats.estimatedMatches('green') < 100
+        new ColumnStats().estimatedMatches('red') == 0
+    }
+}
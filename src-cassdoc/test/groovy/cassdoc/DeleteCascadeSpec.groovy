@@ -0,0 +1,126 @@
+package cassdoc
+
+import java.util.concurrent.CompletableFuture
+
+import cassdoc.operations.DeleteOperations
+import com.datastax.driver.core.ResultSet
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class DeleteCascadeSpec extends Specification {
+
+    static final String ROOT = IDUtil.timeuuid().toString() + '-PROD'
+    static final String CHILD = IDUtil.timeuuid().toString() + '-PROD'
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop', executionMode: 'batch')
+    Detail detail = new Detail()
+    StoredDocs stored = new StoredDocs(drv) << [
+            (ROOT) : [name: '"one"', parts: '[{"_id":"' + CHILD + '"}]'],
+            (CHILD): [n: '1']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+        // the CH rel of the root's part
+        Closure docRows = drv.rows
+        drv.rows = { String cql, Object[] args ->
+            if (cql.contains('.r ') && args && args[0] == ROOT) {
+                return [[p1: ROOT, ty1: RelTypes.TO_CHILD, ty2: '', ty3: '', ty4: '', p2: 'parts', p3: '', p4: '', c1: CHILD, c2: '', c3: '', c4: '']]
+            }
+            docRows(cql, args)
+        }
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    List<St> written() {
+        drv.sentStatements().findAll { St st -> !st.cql.startsWith('SELECT') }
+    }
+
+    List<St> queued() {
+        written().findAll { St st -> st.cql.startsWith('INSERT INTO shop.cq ') }
+    }
+
+    void failWrites() {
+        drv.respond = { St st ->
+            CompletableFuture<ResultSet> f = new CompletableFuture<>()
+            if (drv.statementsOf(st).any { it.cql.startsWith('DELETE') }) f.completeExceptionally(new IllegalStateException('write timeout')) else f.complete(RecordingDriver.resultSet(drv.rows(st.cql, st.cqlargs)))
+            f
+        }
+    }
+
+    void 'the child docs of a deleted doc are queued once its deletes are written'() {
+        when:
+        DeleteOperations.deleteDoc(svcs, opctx, detail, ROOT)
+
+        then:
+        !opctx.commands.isEmpty()
+        queued().isEmpty()
+
+        when:
+        opctx.DO(svcs, detail)
+
+        then:
+        queued()*.cqlargs*.getAt(2) == [CHILD]
+        written().indexOf(queued()[0]) == written().size() - 1
+    }
+
+    void 'a doc delete that fails or is never executed queues nothing'() {
+        given:
+        failWrites()
+
+        when:
+        DeleteOperations.deleteDoc(svcs, opctx, detail, ROOT)
+        opctx.DO(svcs, detail)
+
+        then:
+        thrown(IllegalStateException)
+        queued().isEmpty()
+
+        when:
+        DeleteOperations.deleteDoc(svcs, new OperationContext(space: 'shop', executionMode: 'batch'), detail, ROOT)
+
+        then:
+        queued().isEmpty()
+    }
+
+    void 'an attribute delete that fails queues nothing, written it queues the attribute\'s child docs'() {
+        given:
+        Closure succeeding = drv.respond
+        failWrites()
+
+        when:
+        DeleteOperations.deleteAttr(svcs, opctx, detail, ROOT, 'parts', false)
+        opctx.DO(svcs, detail)
+
+        then:
+        thrown(IllegalStateException)
+        queued().isEmpty()
+
+        when:
+        drv.respond = succeeding
+        OperationContext retry = new OperationContext(space: 'shop', executionMode: 'batch')
+        DeleteOperations.deleteAttr(svcs, retry, detail, ROOT, 'parts', false)
+        retry.DO(svcs, detail)
+
+        then:
+        queued()*.cqlargs*.getAt(2) == [CHILD]
+    }
+
+    void 'in immediate mode the child docs are queued after the deletes are sent'() {
+        given:
+        opctx.executionMode = 'immediate'
+
+        when:
+        DeleteOperations.deleteDoc(svcs, opctx, detail, ROOT)
+
+        then:
+        queued()*.cqlargs*.getAt(2) == [CHILD]
+        written().indexOf(queued()[0]) == written().size() - 1
+        written().any { St st -> st.cql.startsWith('DELETE FROM shop.e_') }
+    }
+}
@@ -0,0 +1,141 @@
+package cassdoc
+
+import cassdoc.commands.mutate.UpdAttr
+import cassdoc.config.CassDocConfig
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class DocCacheSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv, config: new CassDocConfig(docCacheEnabled: true, docCacheRevalidateMillis: 60000))
+    OperationContext opctx = new OperationContext(space: 'shop')
+    Detail detail = new Detail()
+    StoredDocs stored = new StoredDocs(drv) << [
+            'd1-PROD': [name: '"one"', qty: '1'],
+            'd2-PROD': [name: '"two"']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+    }
+
+    int contentReads(String docUUID) {
+        drv.sent.count { St st -> st.cql.contains(',d,') && st.cqlargs as List == [docUUID] }
+    }
+
+    void 'a doc is served from the cache within the revalidate window'() {
+        when:
+        String first = svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+        int sent = drv.sent.size()
+        String second = svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+
+        then:
+        second.is(first)
+        drv.sent.size() == sent
+        svcs.docCache.stats.hitCount() == 1
+    }
+
+    void 'after the window unchanged versions keep the entry, changed ones reload it'() {
+        given:
+        svcs.docCache.revalidateMillis = 0
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+
+        when:
+        String unchanged = svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+
+        then:
+        unchanged.contains('"one"')
+        contentReads('d1-PROD') == 1
+        svcs.docCache.revalidations == 1
+
+        when: 'written around the cache'
+        stored.put('d1-PROD', 'name', '"uno"')
+        String changed = svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+
+        then:
+        changed.contains('"uno"')
+        contentReads('d1-PROD') == 2
+    }
+
+    void 'invalidating a doc drops its doc and attribute entries only'() {
+        given:
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+        svcs.docCache.getAttr(svcs, opctx, detail, 'd1-PROD', 'qty')
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd2-PROD')
+
+        when:
+        svcs.docCache.invalidate('shop', 'd1-PROD')
+
+        then:
+        svcs.docCache.size() == 1
+        svcs.docCache.invalidations == 1
+
+        when:
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd2-PROD')
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+
+        then:
+        contentReads('d2-PROD') == 1
+        contentReads('d1-PROD') == 2
+    }
+
+    void 'an immediate mutation of a doc drops its cached reads'() {
+        given:
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd2-PROD')
+
+        when:
+        opctx.addCommand(svcs, detail, new UpdAttr(docUUID: 'd1-PROD', attrName: 'name', attrValue: new FieldValue(type: String, value: 'uno')))
+
+        then:
+        svcs.docCache.size() == 1
+    }
+
+    @Unroll
+    void 'a #mode mutation of a doc drops its cached reads when added and again when written'() {
+        given:
+        opctx.executionMode = mode
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+
+        when:
+        opctx.addCommand(svcs, detail, new UpdAttr(docUUID: 'd1-PROD', attrName: 'name', attrValue: new FieldValue(type: String, value: 'uno')))
+
+        then:
+        svcs.docCache.size() == 0
+
+        when: 'a read between the add and DO is cached again'
+        svcs.docCache.getDoc(svcs, opctx, detail, 'd1-PROD')
+        opctx.DO(svcs, detail)
+
+        then:
+        svcs.docCache.size() == 0
+
+        where:
+        mode << ['batch', 'async']
+    }
+
+    void 'only positive existence answers are kept'() {
+        when:
+        boolean missing = svcs.docCache.docExists(svcs, opctx, detail, 'd9-PROD')
+        boolean found = svcs.docCache.docExists(svcs, opctx, detail, 'd1-PROD')
+        svcs.docCache.docExists(svcs, opctx, detail, 'd1-PROD')
+        svcs.docCache.docExists(svcs, opctx, detail, 'd9-PROD')
+
+        then:
+        !missing
+        found
+        StoredDocs.reads(drv, '.e_', 'd1-PROD').size() == 1
+        StoredDocs.reads(drv, '.e_', 'd9-PROD').size() == 2
+    }
+
+    @Unroll
+    void 'details that pull in other docs or meta are not cached: #d'() {
+        expect:
+        !DocCache.cacheable(d)
+
+        where:
+        d << [new Detail(pullChildDocs: true), new Detail(attrSubset: ['a'] as Set), new Detail(docWritetimeMeta: 'd'), new Detail(docRelationsMeta: true)]
+    }
+}
@@ -0,0 +1,34 @@
+package cassdoc
+
+import spock.lang.Specification
+
+class IDUtilSpec extends Specification {
+
+    void 'block ids are unique and ordered after earlier ids'() {
+        given:
+        UUID before = UUIDGen.getTimeUUID()
+        TimeUUIDBlock block = IDUtil.timeUUIDBlock(100)
+
+        when:
+        List<Long> times = (1..100).collect { UUID.fromString(block.next('PROD').substring(0, 36)).timestamp() }
+
+        then:
+        !block.hasNext()
+        times == times.sort(false)
+        times.unique(false).size() == 100
+        times[0] > before.timestamp()
+    }
+
+    void 'suffix and creation time are read in place'() {
+        given:
+        String id = IDUtil.timeUUID('PROD')
+        UUID uuid = UUID.fromString(IDUtil.uuidPrefix(id))
+
+        expect:
+        IDUtil.idSuffix(id) == 'PROD'
+        IDUtil.idSuffix(IDUtil.sampleUUID) == ''
+        IDUtil.idSuffix(null) == null
+        IDUtil.extractUnixTimeFromEaioTimeUUID(id) == IDUtil.extractUnixTimeFromEaioTimeUUID(uuid.toString())
+        Math.abs(IDUtil.extractUnixTimeFromEaioTimeUUID(id) - System.currentTimeMillis()) < 60000
+    }
+}
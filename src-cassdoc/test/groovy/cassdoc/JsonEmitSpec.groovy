@@ -0,0 +1,148 @@
+package cassdoc
+
+import cassdoc.operations.JsonEmit
+import cassdoc.operations.RetrievalOperations
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.ObjectMapper
+import cwdrg.util.json.JSONUtil
+import drv.cassdriver.RecordingDriver
+import spock.lang.Specification
+
+class JsonEmitSpec extends Specification {
+
+    static final ObjectMapper MAPPER = new ObjectMapper()
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop')
+    Detail detail = new Detail()
+    StoredDocs stored = new StoredDocs(drv) << [
+            'd1-PROD': [
+                    name : '"say \\"hi\\"\\n\\\\ a/b \\u00e9\\u4e2d\\t"',
+                    qty  : '1.50',
+                    big  : '1e3',
+                    n    : '-7',
+                    ok   : 'true',
+                    tags : '["x",1.0,null,false,{"k":[]}]',
+                    empty: '{}',
+                    dims : '{"w":2,"label":"\\u00e9\\"","h":{"cm":7.25}}'],
+            'd2-PROD': [name: '"two"']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    String docText(String docUUID) {
+        StringWriter w = new StringWriter()
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, w, true)
+        w.toString()
+    }
+
+    String docBytes(String docUUID) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, out)
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, gen, true)
+        JsonEmit.finish(gen)
+        new String(out.toByteArray(), 'UTF-8')
+    }
+
+    void 'a doc is its stored values, numbers in their stored representation'() {
+        expect:
+        docText('d1-PROD') == '{"_id":"d1-PROD"' +
+                ',"name":"say \\"hi\\"\\n\\\\ a/b é中\\t"' +
+                ',"qty":1.50,"big":1e3,"n":-7,"ok":true' +
+                ',"tags":["x",1.0,null,false,{"k":[]}]' +
+                ',"empty":{}' +
+                ',"dims":{"w":2,"label":"é\\"","h":{"cm":7.25}}}'
+    }
+
+    void 'the doc parses to the values the attributes were stored with'() {
+        when:
+        Map doc = MAPPER.readValue(docText('d1-PROD'), Map)
+
+        then:
+        doc.remove('_id') == 'd1-PROD'
+        doc == stored.docs['d1-PROD'].collectEntries { String attr, String json -> [(attr): MAPPER.readValue(json, Object)] }
+    }
+
+    void 'the utf-8 stream and the writer emit the same text'() {
+        expect:
+        docBytes('d1-PROD') == docText('d1-PROD')
+    }
+
+    void 'several docs are an array of the single doc texts'() {
+        when:
+        StringWriter w = new StringWriter()
+        RetrievalOperations.getDocs(svcs, opctx, detail, ['d2-PROD', 'd1-PROD'].iterator(), w, true)
+
+        then:
+        w.toString() == '[' + docText('d2-PROD') + ',' + docText('d1-PROD') + ']'
+    }
+
+    void 'an attribute is its stored value'() {
+        when:
+        StringWriter name = new StringWriter()
+        RetrievalOperations.getAttr(svcs, opctx, detail, 'd1-PROD', 'name', name)
+        StringWriter dims = new StringWriter()
+        RetrievalOperations.getAttr(svcs, opctx, detail, 'd1-PROD', 'dims', dims)
+
+        then:
+        MAPPER.readValue(name.toString(), String) == 'say "hi"\n\\ a/b é中\t'
+        dims.toString() == '{"w":2,"label":"é\\"","h":{"cm":7.25}}'
+    }
+
+    void 'deserialized values are written as JSONUtil serializes them'() {
+        given:
+        Map value = [s: 'a"\\\n', i: 3, l: 4L, d: 2.5d, bd: new BigDecimal('1.10'), bi: new BigInteger('123456789012345678901234567890'), t: true, z: null, list: [1, 'x', [:]], map: [k: [1, 2]]]
+
+        when:
+        StringWriter w = new StringWriter()
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, w)
+        JsonEmit.writeValue(gen, value)
+        JsonEmit.finish(gen)
+
+        then:
+        MAPPER.readTree(w.toString()) == MAPPER.readTree(JSONUtil.serialize(value))
+        w.toString().contains('"bd":1.10')
+    }
+
+    void 'the stream is flushed at doc boundaries once the threshold has been written'() {
+        given:
+        List<Integer> flushedAt = []
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        OutputStream out = new FilterOutputStream(bytes) {
+            void flush() {
+                flushedAt << bytes.size()
+            }
+        }
+        JsonGenerator gen = JsonEmit.generator(svcs.jsonFactory, out, 20)
+
+        when:
+        gen.writeStartArray()
+        gen.writeString('0123456789')
+        JsonEmit.boundary(gen)
+
+        then: 'not yet'
+        flushedAt.isEmpty()
+
+        when:
+        gen.writeString('0123456789')
+        JsonEmit.boundary(gen)
+        gen.writeString('x')
+        JsonEmit.boundary(gen)
+
+        then:
+        flushedAt == [26]
+
+        when:
+        gen.writeEndArray()
+        JsonEmit.finish(gen)
+
+        then: 'finishing flushes the rest, the target stays open'
+        new String(bytes.toByteArray(), 'UTF-8') == '["0123456789","0123456789","x"]'
+    }
+}
@@ -0,0 +1,95 @@
+package cassdoc
+
+import cassdoc.exceptions.ResourceNotFoundException
+import cassdoc.operations.JsonPathOperations
+import cassdoc.operations.RetrievalOperations
+import com.jayway.jsonpath.JsonPath
+import com.jayway.jsonpath.PathNotFoundException
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class JsonPathSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop')
+    Detail detail = new Detail()
+    StoredDocs stored = new StoredDocs(drv) << [
+            'd1-PROD': [name: '"one"', qty: '3', price: '1.5', tags: '["a","b","c"]', dims: '{"w":2,"h":{"cm":7}}'],
+            'd2-PROD': [name: '"two"']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    String docPath(String docUUID, String path) {
+        JsonPathOperations.docPath(svcs, opctx, detail, docUUID, path)
+    }
+
+    /**
+     * reads of all the doc's attributes, i.e. the doc was rendered
+     */
+    int docReads(String docUUID) {
+        drv.sent.count { St st -> st.cql.contains('.p_') && st.cqlargs as List == [docUUID] }
+    }
+
+    String renderedDoc(String docUUID) {
+        StringWriter w = new StringWriter()
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, w, true)
+        w.toString()
+    }
+
+    @Unroll
+    void 'leading segments of #path are read from the attribute alone, with the result of the rendered doc'() {
+        when:
+        String result = docPath('d1-PROD', path)
+
+        then:
+        result == expected
+        docReads('d1-PROD') == 0
+        String.valueOf(JsonPath.parse(renderedDoc('d1-PROD')).read(path)) == expected
+
+        where:
+        path              | expected
+        '$._id'           | 'd1-PROD'
+        '$.name'          | 'one'
+        '$.qty'           | '3'
+        '$.price'         | '1.5'
+        '$.tags[1]'       | 'b'
+        '$.tags'          | '["a","b","c"]'
+        '$.dims.h.cm'     | '7'
+        "\$['dims']['w']" | '2'
+        '$.tags[*]'       | '["a","b","c"]'
+    }
+
+    @Unroll
+    void 'a missing doc is not found for #path, as when the doc is rendered'() {
+        when:
+        docPath('x9-PROD', path)
+
+        then:
+        thrown(ResourceNotFoundException)
+
+        where:
+        path << ['$._id', '$.name', '$.tags[0]', '$..name']
+    }
+
+    void 'a missing attribute of an existing doc is no result'() {
+        when:
+        docPath('d2-PROD', '$.qty')
+
+        then:
+        thrown(PathNotFoundException)
+    }
+
+    void 'an indefinite path to a missing attribute is an empty result'() {
+        expect:
+        docPath('d2-PROD', '$.tags[*]') == '[]'
+    }
+}
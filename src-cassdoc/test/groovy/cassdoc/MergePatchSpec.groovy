@@ -0,0 +1,174 @@
+package cassdoc
+
+import java.util.concurrent.CompletableFuture
+
+import cassdoc.commands.mutate.DelAttr
+import cassdoc.commands.mutate.MutationCmd
+import cassdoc.commands.mutate.NewAttr
+import cassdoc.commands.mutate.NewDoc
+import cassdoc.commands.mutate.UpdAttr
+import cassdoc.operations.AttrDelta
+import cassdoc.operations.MergeOperations
+import com.datastax.driver.core.ResultSet
+import com.fasterxml.jackson.databind.JsonNode
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class MergePatchSpec extends Specification {
+
+    static final String ROOT = IDUtil.timeuuid().toString() + '-PROD'
+    static final String CHILD = IDUtil.timeuuid().toString() + '-PROD'
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop', executionMode: 'batch')
+    Detail detail = new Detail()
+    StoredDocs stored = new StoredDocs(drv) << [
+            (ROOT) : [tags: '["a","b"]', name: '"root"', part: '{"_id":"' + CHILD + '"}'],
+            (CHILD): [n: '1', old: '"x"']]
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    void append(String attr, String json) {
+        MergeOperations.appendToArray(svcs, opctx, detail, ROOT, attr, new StringReader(json))
+    }
+
+    List<UpdAttr> updates(String docUUID) {
+        opctx.commands.findAll { MutationCmd cmd -> cmd instanceof UpdAttr && cmd.docUUID == docUUID } as List<UpdAttr>
+    }
+
+    JsonNode tree(String json) {
+        AttrDelta.MAPPER.readTree(json)
+    }
+
+    @Unroll
+    void 'RFC 7396 example: #target + #patch'() {
+        expect:
+        MergeOperations.mergePatch(svcs, null, null, tree(target), tree(patch)) == tree(result)
+
+        where:
+        target                  | patch                     | result
+        '{"a":"b"}'             | '{"a":"c"}'               | '{"a":"c"}'
+        '{"a":"b"}'             | '{"b":"c"}'               | '{"a":"b","b":"c"}'
+        '{"a":"b"}'             | '{"a":null}'              | '{}'
+        '{"a":"b","b":"c"}'     | '{"a":null}'              | '{"b":"c"}'
+        '{"a":["b"]}'           | '{"a":"c"}'               | '{"a":"c"}'
+        '{"a":"c"}'             | '{"a":["b"]}'             | '{"a":["b"]}'
+        '{"a":{"b":"c"}}'       | '{"a":{"b":"d","c":null}}' | '{"a":{"b":"d"}}'
+        '{"a":[{"b":"c"}]}'     | '{"a":[1]}'               | '{"a":[1]}'
+        '["a","b"]'             | '["c","d"]'               | '["c","d"]'
+        '{"a":"b"}'             | '["c"]'                   | '["c"]'
+        '{"e":null}'            | '{"a":1}'                 | '{"e":null,"a":1}'
+        '[1,2]'                 | '{"a":"b","c":null}'      | '{"a":"b"}'
+        '{}'                    | '{"a":{"bb":{"ccc":null}}}' | '{"a":{"bb":{}}}'
+    }
+
+    void 'the target is not modified, child doc objects in the patch replace'() {
+        given:
+        JsonNode target = tree('{"a":{"b":1},"c":{"_id":"x1-PROD"}}')
+
+        when:
+        JsonNode merged = MergeOperations.mergePatch(svcs, null, null, target, tree('{"a":{"b":2},"c":{"_id":"PROD","n":1}}'))
+
+        then:
+        merged == tree('{"a":{"b":2},"c":{"_id":"PROD","n":1}}')
+        target == tree('{"a":{"b":1},"c":{"_id":"x1-PROD"}}')
+    }
+
+    void 'appended members extend the stored array, child docs among them are created'() {
+        when:
+        append('tags', '["c",{"_id":"PROD","n":2}]')
+
+        then:
+        List<NewDoc> created = opctx.commands.findAll { it instanceof NewDoc } as List<NewDoc>
+        created.size() == 1
+        updates(ROOT)*.attrName == ['tags']
+        tree(updates(ROOT)[0].attrValue.value) == tree('["a","b","c",{"_id":"' + created[0].docUUID + '"}]')
+    }
+
+    void 'an append to a missing attribute creates it, an empty one writes nothing'() {
+        when:
+        append('more', '[1,2]')
+        append('tags', '[]')
+
+        then:
+        updates(ROOT)*.attrName == ['more']
+        updates(ROOT)[0].attrValue.value == '[1,2]'
+    }
+
+    void 'an append to an attribute that is not an array creates nothing'() {
+        when:
+        append('name', '[{"_id":"PROD","n":2}]')
+
+        then:
+        thrown(IllegalArgumentException)
+        opctx.commands.isEmpty()
+    }
+
+    void 'a patch of a child doc ref patches the child doc, the ref is kept'() {
+        when:
+        MergeOperations.mergePatchAttr(svcs, opctx, detail, ROOT, 'part', '{"n":5,"old":null}')
+
+        then:
+        updates(ROOT).isEmpty()
+        updates(CHILD)*.attrName == ['n']
+        updates(CHILD)[0].attrValue.value == '5'
+        opctx.commands.any { MutationCmd cmd -> cmd instanceof DelAttr && cmd.docUUID == CHILD && ((DelAttr) cmd).attrName == 'old' }
+    }
+
+    void 'a removed attribute\'s child docs are not queued for cleanup if the patch fails'() {
+        given:
+        Closure docRows = drv.rows
+        drv.rows = { String cql, Object[] args ->
+            if (cql.contains('.r ') && args && args[0] == ROOT) {
+                return [[p1: ROOT, ty1: RelTypes.TO_CHILD, ty2: '', ty3: '', ty4: '', p2: 'part', p3: '', p4: '', c1: CHILD, c2: '', c3: '', c4: '']]
+            }
+            docRows(cql, args)
+        }
+        drv.respond = { St st ->
+            CompletableFuture<ResultSet> f = new CompletableFuture<>()
+            if (drv.statementsOf(st).any { it.cql.startsWith('DELETE') }) f.completeExceptionally(new IllegalStateException('write timeout')) else f.complete(RecordingDriver.resultSet(drv.rows(st.cql, st.cqlargs)))
+            f
+        }
+
+        when:
+        MergeOperations.mergePatchDoc(svcs, opctx, detail, ROOT, '{"part":null}')
+        opctx.DO(svcs, detail)
+
+        then:
+        thrown(IllegalStateException)
+        !drv.sentStatements().any { St st -> st.cql.startsWith('INSERT INTO shop.cq ') }
+    }
+
+    void 'a union adds the attributes the doc does not have, nothing stored changes'() {
+        when:
+        MergeOperations.unionAttrs(svcs, opctx, detail, ROOT, '{"_id":"' + ROOT + '","name":"other","tags":[1],"color":"red","none":null,"extra":{"_id":"PROD","n":3}}')
+
+        then:
+        List<NewAttr> added = opctx.commands.findAll { MutationCmd cmd -> cmd instanceof NewAttr && cmd.docUUID == ROOT } as List<NewAttr>
+        added*.attrName == ['color', 'extra']
+        added[0].attrValue.value == 'red'
+        List<NewDoc> created = opctx.commands.findAll { it instanceof NewDoc } as List<NewDoc>
+        created.size() == 1
+        tree(added[1].attrValue.value) == tree('{"_id":"' + created[0].docUUID + '"}')
+        updates(ROOT).isEmpty()
+        !opctx.commands.any { it instanceof DelAttr }
+    }
+
+    void 'a union of something other than an object adds nothing'() {
+        when:
+        MergeOperations.unionAttrs(svcs, opctx, detail, ROOT, '["color"]')
+
+        then:
+        thrown(IllegalArgumentException)
+        opctx.commands.isEmpty()
+    }
+}
@@ -0,0 +1,182 @@
+package cassdoc
+
+import cassdoc.commands.retrieve.BucketSliceRP
+import cassdoc.commands.retrieve.RowProcessor
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class RangeManualIndexSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop')
+    Detail detail = new Detail()
+
+    // the i table: primary key (i1,i2,i3,k1,k2,k3,v1,v2) -> row, in clustering order within a partition
+    SortedMap<String, List<String>> table = Collections.synchronizedSortedMap(new TreeMap<String, List<String>>())
+
+    void setup() {
+        drv.rows = { String cql, Object[] args ->
+            if (cql.startsWith('INSERT INTO shop.i ')) {
+                List<String> row = (args as List<String>).subList(0, 8)
+                table.put(row.join('|'), row)
+                return []
+            }
+            if (!cql.startsWith('SELECT v1,v2 FROM shop.i ')) {
+                return []
+            }
+            List<String> partition = (args as List<String>).subList(0, 6)
+            // the v1 bounds follow the partition key, in the order of the cql
+            List<String> bounds = (cql =~ /v1 (>=|<=|<) \?/).collect { List<String> m -> m[1] }
+            List<Map<String, Object>> rows = []
+            synchronized (table) {
+                table.values().each { List<String> row ->
+                    boolean inSlice = row.subList(0, 6) == partition
+                    bounds.eachWithIndex { String op, int i ->
+                        int cmp = row[6] <=> (String) args[6 + i]
+                        inSlice = inSlice && (op == '>=' ? cmp >= 0 : op == '<=' ? cmp <= 0 : cmp < 0)
+                    }
+                    if (inSlice) {
+                        rows << ([v1: row[6], v2: row[7]] as Map<String, Object>)
+                    }
+                }
+            }
+            rows
+        }
+    }
+
+    void cleanup() {
+        svcs.shutdown()
+    }
+
+    RangeManualIndex rangeIndex(Map config) {
+        new RangeManualIndex(index: new ManualIndex(indexType: IndexTypes.RANGE, indexCodes: ['PROD', 'n'], indexConfig: config))
+    }
+
+    /**
+     * writes the entries of the values as an index update does: the entry, and the bucket in the directory
+     */
+    void index(RangeManualIndex range, Map<Object, String> docsByValue) {
+        docsByValue.each { Object value, String docUUID ->
+            String encoded = range.encode(value)
+            String bucket = range.bucket(encoded, value)
+            range.entry(bucket, encoded, docUUID).execMutationCassandra(svcs, opctx, detail)
+            range.directoryEntry(bucket).execMutationCassandra(svcs, opctx, detail)
+        }
+    }
+
+    List<String> search(RangeManualIndex range, Object from, Object to) {
+        drv.sent.clear()
+        RowProcessor rows = range.searchRows(svcs, opctx, detail, [from, to])
+        List<String> found = []
+        Object[] row
+        while ((row = rows.nextRow()) != null) {
+            found << (String) row[1]
+        }
+        found
+    }
+
+    List<St> slicesRead() {
+        drv.sent.findAll { St st -> st.cql.startsWith('SELECT') && st.cqlargs[5] != RangeManualIndex.BUCKETS }
+    }
+
+    // buckets are the sign and exponent of the number, a bucket per order of magnitude
+    static final Map<Object, String> NUMBERS = [1: 'n1', 5: 'n5', 10: 'n10', 42: 'n42', 99: 'n99', 100: 'n100', 250: 'n250',
+                                                1000: 'n1000', 5000: 'n5000']
+
+    void 'encoded numbers sort in numeric order'() {
+        given:
+        List<BigDecimal> numbers = ['-1e40', '-12345.6', '-10', '-9.99', '-1.5', '-1', '-0.05', '0', '0.001', '0.05',
+                                    '1', '1.5', '2', '9', '10', '10.01', '150', '1e40'].collect { new BigDecimal(it) }
+
+        when:
+        List<String> encoded = numbers.collect { SortableValue.encodeNumber(it) }
+
+        then:
+        encoded == encoded.sort(false)
+        encoded.unique(false).size() == numbers.size()
+        SortableValue.encodeNumber(new BigDecimal('1.50')) == SortableValue.encodeNumber(new BigDecimal('1.5'))
+    }
+
+    void 'time values are epoch millis, bucketed by window'() {
+        given:
+        RangeManualIndex range = new RangeManualIndex(index: new ManualIndex(indexType: IndexTypes.RANGE,
+                indexConfig: [valueType: 'time', bucketMillis: 3600000]))
+
+        expect:
+        SortableValue.millis('1970-01-02') == 86400000L
+        SortableValue.millis('1970-01-01T00:00:01Z') == 1000L
+        range.bucket(range.encode(7199999), 7199999) == SortableValue.encodeNumber(1G)
+        range.bucket(range.encode('1970-01-01T02:00:00Z'), '1970-01-01T02:00:00Z') == SortableValue.encodeNumber(2G)
+    }
+
+    void 'prefix buckets are leading chars of the encoded value'() {
+        given:
+        RangeManualIndex range = new RangeManualIndex(index: new ManualIndex(indexType: IndexTypes.RANGE,
+                indexConfig: [prefixLength: 2]))
+
+        expect:
+        range.bucket(range.encode('apple'), 'apple') == 'ap'
+        range.bucket(range.encode('a'), 'a') == 'a'
+        new RangeManualIndex(index: new ManualIndex()).bucket('apple', 'apple') == ''
+    }
+
+    void 'a range over several buckets reads the overlapping buckets of the directory and returns their entries in value order'() {
+        given:
+        RangeManualIndex range = rangeIndex([valueType: 'number', prefixLength: 5, parallelBuckets: 2])
+        index(range, NUMBERS)
+
+        when:
+        List<String> found = search(range, 5, 1000)
+
+        then:
+        found == ['n5', 'n10', 'n42', 'n99', 'n100', 'n250']
+        // the directory slice includes the bucket of the upper bound, the entry slices exclude the bound itself
+        drv.sent[0].cqlargs[5] == RangeManualIndex.BUCKETS
+        drv.sent[0].cql.endsWith('AND v1 >= ? AND v1 <= ?')
+        slicesRead()*.cqlargs*.getAt(3) as Set == [5, 10, 100, 1000].collect { range.bucket(range.encode(it), it) } as Set
+        slicesRead().every { St st -> st.cql.endsWith('AND v1 >= ? AND v1 < ?') }
+    }
+
+    void 'the lower bound is inclusive, the upper bound exclusive'() {
+        given:
+        RangeManualIndex range = rangeIndex([valueType: 'number', prefixLength: 5])
+        index(range, NUMBERS)
+
+        expect:
+        search(range, 10, 100) == ['n10', 'n42', 'n99']
+        search(range, 11, 101) == ['n42', 'n99', 'n100']
+        search(range, 42, 42).isEmpty()
+        search(range, 250, 251) == ['n250']
+    }
+
+    void 'open ranges read every bucket on their open side'() {
+        given:
+        RangeManualIndex range = rangeIndex([valueType: 'number', prefixLength: 5, parallelBuckets: 1])
+        index(range, NUMBERS)
+
+        expect:
+        search(range, null, 42) == ['n1', 'n5', 'n10']
+        slicesRead().size() == 2
+        search(range, 250, null) == ['n250', 'n1000', 'n5000']
+        slicesRead().size() == 2
+        search(range, null, null) == NUMBERS.values() as List
+        slicesRead().size() == 4
+    }
+
+    void 'a time range spans the windows between its bounds'() {
+        given:
+        RangeManualIndex range = rangeIndex([valueType: 'time', bucketMillis: 3600000])
+        index(range, ['1970-01-01T00:30:00Z': 't0', '1970-01-01T01:00:00Z': 't1', '1970-01-01T01:59:59Z': 't1b',
+                      '1970-01-01T03:15:00Z': 't3', '1970-01-01T04:00:00Z': 't4'])
+
+        when:
+        List<String> found = search(range, '1970-01-01T01:00:00Z', '1970-01-01T04:00:00Z')
+
+        then:
+        found == ['t1', 't1b', 't3']
+        // no entries were written in the 02:00 window, so it is not in the directory
+        slicesRead()*.cqlargs*.getAt(3) as Set == [1, 3, 4].collect { SortableValue.encodeNumber(new BigDecimal(it)) } as Set
+    }
+}
@@ -0,0 +1,72 @@
+package cassdoc
+
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit
+
+import drv.cassdriver.RecordingDriver
+import spock.lang.Specification
+
+class SchemaSnapshotSpec extends Specification {
+
+    TypeConfigurationService types = new TypeConfigurationService(typeList: [
+            new DocType(uri: 'cassdoc.PROD', suffix: 'PROD'),
+            new DocType(uri: 'cassdoc.IMG', suffix: 'IMG', attrFormat: AttrStorage.FORMAT_SMILE)])
+
+    SchemaSnapshot snapshot = new SchemaSnapshot('v1', [shop: new Tuple2<>(types, new IndexConfigurationService())])
+
+    void 'type statements are built with the snapshot'() {
+        expect:
+        snapshot.typeCql('shop', 'PROD').insertAttr == 'INSERT INTO shop.p_PROD (e,p,zv,d,t) VALUES (?,?,?,?,?)'
+        snapshot.typeCql('shop', 'IMG').selectAttrs == 'SELECT e,p,d,t,zv,b FROM shop.p_IMG WHERE e = ?'
+        snapshot.typeCql('shop', 'PROD').is(snapshot.typeCql('shop', 'PROD'))
+        snapshot.typeCql('shop', 'JOB').deleteDoc_E == 'DELETE FROM shop.e_JOB WHERE e = ?'
+    }
+
+    void 'changes are copies'() {
+        when:
+        SchemaSnapshot changed = snapshot.withCollection('crm', new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.CUST', suffix: 'CUST')]), new IndexConfigurationService())
+
+        then:
+        changed.docType('crm', 'CUST') != null
+        changed.docType('shop', 'PROD').is(snapshot.docType('shop', 'PROD'))
+        changed.version == 'v1'
+        snapshot.types('crm') == null
+
+        when:
+        snapshot.collections.remove('shop')
+
+        then:
+        thrown(UnsupportedOperationException)
+    }
+
+    void 'schema changes made at once on one collection are all published'() {
+        given:
+        // both changes have written their schema rows before either publishes
+        CyclicBarrier written = new CyclicBarrier(2)
+        RecordingDriver drv = new RecordingDriver() {
+            @Override
+            void executeDirectUpdate(String keyspace, String cql, Object[] args, String consistency, Long usingTimestamp) {
+                if (cql.startsWith('INSERT INTO cassdoc_system_schema.types') || cql.startsWith('INSERT INTO cassdoc_system_schema.indexes')) {
+                    written.await(5, TimeUnit.SECONDS)
+                }
+            }
+        }
+        CommandExecServices svcs = new CommandExecServices(driver: drv)
+        DocType prod = new DocType(uri: 'cassdoc.PROD', suffix: 'PROD', fixedAttrList: [new FixedAttr(sourceAttr: 'sku', colname: 'sku', coltype: 'text')])
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [prod]), new IndexConfigurationService())])
+
+        when:
+        Thread indexing = Thread.start { svcs.createColumnIndex('shop', 'PROD', IndexTypes.SECONDARY, 'prod_sku', 'sku') }
+        Thread typing = Thread.start { svcs.createNewDoctypeSchema('shop', new DocType(uri: 'cassdoc.IMG', suffix: 'IMG')) }
+        indexing.join()
+        typing.join()
+
+        then:
+        svcs.getSchema().docType('shop', 'IMG') != null
+        svcs.getSchema().docType('shop', 'PROD') != null
+        svcs.indexes('shop').getIndex('prod_sku') != null
+
+        cleanup:
+        svcs.shutdown()
+    }
+}
@@ -0,0 +1,77 @@
+package cassdoc
+
+import cassdoc.operations.SortKey
+import cassdoc.operations.SortedResults
+import spock.lang.Specification
+
+class SortedResultsSpec extends Specification {
+
+    List<Map> docs = (1..500).collect { int i -> [n: (i * 7919) % 101, s: "doc$i".toString(), d: i % 5 == 0 ? null : i * 1.5d] }
+
+    List<Map> drain(SortedResults results) {
+        List<Map> out = []
+        while (results.hasNext()) {
+            out << results.next()
+        }
+        results.close()
+        return out
+    }
+
+    void 'spilled runs merge into the full sort order'() {
+        given:
+        Comparator<Map> order = SortKey.comparator(SortKey.parse('n,-s'))
+        // 500 docs in runs of 7: more runs than the merge fan-in
+        SortedResults results = new SortedResults(source: docs.iterator(), comparator: order, bufferDocs: 7)
+
+        expect:
+        drain(results)*.s == docs.sort(false, order)*.s
+    }
+
+    void 'docs with equal keys keep their source order through several merge passes'() {
+        given:
+        Comparator<Map> order = SortKey.comparator(SortKey.parse('k'))
+        List<Map> keyed = (1..1000).collect { int i -> [k: (i * 7919) % 3, s: "doc$i".toString()] }
+        // 1000 docs in runs of 3: more than twice the merge fan-in, so a first pass leaves several merged runs
+        SortedResults results = new SortedResults(source: keyed.iterator(), comparator: order, bufferDocs: 3)
+
+        expect:
+        333 > 2 * SortedResults.MERGE_FAN_IN
+        drain(results)*.s == keyed.sort(false, order)*.s
+    }
+
+    void 'a limit keeps the first docs, nulls last'() {
+        given:
+        Comparator<Map> order = SortKey.comparator(SortKey.parse('-d'))
+
+        when:
+        List<Map> top = drain(new SortedResults(source: docs.iterator(), comparator: order, limit: 3))
+
+        then:
+        top*.d == [748.5d, 747d, 745.5d]
+        drain(new SortedResults(source: docs.iterator(), comparator: SortKey.comparator(SortKey.parse('d')), limit: 500)).last().d == null
+    }
+
+    void 'spilled docs keep their decimal text and non json types'() {
+        given:
+        Date day = new Date(1500000000000L)
+        List<Map> priced = [
+                [_id: 'a', price: new BigDecimal('1.10'), qty: BigInteger.TEN, at: day, parts: [[w: 0.25d], [w: 2.5f]]],
+                [_id: 'b', price: new BigDecimal('0.5'), qty: BigInteger.ONE, at: null, parts: []],
+                [_id: 'c', price: new BigDecimal('10.000'), qty: new BigInteger('123456789012345678901234567890'), at: day, parts: [[d: [day]]]]]
+        SortedResults results = new SortedResults(source: priced.iterator(), comparator: SortKey.comparator(SortKey.parse('price')), bufferDocs: 1)
+
+        when:
+        List<Map> sorted = drain(results)
+
+        then:
+        sorted*._id == ['b', 'a', 'c']
+        sorted*.price*.toPlainString() == ['0.5', '1.10', '10.000']
+        sorted[1] == priced[0]
+        sorted[2] == priced[2]
+        sorted[1].qty instanceof BigInteger
+        sorted[1].at instanceof Date
+        sorted[1].parts[0].w instanceof Double
+        sorted[1].parts[1].w instanceof Float
+        sorted[2].parts[0].d[0] == day
+    }
+}
@@ -0,0 +1,85 @@
+package cassdoc
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+
+/**
+ * Documents a RecordingDriver answers the e_ existence reads and p_ attribute reads of, for specs of the read and
+ * update paths. Attributes are given as the json text of their value, typed by its first character. Rows hold the
+ * selected columns, zv versions change when a doc or attribute is put again.
+ */
+class StoredDocs {
+
+    static final ObjectMapper MAPPER = new ObjectMapper()
+
+    // doc id -> attr -> json
+    final Map<String, Map<String, String>> docs = Collections.synchronizedMap([:])
+    // doc id, or doc id + attr -> zv
+    final Map<String, UUID> versions = Collections.synchronizedMap([:])
+
+    StoredDocs(RecordingDriver drv) {
+        drv.rows = { String cql, Object[] args -> rows(cql, args) }
+    }
+
+    StoredDocs leftShift(Map<String, Map<String, String>> added) {
+        added.each { String id, Map<String, String> attrs ->
+            docs[id] = new LinkedHashMap<>(attrs)
+            versions[id] = UUID.randomUUID()
+            attrs.keySet().each { String attr -> versions[id + attr] = UUID.randomUUID() }
+        }
+        this
+    }
+
+    void put(String id, String attr, String json) {
+        docs[id][attr] = json
+        versions[id + attr] = UUID.randomUUID()
+    }
+
+    List<Map<String, Object>> rows(String cql, Object[] args) {
+        String id = args ? (String) args[0] : null
+        Map<String, String> attrs = docs[id]
+        if (attrs == null || !cql.trim().toUpperCase().startsWith('SELECT ')) {
+            return []
+        }
+        List<Map<String, Object>> rows
+        if (cql.contains('.e_')) {
+            rows = [[e: id, zv: versions[id]]]
+        } else if (cql.contains('.p_')) {
+            List<String> names = args.length > 1 ? [(String) args[1]] : new ArrayList<>(attrs.keySet())
+            rows = names.findAll { attrs.containsKey(it) }.collect { String attr ->
+                String json = attrs[attr]
+                String type = typeCode(json)
+                // strings are stored unquoted
+                String d = type == DBCodes.TYPE_CODE_STRING ? MAPPER.readValue(json, String) : json
+                [e: id, p: attr, d: d, t: type, zv: versions[id + attr]] as Map<String, Object>
+            }
+        } else {
+            return []
+        }
+        List<String> columns = selected(cql)
+        rows.collect { Map<String, Object> row -> columns.collectEntries { String col -> [(col): col.startsWith('token(') ? 1L : row[col]] } }
+    }
+
+    static List<String> selected(String cql) {
+        String upper = cql.toUpperCase()
+        cql.substring(upper.indexOf('SELECT ') + 7, upper.indexOf(' FROM ')).split(',')*.trim()
+    }
+
+    static String typeCode(String json) {
+        switch (json[0]) {
+            case '[': return DBCodes.TYPE_CODE_ARRAY
+            case '{': return DBCodes.TYPE_CODE_OBJECT
+            case '"': return DBCodes.TYPE_CODE_STRING
+            case ['t', 'f']: return DBCodes.TYPE_CODE_BOOLEAN
+            default: return json.contains('.') ? DBCodes.TYPE_CODE_DECIMAL : DBCodes.TYPE_CODE_INTEGER
+        }
+    }
+
+    /**
+     * the statements sent for a table (e_, p_, r, i ...) of a doc
+     */
+    static List<St> reads(RecordingDriver drv, String table, String docUUID) {
+        drv.sent.findAll { St st -> st.cql.contains(table) && st.cqlargs && st.cqlargs[0] == docUUID }
+    }
+}
@@ -0,0 +1,111 @@
+package cassdoc
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.datastax.driver.core.ResultSet
+import com.fasterxml.jackson.databind.ObjectMapper
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class StreamIngestSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    CassdocAPI api = new CassdocAPI(svcs: svcs)
+    OperationContext opctx = new OperationContext(space: 'shop', executionMode: 'stream')
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+    }
+
+    String docs(int n) {
+        '[' + (1..n).collect { '{"_id":"PROD","n":' + it + ',"part":{"_id":"PROD","of":' + it + '}}' }.join(',') + ']'
+    }
+
+    List ingest(Detail detail, String json) {
+        StringWriter out = new StringWriter()
+        api.newDocList(opctx, detail, new StringReader(json), out)
+        new ObjectMapper().readValue(out.toString(), List)
+    }
+
+    /**
+     * ids of the docs whose e_ rows have been sent
+     */
+    Set<String> docsSent() {
+        drv.sentStatements().findAll { St st -> st.cql.startsWith('INSERT INTO shop.e_') }.collect { St st -> (String) st.cqlargs[0] } as Set
+    }
+
+    void 'each doc and its child docs are sent as a unit, the ids come back in input order'() {
+        when:
+        List ids = ingest(new Detail(), docs(3))
+
+        then:
+        ids.size() == 3
+        ids.every { it instanceof String && it.endsWith('-PROD') }
+        // a root doc and its child
+        docsSent().size() == 6
+        drv.sentStatements().findAll { St st -> st.cql.startsWith('INSERT INTO shop.p_') && st.cqlargs[1] == 'n' }*.cqlargs*.getAt(0) == ids
+    }
+
+    void 'no more than the write window of docs is waited on, input is read as writes complete'() {
+        given:
+        List<CompletableFuture<ResultSet>> held = Collections.synchronizedList([])
+        AtomicBoolean released = new AtomicBoolean()
+        drv.respond = { St st ->
+            synchronized (held) {
+                if (released.get()) {
+                    return CompletableFuture.completedFuture((ResultSet) null)
+                }
+                CompletableFuture<ResultSet> f = new CompletableFuture<>()
+                held.add(f)
+                f
+            }
+        }
+        List ids = null
+        Thread ingester = Thread.start { ids = ingest(new Detail(writeWindow: 2), docs(6)) }
+
+        when:
+        long deadline = System.currentTimeMillis() + 2000
+        while (docsSent().size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        Thread.sleep(100)
+
+        then: 'two root docs with their children'
+        docsSent().size() == 4
+        ingester.alive
+
+        when:
+        synchronized (held) {
+            released.set(true)
+            held*.complete(null)
+        }
+        ingester.join()
+
+        then:
+        ids.size() == 6
+        docsSent().size() == 12
+    }
+
+    void 'a doc that fails is reported in place and the rest are written'() {
+        given:
+        drv.respond = { St st ->
+            CompletableFuture<ResultSet> f = new CompletableFuture<>()
+            if (drv.statementsOf(st).any { it.cqlargs?.contains('bad') }) f.completeExceptionally(new IllegalStateException('write timeout')) else f.complete(null)
+            f
+        }
+
+        when:
+        List results = ingest(new Detail(), '[{"_id":"PROD","n":1},"not a doc",{"_id":"PROD","n":"bad"},{"_id":"PROD","n":4}]')
+
+        then:
+        results.size() == 4
+        results[0] instanceof String
+        results[1] == [_id: null, _error: 'newDocStream operation, one of the array elements is not a doc']
+        results[2]._id instanceof String
+        results[2]._error.contains('write timeout')
+        results[3] instanceof String
+    }
+}
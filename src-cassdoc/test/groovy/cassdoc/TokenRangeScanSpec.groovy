@@ -0,0 +1,125 @@
+package cassdoc
+
+import java.lang.reflect.Constructor
+import java.lang.reflect.Field
+import java.lang.reflect.Method
+import java.util.concurrent.CompletableFuture
+
+import cassdoc.operations.ScanCheckpoint
+import cassdoc.operations.SearchOperations
+import cassdoc.operations.TokenRangeScan
+import com.datastax.driver.core.Row
+import com.datastax.driver.core.Token
+import com.datastax.driver.core.TokenRange
+import com.fasterxml.jackson.databind.ObjectMapper
+import drv.cassdriver.RecordingDriver
+import drv.cassdriver.RowCallbackHandler
+import drv.cassdriver.St
+import spock.lang.Specification
+
+class TokenRangeScanSpec extends Specification {
+
+    // the ring as the cluster splits it: the last sub-range runs to the end of the ring
+    List<TokenRange> ranges = [range(Long.MIN_VALUE, -100L), range(-100L, 100L), range(100L, Long.MIN_VALUE)]
+
+    RecordingDriver drv = new RecordingDriver() {
+        List<TokenRange> splitTokenRanges(String keyspace, int splits) {
+            ranges
+        }
+    }
+    CommandExecServices svcs = new CommandExecServices(driver: drv)
+    OperationContext opctx = new OperationContext(space: 'shop')
+    Detail detail = new Detail()
+
+    // token -> doc id
+    Map<Long, String> docs = [(-500L): 'a-PROD', (-100L): 'b-PROD', (0L): 'c-PROD', (100L): 'd-PROD', (900L): 'e-PROD']
+
+    void setup() {
+        svcs.setCollections([shop: new Tuple2<>(new TypeConfigurationService(typeList: [new DocType(uri: 'cassdoc.PROD', suffix: 'PROD')]), new IndexConfigurationService())])
+        drv.rows = { String cql, Object[] args ->
+            long start = (Long) args[0]
+            Long end = args.length > 1 ? (Long) args[1] : null
+            docs.findAll { Long tk, String id -> tk > start && (end == null || tk <= end) }.collect { Long tk, String id -> [tk: tk, e: id] }
+        }
+    }
+
+    static TokenRange range(long start, long end) {
+        Class m3p = Class.forName('com.datastax.driver.core.Token$M3PToken')
+        Field factoryField = m3p.getDeclaredField('FACTORY')
+        factoryField.accessible = true
+        Object factory = factoryField.get(null)
+        Method fromString = Class.forName('com.datastax.driver.core.Token$Factory').getDeclaredMethod('fromString', String)
+        fromString.accessible = true
+        Constructor<TokenRange> constructor = TokenRange.getDeclaredConstructor(Token, Token, Class.forName('com.datastax.driver.core.Token$Factory'))
+        constructor.accessible = true
+        constructor.newInstance(fromString.invoke(factory, start.toString()), fromString.invoke(factory, end.toString()), factory)
+    }
+
+    RowCallbackHandler collect(List<String> ids) {
+        { Row row -> ids.add(row.getString(1)) } as RowCallbackHandler
+    }
+
+    void 'each sub-range is its own token range query, the last one open ended'() {
+        given:
+        List<String> ids = []
+
+        when:
+        TokenRangeScan scan = new TokenRangeScan(concurrency: 2)
+        scan.scanETable(svcs, opctx, detail, 'cassdoc.PROD', ['a0'], collect(ids))
+
+        then:
+        drv.sent.collect { St st -> st.cqlargs as List } as Set == [[Long.MIN_VALUE, -100L], [-100L, 100L], [100L]] as Set
+        drv.sent.find { St st -> st.cqlargs.length == 1 }.cql == 'SELECT token(e),e,a0 FROM shop.e_PROD WHERE token(e) > ?'
+        drv.sent.find { St st -> st.cqlargs.length == 2 }.cql == 'SELECT token(e),e,a0 FROM shop.e_PROD WHERE token(e) > ? AND token(e) <= ?'
+        ids.sort() == docs.values().sort()
+        scan.rangesScanned.get() == 3
+        scan.rowCount.get() == 5
+    }
+
+    void 'a resumed scan skips the sub-ranges its checkpoint file has'() {
+        given:
+        File file = File.createTempFile('scan', '.ckpt')
+        file.delete()
+        List<String> ids = []
+        drv.respond = { St st ->
+            if (st.cqlargs[0] == -100L) {
+                throw new IllegalStateException('read timeout')
+            }
+            CompletableFuture.completedFuture(RecordingDriver.resultSet(drv.rows(st.cql, st.cqlargs)))
+        }
+
+        when:
+        new TokenRangeScan(concurrency: 1, checkpoint: new ScanCheckpoint(file)).scanETable(svcs, opctx, detail, 'cassdoc.PROD', null, collect([]))
+
+        then:
+        thrown(IllegalStateException)
+        new ScanCheckpoint(file).completedCount == 1
+        new ScanCheckpoint(file).isComplete(ranges[0])
+
+        when: 'the failing sub-range is readable again'
+        drv.respond = { St st -> CompletableFuture.completedFuture(RecordingDriver.resultSet(drv.rows(st.cql, st.cqlargs))) }
+        drv.sent.clear()
+        TokenRangeScan resumed = new TokenRangeScan(concurrency: 1, checkpoint: new ScanCheckpoint(file))
+        resumed.scanETable(svcs, opctx, detail, 'cassdoc.PROD', null, collect(ids))
+
+        then:
+        resumed.rangesSkipped.get() == 1
+        resumed.rangesScanned.get() == 2
+        drv.sent.every { St st -> st.cqlargs[0] != Long.MIN_VALUE }
+        ids.sort() == ['c-PROD', 'd-PROD', 'e-PROD']
+        new ScanCheckpoint(file).completedCount == 3
+
+        cleanup:
+        file.delete()
+    }
+
+    void 'the id list search uses a range scan when splits are asked for'() {
+        when:
+        StringWriter w = new StringWriter()
+        SearchOperations.searchTableIdListJSONArray(svcs, opctx, new Detail(scanSplits: 3), 'cassdoc.PROD', w)
+
+        then:
+        drv.sent.size() == 3
+        new ObjectMapper().readValue(w.toString(), List).sort() == docs.values().sort()
+    }
+}
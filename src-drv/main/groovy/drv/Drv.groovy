@@ -19,6 +19,7 @@ import com.datastax.driver.core.Statement
 import com.datastax.driver.core.exceptions.NoHostAvailableException
 import com.datastax.driver.core.policies.ConstantReconnectionPolicy
 import com.datastax.driver.core.policies.DowngradingConsistencyRetryPolicy
+import drv.cassdriver.PreparedStatementCache
 import groovy.transform.CompileStatic
 import groovy.util.logging.Slf4j
 
@@ -29,6 +30,7 @@ import java.time.ZoneId
 import java.util.concurrent.ExecutionException
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
+import java.util.function.Function
 
 @CompileStatic
 @Slf4j
@@ -54,7 +56,7 @@ class Drv {
     private Cluster cluster = null
     private Session clusterSession = null
     protected Map<String, Session> keyspaceSessions = [:]
-    protected Map<String, PreparedStatement> stmtCache = [:]
+    protected PreparedStatementCache stmtCache = new PreparedStatementCache({ String cql -> session.prepare(cql) } as Function<String, PreparedStatement>)
 
     // --- health checks
 
@@ -218,12 +220,11 @@ class Drv {
     // --- preparation and conversion
 
     PreparedStatement prepare(String cql) {
-        PreparedStatement stmt = stmtCache[cql]
-        if (!stmt) {
-            stmt = session.prepare(cql)
-            stmtCache[cql] = stmt
-        }
-        return stmt
+        stmtCache.get(cql)
+    }
+
+    PreparedStatementCache getStatementCache() {
+        stmtCache
     }
 
     void prepSt(St st) {
@@ -455,6 +456,7 @@ class St {
 class AsyncQuerySetIterator implements Iterator<Object[]> {
 
     AsyncQuerySetIterator(Drv drv, St st, Iterator<Object[]> cqlArgs) {
+        this.drv = drv
         this.st = st
         this.cqlArgs = cqlArgs
         if (!st.fetchSize) {
@@ -493,7 +495,9 @@ class AsyncQuerySetIterator implements Iterator<Object[]> {
                 }
                 ResultSetFuture rsf = currentQuerySet[currentQuerySetIndex]
                 currentQuerySet[currentQuerySetIndex] = null
-                return rowToArray(rsf.get().one())
+                Row row = rsf.get().one()
+                // no row for those args (e.g. a missing id)
+                return row == null ? null : Drv.rowToArray(row)
             }
         }
         // hasNext() should prevent this from happening.
@@ -510,8 +514,9 @@ class AsyncQuerySetIterator implements Iterator<Object[]> {
     private void initiateQuerySet(ResultSetFuture[] querySet) {
         int i = 0
         while (i < st.fetchSize && cqlArgs.hasNext()) {
-            st.args = cqlArgs.next()
-            querySet[i] = drv.execAsync(st)
+            // a statement per args: prepSt keeps an St's bound stmt once made
+            St argsSt = new St(cql: st.cql, args: cqlArgs.next(), consistency: st.consistency, timestamp: st.timestamp, keyspace: st.keyspace)
+            querySet[i] = drv.execAsync(argsSt)
             i++
         }
         if (i == 0) {
@@ -4,9 +4,15 @@ import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PreDestroy;
 
@@ -15,6 +21,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
 import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.CloseFuture;
@@ -31,9 +38,16 @@ import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TokenRange;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
 import com.datastax.driver.core.policies.ConstantReconnectionPolicy;
 import com.datastax.driver.core.policies.DowngradingConsistencyRetryPolicy;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import cwdrg.util.json.JSONUtil;
 
@@ -48,9 +62,20 @@ public class DriverWrapper {
 
     private static final long DEFAULT_RECONNECTION_DELAY_MILLIS = 60000;
     private static final long DEFAULT_QUERY_TIMEOUT_MILLIS = 60000;
+    private static final int DEFAULT_MAX_ASYNC_IN_FLIGHT = 128;
+    private static final int DEFAULT_MAX_BATCH_STATEMENTS = 100;
+    // cassandra's default batch_size_fail_threshold_in_kb is 50, leave headroom for the estimate
+    private static final int DEFAULT_MAX_BATCH_BYTES = 40 * 1024;
 
     private static final long CLOSE_WAIT_MILLIS = 5000;
 
+    // times out the statements of executeStatementFuture
+    private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cassdoc-drv-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
     private long constantTimeReconnectionDelayMilliseconds = DEFAULT_RECONNECTION_DELAY_MILLIS;
 
     private List<String> clusterContactNodes;
@@ -73,6 +98,12 @@ public class DriverWrapper {
 
     private boolean useDowngradingConsistencyRetryPolicy = false;
 
+    private int maxAsyncInFlight = DEFAULT_MAX_ASYNC_IN_FLIGHT;
+
+    private int maxBatchStatements = DEFAULT_MAX_BATCH_STATEMENTS;
+
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
     private final Object initLock = new Object();
     private final Object sessionLock = new Object();
 
@@ -81,16 +112,38 @@ public class DriverWrapper {
      */
     private volatile boolean initialized = false;
 
-    Map<String, PreparedStatement> stmtCache = new HashMap<>();
+    private PreparedStatementCache stmtCache = new PreparedStatementCache(cql -> getSession().prepare(cql));
+
+    private volatile DrvMetrics metrics = newMetrics(new MetricRegistry());
 
 
     public PreparedStatement cachedPrepare(String cql) {
-        PreparedStatement stmt = stmtCache.get(cql);
-        if (stmt == null) {
-            stmt = getSession().prepare(cql);
-            stmtCache.put(cql, stmt);
-        }
-        return stmt;
+        return stmtCache.get(cql);
+    }
+
+
+    public PreparedStatementCache getStatementCache() {
+        return stmtCache;
+    }
+
+
+    public DrvMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * record the statement metrics in the application's registry instead of the driver's own
+     */
+    public void setMetricRegistry(MetricRegistry registry) {
+        this.metrics = newMetrics(registry);
+    }
+
+
+    private DrvMetrics newMetrics(MetricRegistry registry) {
+        DrvMetrics drvMetrics = new DrvMetrics(registry);
+        drvMetrics.registerStatementCache(stmtCache);
+        return drvMetrics;
     }
 
 
@@ -250,10 +303,17 @@ public class DriverWrapper {
             typeConvertPrepArgs(prepArgsIn);
             log.dbg(log.d() ? "PREPARE: {} {} {}\n" + JSONUtil.toJSON(prepArgsIn) + "\n{}" : "", log.t() ? new RuntimeException("STACKTRACE") : null, keyspace, consistency, usingTimestamp, cql);
             PreparedStatement prepStmt = cachedPrepare(cql);
-            prepStmt.setConsistencyLevel(ConsistencyLevel.valueOf(consistency));
             // TODO: ?detect the metadata/types? use prepArgTypes?
-            BoundStatement bindStmt = null;
-            try { bindStmt = prepStmt.bind(prepArgsIn); } catch (Exception e) { log.err("stmt prp err for cql: " + cql + " args " + log.json(Arrays.asList(prepArgsIn)), e); }
+            BoundStatement bindStmt;
+            try {
+                bindStmt = prepStmt.bind(prepArgsIn);
+            } catch (RuntimeException e) {
+                String msg = "stmt prp err for cql: " + cql + " args " + log.json(Arrays.asList(prepArgsIn));
+                log.err(msg, e);
+                throw new DrvStorageException(msg, e);
+            }
+            // consistency goes on the bound statement: the prepared statement is shared by all threads
+            bindStmt.setConsistencyLevel(ConsistencyLevel.valueOf(consistency));
             if (usingTimestamp != null) {
                 bindStmt.setDefaultTimestamp(usingTimestamp);
             }
@@ -278,10 +338,17 @@ public class DriverWrapper {
             typeConvertPrepArgs(prepArgsIn);
             log.dbg(log.d() ? "PREPARE: {} {} {}\n" + JSONUtil.toJSON(prepArgsIn) + "\n{}" : "", log.t() ? new RuntimeException("STACKTRACE") : null, keyspace, consistency, usingTimestamp, cql);
             PreparedStatement prepStmt = cachedPrepare(cql);
-            prepStmt.setConsistencyLevel(ConsistencyLevel.valueOf(consistency));
             // TODO: ?detect the metadata/types? use prepArgTypes?
-            BoundStatement bindStmt = null;
-            try { bindStmt = prepStmt.bind(prepArgsIn); } catch (Exception e) { log.err("stmt prp err for cql: " + cql + " args " + log.json(Arrays.asList(prepArgsIn)), e); }
+            BoundStatement bindStmt;
+            try {
+                bindStmt = prepStmt.bind(prepArgsIn);
+            } catch (RuntimeException e) {
+                String msg = "stmt prp err for cql: " + cql + " args " + log.json(Arrays.asList(prepArgsIn));
+                log.err(msg, e);
+                throw new DrvStorageException(msg, e);
+            }
+            // consistency goes on the bound statement: the prepared statement is shared by all threads
+            bindStmt.setConsistencyLevel(ConsistencyLevel.valueOf(consistency));
             if (usingTimestamp != null) {
                 bindStmt.setDefaultTimestamp(usingTimestamp);
             }
@@ -301,12 +368,117 @@ public class DriverWrapper {
 
 
     public ResultSet executeSyncStatementBatch(List<St> statements, final String consistency, final Long usingTimestamp) {
-        BatchStatement batch = new BatchStatement();
+        St batchstmt = buildBatchSt(statements, consistency, usingTimestamp, false);
+        log.dbg(log.d() ? "EXEC ASYNC BATCH: {} {} {} \n{}" : "", null, batchstmt.getKeyspace(), consistency, usingTimestamp, batchstmt.getCql());
+
+        return executeStatementAsync(getSession(), batchstmt);
+    }
+
+
+    /**
+     * Non-blocking version of executeSyncStatementBatch: the batch is sent and the returned future completes
+     * when cassandra responds.
+     */
+    public CompletableFuture<ResultSet> executeStatementBatchFuture(List<St> statements, final String consistency, final Long usingTimestamp) {
+        St batchstmt = buildBatchSt(statements, consistency, usingTimestamp, false);
+        log.dbg(log.d() ? "EXEC NONBLOCKING BATCH: {} {} {} \n{}" : "", null, batchstmt.getKeyspace(), consistency, usingTimestamp, batchstmt.getCql());
+
+        return executeStatementFuture(batchstmt);
+    }
+
+
+    /**
+     * Split the statements of a single partition into UNLOGGED batches, each holding at most maxBatchStatements
+     * statements and at most maxBatchBytes of estimated bound values. A statement that is over the byte cap on its own
+     * is sent as its own (single statement) batch.
+     *
+     * The caller is responsible for the statements sharing a partition: single-partition batches are applied
+     * atomically by the replica without the batchlog, multi-partition unlogged batches just shift load to the coordinator.
+     */
+    public List<St> prepareUnloggedBatches(List<St> partitionStatements, final String consistency, final Long usingTimestamp) {
+        List<St> batches = new ArrayList<>();
+        List<St> current = new ArrayList<>();
+        int currentBytes = 0;
+        for (St stmt : partitionStatements) {
+            int size = estimateSerializedSize(stmt);
+            if (!current.isEmpty() && (current.size() >= maxBatchStatements || currentBytes + size > maxBatchBytes)) {
+                batches.add(buildBatchSt(current, consistency, usingTimestamp, true));
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(stmt);
+            currentBytes += size;
+        }
+        if (!current.isEmpty()) {
+            batches.add(buildBatchSt(current, consistency, usingTimestamp, true));
+        }
+        log.dbg("batch plan: {} statements in {} batches", null, partitionStatements.size(), batches.size());
+        return batches;
+    }
+
+
+    /**
+     * rough size of the statement's bound values as they go over the wire, which is what the batch size threshold measures
+     */
+    public static int estimateSerializedSize(St stmt) {
+        Object[] args = stmt.getCqlargs();
+        if (args == null) {
+            return 0;
+        }
+        int size = 0;
+        for (Object arg : args) {
+            size += 4; // value length prefix
+            if (arg == null) {
+                continue;
+            }
+            if (arg instanceof CharSequence) {
+                size += utf8Length((CharSequence) arg);
+            } else if (arg instanceof ByteBuffer) {
+                size += ((ByteBuffer) arg).remaining();
+            } else if (arg instanceof byte[]) {
+                size += ((byte[]) arg).length;
+            } else if (arg instanceof UUID) {
+                size += 16;
+            } else if (arg instanceof Long || arg instanceof Double || arg instanceof Date) {
+                size += 8;
+            } else if (arg instanceof Integer || arg instanceof Float) {
+                size += 4;
+            } else if (arg instanceof Boolean) {
+                size += 1;
+            } else {
+                size += utf8Length(arg.toString());
+            }
+        }
+        return size;
+    }
+
+
+    private static int utf8Length(CharSequence cs) {
+        int len = 0;
+        for (int i = 0; i < cs.length(); i++) {
+            char c = cs.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+
+    private St buildBatchSt(List<St> statements, final String consistency, final Long usingTimestamp, boolean unlogged) {
+        BatchStatement batch = new BatchStatement(unlogged ? BatchStatement.Type.UNLOGGED : BatchStatement.Type.LOGGED);
         if (usingTimestamp != null) {
             batch.setDefaultTimestamp(usingTimestamp);
         }
         batch.setConsistencyLevel(ConsistencyLevel.valueOf(consistency));
-        StringBuilder batchcql = log.d() ? new StringBuilder() : null;
+        StringBuilder batchcql = new StringBuilder();
         String keyspace = null;
         for (St stmt : statements) {
             if (keyspace == null) {
@@ -319,7 +491,7 @@ public class DriverWrapper {
             batch.add(stmt.getStmt());
             batchcql.append(stmt.getCql()).append("\n");
             Object[] cqlargs = stmt.getCqlargs();
-            if (cqlargs != null && cqlargs.length > 0) {
+            if (log.d() && cqlargs != null && cqlargs.length > 0) {
                 batchcql.append("    [");
                 for (Object cqlarg : cqlargs) {
                     batchcql.append("[").append(cqlarg == null ? null : cqlarg.toString()).append("]");
@@ -327,16 +499,12 @@ public class DriverWrapper {
                 batchcql.append("]\n");
             }
         }
-        log.dbg(log.d() ? "Batch\n " + batchcql : null, null);
 
-        Session session = getSession();
         St batchstmt = new St();
         batchstmt.setStmt(batch);
         batchstmt.setKeyspace(keyspace);
         batchstmt.setCql(batchcql.toString());
-        log.dbg(log.d() ? "EXEC ASYNC BATCH: {} {} {} \n{}" : "", null, keyspace, consistency, usingTimestamp, batchcql);
-
-        return executeStatementAsync(session, batchstmt);
+        return batchstmt;
     }
 
 
@@ -364,19 +532,30 @@ public class DriverWrapper {
 
     public ResultSet executeStatementAsync(Session keyspaceSession, St stmt) {
         final long start = System.currentTimeMillis();
+        final DrvMetrics drvMetrics = metrics;
+        final DrvMetrics.StatementMetrics stmtMetrics = drvMetrics.of(stmt);
+        final long metricsStart = drvMetrics.start(stmt);
 
-        final ResultSetFuture future = keyspaceSession.executeAsync(stmt.getStmt());
+        final ResultSetFuture future;
+        try {
+            future = keyspaceSession.executeAsync(stmt.getStmt());
+        } catch (RuntimeException re) {
+            drvMetrics.failure(stmtMetrics, metricsStart, false);
+            throw re;
+        }
 
         try {
             final ResultSet rs = future.get(queryTimeoutMillis, TimeUnit.MILLISECONDS);
+            drvMetrics.success(stmtMetrics, metricsStart);
 
             long now = System.currentTimeMillis();
 
             log.dbg("execution ended after {} milliseconds; keyspace: {}; cql: {}; args: {}", null, now - start, stmt.getKeyspace(), stmt.getCql(), stmt.getCqlargs());
             log.dbg(log.d() ? " args JSON_: " + JSONUtil.serialize(stmt.getCqlargs()) : "", null);
 
-            return rs;
+            return drvMetrics.meter(stmtMetrics, rs);
         } catch (TimeoutException e) {
+            drvMetrics.failure(stmtMetrics, metricsStart, true);
             future.cancel(true);
             final long now = System.currentTimeMillis();
             final String msg = String.format("execution timed out after %s milliseconds; keyspace: %s; cql: %s; args: %s", now - start, stmt.getKeyspace(), stmt.getCql(), stmt.getCqlargs());
@@ -384,6 +563,7 @@ public class DriverWrapper {
             logClusterStatus();
             throw new DrvTimeoutException(msg, e);
         } catch (InterruptedException | ExecutionException e) {
+            drvMetrics.failure(stmtMetrics, metricsStart, false);
             final long now = System.currentTimeMillis();
             final String msg = String.format("execution failed after %s milliseconds; keyspace: %s; cql: %s; args: %s; message: %s", now - start, stmt.getKeyspace(), stmt.getCql(), stmt.getCqlargs(), e.getMessage());
             log.wrn(msg, e);
@@ -393,10 +573,163 @@ public class DriverWrapper {
     }
 
 
+    /**
+     * Fully non-blocking execution: the statement is handed to the driver and the returned future is completed
+     * from the driver's io thread. Failures are wrapped in DrvStorageException the same way executeStatementAsync does,
+     * and as there a statement that hasn't completed after queryTimeoutMillis is cancelled and fails with
+     * DrvTimeoutException.
+     */
+    public CompletableFuture<ResultSet> executeStatementFuture(final St stmt) {
+        final long start = System.currentTimeMillis();
+        final CompletableFuture<ResultSet> completion = new CompletableFuture<>();
+        final DrvMetrics drvMetrics = metrics;
+        final DrvMetrics.StatementMetrics stmtMetrics = drvMetrics.of(stmt);
+
+        final Session session = getSession();
+        final long metricsStart = drvMetrics.start(stmt);
+        final ResultSetFuture future;
+        try {
+            future = session.executeAsync(stmt.getStmt());
+        } catch (RuntimeException re) {
+            drvMetrics.failure(stmtMetrics, metricsStart, false);
+            throw re;
+        }
+        // the driver's completion or the timeout, whichever comes first
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        final ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> {
+            if (!settled.compareAndSet(false, true)) {
+                return;
+            }
+            drvMetrics.failure(stmtMetrics, metricsStart, true);
+            future.cancel(true);
+            final String msg = String.format("nonblocking execution timed out after %s milliseconds; keyspace: %s; cql: %s; args: %s", System.currentTimeMillis() - start, stmt.getKeyspace(), stmt.getCql(), stmt.getCqlargs());
+            log.wrn(msg, null);
+            logClusterStatus();
+            completion.completeExceptionally(new DrvTimeoutException(msg));
+        }, queryTimeoutMillis, TimeUnit.MILLISECONDS);
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                if (!settled.compareAndSet(false, true)) {
+                    return;
+                }
+                timeout.cancel(false);
+                drvMetrics.success(stmtMetrics, metricsStart);
+                log.dbg("nonblocking execution ended after {} milliseconds; keyspace: {}; cql: {}; args: {}", null, System.currentTimeMillis() - start, stmt.getKeyspace(), stmt.getCql(), stmt.getCqlargs());
+                completion.complete(drvMetrics.meter(stmtMetrics, rs));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (!settled.compareAndSet(false, true)) {
+                    return;
+                }
+                timeout.cancel(false);
+                drvMetrics.failure(stmtMetrics, metricsStart, isTimeout(t));
+                final String msg = String.format("nonblocking execution failed after %s milliseconds; keyspace: %s; cql: %s; args: %s; message: %s", System.currentTimeMillis() - start, stmt.getKeyspace(), stmt.getCql(), stmt.getCqlargs(), t.getMessage());
+                log.wrn(msg, t);
+                completion.completeExceptionally(new DrvStorageException(msg, t));
+            }
+        }, MoreExecutors.directExecutor());
+
+        return completion;
+    }
+
+
+    /**
+     * Send all of the statements concurrently, with at most maxAsyncInFlight outstanding at any one time. No thread
+     * is blocked waiting on the window: each completion sends the next pending statement.
+     *
+     * The returned future completes when every statement has completed, or exceptionally on the first failure
+     * (statements not yet sent at that point are not sent).
+     */
+    public CompletableFuture<Void> executeStatementsFuture(final List<St> statements) {
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        if (statements.isEmpty()) {
+            completion.complete(null);
+            return completion;
+        }
+        StatementPump pump = new StatementPump(statements, completion);
+        int window = Math.min(Math.max(maxAsyncInFlight, 1), statements.size());
+        for (int i = 0; i < window; i++) {
+            pump.sendNext();
+        }
+        return completion;
+    }
+
+
+    /**
+     * Sends for executeStatementsFuture. A completion asks for the next send, and whichever thread finds no send in
+     * progress does the sending in a loop: statement futures that are already complete when their callback is added
+     * (the callback then runs inline) don't nest one send in another.
+     */
+    private final class StatementPump {
+        private final List<St> statements;
+        private final CompletableFuture<Void> completion;
+        private final AtomicInteger nextIdx = new AtomicInteger(0);
+        private final AtomicInteger completed = new AtomicInteger(0);
+        private final AtomicBoolean failed = new AtomicBoolean(false);
+        // sends asked for and not yet done, the thread taking it from 0 does them
+        private final AtomicInteger requested = new AtomicInteger(0);
+
+        StatementPump(List<St> statements, CompletableFuture<Void> completion) {
+            this.statements = statements;
+            this.completion = completion;
+        }
+
+        void sendNext() {
+            if (requested.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                int idx = nextIdx.getAndIncrement();
+                if (idx < statements.size() && !failed.get()) {
+                    send(statements.get(idx));
+                }
+            } while (requested.decrementAndGet() != 0);
+        }
+
+        private void send(St stmt) {
+            CompletableFuture<ResultSet> future;
+            try {
+                future = executeStatementFuture(stmt);
+            } catch (RuntimeException re) {
+                fail(re);
+                return;
+            }
+            future.whenComplete((rs, t) -> {
+                if (t != null) {
+                    fail(t);
+                } else if (completed.incrementAndGet() == statements.size()) {
+                    completion.complete(null);
+                } else {
+                    sendNext();
+                }
+            });
+        }
+
+        private void fail(Throwable t) {
+            if (failed.compareAndSet(false, true)) {
+                completion.completeExceptionally(t);
+            }
+        }
+    }
+
+
     public ResultSet executeStatementSync(Session keyspaceSession, St stmt) {
         final long start = System.currentTimeMillis();
+        final DrvMetrics drvMetrics = metrics;
+        final DrvMetrics.StatementMetrics stmtMetrics = drvMetrics.of(stmt);
+        final long metricsStart = drvMetrics.start(stmt);
 
-        final ResultSet rs = keyspaceSession.execute(stmt.getStmt());
+        final ResultSet rs;
+        try {
+            rs = drvMetrics.meter(stmtMetrics, keyspaceSession.execute(stmt.getStmt()));
+        } catch (RuntimeException re) {
+            drvMetrics.failure(stmtMetrics, metricsStart, isTimeout(re));
+            throw re;
+        }
+        drvMetrics.success(stmtMetrics, metricsStart);
 
         long now = System.currentTimeMillis();
 
@@ -413,6 +746,7 @@ public class DriverWrapper {
         St st = new St();
         Statement stmt = prepare(keyspace, cql, prepArgs, consistency, null);
         st.setStmt(stmt);
+        st.setCql(cql);
         st.setCqlargs(prepArgs);
         st.setKeyspace(keyspace);
         ResultSet cassRS = executeStatementSync(session, st);
@@ -420,6 +754,60 @@ public class DriverWrapper {
     }
 
 
+    /**
+     * Split the token ring into about the requested number of sub-ranges for a parallel full table scan. Each of the
+     * cluster's token ranges (unwrapped) is split evenly, so every sub-range is owned by a single replica set, and the
+     * result is interleaved across primary replicas so that consecutive sub-ranges (the ones scanned concurrently)
+     * hit different nodes.
+     *
+     * The split is deterministic for a given ring and count, which is what lets a scan checkpoint be resumed.
+     *
+     * @param keyspace for replica placement
+     * @param splits desired number of sub-ranges, at least one per ring range is returned
+     * @return sub-ranges, start exclusive and end inclusive
+     */
+    public List<TokenRange> splitTokenRanges(String keyspace, int splits) {
+        getSession();
+        Metadata metadata = cluster.getMetadata();
+        List<TokenRange> ring = new ArrayList<>(metadata.getTokenRanges());
+        Collections.sort(ring);
+        int perRange = Math.max(1, (splits + ring.size() - 1) / ring.size());
+
+        // group by primary replica, in ring order
+        Map<Host, List<TokenRange>> byReplica = new LinkedHashMap<>();
+        for (TokenRange range : ring) {
+            Set<Host> replicas = metadata.getReplicas(keyspace, range);
+            Host primary = replicas.isEmpty() ? null : replicas.iterator().next();
+            List<TokenRange> subRanges = byReplica.computeIfAbsent(primary, h -> new ArrayList<>());
+            for (TokenRange unwrapped : range.unwrap()) {
+                subRanges.addAll(unwrapped.splitEvenly(perRange));
+            }
+        }
+
+        List<TokenRange> interleaved = new ArrayList<>(ring.size() * perRange);
+        List<Iterator<TokenRange>> iterators = new ArrayList<>();
+        for (List<TokenRange> subRanges : byReplica.values()) {
+            iterators.add(subRanges.iterator());
+        }
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Iterator<TokenRange> it : iterators) {
+                if (it.hasNext()) {
+                    interleaved.add(it.next());
+                    added = true;
+                }
+            }
+        }
+        return interleaved;
+    }
+
+
+    private static boolean isTimeout(Throwable t) {
+        return t instanceof OperationTimedOutException || t instanceof ReadTimeoutException || t instanceof WriteTimeoutException;
+    }
+
+
     private void logClusterStatus() {
         try {
             for (Host host : cluster.getMetadata().getAllHosts()) {
@@ -554,4 +942,31 @@ public class DriverWrapper {
     public void setQueryTimeoutMillis(long queryTimeoutMillis) {
         this.queryTimeoutMillis = queryTimeoutMillis;
     }
+
+
+    public void setMaxAsyncInFlight(int maxAsyncInFlight) {
+        this.maxAsyncInFlight = maxAsyncInFlight;
+    }
+
+
+    public int getMaxAsyncInFlight() {
+        return maxAsyncInFlight;
+    }
+
+
+    public void setStatementCacheSize(long statementCacheSize) {
+        this.stmtCache = new PreparedStatementCache(cql -> getSession().prepare(cql), statementCacheSize);
+        // the cache gauges read the cache they were registered with
+        metrics.registerStatementCache(stmtCache);
+    }
+
+
+    public void setMaxBatchStatements(int maxBatchStatements) {
+        this.maxBatchStatements = maxBatchStatements;
+    }
+
+
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
 }
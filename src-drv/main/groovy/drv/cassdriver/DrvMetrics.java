@@ -0,0 +1,227 @@
+package drv.cassdriver;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Statement level metrics of a DriverWrapper, in a dropwizard MetricRegistry (the application's, if one is set).
+ *
+ * Statements are labeled by table family (e, p, r, i or other: the cassdoc table the cql reads or writes) and kind
+ * (select, insert, update, delete, lwt, batch, schema), worked out from the cql once and cached. Per label:
+ *
+ * cassdoc.drv.{family}.{kind}            timer, statement latency
+ * cassdoc.drv.{family}.{kind}.errors     meter
+ * cassdoc.drv.{family}.{kind}.timeouts   meter
+ * cassdoc.drv.{family}.select.rows       histogram, rows returned per read
+ * cassdoc.drv.{family}.select.bytes      histogram, column bytes returned per read
+ *
+ * and overall: cassdoc.drv.inflight (counter of statements sent and not completed), cassdoc.drv.batch.statements
+ * (histogram of statements per batch) and gauges of the prepared statement cache.
+ */
+public class DrvMetrics {
+
+    public static final String PREFIX = "cassdoc.drv";
+
+    private static final int LABEL_CACHE_SIZE = 5000;
+
+    private final MetricRegistry registry;
+
+    private final Counter inflight;
+
+    private final Histogram batchStatements;
+
+    // cql -> labels: the cql of prepared statements is a small set, simple statements can embed values so it's bounded
+    private final Cache<String, StatementMetrics> byCql = CacheBuilder.newBuilder().maximumSize(LABEL_CACHE_SIZE).build();
+
+    /**
+     * the metrics of a label
+     */
+    public static final class StatementMetrics {
+        public final String family;
+        public final String kind;
+        final Timer timer;
+        final Meter errors;
+        final Meter timeouts;
+        final Histogram rows;
+        final Histogram bytes;
+
+        StatementMetrics(MetricRegistry registry, String family, String kind) {
+            this.family = family;
+            this.kind = kind;
+            String name = MetricRegistry.name(PREFIX, family, kind);
+            timer = registry.timer(name);
+            errors = registry.meter(name + ".errors");
+            timeouts = registry.meter(name + ".timeouts");
+            rows = "select".equals(kind) ? registry.histogram(name + ".rows") : null;
+            bytes = "select".equals(kind) ? registry.histogram(name + ".bytes") : null;
+        }
+    }
+
+    public DrvMetrics() {
+        this(new MetricRegistry());
+    }
+
+    public DrvMetrics(MetricRegistry registry) {
+        this.registry = registry;
+        inflight = registry.counter(MetricRegistry.name(PREFIX, "inflight"));
+        batchStatements = registry.histogram(MetricRegistry.name(PREFIX, "batch", "statements"));
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    public StatementMetrics of(St st) {
+        String cql = st.getCql();
+        boolean batch = st.getStmt() instanceof BatchStatement;
+        if (cql == null) {
+            return of(batch ? "BEGIN BATCH" : "", batch);
+        }
+        StatementMetrics labels = byCql.getIfPresent(cql);
+        if (labels == null) {
+            labels = of(cql, batch);
+            byCql.put(cql, labels);
+        }
+        return labels;
+    }
+
+    private StatementMetrics of(String cql, boolean batch) {
+        String[] labels = classify(cql, batch);
+        return new StatementMetrics(registry, labels[0], labels[1]);
+    }
+
+    /**
+     * a statement was sent
+     *
+     * @return the start time to pass to success() or failure()
+     */
+    public long start(St st) {
+        inflight.inc();
+        if (st.getStmt() instanceof BatchStatement) {
+            batchStatements.update(((BatchStatement) st.getStmt()).size());
+        }
+        return System.nanoTime();
+    }
+
+    public void success(StatementMetrics labels, long start) {
+        inflight.dec();
+        labels.timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    public void failure(StatementMetrics labels, long start, boolean timeout) {
+        inflight.dec();
+        labels.timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        (timeout ? labels.timeouts : labels.errors).mark();
+    }
+
+    /**
+     * @return the result set of a read, counting the rows and bytes handed out of it
+     */
+    public ResultSet meter(StatementMetrics labels, ResultSet rs) {
+        if (labels.rows == null || rs == null || rs instanceof MeteredResultSet) {
+            return rs;
+        }
+        return new MeteredResultSet(rs, labels.rows, labels.bytes);
+    }
+
+    /**
+     * size, hits, misses, hit ratio and mean prepare latency (micros) of the prepared statement cache
+     */
+    public void registerStatementCache(final PreparedStatementCache cache) {
+        String name = MetricRegistry.name(PREFIX, "statementCache");
+        gauge(name + ".size", (Gauge<Long>) cache::size);
+        gauge(name + ".hits", (Gauge<Long>) () -> cache.getStats().hitCount());
+        gauge(name + ".misses", (Gauge<Long>) () -> cache.getStats().missCount());
+        gauge(name + ".hitRate", (Gauge<Double>) () -> cache.getStats().hitRate());
+        gauge(name + ".prepareMicros", (Gauge<Double>) () -> cache.getStats().averageLoadPenalty() / 1000d);
+    }
+
+    private void gauge(String name, Gauge<?> gauge) {
+        // a gauge of an earlier cache (or driver) on the same registry is replaced
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    // ---- labels
+
+    /**
+     * @return {family, kind}
+     */
+    static String[] classify(String cql, boolean batch) {
+        String upper = cql.trim().toUpperCase(Locale.ROOT);
+        if (batch || upper.startsWith("BEGIN ")) {
+            // the batch cql is the statements' cql, a line each: the family is the first statement's
+            if (upper.startsWith("BEGIN ")) {
+                upper = upper.substring(upper.indexOf('\n') + 1);
+            }
+            int nl = upper.indexOf('\n');
+            return new String[]{classify(nl < 0 ? upper : upper.substring(0, nl), false)[0], "batch"};
+        }
+        String kind;
+        String table;
+        if (upper.startsWith("SELECT")) {
+            kind = "select";
+            table = tableAfter(upper, " FROM ");
+        } else if (upper.startsWith("INSERT")) {
+            kind = "insert";
+            table = tableAfter(upper, " INTO ");
+        } else if (upper.startsWith("UPDATE")) {
+            kind = "update";
+            table = tableAfter(upper, "UPDATE ");
+        } else if (upper.startsWith("DELETE")) {
+            kind = "delete";
+            table = tableAfter(upper, " FROM ");
+        } else {
+            return new String[]{"other", upper.startsWith("CREATE") || upper.startsWith("ALTER") || upper.startsWith("DROP") ? "schema" : "other"};
+        }
+        if (!"select".equals(kind) && upper.contains(" IF ")) {
+            kind = "lwt";
+        }
+        return new String[]{family(table), kind};
+    }
+
+    private static String tableAfter(String upper, String keyword) {
+        int idx = upper.indexOf(keyword);
+        if (idx < 0) {
+            return null;
+        }
+        int start = idx + keyword.length();
+        while (start < upper.length() && upper.charAt(start) == ' ') {
+            start++;
+        }
+        int end = start;
+        while (end < upper.length() && !Character.isWhitespace(upper.charAt(end)) && upper.charAt(end) != '(') {
+            end++;
+        }
+        String table = upper.substring(start, end);
+        int dot = table.lastIndexOf('.');
+        return dot < 0 ? table : table.substring(dot + 1);
+    }
+
+    private static String family(String table) {
+        if (table == null) {
+            return "other";
+        }
+        if (table.startsWith("E_")) {
+            return "e";
+        }
+        if (table.startsWith("P_")) {
+            return "p";
+        }
+        if (table.equals("R") || table.equals("I")) {
+            return table.toLowerCase(Locale.ROOT);
+        }
+        return "other";
+    }
+}
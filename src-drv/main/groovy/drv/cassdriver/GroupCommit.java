@@ -0,0 +1,245 @@
+package drv.cassdriver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cwdrg.lg.Lg;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit of writes from concurrent requests: statements submitted for the same partition within windowMillis
+ * (or until maxStatements are pending) are sent as one unlogged batch per partition rather than one statement (or
+ * one small batch) per request. Each submit's future completes when the batch holding its statements is acknowledged.
+ *
+ * Every statement keeps the timestamp it was submitted with. If a partition's statements all share one timestamp
+ * (statements of a single request) the batch carries it, otherwise each statement is rewritten to its
+ * USING TIMESTAMP form. Conditional statements (IF ...) are never coalesced, the caller sends those itself; a
+ * statement whose CQL can't be rewritten is sent on its own.
+ *
+ * The callers are responsible for the partition keys: statements submitted under one key must share a partition.
+ */
+public class GroupCommit {
+    private static final Lg log = new Lg(LoggerFactory.getLogger(GroupCommit.class));
+
+    private final DriverWrapper driver;
+    private final long windowMillis;
+    private final int maxStatements;
+    private final ScheduledExecutorService flusher;
+
+    private final Map<String, String> rewrittenCql = new ConcurrentHashMap<>();
+
+    private final Object lock = new Object();
+    private Map<String, Group> pending = new LinkedHashMap<>();
+    private int pendingStatements = 0;
+    /** bumped whenever pending is taken, so a window timer of a group already sent for size doesn't cut the next one short */
+    private long window = 0;
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    static final class Group {
+        final String keyspace;
+        final String consistency;
+        final List<St> statements = new ArrayList<>();
+        final List<Long> timestamps = new ArrayList<>();
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+
+        Group(String keyspace, String consistency) {
+            this.keyspace = keyspace;
+            this.consistency = consistency;
+        }
+    }
+
+    public GroupCommit(DriverWrapper driver, long windowMillis, int maxStatements) {
+        this.driver = driver;
+        this.windowMillis = windowMillis;
+        this.maxStatements = maxStatements;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cassdoc-group-commit");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * queue the statements of one partition, written at timestamp
+     *
+     * @return completes when the statements are acknowledged, exceptionally if their batch failed
+     */
+    public CompletableFuture<Void> submit(String keyspace, String partition, String consistency, List<St> statements, long timestamp) {
+        CompletableFuture<Void> landed = new CompletableFuture<>();
+        if (statements.isEmpty()) {
+            landed.complete(null);
+            return landed;
+        }
+        Map<String, Group> full = null;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("group commit is closed");
+            }
+            String key = keyspace + '/' + consistency + '/' + partition;
+            Group group = pending.get(key);
+            if (group == null) {
+                group = new Group(keyspace, consistency);
+                pending.put(key, group);
+            }
+            for (St stmt : statements) {
+                group.statements.add(stmt);
+                group.timestamps.add(timestamp);
+            }
+            group.waiters.add(landed);
+            pendingStatements += statements.size();
+            if (pendingStatements >= maxStatements) {
+                full = takePending();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                final long current = window;
+                flusher.schedule(() -> flush(current), windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return landed;
+    }
+
+    private void flush(long expectedWindow) {
+        Map<String, Group> groups;
+        synchronized (lock) {
+            if (window != expectedWindow) {
+                return;
+            }
+            groups = takePending();
+        }
+        send(groups);
+    }
+
+    private Map<String, Group> takePending() {
+        Map<String, Group> groups = pending;
+        pending = new LinkedHashMap<>();
+        pendingStatements = 0;
+        flushScheduled = false;
+        window++;
+        return groups;
+    }
+
+    private void send(Map<String, Group> groups) {
+        for (final Group group : groups.values()) {
+            List<St> sends;
+            try {
+                sends = plan(group);
+            } catch (RuntimeException e) {
+                for (CompletableFuture<Void> waiter : group.waiters) {
+                    waiter.completeExceptionally(e);
+                }
+                continue;
+            }
+            log.dbg("group commit: {} statements of {} requests in {} sends", null, group.statements.size(), group.waiters.size(), sends.size());
+            driver.executeStatementsFuture(sends).whenComplete((v, t) -> {
+                for (CompletableFuture<Void> waiter : group.waiters) {
+                    if (t == null) {
+                        waiter.complete(null);
+                    } else {
+                        waiter.completeExceptionally(t);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * the partition's unlogged batches (more than one past the driver's batch caps) and the statements sent alone
+     */
+    private List<St> plan(Group group) {
+        Long first = group.timestamps.get(0);
+        boolean oneTimestamp = true;
+        for (Long timestamp : group.timestamps) {
+            if (!timestamp.equals(first)) {
+                oneTimestamp = false;
+                break;
+            }
+        }
+        if (oneTimestamp) {
+            return driver.prepareUnloggedBatches(group.statements, group.consistency, first);
+        }
+        List<St> stamped = new ArrayList<>(group.statements.size());
+        List<St> alone = new ArrayList<>();
+        for (int i = 0; i < group.statements.size(); i++) {
+            St stmt = group.statements.get(i);
+            String cql = rewrittenCql.computeIfAbsent(stmt.getCql(), c -> {
+                String rewritten = timestampedCql(c);
+                // cached as empty: sent alone
+                return rewritten == null ? "" : rewritten;
+            });
+            if (cql.isEmpty()) {
+                alone.add(stmt);
+            } else {
+                Object[] args = timestampedArgs(cql, stmt.getCqlargs(), group.timestamps.get(i));
+                stamped.add(driver.prepareSt(group.keyspace, cql, args, group.consistency, null));
+            }
+        }
+        List<St> sends = driver.prepareUnloggedBatches(stamped, group.consistency, null);
+        sends.addAll(alone);
+        return sends;
+    }
+
+    /**
+     * the USING TIMESTAMP ? form of an INSERT, UPDATE or DELETE, null for anything else or a statement that is
+     * conditional or already has a USING clause
+     */
+    static String timestampedCql(String cql) {
+        String trimmed = cql.trim();
+        String upper = trimmed.toUpperCase();
+        if (upper.contains(" IF ") || upper.contains(" USING ")) {
+            return null;
+        }
+        if (upper.startsWith("INSERT ")) {
+            return trimmed + " USING TIMESTAMP ?";
+        }
+        String before = upper.startsWith("UPDATE ") ? " SET " : upper.startsWith("DELETE ") ? " WHERE " : null;
+        if (before == null) {
+            return null;
+        }
+        int at = upper.indexOf(before);
+        return at < 0 ? null : trimmed.substring(0, at) + " USING TIMESTAMP ?" + trimmed.substring(at);
+    }
+
+    /**
+     * the bind values of the timestamped cql: the timestamp is the last value of an INSERT, the first otherwise
+     */
+    static Object[] timestampedArgs(String timestampedCql, Object[] args, long timestamp) {
+        int n = args == null ? 0 : args.length;
+        Object[] stamped = new Object[n + 1];
+        if (timestampedCql.regionMatches(true, 0, "INSERT ", 0, 7)) {
+            if (n > 0) {
+                System.arraycopy(args, 0, stamped, 0, n);
+            }
+            stamped[n] = timestamp;
+        } else {
+            stamped[0] = timestamp;
+            if (n > 0) {
+                System.arraycopy(args, 0, stamped, 1, n);
+            }
+        }
+        return stamped;
+    }
+
+    /**
+     * send what is pending and stop the window timer
+     */
+    public void close() {
+        Map<String, Group> groups;
+        synchronized (lock) {
+            closed = true;
+            groups = takePending();
+        }
+        send(groups);
+        flusher.shutdown();
+    }
+}
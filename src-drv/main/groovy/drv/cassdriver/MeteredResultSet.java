@@ -0,0 +1,132 @@
+package drv.cassdriver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.codahale.metrics.Histogram;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * ResultSet that counts the rows (and their column bytes) handed out, and records them in the read's histograms once
+ * the last row has been taken. The end is detected without fetching: nothing buffered and no more pages. A read that is
+ * abandoned before its end (a limit reached, a single row taken of several) is not recorded.
+ */
+class MeteredResultSet implements ResultSet {
+
+    private final ResultSet rs;
+    private final Histogram rowsHistogram;
+    private final Histogram bytesHistogram;
+    private long rows = 0;
+    private long bytes = 0;
+    private boolean recorded = false;
+
+    MeteredResultSet(ResultSet rs, Histogram rowsHistogram, Histogram bytesHistogram) {
+        this.rs = rs;
+        this.rowsHistogram = rowsHistogram;
+        this.bytesHistogram = bytesHistogram;
+        checkEnd();
+    }
+
+    private Row count(Row row) {
+        if (row != null) {
+            rows++;
+            int columns = row.getColumnDefinitions().size();
+            for (int i = 0; i < columns; i++) {
+                ByteBuffer value = row.getBytesUnsafe(i);
+                if (value != null) {
+                    bytes += value.remaining();
+                }
+            }
+        }
+        checkEnd();
+        return row;
+    }
+
+    private void checkEnd() {
+        if (!recorded && rs.getAvailableWithoutFetching() == 0 && rs.isFullyFetched()) {
+            recorded = true;
+            rowsHistogram.update(rows);
+            bytesHistogram.update(bytes);
+        }
+    }
+
+    @Override
+    public ColumnDefinitions getColumnDefinitions() {
+        return rs.getColumnDefinitions();
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return rs.isExhausted();
+    }
+
+    @Override
+    public Row one() {
+        return count(rs.one());
+    }
+
+    @Override
+    public List<Row> all() {
+        List<Row> all = new ArrayList<>();
+        for (Row row : this) {
+            all.add(row);
+        }
+        return all;
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+            @Override
+            public boolean hasNext() {
+                return !rs.isExhausted();
+            }
+
+            @Override
+            public Row next() {
+                Row row = one();
+                if (row == null) {
+                    throw new NoSuchElementException();
+                }
+                return row;
+            }
+        };
+    }
+
+    @Override
+    public int getAvailableWithoutFetching() {
+        return rs.getAvailableWithoutFetching();
+    }
+
+    @Override
+    public boolean isFullyFetched() {
+        return rs.isFullyFetched();
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> fetchMoreResults() {
+        return rs.fetchMoreResults();
+    }
+
+    @Override
+    public ExecutionInfo getExecutionInfo() {
+        return rs.getExecutionInfo();
+    }
+
+    @Override
+    public List<ExecutionInfo> getAllExecutionInfo() {
+        return rs.getAllExecutionInfo();
+    }
+
+    @Override
+    public boolean wasApplied() {
+        return rs.wasApplied();
+    }
+}
@@ -0,0 +1,83 @@
+package drv.cassdriver;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import cwdrg.lg.Lg;
+
+/**
+ * Thread-safe, size bounded cache of prepared statements keyed by cql.
+ *
+ * Concurrent requests for the same uncached cql share a single prepare round trip (the others wait on it), and the
+ * least recently used statements are evicted once maximumSize is reached: cql embeds the keyspace and e_/p_ table
+ * names so the set of distinct statements grows with collections x doctypes.
+ *
+ * Hit/miss counts and prepare latency are available from getStats().
+ */
+public class PreparedStatementCache {
+    private static final Lg log = new Lg(LoggerFactory.getLogger(PreparedStatementCache.class));
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 5000;
+
+    private final LoadingCache<String, PreparedStatement> cache;
+
+    public PreparedStatementCache(final Function<String, PreparedStatement> preparer) {
+        this(preparer, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public PreparedStatementCache(final Function<String, PreparedStatement> preparer, long maximumSize) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build(new CacheLoader<String, PreparedStatement>() {
+                    @Override
+                    public PreparedStatement load(String cql) {
+                        long start = System.nanoTime();
+                        PreparedStatement stmt = preparer.apply(cql);
+                        log.dbg("prepared in {} micros: {}", null, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), cql);
+                        return stmt;
+                    }
+                });
+    }
+
+    public PreparedStatement get(String cql) {
+        try {
+            return cache.get(cql);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // rethrow the driver's own exception rather than the cache wrapper
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DrvStorageException("statement prepare failed for cql: " + cql, e.getCause());
+        }
+    }
+
+    public void invalidate(String cql) {
+        cache.invalidate(cql);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * hitCount, missCount, loadCount and averageLoadPenalty (mean prepare latency in nanoseconds) among others
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,47 @@
+package drv.cassdriver
+
+import com.datastax.driver.core.BatchStatement
+import com.datastax.driver.core.SimpleStatement
+import spock.lang.Specification
+
+class BatchPlanSpec extends Specification {
+
+    DriverWrapper drv = new DriverWrapper()
+
+    St st(Object... args) {
+        new St(keyspace: 'ks', cql: 'INSERT INTO ks.p_X (e,p,d) VALUES (?,?,?)', cqlargs: args, stmt: new SimpleStatement('INSERT INTO ks.p_X (e,p,d) VALUES (?,?,?)', args))
+    }
+
+    void 'statement count cap splits a partition into several unlogged batches'() {
+        given:
+        drv.maxBatchStatements = 3
+        List<St> stmts = (1..7).collect { st('doc', "attr$it".toString(), 'v') }
+
+        when:
+        List<St> batches = drv.prepareUnloggedBatches(stmts, 'ONE', 1000L)
+
+        then:
+        batches.size() == 3
+        batches.collect { ((BatchStatement) it.stmt).size() } == [3, 3, 1]
+        batches.every { ((BatchStatement) it.stmt).batchType == BatchStatement.Type.UNLOGGED }
+    }
+
+    void 'byte cap splits large values and oversized statements go alone'() {
+        given:
+        drv.maxBatchBytes = 1000
+        String big = 'x' * 600
+        String huge = 'y' * 5000
+        List<St> stmts = [st('doc', 'a', big), st('doc', 'b', big), st('doc', 'c', huge), st('doc', 'd', 'small')]
+
+        when:
+        List<St> batches = drv.prepareUnloggedBatches(stmts, 'ONE', 1000L)
+
+        then:
+        batches.collect { ((BatchStatement) it.stmt).size() } == [1, 1, 1, 1]
+    }
+
+    void 'size estimate counts utf-8 bytes of string values'() {
+        expect:
+        DriverWrapper.estimateSerializedSize(st('ab', 'é', null)) == 4 + 2 + 4 + 2 + 4
+    }
+}
@@ -0,0 +1,100 @@
+package drv.cassdriver
+
+import com.codahale.metrics.MetricRegistry
+import com.datastax.driver.core.ColumnDefinitions
+import com.datastax.driver.core.ResultSet
+import com.datastax.driver.core.Row
+import com.datastax.driver.core.SimpleStatement
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+
+class DrvMetricsSpec extends Specification {
+
+    @Unroll
+    void 'classify #cql'() {
+        expect:
+        DrvMetrics.classify(cql, false) as List == [family, kind]
+
+        where:
+        cql                                                               | family  | kind
+        'SELECT token(e),zv from ks.e_ABC WHERE e = ?'                    | 'e'     | 'select'
+        'SELECT p,t,d,zv FROM ks.p_ABC WHERE e = ?'                       | 'p'     | 'select'
+        'INSERT INTO ks.p_ABC (e,p,zv,d,t) VALUES (?,?,?,?,?)'            | 'p'     | 'insert'
+        'INSERT INTO ks.e_ABC (e,zv) VALUES (?,?) IF NOT EXISTS'          | 'e'     | 'lwt'
+        'UPDATE ks.r SET z_md = ? WHERE p1 = ?'                           | 'r'     | 'update'
+        'UPDATE ks.p_ABC SET d = ?, zv = ? WHERE e = ? and p = ? IF zv=?' | 'p'     | 'lwt'
+        'DELETE FROM ks.i WHERE i1 = ?'                                   | 'i'     | 'delete'
+        'SELECT keyspace_name from schema_keyspaces limit 1'              | 'other' | 'select'
+        'CREATE TABLE ks.e_ABC (e text PRIMARY KEY)'                      | 'other' | 'schema'
+    }
+
+    void 'batches take the family of their first statement'() {
+        expect:
+        DrvMetrics.classify('INSERT INTO ks.p_ABC (e,p) VALUES (?,?)\nINSERT INTO ks.p_ABC (e,p) VALUES (?,?)\n', true) as List == ['p', 'batch']
+    }
+
+    void 'the statement cache gauges follow a resized cache'() {
+        given:
+        MetricRegistry registry = new MetricRegistry()
+        DriverWrapper drv = new DriverWrapper()
+        drv.setMetricRegistry(registry)
+
+        when:
+        drv.setStatementCacheSize(10)
+        // not connected: the prepare fails, the lookup is still a miss
+        drv.cachedPrepare('SELECT e FROM ks.e_ABC WHERE e = ?')
+
+        then:
+        thrown(IllegalStateException)
+        registry.gauges['cassdoc.drv.statementCache.misses'].value == 1L
+        drv.statementCache.stats.missCount() == 1L
+    }
+
+    void 'rows and bytes of a read are recorded once it is consumed'() {
+        given:
+        MetricRegistry registry = new MetricRegistry()
+        DrvMetrics metrics = new DrvMetrics(registry)
+        St st = new St(stmt: new SimpleStatement('x'), cql: 'SELECT p,d FROM ks.p_ABC WHERE e = ?')
+        DrvMetrics.StatementMetrics labels = metrics.of(st)
+        long start = metrics.start(st)
+        ResultSet rs = metrics.meter(labels, resultSet([['a', 'xyz'], ['b', null], ['c', 'q']]))
+        metrics.success(labels, start)
+
+        when:
+        int rows = 0
+        for (Row row : rs) {
+            rows++
+        }
+
+        then:
+        rows == 3
+        registry.histogram('cassdoc.drv.p.select.rows').snapshot.values as List == [3L]
+        registry.histogram('cassdoc.drv.p.select.bytes').snapshot.values as List == [7L]
+        registry.timer('cassdoc.drv.p.select').count == 1
+        registry.counter('cassdoc.drv.inflight').count == 0
+    }
+
+    private ResultSet resultSet(List<List<String>> data) {
+        Iterator<List<String>> it = data.iterator()
+        int[] remaining = [data.size()] as int[]
+        [
+                one                        : { -> it.hasNext() ? row(it.next(), remaining) : null },
+                isExhausted                : { -> !it.hasNext() },
+                getAvailableWithoutFetching: { -> remaining[0] },
+                isFullyFetched             : { -> true }
+        ] as ResultSet
+    }
+
+    private Row row(List<String> cols, int[] remaining) {
+        remaining[0]--
+        ColumnDefinitions columns = Stub(ColumnDefinitions) {
+            size() >> cols.size()
+        }
+        [
+                getColumnDefinitions: { -> columns },
+                getBytesUnsafe      : { int i -> cols[i] == null ? null : ByteBuffer.wrap(cols[i].bytes) }
+        ] as Row
+    }
+}
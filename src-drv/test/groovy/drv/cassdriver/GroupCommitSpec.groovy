@@ -0,0 +1,184 @@
+package drv.cassdriver
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.function.BiFunction
+
+import com.datastax.driver.core.ResultSet
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class GroupCommitSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+    GroupCommit groupCommit
+
+    void cleanup() {
+        groupCommit?.close()
+    }
+
+    St st(String cql, Object... args) {
+        drv.prepareSt('ks', cql, args, 'LOCAL_QUORUM', null)
+    }
+
+    CompletableFuture<Void> submit(String partition, long timestamp, St... statements) {
+        groupCommit.submit('ks', partition, 'LOCAL_QUORUM', statements as List<St>, timestamp)
+    }
+
+    static void await(CompletableFuture<Void>... futures) {
+        CompletableFuture.allOf(futures).get(5, TimeUnit.SECONDS)
+    }
+
+    /**
+     * waits until the futures are complete, failed or not
+     */
+    static void settled(CompletableFuture<Void>... futures) {
+        CompletableFuture.allOf(futures).handle({ Void v, Throwable t -> null } as BiFunction<Void, Throwable, Void>).get(5, TimeUnit.SECONDS)
+    }
+
+    @Unroll
+    void 'timestamped form of #cql'() {
+        expect:
+        GroupCommit.timestampedCql(cql) == timestamped
+
+        where:
+        cql                                                     | timestamped
+        'INSERT INTO ks.i (i1,k1) VALUES (?,?)'                 | 'INSERT INTO ks.i (i1,k1) VALUES (?,?) USING TIMESTAMP ?'
+        'UPDATE ks.e_X SET a = null WHERE e = ?'                | 'UPDATE ks.e_X USING TIMESTAMP ? SET a = null WHERE e = ?'
+        'DELETE FROM ks.r WHERE p1 = ?'                         | 'DELETE FROM ks.r USING TIMESTAMP ? WHERE p1 = ?'
+        'UPDATE ks.p_X SET zv = ? WHERE e = ? IF zv = ?'        | null
+        'INSERT INTO ks.i (i1) VALUES (?) USING TTL 10'         | null
+        'SELECT e FROM ks.e_X WHERE e = ?'                      | null
+    }
+
+    void 'the timestamp is bound last for inserts, first otherwise'() {
+        expect:
+        GroupCommit.timestampedArgs('INSERT INTO ks.i (i1,k1) VALUES (?,?) USING TIMESTAMP ?', ['a', 'b'] as Object[], 7L) == ['a', 'b', 7L] as Object[]
+        GroupCommit.timestampedArgs('DELETE FROM ks.r USING TIMESTAMP ? WHERE p1 = ?', ['a'] as Object[], 7L) == [7L, 'a'] as Object[]
+    }
+
+    void 'submits to one partition within the window go out as one batch per partition'() {
+        given:
+        groupCommit = new GroupCommit(drv, 100, 1000)
+        St a = st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'a', 'doc1')
+        St b = st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'b', 'doc1')
+        St c = st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'c', 'doc2')
+
+        when:
+        CompletableFuture<Void> first = submit('doc1', 7L, a)
+        CompletableFuture<Void> second = submit('doc1', 7L, b)
+        CompletableFuture<Void> other = submit('doc2', 7L, c)
+
+        then: 'nothing is sent before the window ends'
+        drv.sent.isEmpty()
+
+        when:
+        await(first, second, other)
+
+        then:
+        drv.sent.size() == 2
+        drv.sent.collect { St batch -> drv.statementsOf(batch) } == [[a, b], [c]]
+        drv.sent.every { St batch -> batch.stmt.defaultTimestamp == 7L }
+    }
+
+    void 'reaching the statement cap sends right away, the next window is timed from its first submit'() {
+        given:
+        groupCommit = new GroupCommit(drv, 600, 3)
+        Map<St, Long> sentAt = Collections.synchronizedMap([:])
+        drv.respond = { St st ->
+            sentAt[st] = System.currentTimeMillis()
+            CompletableFuture.completedFuture((ResultSet) null)
+        }
+
+        when:
+        CompletableFuture<Void> first = submit('doc1', 7L, st('DELETE FROM ks.r WHERE p1 = ?', 'doc1'), st('DELETE FROM ks.i WHERE v1 = ?', 'doc1'))
+
+        then:
+        drv.sent.isEmpty()
+
+        when:
+        CompletableFuture<Void> capped = submit('doc2', 7L, st('DELETE FROM ks.r WHERE p1 = ?', 'doc2'))
+
+        then: 'sent by the submit that reached the cap'
+        drv.sent.size() == 2
+        first.isDone()
+        capped.isDone()
+
+        when: 'the timer of the capped window fires while the next one is open'
+        Thread.sleep(200)
+        long submitted = System.currentTimeMillis()
+        CompletableFuture<Void> next = submit('doc3', 7L, st('DELETE FROM ks.r WHERE p1 = ?', 'doc3'))
+        await(next)
+
+        then:
+        drv.sent.size() == 3
+        sentAt[drv.sent[2]] - submitted >= 550
+    }
+
+    void 'statements of different timestamps are sent with their own, conditional ones alone'() {
+        given:
+        groupCommit = new GroupCommit(drv, 50, 1000)
+        St insert = st('INSERT INTO ks.i (i1,k1) VALUES (?,?)', 'idx', 'k')
+        St delete = st('DELETE FROM ks.r WHERE p1 = ?', 'doc1')
+        St conditional = st('UPDATE ks.p_X SET zv = ? WHERE e = ? IF zv = ?', 'v2', 'doc1', 'v1')
+
+        when:
+        await(submit('doc1', 10L, insert), submit('doc1', 20L, delete, conditional))
+        List<St> batched = drv.statementsOf(drv.sent[0])
+
+        then:
+        drv.sent.size() == 2
+        batched*.cql == ['INSERT INTO ks.i (i1,k1) VALUES (?,?) USING TIMESTAMP ?', 'DELETE FROM ks.r USING TIMESTAMP ? WHERE p1 = ?']
+        batched*.cqlargs == [['idx', 'k', 10L] as Object[], [20L, 'doc1'] as Object[]]
+        drv.sent[1].is(conditional)
+    }
+
+    void 'each submit completes with the batch holding its statements'() {
+        given:
+        groupCommit = new GroupCommit(drv, 50, 1000)
+        drv.respond = { St st ->
+            CompletableFuture<ResultSet> f = new CompletableFuture<>()
+            if (drv.statementsOf(st).any { it.cqlargs[1] == 'doc2' }) f.completeExceptionally(new IllegalStateException('write timeout')) else f.complete(null)
+            f
+        }
+
+        when:
+        CompletableFuture<Void> first = submit('doc1', 7L, st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'a', 'doc1'))
+        CompletableFuture<Void> second = submit('doc1', 7L, st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'b', 'doc1'))
+        CompletableFuture<Void> failing = submit('doc2', 7L, st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'c', 'doc2'))
+        CompletableFuture<Void> alsoFailing = submit('doc2', 7L, st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'd', 'doc2'))
+        settled(first, second, failing, alsoFailing)
+
+        then:
+        !first.isCompletedExceptionally()
+        !second.isCompletedExceptionally()
+        [failing, alsoFailing].every { CompletableFuture<Void> f -> f.handle({ Void v, Throwable t -> t?.message } as BiFunction<Void, Throwable, String>).get() == 'write timeout' }
+    }
+
+    void 'a partition that cannot be planned fails its submits only'() {
+        given:
+        RecordingDriver planFailing = new RecordingDriver() {
+            @Override
+            List<St> prepareUnloggedBatches(List<St> partitionStatements, String consistency, Long usingTimestamp) {
+                if (partitionStatements.any { it.cqlargs[1] == 'doc2' }) {
+                    throw new IllegalArgumentException('batch too large')
+                }
+                super.prepareUnloggedBatches(partitionStatements, consistency, usingTimestamp)
+            }
+        }
+        drv = planFailing
+        groupCommit = new GroupCommit(drv, 50, 1000)
+
+        when:
+        CompletableFuture<Void> planned = submit('doc1', 7L, st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'a', 'doc1'))
+        CompletableFuture<Void> unplanned = submit('doc2', 7L, st('UPDATE ks.p_X SET d = ? WHERE e = ?', 'b', 'doc2'))
+        planned.get(5, TimeUnit.SECONDS)
+        unplanned.get(5, TimeUnit.SECONDS)
+
+        then:
+        ExecutionException failure = thrown()
+        failure.cause instanceof IllegalArgumentException
+        drv.sentStatements()*.cqlargs*.getAt(1) == ['doc1']
+    }
+}
@@ -0,0 +1,84 @@
+package drv.cassdriver
+
+import com.datastax.driver.core.PreparedStatement
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Function
+
+class PreparedStatementCacheSpec extends Specification {
+
+    AtomicInteger prepares = new AtomicInteger()
+
+    Function<String, PreparedStatement> slowPreparer = { String cql ->
+        prepares.incrementAndGet()
+        Thread.sleep(50)
+        [:] as PreparedStatement
+    } as Function<String, PreparedStatement>
+
+    void 'concurrent requests for the same cql prepare it once'() {
+        given:
+        PreparedStatementCache cache = new PreparedStatementCache(slowPreparer)
+        CountDownLatch go = new CountDownLatch(1)
+        List<PreparedStatement> results = Collections.synchronizedList([])
+        List<Thread> threads = (1..16).collect {
+            Thread.start {
+                go.await()
+                results << cache.get('INSERT INTO ks.p_X (e,p) VALUES (?,?)')
+            }
+        }
+
+        when:
+        go.countDown()
+        threads*.join()
+
+        then:
+        prepares.get() == 1
+        results.size() == 16
+        results.every { it.is(results[0]) }
+        // threads that waited on the load are counted as misses too
+        cache.stats.loadCount() == 1
+        cache.stats.requestCount() == 16
+    }
+
+    void 'cache is bounded'() {
+        given:
+        PreparedStatementCache cache = new PreparedStatementCache({ String cql -> [:] as PreparedStatement } as Function<String, PreparedStatement>, 10)
+
+        when:
+        (1..50).each { cache.get("SELECT * FROM ks.e_T$it".toString()) }
+
+        then:
+        cache.size() <= 10
+        cache.stats.evictionCount() >= 40
+    }
+
+    void 'driver exceptions from prepare are rethrown as-is'() {
+        given:
+        PreparedStatementCache cache = new PreparedStatementCache({ String cql -> throw new IllegalStateException('bad cql') } as Function<String, PreparedStatement>)
+
+        when:
+        cache.get('SELEKT')
+
+        then:
+        IllegalStateException e = thrown()
+        e.message == 'bad cql'
+    }
+
+    void 'a bind failure is thrown rather than leaving a null statement'() {
+        given:
+        PreparedStatement badTypes = [bind: { Object[] args -> throw new IllegalArgumentException('wrong type for e') }] as PreparedStatement
+        DriverWrapper drv = new DriverWrapper() {
+            @Override
+            PreparedStatement cachedPrepare(String cql) { badTypes }
+        }
+
+        when:
+        drv.prepareSt('ks', 'SELECT * FROM ks.e_T WHERE e = ?', [42] as Object[], 'ONE', null)
+
+        then:
+        DrvStorageException e = thrown()
+        e.cause instanceof IllegalArgumentException
+    }
+}
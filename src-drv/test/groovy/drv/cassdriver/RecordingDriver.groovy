@@ -0,0 +1,195 @@
+package drv.cassdriver
+
+import java.lang.reflect.Constructor
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+import com.datastax.driver.core.BatchStatement
+import com.datastax.driver.core.CodecRegistry
+import com.datastax.driver.core.ColumnDefinitions
+import com.datastax.driver.core.ConsistencyLevel
+import com.datastax.driver.core.DataType
+import com.datastax.driver.core.ResultSet
+import com.datastax.driver.core.Row
+import com.datastax.driver.core.Session
+import com.datastax.driver.core.SimpleStatement
+import com.datastax.driver.core.Statement
+
+/**
+ * DriverWrapper without a cluster, for specs and the jmh benchmarks: statements are recorded in sent rather than sent,
+ * and answered by the respond closure. By default every statement succeeds, with the rows closure's rows (none unless
+ * set) as its result.
+ *
+ * Prepared statements are simple statements holding the cql and bind values, batches are the driver's own batch
+ * statements: statementsOf(st) lists what a recorded batch holds.
+ */
+class RecordingDriver extends DriverWrapper {
+
+    final List<St> sent = Collections.synchronizedList([])
+
+    /** { String cql, Object[] args -> List<Map<String, Object>> } the rows a statement returns */
+    Closure rows = { String cql, Object[] args -> [] }
+
+    /** { St st -> CompletableFuture<ResultSet> } the response to a sent statement */
+    Closure respond = { St st -> CompletableFuture.completedFuture(resultSet(rows(st.cql, st.cqlargs))) }
+
+    protected final Map<Statement, St> prepared = Collections.synchronizedMap(new IdentityHashMap<Statement, St>())
+
+    /** when false statements are answered but not kept in sent (or prepared), so long benchmark runs don't grow the heap */
+    boolean recording = true
+
+    @Override
+    Session getSession() {
+        null
+    }
+
+    @Override
+    Statement prepare(String keyspace, String cql, Object[] prepArgsIn, String consistency, Long usingTimestamp) {
+        prepareSt(keyspace, cql, prepArgsIn, consistency, usingTimestamp).stmt
+    }
+
+    @Override
+    St prepareSt(String keyspace, String cql, Object[] prepArgsIn, String consistency, Long usingTimestamp) {
+        SimpleStatement stmt = prepArgsIn ? new SimpleStatement(cql, prepArgsIn) : new SimpleStatement(cql)
+        stmt.consistencyLevel = ConsistencyLevel.valueOf(consistency)
+        if (usingTimestamp != null) {
+            stmt.defaultTimestamp = usingTimestamp
+        }
+        St st = new St(keyspace: keyspace, cql: cql, cqlargs: prepArgsIn, stmt: stmt)
+        if (recording) {
+            prepared.put(stmt, st)
+        }
+        st
+    }
+
+    @Override
+    CompletableFuture<ResultSet> executeStatementFuture(St stmt) {
+        if (recording) {
+            sent.add(stmt)
+        }
+        (CompletableFuture<ResultSet>) respond(stmt)
+    }
+
+    @Override
+    ResultSet executeStatementAsync(Session keyspaceSession, St stmt) {
+        join(executeStatementFuture(stmt))
+    }
+
+    @Override
+    ResultSet executeStatementSync(Session keyspaceSession, St stmt) {
+        join(executeStatementFuture(stmt))
+    }
+
+    /**
+     * the statements of a recorded batch, or the statement itself
+     */
+    List<St> statementsOf(St st) {
+        if (st.stmt instanceof BatchStatement) {
+            return ((BatchStatement) st.stmt).statements.collect { Statement s -> prepared.get(s) }
+        }
+        [st]
+    }
+
+    /**
+     * every statement sent, batches expanded
+     */
+    List<St> sentStatements() {
+        synchronized (sent) {
+            sent.collectMany { St st -> statementsOf(st) }
+        }
+    }
+
+    private static ResultSet join(CompletableFuture<ResultSet> future) {
+        try {
+            future.join()
+        } catch (CompletionException ce) {
+            throw (ce.cause instanceof RuntimeException) ? (RuntimeException) ce.cause : ce
+        }
+    }
+
+    /**
+     * a fully fetched result set of the rows, a row is a map of column name to value
+     */
+    static ResultSet resultSet(List<Map<String, Object>> rowMaps) {
+        List<Row> rowList = rowMaps.collect { Map<String, Object> m -> row(m) }
+        Iterator<Row> rowIterator = rowList.iterator()
+        int[] taken = [0] as int[]
+        Iterator<Row> cursor = [hasNext: { -> rowIterator.hasNext() }, next: { -> taken[0]++; rowIterator.next() }] as Iterator<Row>
+        (ResultSet) Proxy.newProxyInstance(RecordingDriver.classLoader, [ResultSet] as Class[], { Object proxy, Method method, Object[] args ->
+            switch (method.name) {
+                case 'one': return cursor.hasNext() ? cursor.next() : null
+                case 'iterator': return cursor
+                case 'all': List<Row> rest = []; while (cursor.hasNext()) rest.add(cursor.next()); return rest
+                case 'isExhausted': return !cursor.hasNext()
+                case 'isFullyFetched': return true
+                case 'getAvailableWithoutFetching': return rowList.size() - taken[0]
+                case 'wasApplied': return rowList.isEmpty() || !rowList[0].columnDefinitions.contains('[applied]') || rowList[0].getBool('[applied]')
+                case 'getColumnDefinitions': return columnDefinitions(rowMaps ? rowMaps[0] : [:])
+                case 'hashCode': return System.identityHashCode(proxy)
+                case 'equals': return proxy.is(args[0])
+                case 'toString': return "ResultSet$rowMaps".toString()
+                default: throw new UnsupportedOperationException(method.name)
+            }
+        } as InvocationHandler)
+    }
+
+    /**
+     * a row of the map's values, by column name or position. Null values of primitive getters are the driver's
+     * defaults (false, 0). Column types follow the value classes, text for nulls and anything unknown.
+     */
+    static Row row(Map<String, Object> values) {
+        List<String> names = new ArrayList<>(values.keySet())
+        (Row) Proxy.newProxyInstance(RecordingDriver.classLoader, [Row] as Class[], { Object proxy, Method method, Object[] args ->
+            switch (method.name) {
+                case 'getColumnDefinitions': return columnDefinitions(values)
+                case 'getPartitionKeyToken': return null
+                case 'hashCode': return System.identityHashCode(proxy)
+                case 'equals': return proxy.is(args[0])
+                case 'toString': return "Row$values".toString()
+            }
+            if (!args || !(method.name.startsWith('get') || method.name == 'isNull')) {
+                throw new UnsupportedOperationException(method.name)
+            }
+            Object value = args[0] instanceof Integer ? values.get(names[(Integer) args[0]]) : values.get(args[0])
+            if (method.name == 'isNull') {
+                return value == null
+            }
+            if (value == null && method.returnType.isPrimitive()) {
+                switch (method.returnType) {
+                    case Boolean.TYPE: return false
+                    case Long.TYPE: return 0L
+                    case Float.TYPE: return 0f
+                    case Double.TYPE: return 0d
+                    default: return 0
+                }
+            }
+            value
+        } as InvocationHandler)
+    }
+
+    private static final Map<Class, DataType> TYPES = [
+            (String)    : DataType.text(),
+            (UUID)      : DataType.uuid(),
+            (Long)      : DataType.bigint(),
+            (Integer)   : DataType.cint(),
+            (Boolean)   : DataType.cboolean(),
+            (Double)    : DataType.cdouble(),
+            (BigDecimal): DataType.decimal(),
+            (Date)      : DataType.timestamp()]
+
+    private static ColumnDefinitions columnDefinitions(Map<String, Object> values) {
+        Constructor<ColumnDefinitions.Definition> defConstructor = ColumnDefinitions.Definition.getDeclaredConstructor(String, String, String, DataType)
+        defConstructor.accessible = true
+        ColumnDefinitions.Definition[] defs = values.collect { String name, Object value ->
+            DataType type = value == null ? null : value instanceof ByteBuffer ? DataType.blob() : TYPES[value.getClass()]
+            defConstructor.newInstance('ks', 't', name, type ?: DataType.text())
+        } as ColumnDefinitions.Definition[]
+        Constructor<ColumnDefinitions> constructor = ColumnDefinitions.getDeclaredConstructor(ColumnDefinitions.Definition[], CodecRegistry)
+        constructor.accessible = true
+        constructor.newInstance(defs, CodecRegistry.DEFAULT_INSTANCE)
+    }
+}
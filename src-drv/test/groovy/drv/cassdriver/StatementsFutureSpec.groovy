@@ -0,0 +1,127 @@
+package drv.cassdriver
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+import com.datastax.driver.core.ResultSet
+import com.datastax.driver.core.ResultSetFuture
+import com.datastax.driver.core.Session
+import com.datastax.driver.core.SimpleStatement
+import com.datastax.driver.core.Statement
+import spock.lang.Specification
+
+class StatementsFutureSpec extends Specification {
+
+    RecordingDriver drv = new RecordingDriver()
+
+    List<St> statements(int n) {
+        (1..n).collect { drv.prepareSt('ks', 'UPDATE ks.p_X SET d = ? WHERE e = ?', ["v$it".toString(), 'doc'] as Object[], 'ONE', 1000L) }
+    }
+
+    void 'at most maxAsyncInFlight statements are outstanding, completions send the rest'() {
+        given:
+        drv.maxAsyncInFlight = 2
+        List<CompletableFuture<ResultSet>> responses = Collections.synchronizedList([])
+        drv.respond = { St st -> CompletableFuture<ResultSet> f = new CompletableFuture<>(); responses.add(f); f }
+
+        when:
+        CompletableFuture<Void> all = drv.executeStatementsFuture(statements(5))
+
+        then:
+        drv.sent.size() == 2
+
+        when:
+        responses[0].complete(null)
+
+        then:
+        drv.sent.size() == 3
+        !all.done
+
+        when:
+        (1..4).each { responses[it].complete(null) }
+
+        then:
+        drv.sent.size() == 5
+        all.done
+        !all.completedExceptionally
+    }
+
+    void 'the first failure fails the whole send, the statements after it are not sent'() {
+        given:
+        drv.maxAsyncInFlight = 1
+        RuntimeException failure = new DrvStorageException('write failed', null)
+        drv.respond = { St st ->
+            st.cqlargs[0] == 'v3' ? failedFuture(failure) : CompletableFuture.completedFuture((ResultSet) null)
+        }
+
+        when:
+        drv.executeStatementsFuture(statements(6)).join()
+
+        then:
+        CompletionException e = thrown()
+        e.cause.is(failure)
+        drv.sent*.cqlargs*.getAt(0) == ['v1', 'v2', 'v3']
+    }
+
+    void 'a statement the driver rejects before sending fails the send'() {
+        given:
+        drv.respond = { St st -> throw new IllegalStateException('no session') }
+
+        when:
+        drv.executeStatementsFuture(statements(3)).join()
+
+        then:
+        CompletionException e = thrown()
+        e.cause instanceof IllegalStateException
+        drv.sent.size() == 1
+    }
+
+    void 'statements completing as they are sent do not nest the sends'() {
+        given:
+        drv.maxAsyncInFlight = 4
+        List<St> stmts = statements(1)
+        List<St> many = Collections.nCopies(100000, stmts[0])
+
+        when:
+        CompletableFuture<Void> all = drv.executeStatementsFuture(many)
+
+        then:
+        all.done
+        !all.completedExceptionally
+        drv.sent.size() == 100000
+    }
+
+    void 'a statement the driver never completes times out after the query timeout and is cancelled'() {
+        given:
+        List<Boolean> cancelled = Collections.synchronizedList([])
+        ResultSetFuture pending = [addListener: { Runnable r, Executor ex -> }, cancel: { boolean interrupt -> cancelled.add(interrupt); true }, isDone: { false }] as ResultSetFuture
+        Session session = [executeAsync: { Statement s -> pending }] as Session
+        DriverWrapper wrapper = new DriverWrapper() {
+            @Override
+            Session getSession() { session }
+        }
+        wrapper.queryTimeoutMillis = 50
+
+        when:
+        wrapper.executeStatementFuture(new St(stmt: new SimpleStatement('SELECT 1'), keyspace: 'ks', cql: 'SELECT 1', cqlargs: [] as Object[])).get(5, TimeUnit.SECONDS)
+
+        then:
+        ExecutionException e = thrown()
+        e.cause instanceof DrvTimeoutException
+        cancelled == [true]
+    }
+
+    void 'no statements is complete'() {
+        expect:
+        drv.executeStatementsFuture([]).done
+    }
+
+    static CompletableFuture<ResultSet> failedFuture(Throwable t) {
+        CompletableFuture<ResultSet> f = new CompletableFuture<>()
+        f.completeExceptionally(t)
+        f
+    }
+}
@@ -0,0 +1,21 @@
+package cassdoc.springmvc.config
+
+import cassdoc.springmvc.service.ApiMetricsAspect
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.context.annotation.EnableAspectJAutoProxy
+
+/**
+ * CassdocAPI operation timers. The MetricRegistry is the actuator's (exposed on /metrics), the same one the services
+ * and driver record into, also dumped on /admin/metrics.
+ *
+ * CassdocAPI has no interface of its own, so it is proxied by subclassing.
+ */
+@Configuration
+@EnableAspectJAutoProxy(proxyTargetClass = true)
+class MetricsConfig {
+
+    @Bean
+    ApiMetricsAspect apiMetricsAspect() { new ApiMetricsAspect() }
+
+}
@@ -1,8 +1,10 @@
 package cassdoc.springmvc.controller
 
 import cassdoc.CassdocAPI
+import cassdoc.Detail
 import cassdoc.DocType
 import cassdoc.OperationContext
+import cassdoc.operations.AttrStorageConverter
 import cwdrg.lg.annotation.Log
 import groovy.transform.CompileStatic
 import org.springframework.beans.factory.annotation.Autowired
@@ -10,10 +12,12 @@ import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.RequestBody
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RequestMethod
+import org.springframework.web.bind.annotation.RequestParam
 import org.springframework.web.bind.annotation.RestController
 import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping
 
 import java.rmi.server.Operation
+import java.util.concurrent.ConcurrentHashMap
 
 
 @Log
@@ -27,6 +31,9 @@ class AdminController {
     @Autowired
     RequestMappingHandlerMapping handlerMappings
 
+    // last attribute storage conversion per collection/typeCode
+    private final Map<String, AttrStorageConverter> conversions = new ConcurrentHashMap<>()
+
     @RequestMapping(value = '/admin/_schema_/{collection}', method = RequestMethod.GET)
     String showSchema(
             @PathVariable(value = 'collection', required = false) String collection
@@ -59,6 +66,12 @@ class AdminController {
         handlerMappings?.handlerMethods.keySet()
     }
 
+    @RequestMapping(value = '/admin/metrics', method = RequestMethod.GET)
+    Map<String, Object> metrics() {
+        log.dbg('GET /admin/metrics --> metrics()', null)
+        api.svcs.metrics.snapshot()
+    }
+
     @RequestMapping(value = '/admin/cassdoc_system_schema', method = RequestMethod.POST)
     String createSystemSchema() {
         log.inf('POST /admin/cassdoc_system_schema --> createSystemSchema()', null)
@@ -77,7 +90,6 @@ class AdminController {
         if (!api.svcs.driver.keyspaces.contains(collection)) {
             api.svcs.createNewCollectionSchema(collection)
         }
-        api.svcs.collections = [:]
         api.svcs.loadSystemSchema()
         return """{"collection_created":"$collection"}"""
     }
@@ -89,11 +101,68 @@ class AdminController {
     ) {
         log.inf("POST /admin/$collection/doctype (${docType.suffix} --> createDocType()", null)
         api.svcs.createNewDoctypeSchema(collection, docType)
-        api.svcs.collections = [:]
         api.svcs.loadSystemSchema()
         return """{"doctype_created":"/$collection/${docType.suffix}"}"""
     }
 
+    @RequestMapping(value = '/admin/{collection}/{typeCode}/index', method = RequestMethod.POST)
+    String createColumnIndex(
+            @PathVariable(value = 'collection') String collection,
+            @PathVariable(value = 'typeCode') String typeCode,
+            @RequestParam(value = 'kind') String kind,
+            @RequestParam(value = 'name') String name,
+            @RequestParam(value = 'attr') String attr
+    ) {
+        log.inf("POST /admin/$collection/$typeCode/index $kind $name $attr --> createColumnIndex()", null)
+        api.svcs.createColumnIndex(collection, typeCode, kind, name, attr)
+        return """{"index_created":"/$collection/$typeCode/$name"}"""
+    }
+
+    @RequestMapping(value = '/admin/{collection}/{typeCode}/attrStorage', method = RequestMethod.POST)
+    String setAttrStorage(
+            @PathVariable(value = 'collection') String collection,
+            @PathVariable(value = 'typeCode') String typeCode,
+            @RequestParam(value = 'format') String format,
+            @RequestParam(value = 'compressBytes', required = false) Integer compressBytes
+    ) {
+        log.inf("POST /admin/$collection/$typeCode/attrStorage $format $compressBytes --> setAttrStorage()", null)
+        api.svcs.setAttrStorage(collection, typeCode, format, compressBytes)
+        return """{"attr_storage":"$format"}"""
+    }
+
+    @RequestMapping(value = '/admin/{collection}/{typeCode}/attrStorage/convert', method = RequestMethod.POST)
+    Map<String, Object> convertAttrStorage(
+            @PathVariable(value = 'collection') String collection,
+            @PathVariable(value = 'typeCode') String typeCode
+    ) {
+        log.inf("POST /admin/$collection/$typeCode/attrStorage/convert --> convertAttrStorage()", null)
+        String key = collection + '/' + typeCode
+        AttrStorageConverter running = conversions[key]
+        if (running != null && !running.finished) {
+            return running.status
+        }
+        DocType type = api.svcs.collections[collection].first.getTypeForSuffix(typeCode)
+        OperationContext opctx = new OperationContext(space: collection)
+        AttrStorageConverter converter = api.convertAttrStorage(opctx, new Detail(), type.uri)
+        conversions[key] = converter
+        return converter.status
+    }
+
+    @RequestMapping(value = '/admin/{collection}/{typeCode}/attrStorage/convert', method = RequestMethod.GET)
+    Map<String, Object> attrStorageConversion(
+            @PathVariable(value = 'collection') String collection,
+            @PathVariable(value = 'typeCode') String typeCode
+    ) {
+        log.dbg("GET /admin/$collection/$typeCode/attrStorage/convert --> attrStorageConversion()", null)
+        conversions[collection + '/' + typeCode]?.status
+    }
+
+    @RequestMapping(value = '/admin/{collection}/cleanup', method = RequestMethod.GET)
+    Map<String, Object> cleanupStatus(@PathVariable(value = 'collection') String collection) {
+        log.dbg("GET /admin/$collection/cleanup --> cleanupStatus()", null)
+        api.svcs.cleanupQueue(collection).status
+    }
+
     @RequestMapping(value = '/admin/{collection}/{typeCode}', method = RequestMethod.GET)
     DocType getDocType(
             @PathVariable(value = 'collection') String collection,
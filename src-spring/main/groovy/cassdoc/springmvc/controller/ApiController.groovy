@@ -1,9 +1,14 @@
 package cassdoc.springmvc.controller
 
 import cassdoc.CassdocAPI
+import cassdoc.AttrValueFilter
 import cassdoc.Detail
+import cassdoc.SearchFilter
+import cassdoc.operations.JsonEmit
+import cassdoc.operations.SortKey
 import cassdoc.springmvc.service.CtxDtl
 import cassdoc.springmvc.service.PrepareCtx
+import com.fasterxml.jackson.core.JsonGenerator
 import cwdrg.lg.annotation.Log
 import cwdrg.spring.annotation.RequestParamJSON
 import cwdrg.util.json.JSONUtil
@@ -80,16 +85,15 @@ class ApiController {
         Detail customDetailJSON = (Detail) JSONUtil.deserialize(request.getParameter('detail'), Detail)
 
         CtxDtl ctxDtl = prepareCtx.readOnlyCtxDtl(collection, customDetailJSON)
-        ServletOutputStream outstream = response.outputStream
-        Writer writer = new OutputStreamWriter(outstream)
+        JsonGenerator gen = JsonEmit.generator(api.svcs.jsonFactory, response.outputStream)
         if (simple) {
-            api.getSimpleDoc(ctxDtl.ctx, ctxDtl.dtl, uuid, writer)
+            api.getSimpleDoc(ctxDtl.ctx, ctxDtl.dtl, uuid, gen)
         } else if (jsonPath != null) {
-            api.getDocJsonPath(ctxDtl.ctx, ctxDtl.dtl, uuid, jsonPath, writer)
+            gen.writeRawValue(api.getDocJsonPath(ctxDtl.ctx, ctxDtl.dtl, uuid, jsonPath))
         } else {
-            api.getDoc(ctxDtl.ctx, ctxDtl.dtl, uuid, writer)
+            api.getDoc(ctxDtl.ctx, ctxDtl.dtl, uuid, gen)
         }
-        writer.flush()
+        JsonEmit.finish(gen)
     }
 
     @RequestMapping(value = '/doc/{collection}/{id}/{attr}', method = RequestMethod.GET)
@@ -109,16 +113,15 @@ class ApiController {
         Detail customDetailJSON = (Detail) JSONUtil.deserialize(request.getParameter('detail'), Detail)
 
         CtxDtl ctxDtl = prepareCtx.readOnlyCtxDtl(collection, customDetailJSON)
-        ServletOutputStream outstream = response.outputStream
-        Writer writer = new OutputStreamWriter(outstream)
+        JsonGenerator gen = JsonEmit.generator(api.svcs.jsonFactory, response.outputStream)
         if (simple) {
-            api.getSimpleAttr(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, writer)
+            api.getSimpleAttr(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, gen)
         } else if (jsonPath != null) {
-            api.getAttrJsonPath(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, jsonPath, writer)
+            gen.writeRawValue(api.getAttrJsonPath(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, jsonPath))
         } else {
-            api.getAttr(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, writer)
+            api.getAttr(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, gen)
         }
-        writer.flush()
+        JsonEmit.finish(gen)
     }
 
     @RequestMapping(value = ['/doc/{collection}', '/doc/{collection}/'], method = RequestMethod.POST)
@@ -178,6 +181,10 @@ class ApiController {
         ServletInputStream instream = request.inputStream
         Reader reader = new InputStreamReader(instream)
         String json = IOUtils.toString(reader)
+        // delta=true: write only what changed, see AttrDelta
+        if (request.getParameter('delta')?.equalsIgnoreCase('true')) {
+            ctxDtl.dtl.deltaUpdate = true
+        }
         // TODO: figure out async use cases
         api.updateAttr(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, json)
     }
@@ -198,14 +205,45 @@ class ApiController {
         CtxDtl ctxDtl = prepareCtx.ctxAndDtl(collection, customDetailJSON)
         ServletInputStream instream = request.inputStream
         Reader reader = new InputStreamReader(instream)
+        // op=append: append the body's array members, streamed
+        if (request.getParameter('op')?.equalsIgnoreCase('append')) {
+            api.appendToArray(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, reader)
+            return
+        }
         String json = IOUtils.toString(reader)
         // TODO: figure out async use cases
-        api.updateAttrOverlay(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, json)
+        if (isMergePatch(request)) {
+            api.mergePatchAttr(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, json)
+        } else {
+            api.updateAttrOverlay(ctxDtl.ctx, ctxDtl.dtl, uuid, attr, json)
+        }
+    }
+
+    @RequestMapping(value = '/doc/{collection}/{id}', method = RequestMethod.PATCH)
+    void mergePatchDoc(
+            @PathVariable(value = 'collection', required = true) String collection,
+            @PathVariable(value = 'id', required = true) String uuid,
+            HttpServletRequest request
+    ) {
+        log.inf("PATCH /doc/$collection/$uuid --> mergePatchDoc()", null)
+        Detail customDetailJSON = (Detail) JSONUtil.deserialize(request.getParameter('detail'), Detail)
+
+        CtxDtl ctxDtl = prepareCtx.ctxAndDtl(collection, customDetailJSON)
+        String json = IOUtils.toString(new InputStreamReader(request.inputStream))
+        api.mergePatchDoc(ctxDtl.ctx, ctxDtl.dtl, uuid, json)
+    }
+
+    /**
+     * RFC 7396: Content-Type application/merge-patch+json, or op=merge
+     */
+    private static boolean isMergePatch(HttpServletRequest request) {
+        request.contentType?.toLowerCase()?.startsWith('application/merge-patch+json') ||
+                request.getParameter('op')?.equalsIgnoreCase('merge')
     }
 
     @RequestMapping(value = '/docs/{collection}', method = RequestMethod.POST)
     String newDocs(
-            @PathVariable(value = 'collectmsondraion', required = true) String collection,
+            @PathVariable(value = 'collection', required = true) String collection,
             //@RequestParam(value = 'async', required = false) Boolean async = false,
             //@RequestParamJSON(value = 'detail', required = false) Detail customDetailJSON,
             HttpServletRequest request,
@@ -216,6 +254,10 @@ class ApiController {
         Detail customDetailJSON = (Detail) JSONUtil.deserialize(request.getParameter('detail'), Detail)
 
         CtxDtl ctxDtl = prepareCtx.writeOnlyCtxDtl(collection, customDetailJSON)
+        // stream=true writes each doc as it is parsed, for large imports
+        if (request.getParameter('stream')?.equalsIgnoreCase('true')) {
+            ctxDtl.ctx.setExecutionModeToStream()
+        }
 
         ServletInputStream instream = request.inputStream
         Reader reader = new InputStreamReader(instream)
@@ -229,6 +271,86 @@ class ApiController {
         writer.flush()
     }
 
+    @RequestMapping(value = '/docs/{collection}/_mget', method = RequestMethod.POST)
+    void getDocs(
+            @PathVariable(value = 'collection', required = true) String collection,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) {
+        log.inf("POST /docs/$collection/_mget --> getDocs()", null)
+        // order=completion writes docs as they are read instead of in the order of the request
+        Boolean completionOrder = request.getParameter('order')?.equalsIgnoreCase('completion')
+        Detail customDetailJSON = (Detail) JSONUtil.deserialize(request.getParameter('detail'), Detail)
+
+        CtxDtl ctxDtl = prepareCtx.readOnlyCtxDtl(collection, customDetailJSON)
+        // request body: JSON array of doc ids
+        List<String> ids = JSONUtil.deserializeStringList(IOUtils.toString(new InputStreamReader(request.inputStream)))
+
+        JsonGenerator gen = JsonEmit.generator(api.svcs.jsonFactory, response.outputStream)
+        api.getDocs(ctxDtl.ctx, ctxDtl.dtl, (ids ?: []).iterator(), gen, !completionOrder)
+        JsonEmit.finish(gen)
+    }
+
+    @RequestMapping(value = '/search/{collection}/{index}', method = RequestMethod.GET)
+    void searchIndex(
+            @PathVariable(value = 'collection', required = true) String collection,
+            @PathVariable(value = 'index', required = true) String index,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) {
+        log.inf("GET /search/$collection/$index --> searchIndex()", null)
+        Detail customDetailJSON = (Detail) JSONUtil.deserialize(request.getParameter('detail'), Detail)
+        String value = request.getParameter('value')
+        // range indexes: from (inclusive) and/or to (exclusive)
+        List criteria = value != null ? [value] : [request.getParameter('from'), request.getParameter('to')]
+        // where.<attr>=<value> filters
+        List<SearchFilter> filters = []
+        for (String param : Collections.list(request.parameterNames)) {
+            if (param.startsWith('where.')) {
+                filters.add(new AttrValueFilter(attr: param.substring(6), value: request.getParameter(param)))
+            }
+        }
+
+        CtxDtl ctxDtl = prepareCtx.readOnlyCtxDtl(collection, customDetailJSON)
+        JsonGenerator gen = JsonEmit.generator(api.svcs.jsonFactory, response.outputStream)
+        // a client disconnect fails a write, which closes the result stream and stops its reads
+        api.searchIndex(ctxDtl.ctx, ctxDtl.dtl, index, criteria, filters, sort(request), limit(request), gen)
+        JsonEmit.finish(gen)
+    }
+
+    // sort=attr,-attr (descending)
+    private static List<SortKey> sort(HttpServletRequest request) {
+        SortKey.parse(request.getParameter('sort'))
+    }
+
+    private static Integer limit(HttpServletRequest request) {
+        String limit = request.getParameter('limit')
+        limit ? Integer.valueOf(limit) : null
+    }
+
+    @RequestMapping(value = '/query/{collection}/{typeCode}', method = RequestMethod.GET)
+    void searchCriteria(
+            @PathVariable(value = 'collection', required = true) String collection,
+            @PathVariable(value = 'typeCode', required = true) String typeCode,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) {
+        log.inf("GET /query/$collection/$typeCode --> searchCriteria()", null)
+        Detail customDetailJSON = (Detail) JSONUtil.deserialize(request.getParameter('detail'), Detail)
+        // every other param is an attribute value
+        Map<String, Object> criteria = [:]
+        for (String param : Collections.list(request.parameterNames)) {
+            if (!(param in ['detail', 'sort', 'limit'])) {
+                criteria[param] = request.getParameter(param)
+            }
+        }
+
+        CtxDtl ctxDtl = prepareCtx.readOnlyCtxDtl(collection, customDetailJSON)
+        JsonGenerator gen = JsonEmit.generator(api.svcs.jsonFactory, response.outputStream)
+        api.searchCriteria(ctxDtl.ctx, ctxDtl.dtl, typeCode, criteria, sort(request), limit(request), gen)
+        JsonEmit.finish(gen)
+    }
+
     @RequestMapping(value = '/doc/{collection}/{id}', method = RequestMethod.DELETE)
     String delDoc(
             @PathVariable(value = 'collection', required = true) String collection,
@@ -0,0 +1,45 @@
+package cassdoc.springmvc.service
+
+import cassdoc.CassdocMetrics
+import cassdoc.CommandExecServices
+import com.codahale.metrics.Timer
+import groovy.transform.CompileStatic
+import org.aspectj.lang.ProceedingJoinPoint
+import org.aspectj.lang.annotation.Around
+import org.aspectj.lang.annotation.Aspect
+import org.springframework.beans.factory.annotation.Autowired
+
+/**
+ * Times every public CassdocAPI operation into cassdoc.api.{method name} (overloads share a timer) and counts the
+ * ones that throw. Calls between API methods are not proxied, so only the outer operation is timed. For the methods
+ * returning an iterator or a future, it's the time to set them up.
+ */
+@Aspect
+@CompileStatic
+class ApiMetricsAspect {
+
+    // bean accessors and groovy plumbing, not operations
+    static final Set<String> NOT_OPERATIONS = ['getConfig', 'setConfig', 'getSvcs', 'setSvcs', 'getMetaClass', 'setMetaClass',
+                                               'invokeMethod', 'getProperty', 'setProperty'] as Set<String>
+
+    @Autowired
+    CommandExecServices svcs
+
+    @Around('execution(public * cassdoc.CassdocAPI.*(..))')
+    Object timeOperation(ProceedingJoinPoint call) throws Throwable {
+        String operation = call.signature.name
+        if (NOT_OPERATIONS.contains(operation)) {
+            return call.proceed()
+        }
+        CassdocMetrics metrics = svcs.metrics
+        Timer.Context timer = metrics.apiTimer(operation).time()
+        try {
+            return call.proceed()
+        } catch (Throwable t) {
+            metrics.apiErrors(operation).mark()
+            throw t
+        } finally {
+            timer.stop()
+        }
+    }
+}
@@ -2,13 +2,18 @@ package cassdoc.springmvc.service
 
 import cassdoc.Detail
 import cassdoc.OperationContext
+import cassdoc.config.CassDocConfig
 import groovy.transform.CompileStatic
+import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.stereotype.Component
 
 @CompileStatic
 @Component
 class PrepareCtx {
 
+    @Autowired(required = false)
+    CassDocConfig config
+
     CtxDtl readOnlyCtxDtl(String collection, Detail customDetail) {
         if (customDetail != null) {
             if (customDetail.writeConsistency != null) {
@@ -32,6 +37,10 @@ class PrepareCtx {
 
     CtxDtl ctxAndDtl(String collection, Detail customDetail) {
         OperationContext ctx = new OperationContext(space: collection)
+        // writes of concurrent requests are coalesced per partition, see GroupCommit
+        if (config?.groupCommitWindowMillis > 0) {
+            ctx.setExecutionModeToGroup()
+        }
         new CtxDtl(ctx: ctx, dtl: customDetail == null ? new Detail() : customDetail)
     }
 }
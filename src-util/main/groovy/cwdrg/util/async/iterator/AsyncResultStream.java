@@ -0,0 +1,177 @@
+package cwdrg.util.async.iterator;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import cwdrg.lg.Lg;
+
+/**
+ * Iterator over results produced by a background task, replacing a hand rolled thread + BlockingQueue +
+ * BlockingIterator.
+ *
+ * The producer runs on the given (shared, bounded) executor and hands results over through a bounded queue with
+ * {@link #put(Object)}, which blocks while the consumer is behind. When the producer returns the stream ends; if it
+ * throws, the error is rethrown to the consumer from hasNext() once the results before it are consumed. Closing the
+ * stream (e.g. the consumer's client went away) cancels the producer: put() returns false and the task is interrupted.
+ *
+ * @author cowardlydragon
+ */
+public class AsyncResultStream<T> implements Iterator<T>, Closeable {
+	private static transient final Lg log = new Lg(
+			LoggerFactory.getLogger(AsyncResultStream.class));
+
+	public interface Producer<T> {
+		/**
+		 * produce results into the stream, return normally at the end of the results
+		 */
+		void produce(AsyncResultStream<T> stream) throws Exception;
+	}
+
+	private static final Object END = new Object();
+
+	private static final class Failure {
+		final Throwable error;
+
+		Failure(Throwable error) {
+			this.error = error;
+		}
+	}
+
+	private final BlockingQueue<Object> queue;
+	private volatile boolean closed = false;
+	private Future<?> task;
+	private Object next;
+	private boolean ended = false;
+
+	/**
+	 * @param capacity
+	 *            results buffered ahead of the consumer
+	 */
+	public AsyncResultStream(int capacity) {
+		queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+
+	/**
+	 * submit the producer, call once
+	 */
+	public AsyncResultStream<T> start(ExecutorService executor, final Producer<T> producer) {
+		task = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				Object last = END;
+				try {
+					producer.produce(AsyncResultStream.this);
+				} catch (Throwable t) {
+					if (!closed) {
+						log.wrn("AsyncResultStream: producer failed", t);
+						last = new Failure(t);
+					}
+				} finally {
+					offer(last);
+				}
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * producer side: hand a result to the consumer, blocking while the queue is full
+	 *
+	 * @return false if the stream was closed, the producer should stop
+	 */
+	public boolean put(T result) throws InterruptedException {
+		if (result == null) {
+			throw new NullPointerException("AsyncResultStream: null result");
+		}
+		return offer(result);
+	}
+
+	private boolean offer(Object item) {
+		try {
+			while (!closed) {
+				if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * producer side
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null) {
+			return true;
+		}
+		if (ended) {
+			return false;
+		}
+		if (closed) {
+			throw Lg.err(new IllegalStateException("AsyncResultStream: closed"));
+		}
+		Object item;
+		try {
+			item = queue.take();
+		} catch (InterruptedException ie) {
+			close();
+			Thread.currentThread().interrupt();
+			throw Lg.err(new RuntimeException("AsyncResultStream: TAKE", ie));
+		}
+		if (item == END) {
+			ended = true;
+			return false;
+		}
+		if (item instanceof Failure) {
+			ended = true;
+			Throwable error = ((Failure) item).error;
+			throw error instanceof RuntimeException ? (RuntimeException) error : new RuntimeException(error);
+		}
+		next = item;
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T tmp = (T) next;
+		next = null;
+		return tmp;
+	}
+
+	/**
+	 * consumer side: stop the producer and drop buffered results. Safe to call more than once and after the end.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		ended = true;
+		next = null;
+		if (task != null) {
+			task.cancel(true);
+		}
+		queue.clear();
+	}
+
+}
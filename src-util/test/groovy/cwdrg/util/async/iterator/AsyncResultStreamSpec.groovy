@@ -0,0 +1,130 @@
+package cwdrg.util.async.iterator
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+import spock.lang.Specification
+
+class AsyncResultStreamSpec extends Specification {
+
+    ExecutorService executor = Executors.newFixedThreadPool(2)
+
+    void cleanup() {
+        executor.shutdownNow()
+    }
+
+    AsyncResultStream<Integer> stream(int capacity, Closure produce) {
+        new AsyncResultStream<Integer>(capacity).start(executor, produce as AsyncResultStream.Producer<Integer>)
+    }
+
+    void waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 2000
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        // and give the producer the chance to go further than it should
+        Thread.sleep(100)
+    }
+
+    void 'results come out in the order they were put, then the stream ends'() {
+        when:
+        AsyncResultStream<Integer> results = stream(4) { AsyncResultStream<Integer> s -> (1..100).each { s.put(it) } }
+
+        then:
+        results.collect() == (1..100).toList()
+        !results.hasNext()
+
+        when:
+        results.next()
+
+        then:
+        thrown(NoSuchElementException)
+    }
+
+    void 'the producer is held to the capacity ahead of the consumer'() {
+        given:
+        AtomicInteger produced = new AtomicInteger()
+        AsyncResultStream<Integer> results = stream(3) { AsyncResultStream<Integer> s ->
+            for (int i = 1; i <= 10; i++) {
+                s.put(i)
+                produced.set(i)
+            }
+        }
+
+        when:
+        waitFor { produced.get() >= 3 }
+
+        then: 'the queue is full, the fourth put blocks'
+        produced.get() == 3
+
+        when:
+        results.next()
+        results.next()
+        waitFor { produced.get() >= 5 }
+
+        then: 'two taken, two more put'
+        produced.get() == 5
+
+        when:
+        List<Integer> rest = results.collect()
+
+        then:
+        rest == (3..10).toList()
+    }
+
+    void 'a producer failure is rethrown after the results before it'() {
+        given:
+        AsyncResultStream<Integer> results = stream(4) { AsyncResultStream<Integer> s ->
+            s.put(1)
+            s.put(2)
+            throw new IllegalStateException('index read failed')
+        }
+
+        expect:
+        results.next() == 1
+        results.next() == 2
+
+        when:
+        results.hasNext()
+
+        then:
+        IllegalStateException e = thrown()
+        e.message == 'index read failed'
+        !results.hasNext()
+    }
+
+    void 'closing the stream stops a producer blocked on a full queue'() {
+        given:
+        CountDownLatch stopped = new CountDownLatch(1)
+        AtomicBoolean lastPut = new AtomicBoolean(true)
+        AsyncResultStream<Integer> results = stream(1) { AsyncResultStream<Integer> s ->
+            int i = 0
+            while (lastPut.get()) {
+                lastPut.set(s.put(i++))
+            }
+            stopped.countDown()
+        }
+        results.next()
+
+        when:
+        results.close()
+
+        then:
+        stopped.await(2, TimeUnit.SECONDS)
+        !lastPut.get()
+        results.closed
+        !results.hasNext()
+    }
+
+    void 'null results are refused'() {
+        when:
+        new AsyncResultStream<Integer>(1).put(null)
+
+        then:
+        thrown(NullPointerException)
+    }
+}
@@ -0,0 +1,72 @@
+package cassdoc.bench
+
+import cassdoc.CassdocAPI
+import cassdoc.Detail
+import cassdoc.DocType
+import cassdoc.OperationContext
+import cassdoc.inittest.JavaApiTestInitializer
+import cwdrg.lg.annotation.Log
+import org.cassandraunit.utils.EmbeddedCassandraServerHelper
+import spock.lang.Shared
+import spock.lang.Specification
+
+/**
+ * Ingest throughput, in cassandra statements per second, of the one-statement-at-a-time "spray" mode versus the
+ * partition batched "batch" mode against an embedded cassandra-unit node. Numbers are logged, not asserted: an
+ * embedded single node is only good for relative comparison.
+ */
+@Log
+class BatchThroughputSpec extends Specification {
+
+    static String keyspace = 'java_api_test'
+    static int DOCS = 500
+
+    @Shared
+    CassdocAPI api
+
+    void setupSpec() {
+        EmbeddedCassandraServerHelper.startEmbeddedCassandra()
+        api = JavaApiTestInitializer.initAPI()
+        api.svcs.createSystemSchema()
+        api.svcs.createNewCollectionSchema(keyspace)
+        api.svcs.createNewDoctypeSchema(keyspace, new DocType(uri: 'cassdoc.PROD', suffix: 'PROD'))
+        api.svcs.createNewDoctypeSchema(keyspace, new DocType(uri: 'cassdoc.JOB', suffix: 'JOB'))
+    }
+
+    long[] ingest(String mode, String doc) {
+        long statements = 0
+        long start = System.nanoTime()
+        for (int i = 0; i < DOCS; i++) {
+            OperationContext opctx = new OperationContext(space: keyspace)
+            opctx.executionMode = mode
+            opctx.cqlTraceEnabled = true
+            api.newDoc(opctx, new Detail(), doc)
+            if (mode != 'batch') {
+                // plain spray is not executed by the api calls
+                opctx.DO(api.svcs, new Detail())
+            }
+            statements += opctx.cqlTrace.count { Object[] t -> !(t[0].toString().startsWith('BEGIN') || t[0].toString().startsWith('END')) }
+        }
+        return [statements, System.nanoTime() - start] as long[]
+    }
+
+    void 'statements per second: spray vs partition batches'() {
+        given:
+        String doc = this.class.classLoader.getResourceAsStream('cassdoc/testdata/DocWithSubDocs.json').getText()
+        // warm up prepared statements and the jit
+        ingest('spray', doc)
+        ingest('batch', doc)
+
+        when:
+        long[] spray = ingest('spray', doc)
+        long[] batch = ingest('batch', doc)
+        double sprayRate = spray[0] / (spray[1] / 1e9d)
+        double batchRate = batch[0] / (batch[1] / 1e9d)
+        log.inf("spray: ${spray[0]} statements in ${spray[1] / 1000000} ms = ${sprayRate.round()} stmts/sec", null)
+        log.inf("batch: ${batch[0]} statements in ${batch[1] / 1000000} ms = ${batchRate.round()} stmts/sec", null)
+
+        then:
+        spray[0] > 0
+        batch[0] > 0
+    }
+}
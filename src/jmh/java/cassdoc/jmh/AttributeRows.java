@@ -0,0 +1,47 @@
+package cassdoc.jmh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import groovy.lang.Closure;
+
+/**
+ * The rows closure of a RecordingDriver for the emit benchmark: the p_ table inserts
+ * (INSERT INTO space.p_xxx (e,p,zv,d,t) VALUES (?,?,?,?,?)) are kept, and p_ table reads
+ * (SELECT ... FROM space.p_xxx WHERE e = ?) are answered from them. Everything else reads as empty.
+ */
+public class AttributeRows extends Closure<List<Map<String, Object>>> {
+
+    private final Map<String, List<Map<String, Object>>> pRows = new ConcurrentHashMap<>();
+
+    public AttributeRows() {
+        super(null);
+    }
+
+    public List<Map<String, Object>> doCall(String cql, Object[] args) {
+        if (cql.contains(".p_")) {
+            if (cql.startsWith("INSERT INTO ")) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("e", args[0]);
+                row.put("p", args[1]);
+                row.put("zv", args[2]);
+                row.put("d", args[3]);
+                row.put("t", args[4]);
+                List<Map<String, Object>> rows = pRows.computeIfAbsent((String) args[0], docUUID -> Collections.synchronizedList(new ArrayList<Map<String, Object>>()));
+                rows.add(row);
+            } else if (cql.endsWith("WHERE e = ?")) {
+                List<Map<String, Object>> rows = pRows.get((String) args[0]);
+                if (rows != null) {
+                    synchronized (rows) {
+                        return new ArrayList<>(rows);
+                    }
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+}
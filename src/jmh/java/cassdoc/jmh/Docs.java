@@ -0,0 +1,107 @@
+package cassdoc.jmh;
+
+/**
+ * Benchmark documents by shape:
+ * <ul>
+ * <li>flat: 20 scalar attributes</li>
+ * <li>wide: 1000 scalar attributes</li>
+ * <li>deep: one attribute of objects and arrays nested 64 deep</li>
+ * <li>array: one attribute holding a 10k member array of scalars and small objects</li>
+ * <li>children: 50 child docs of 10 attributes each, in an array attribute</li>
+ * </ul>
+ */
+public final class Docs {
+
+    public static final String[] SHAPES = {"flat", "wide", "deep", "array", "children"};
+
+    private Docs() {
+    }
+
+    public static String json(String shape) {
+        switch (shape) {
+            case "flat":
+                return flat(20);
+            case "wide":
+                return flat(1000);
+            case "deep":
+                return deep(64);
+            case "array":
+                return array(10000);
+            case "children":
+                return children(50, 10);
+            default:
+                throw new IllegalArgumentException("unknown doc shape " + shape);
+        }
+    }
+
+    private static StringBuilder start() {
+        return new StringBuilder(1024).append("{\"_id\":\"").append(Fixture.SUFFIX).append('"');
+    }
+
+    private static void scalarAttrs(StringBuilder sb, int count) {
+        for (int i = 0; i < count; i++) {
+            sb.append(",\"attr").append(i).append("\":");
+            switch (i % 4) {
+                case 0:
+                    sb.append("\"value of attribute ").append(i).append(" with \\\"escapes\\\" and unicode \\u00e9\"");
+                    break;
+                case 1:
+                    sb.append(i * 1000003L);
+                    break;
+                case 2:
+                    sb.append(i).append(".25");
+                    break;
+                default:
+                    sb.append(i % 8 == 3);
+            }
+        }
+    }
+
+    static String flat(int attrs) {
+        StringBuilder sb = start();
+        scalarAttrs(sb, attrs);
+        return sb.append('}').toString();
+    }
+
+    static String deep(int depth) {
+        StringBuilder sb = start().append(",\"name\":\"deep\",\"tree\":");
+        for (int i = 0; i < depth; i++) {
+            sb.append("{\"level\":").append(i).append(",\"label\":\"node ").append(i).append("\",\"tags\":[\"a\",\"b\",").append(i).append("],\"next\":");
+        }
+        sb.append("null");
+        for (int i = 0; i < depth; i++) {
+            sb.append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    static String array(int members) {
+        StringBuilder sb = start().append(",\"name\":\"array\",\"values\":[");
+        for (int i = 0; i < members; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            if (i % 10 == 9) {
+                sb.append("{\"x\":").append(i).append(",\"y\":\"").append(i).append("\"}");
+            } else if (i % 2 == 0) {
+                sb.append(i);
+            } else {
+                sb.append("\"member ").append(i).append('"');
+            }
+        }
+        return sb.append("]}").toString();
+    }
+
+    static String children(int count, int attrs) {
+        StringBuilder sb = start().append(",\"name\":\"parent\",\"children\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"_id\":\"").append(Fixture.SUFFIX).append('"');
+            scalarAttrs(sb, attrs);
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+}
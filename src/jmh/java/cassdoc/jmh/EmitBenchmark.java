@@ -0,0 +1,105 @@
+package cassdoc.jmh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import cassdoc.CommandExecServices;
+import cassdoc.Detail;
+import cassdoc.OperationContext;
+import cassdoc.operations.CreateOperations;
+import cassdoc.operations.JsonEmit;
+import cassdoc.operations.RetrievalOperations;
+import drv.cassdriver.RecordingDriver;
+
+/**
+ * Document rendering: RetrievalOperations.getSingleDoc and parseRetrievedChildObject/parseRetrievedChildArray over
+ * attribute rows served by a RecordingDriver, child docs pulled. The doc is ingested once per trial.
+ *
+ * getSingleDoc is called as for a child doc (root false): the root existence check and the child doc prefetch are
+ * thread pool and query round trips, not rendering.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class EmitBenchmark {
+
+    @Param({"flat", "wide", "deep", "array", "children"})
+    public String shape;
+
+    private CommandExecServices svcs;
+
+    private Detail detail;
+
+    private String docUUID;
+
+    private int sizeHint;
+
+    private ByteArrayOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        RecordingDriver driver = new RecordingDriver();
+        driver.setRows(new AttributeRows());
+        svcs = Fixture.services(driver);
+        detail = new Detail();
+        detail.setPullChildDocs(true);
+        String json = Docs.json(shape);
+        docUUID = CreateOperations.newDoc(svcs, Fixture.opctx(), detail, json, false);
+        sizeHint = json.length() * 2;
+        out = new ByteArrayOutputStream(sizeHint);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public StringWriter emit() {
+        return emitDoc();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public StringWriter emitLatency() {
+        return emitDoc();
+    }
+
+    /**
+     * the servlet path: UTF-8 straight into an OutputStream through a generator
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public ByteArrayOutputStream emitBytes() throws IOException {
+        OperationContext opctx = Fixture.opctx();
+        out.reset();
+        JsonGenerator gen = JsonEmit.generator(svcs.getJsonFactory(), out);
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, gen, false);
+        JsonEmit.finish(gen);
+        return out;
+    }
+
+    private StringWriter emitDoc() {
+        OperationContext opctx = Fixture.opctx();
+        StringWriter writer = new StringWriter(sizeHint);
+        RetrievalOperations.getSingleDoc(svcs, opctx, detail, docUUID, writer, false);
+        return writer;
+    }
+}
@@ -0,0 +1,46 @@
+package cassdoc.jmh;
+
+import java.util.Collections;
+
+import cassdoc.CommandExecServices;
+import cassdoc.DocType;
+import cassdoc.IndexConfigurationService;
+import cassdoc.OperationContext;
+import cassdoc.TypeConfigurationService;
+import drv.cassdriver.RecordingDriver;
+import groovy.lang.Tuple2;
+
+/**
+ * CommandExecServices wired to a RecordingDriver, with a single doc type.
+ */
+public final class Fixture {
+
+    public static final String SPACE = "bench";
+
+    public static final String SUFFIX = "BNCH";
+
+    private Fixture() {
+    }
+
+    public static CommandExecServices services(RecordingDriver driver) {
+        DocType type = new DocType();
+        type.setUri("bench");
+        type.setSuffix(SUFFIX);
+        TypeConfigurationService types = new TypeConfigurationService();
+        types.setTypeList(Collections.singletonList(type));
+
+        CommandExecServices svcs = new CommandExecServices();
+        svcs.setDriver(driver);
+        svcs.setCollections(Collections.singletonMap(SPACE, new Tuple2<>(types, new IndexConfigurationService())));
+        return svcs;
+    }
+
+    /**
+     * a fresh context per operation, as the API does per request
+     */
+    public static OperationContext opctx() {
+        OperationContext opctx = new OperationContext();
+        opctx.setSpace(SPACE);
+        return opctx;
+    }
+}
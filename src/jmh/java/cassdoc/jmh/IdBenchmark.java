@@ -0,0 +1,124 @@
+package cassdoc.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cassdoc.IDUtil;
+import cassdoc.OperationContext;
+
+/**
+ * Doc id generation under contention: the eaio generator the ids used to come from, IDUtil.timeUUID (one atomic add on
+ * the shared counter per id) and OperationContext.newDocUUID with blocks of 256 (one per 256 ids), each at 1, 4, 16
+ * and 64 threads. Throughput is per thread: flat across thread counts means no contention. Plus the parsing done per
+ * id on reads, IDUtil.idSuffix and extractUnixTimeFromEaioTimeUUID (no allocation in the gc profile).
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IdBenchmark {
+
+    private final OperationContext blockOpctx = newBlockContext();
+
+    private final String docUUID = IDUtil.timeUUID("PROD");
+
+    private static OperationContext newBlockContext() {
+        OperationContext opctx = new OperationContext();
+        opctx.setIdBlockSize(256);
+        return opctx;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String eaio_t01() {
+        return IDUtil.timeUUIDEAIO() + "-PROD";
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String eaio_t04() {
+        return IDUtil.timeUUIDEAIO() + "-PROD";
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String eaio_t16() {
+        return IDUtil.timeUUIDEAIO() + "-PROD";
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String eaio_t64() {
+        return IDUtil.timeUUIDEAIO() + "-PROD";
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String timeUUID_t01() {
+        return IDUtil.timeUUID("PROD");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String timeUUID_t04() {
+        return IDUtil.timeUUID("PROD");
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String timeUUID_t16() {
+        return IDUtil.timeUUID("PROD");
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String timeUUID_t64() {
+        return IDUtil.timeUUID("PROD");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String block_t01() {
+        return blockOpctx.newDocUUID("PROD");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String block_t04() {
+        return blockOpctx.newDocUUID("PROD");
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String block_t16() {
+        return blockOpctx.newDocUUID("PROD");
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String block_t64() {
+        return blockOpctx.newDocUUID("PROD");
+    }
+
+    @Benchmark
+    public String idSuffix() {
+        return IDUtil.idSuffix(docUUID);
+    }
+
+    @Benchmark
+    public long extractTime() {
+        return IDUtil.extractUnixTimeFromEaioTimeUUID(docUUID);
+    }
+}
@@ -0,0 +1,70 @@
+package cassdoc.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cassdoc.CommandExecServices;
+import cassdoc.Detail;
+import cassdoc.operations.CreateOperations;
+import drv.cassdriver.RecordingDriver;
+
+/**
+ * New document ingest: parsing (CreateOperations.parseField/parseIngestChildObject/parseIngestChildArray), command
+ * generation and statement execution in immediate mode against a RecordingDriver that doesn't keep the writes.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class IngestBenchmark {
+
+    @Param({"flat", "wide", "deep", "array", "children"})
+    public String shape;
+
+    private RecordingDriver driver;
+
+    private CommandExecServices svcs;
+
+    private Detail detail;
+
+    private String json;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        driver = new RecordingDriver();
+        driver.setRecording(false);
+        svcs = Fixture.services(driver);
+        detail = new Detail();
+        json = Docs.json(shape);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String ingest() {
+        return ingestDoc();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String ingestLatency() {
+        return ingestDoc();
+    }
+
+    private String ingestDoc() {
+        return CreateOperations.newDoc(svcs, Fixture.opctx(), detail, json, false);
+    }
+}